@@ -0,0 +1,138 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.cas.cfc.CASFileCache;
+import build.buildfarm.cas.cfc.LruEvictionPolicy;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.DigestUtil.HashFunction;
+import build.buildfarm.common.Size;
+import build.buildfarm.common.io.Directories;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Measures throughput of concurrent entry operations against the CASFileCache lru.
+// A single segment serializes every reference, release and access on one lock, as the
+// cache monitor did, and is the baseline for comparison with partitioned configurations.
+// Run with: bazel run //src/main/java/build/buildfarm:bf-cache-contention-benchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class CacheContentionBenchmark {
+  private static final int ENTRY_COUNT = 4096;
+
+  @Param({"1", "16", "64"})
+  public int lruSegments;
+
+  private Path root;
+  private CASFileCache fileCache;
+  private Digest[] digests;
+  private String[] keys;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, InterruptedException {
+    root = Files.createTempDirectory("cache-contention");
+    DigestUtil digestUtil = new DigestUtil(HashFunction.SHA256);
+    Map<Digest, ByteString> blobs = Maps.newConcurrentMap();
+    fileCache =
+        new CASFileCache(
+            root,
+            /* maxSizeInBytes=*/ Size.gbToBytes(1),
+            /* maxEntrySizeInBytes=*/ Size.gbToBytes(1),
+            /* hexBucketLevels=*/ 0,
+            /* storeFileDirsIndexInMemory=*/ true,
+            /* internedDirectoriesIndex=*/ false,
+            lruSegments,
+            /* persistentIndex=*/ false,
+            new LruEvictionPolicy(),
+            /* evictionHighWatermarkPercent=*/ 0,
+            /* evictionLowWatermarkPercent=*/ 0,
+            digestUtil,
+            /* expireService=*/ newDirectExecutorService(),
+            /* accessRecorder=*/ directExecutor(),
+            /* storage=*/ Maps.newConcurrentMap(),
+            /* directoriesIndexDbName=*/ ":memory:",
+            /* onPut=*/ (digest) -> {},
+            /* onExpire=*/ (expiredDigests) -> {},
+            /* delegate=*/ null) {
+          @Override
+          protected InputStream newExternalInput(Digest digest, long offset) {
+            return blobs.get(digest).substring((int) offset).newInput();
+          }
+        };
+    fileCache.start(newDirectExecutorService(), /* skipLoad=*/ true);
+
+    digests = new Digest[ENTRY_COUNT];
+    keys = new String[ENTRY_COUNT];
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      ByteString content = ByteString.copyFromUtf8("contended blob " + i);
+      Digest digest = digestUtil.compute(content);
+      blobs.put(digest, content);
+      Path path = fileCache.put(digest, /* isExecutable=*/ false);
+      digests[i] = digest;
+      keys[i] = path.getFileName().toString();
+      fileCache.decrementReferences(ImmutableList.of(keys[i]), ImmutableList.of());
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Directories.remove(root);
+  }
+
+  // the put of an existing entry is a reference, as made for every input of an exec dir
+  @Benchmark
+  public void referenceAndRelease() throws IOException, InterruptedException {
+    int index = ThreadLocalRandom.current().nextInt(ENTRY_COUNT);
+    fileCache.put(digests[index], /* isExecutable=*/ false);
+    fileCache.decrementReferences(ImmutableList.of(keys[index]), ImmutableList.of());
+  }
+
+  @Benchmark
+  public Iterable<Digest> findMissingBlobs() throws InterruptedException {
+    int index = ThreadLocalRandom.current().nextInt(ENTRY_COUNT);
+    return fileCache.findMissingBlobs(ImmutableList.of(digests[index]));
+  }
+}
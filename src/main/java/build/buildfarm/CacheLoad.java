@@ -78,6 +78,7 @@ class CacheLoad {
 
     // Report information on started cache.
     System.out.println("CAS Started.");
+    System.out.println("Load Time: " + results.loadTime.getSeconds() + "s");
     System.out.println("Start Time: " + results.startupTime.getSeconds() + "s");
 
     // Load Information
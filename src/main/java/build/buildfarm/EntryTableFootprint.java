@@ -0,0 +1,81 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import build.buildfarm.cas.cfc.CASFileCache.Entry;
+import build.buildfarm.cas.cfc.CompactEntryTable;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import io.grpc.Deadline;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+// Measures the retained heap per entry of CASFileCache storage engines, filled with sha256 keys,
+// a third of them executable.
+// Run with: bazel run //src/main/java/build/buildfarm:bf-entry-table-footprint -- \
+//   --jvm_flag=-Xmx24g [entry counts...]
+// Entry counts default to 1M, 10M and 50M.
+class EntryTableFootprint {
+  private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+  private static long usedHeap() throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  private static String key(int i) {
+    String hash = Hashing.sha256().hashInt(i).toString();
+    return i % 3 == 0 ? hash + "_exec" : hash;
+  }
+
+  private static void measure(
+      String name, Supplier<ConcurrentMap<String, Entry>> newStorage, int entries)
+      throws InterruptedException {
+    long before = usedHeap();
+    long start = System.nanoTime();
+    ConcurrentMap<String, Entry> storage = newStorage.get();
+    for (int i = 0; i < entries; i++) {
+      String key = key(i);
+      storage.put(key, new Entry(key, /* size=*/ 1024, Deadline.after(10, SECONDS)));
+    }
+    long fillMillis = (System.nanoTime() - start) / 1000000;
+    long retained = usedHeap() - before;
+    System.out.println(
+        String.format(
+            "%-10s %,12d entries: %,8d MB retained, %4d bytes/entry, filled in %,dms",
+            name, storage.size(), retained >> 20, retained / entries, fillMillis));
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int[] counts = {1000000, 10000000, 50000000};
+    if (args.length > 0) {
+      counts = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        counts[i] = Integer.parseInt(args[i]);
+      }
+    }
+    for (int entries : counts) {
+      measure("concurrent", Maps::newConcurrentMap, entries);
+      measure("compact", CompactEntryTable::new, entries);
+    }
+  }
+}
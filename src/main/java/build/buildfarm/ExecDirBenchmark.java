@@ -0,0 +1,168 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm;
+
+import build.buildfarm.common.io.Directories;
+import build.buildfarm.common.io.NativeDirectories;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Measures the creation and removal of an exec dir of 100k hard linked inputs, as materialized
+// from the CASFileCache, with nio paths and with native fd-relative calls. Inputs are spread over
+// 100 directories of 10 subdirectories each, and link to a pool of cache files.
+// Run with: bazel run //src/main/java/build/buildfarm:bf-exec-dir-benchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExecDirBenchmark {
+  private static final int DIRECTORY_COUNT = 100;
+  private static final int SUBDIRECTORY_COUNT = 10;
+  private static final int FILE_COUNT = 100;
+  // hard link counts are limited per inode
+  private static final int CACHE_FILE_COUNT = 1000;
+
+  @Param({"nio", "native"})
+  public String type;
+
+  private Path root;
+  private Path[] cacheFiles;
+  private Path execDir;
+  private ForkJoinPool pool;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    if (type.equals("native") && !NativeDirectories.isSupported()) {
+      throw new IllegalStateException("native exec dirs are not supported");
+    }
+    root = Files.createTempDirectory("exec-dir");
+    Path cache = Files.createDirectory(root.resolve("cache"));
+    cacheFiles = new Path[CACHE_FILE_COUNT];
+    for (int i = 0; i < CACHE_FILE_COUNT; i++) {
+      cacheFiles[i] = Files.write(cache.resolve("entry_" + i), ("input " + i).getBytes());
+    }
+    execDir = root.resolve("exec");
+    pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    pool.shutdown();
+    Directories.remove(root);
+  }
+
+  private Path cacheFile(int i, int j, int k) {
+    return cacheFiles[((i * SUBDIRECTORY_COUNT + j) * FILE_COUNT + k) % CACHE_FILE_COUNT];
+  }
+
+  private void createNio() throws IOException {
+    Files.createDirectory(execDir);
+    for (int i = 0; i < DIRECTORY_COUNT; i++) {
+      Path dir = Files.createDirectory(execDir.resolve("dir_" + i));
+      for (int j = 0; j < SUBDIRECTORY_COUNT; j++) {
+        Path subdir = Files.createDirectory(dir.resolve("subdir_" + j));
+        for (int k = 0; k < FILE_COUNT; k++) {
+          Files.createLink(subdir.resolve("file_" + k), cacheFile(i, j, k));
+        }
+      }
+    }
+  }
+
+  private void createNative() throws IOException {
+    Files.createDirectory(execDir);
+    int execDirFd = NativeDirectories.open(execDir);
+    try {
+      for (int i = 0; i < DIRECTORY_COUNT; i++) {
+        int dirFd = NativeDirectories.createDirectoryAt(execDirFd, "dir_" + i);
+        try {
+          for (int j = 0; j < SUBDIRECTORY_COUNT; j++) {
+            int subdirFd = NativeDirectories.createDirectoryAt(dirFd, "subdir_" + j);
+            try {
+              for (int k = 0; k < FILE_COUNT; k++) {
+                NativeDirectories.createLinkAt(subdirFd, "file_" + k, cacheFile(i, j, k));
+              }
+            } finally {
+              NativeDirectories.close(subdirFd);
+            }
+          }
+        } finally {
+          NativeDirectories.close(dirFd);
+        }
+      }
+    } finally {
+      NativeDirectories.close(execDirFd);
+    }
+  }
+
+  private void create() throws IOException {
+    if (type.equals("native")) {
+      createNative();
+    } else {
+      createNio();
+    }
+  }
+
+  private void remove() throws IOException {
+    if (type.equals("native")) {
+      NativeDirectories.remove(execDir, pool);
+    } else {
+      Directories.remove(execDir);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Created {
+    @Setup(Level.Invocation)
+    public void setUp(ExecDirBenchmark benchmark) throws IOException {
+      benchmark.create();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Removed {
+    @TearDown(Level.Invocation)
+    public void tearDown(ExecDirBenchmark benchmark) throws IOException {
+      benchmark.remove();
+    }
+  }
+
+  @Benchmark
+  public void createExecDir(Removed removed) throws IOException {
+    create();
+  }
+
+  @Benchmark
+  public void destroyExecDir(Created created) throws IOException {
+    remove();
+  }
+}
@@ -0,0 +1,157 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.ExecuteOperationMetadata;
+import build.bazel.remote.execution.v2.Platform;
+import build.bazel.remote.execution.v2.RequestMetadata;
+import build.bazel.remote.execution.v2.ToolDetails;
+import build.buildfarm.common.redis.RedisRecords;
+import build.buildfarm.v1test.ExecuteEntry;
+import build.buildfarm.v1test.QueueEntry;
+import build.buildfarm.v1test.QueuedOperationMetadata;
+import com.google.longrunning.Operation;
+import com.google.protobuf.Any;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Measures the printing and parsing of backplane records, as json and as binary protobuf, for a
+// queued operation and its queue entry, including their encoding as the values exchanged with
+// redis. The size of each value is printed when the trial is set up.
+// Run with: bazel run //src/main/java/build/buildfarm:bf-record-encoding-benchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RecordEncodingBenchmark {
+  private static final JsonFormat.TypeRegistry typeRegistry =
+      JsonFormat.TypeRegistry.newBuilder().add(QueuedOperationMetadata.getDescriptor()).build();
+  private static final JsonFormat.Parser parser =
+      JsonFormat.parser().usingTypeRegistry(typeRegistry);
+
+  @Param({"json", "protobuf"})
+  public String encoding;
+
+  private RedisRecords records;
+  private Operation operation;
+  private QueueEntry queueEntry;
+  private byte[] operationValue;
+  private byte[] queueEntryValue;
+
+  private static Digest digest(String hash, long size) {
+    return Digest.newBuilder().setHash(hash).setSizeBytes(size).build();
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws InvalidProtocolBufferException {
+    records =
+        new RedisRecords(
+            encoding.equals("protobuf"), JsonFormat.printer().usingTypeRegistry(typeRegistry));
+    String operationName = "shard/operations/0b3c9f4e-5a1d-4a57-9d1e-6f3c2b7a8e91";
+    Digest actionDigest =
+        digest("f1d2d2f924e986ac86fdf7b36c94bcdf32beec15f1d2d2f924e986ac86fdf7b3", 142);
+    RequestMetadata requestMetadata =
+        RequestMetadata.newBuilder()
+            .setToolDetails(
+                ToolDetails.newBuilder().setToolName("bazel").setToolVersion("4.2.1").build())
+            .setActionId("2c3b0a5e8d7f4c1a9b6e3d2f1a0c9b8e7d6f5a4b3c2d1e0f9a8b7c6d5e4f3a2b")
+            .setToolInvocationId("6a1f8e0c-2d4b-4f7a-8c3e-9b5d1a7f0e2c")
+            .setCorrelatedInvocationsId("b7e9c1d3-5f2a-4e8b-a6c0-3d9f7b1e5a2c")
+            .build();
+    operation =
+        Operation.newBuilder()
+            .setName(operationName)
+            .setMetadata(
+                Any.pack(
+                    QueuedOperationMetadata.newBuilder()
+                        .setExecuteOperationMetadata(
+                            ExecuteOperationMetadata.newBuilder()
+                                .setStage(ExecuteOperationMetadata.Stage.QUEUED)
+                                .setActionDigest(actionDigest))
+                        .setQueuedOperationDigest(
+                            digest(
+                                "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+                                20480))
+                        .setRequestMetadata(requestMetadata)
+                        .build()))
+            .build();
+    queueEntry =
+        QueueEntry.newBuilder()
+            .setExecuteEntry(
+                ExecuteEntry.newBuilder()
+                    .setOperationName(operationName)
+                    .setActionDigest(actionDigest)
+                    .setRequestMetadata(requestMetadata)
+                    .setStdoutStreamName(operationName + "/streams/stdout")
+                    .setStderrStreamName(operationName + "/streams/stderr"))
+            .setQueuedOperationDigest(
+                digest("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", 20480))
+            .setPlatform(
+                Platform.newBuilder()
+                    .addProperties(
+                        Platform.Property.newBuilder().setName("OSFamily").setValue("Linux"))
+                    .addProperties(
+                        Platform.Property.newBuilder()
+                            .setName("container-image")
+                            .setValue("docker://gcr.io/example/rbe-ubuntu:latest")))
+            .build();
+    operationValue = RedisRecords.encode(records.print(operation));
+    queueEntryValue = RedisRecords.encode(records.print(queueEntry));
+    System.out.println(
+        String.format(
+            "%s: operation record %d bytes, queue entry record %d bytes",
+            encoding, operationValue.length, queueEntryValue.length));
+  }
+
+  @Benchmark
+  public byte[] printOperation() throws InvalidProtocolBufferException {
+    return RedisRecords.encode(records.print(operation));
+  }
+
+  @Benchmark
+  public Operation parseOperation() throws InvalidProtocolBufferException {
+    Operation.Builder builder = Operation.newBuilder();
+    RedisRecords.merge(RedisRecords.decode(operationValue), parser, builder);
+    return builder.build();
+  }
+
+  @Benchmark
+  public byte[] printQueueEntry() throws InvalidProtocolBufferException {
+    return RedisRecords.encode(records.print(queueEntry));
+  }
+
+  @Benchmark
+  public QueueEntry parseQueueEntry() throws InvalidProtocolBufferException {
+    QueueEntry.Builder builder = QueueEntry.newBuilder();
+    RedisRecords.merge(RedisRecords.decode(queueEntryValue), parser, builder);
+    return builder.build();
+  }
+}
@@ -0,0 +1,94 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm;
+
+import build.buildfarm.common.VirtualThreads;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Measures the scheduling latency of a worker's operation threads on platform and virtual
+// threads. Each operation starts a thread which repeatedly waits for a short period, as the
+// fetchers, executors and pollers of a wide pipeline do, and the operations are timed from their
+// release until the last has completed. The virtual type requires a runtime with virtual threads.
+// Run with: bazel run //src/main/java/build/buildfarm:bf-thread-scheduling-benchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ThreadSchedulingBenchmark {
+  private static final int WAITS = 10;
+  private static final long WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Param({"platform", "virtual"})
+  public String type;
+
+  @Param({"1000", "10000"})
+  public int operations;
+
+  private ThreadFactory threadFactory;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    if (type.equals("virtual")) {
+      if (!VirtualThreads.isSupported()) {
+        throw new IllegalStateException("virtual threads are not supported");
+      }
+      threadFactory = VirtualThreads.factory("operation-");
+    } else {
+      threadFactory = Thread::new;
+    }
+  }
+
+  @Benchmark
+  public void scheduleOperations() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    Thread[] threads = new Thread[operations];
+    for (int i = 0; i < operations; i++) {
+      threads[i] =
+          threadFactory.newThread(
+              () -> {
+                try {
+                  release.await();
+                } catch (InterruptedException e) {
+                  return;
+                }
+                for (int j = 0; j < WAITS; j++) {
+                  LockSupport.parkNanos(WAIT_NANOS);
+                }
+              });
+      threads[i].start();
+    }
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+  }
+}
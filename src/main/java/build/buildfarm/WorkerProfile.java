@@ -16,6 +16,7 @@ package build.buildfarm;
 
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.redis.RedisClient;
+import build.buildfarm.common.redis.RedisRecords;
 import build.buildfarm.instance.Instance;
 import build.buildfarm.instance.shard.JedisClusterFactory;
 import build.buildfarm.instance.stub.StubInstance;
@@ -32,7 +33,6 @@ import com.google.devtools.common.options.OptionsParser;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import com.google.protobuf.util.Durations;
-import com.google.protobuf.util.JsonFormat;
 import io.grpc.ManagedChannel;
 import io.grpc.StatusRuntimeException;
 import io.grpc.netty.NegotiationType;
@@ -49,6 +49,7 @@ import java.util.Map;
 import java.util.Set;
 import javax.naming.ConfigurationException;
 import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.util.SafeEncoder;
 
 class WorkerProfile {
   private static ManagedChannel createChannel(String target) {
@@ -149,12 +150,14 @@ class WorkerProfile {
   private static Set<String> fetchWorkers(
       JedisCluster jedis, RedisShardBackplaneConfig config, long now) {
     Set<String> workers = Sets.newConcurrentHashSet();
-    for (Map.Entry<String, String> entry : jedis.hgetAll(config.getWorkersHashName()).entrySet()) {
+    Map<String, String> workerRecords =
+        RedisRecords.decode(jedis.hgetAll(SafeEncoder.encode(config.getWorkersHashName())));
+    for (Map.Entry<String, String> entry : workerRecords.entrySet()) {
       String json = entry.getValue();
       try {
         if (json != null) {
           ShardWorker.Builder builder = ShardWorker.newBuilder();
-          JsonFormat.parser().merge(json, builder);
+          RedisRecords.merge(json, builder);
           ShardWorker worker = builder.build();
           if (worker.getExpireAt() > now) {
             workers.add(worker.getEndpoint());
@@ -234,6 +234,14 @@ public interface Backplane {
   QueueEntry dispatchOperation(List<Platform.Property> provisions)
       throws IOException, InterruptedException;
 
+  /**
+   * Moves up to maxEntries operations from the list of queued operations to the list of dispatched
+   * operations, waiting only for the first. Returns an empty list if none could be dispatched.
+   */
+  @ThreadSafe
+  List<QueueEntry> dispatchOperations(List<Platform.Property> provisions, int maxEntries)
+      throws IOException, InterruptedException;
+
   /**
    * Pushes an operation onto the head of the list of queued operations after a rejection which does
    * not require revalidation
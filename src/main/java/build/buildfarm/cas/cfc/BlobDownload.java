@@ -0,0 +1,190 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas.cfc;
+
+import static java.lang.String.format;
+import static java.nio.file.StandardOpenOption.READ;
+
+import build.buildfarm.cas.cfc.ReadThroughInputStream.InputStreamGenerator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A download of a blob into the cache, shared by every reader that misses on it while it is in
+ * progress.
+ *
+ * <p>The downloader reports the bytes written to its partial file, which readers read at their own
+ * offsets, blocking for more until the download completes. The partial file is removed when the
+ * entry is committed, so readers that have not yet opened it read the entry instead. The content is
+ * only verified when the download completes, so readers wait for its success before reporting the
+ * end of the blob.
+ */
+final class BlobDownload {
+  private final long size;
+
+  @GuardedBy("this")
+  private @Nullable Path path = null;
+
+  @GuardedBy("this")
+  private long written = 0;
+
+  @GuardedBy("this")
+  private boolean done = false;
+
+  @GuardedBy("this")
+  private boolean succeeded = false;
+
+  BlobDownload(long size) {
+    this.size = size;
+  }
+
+  synchronized void start(Path path) {
+    this.path = path;
+  }
+
+  synchronized void advance(long written) {
+    this.written = written;
+    notifyAll();
+  }
+
+  synchronized void complete(boolean succeeded) {
+    this.succeeded = succeeded;
+    done = true;
+    notifyAll();
+  }
+
+  /** Waits for the download to complete, throwing if it did not succeed. */
+  synchronized void await() throws IOException, InterruptedException {
+    while (!done) {
+      wait();
+    }
+    if (!succeeded) {
+      throw new IOException("download failed");
+    }
+  }
+
+  // the number of bytes which may be read from the partial file, which exceeds the position
+  // unless the download has succeeded
+  private synchronized long awaitWritten(long position) throws IOException {
+    while (!done && written <= position) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+    }
+    if (!succeeded && written <= position) {
+      throw new IOException("download failed");
+    }
+    return written;
+  }
+
+  private synchronized @Nullable Path getPath() {
+    return path;
+  }
+
+  InputStream newInput(long offset, InputStreamGenerator localInputStreamGenerator) {
+    return new InputStream() {
+      private long position = offset;
+      private @Nullable FileChannel channel = null;
+      private @Nullable InputStream localInput = null;
+
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (localInput != null) {
+          return localInput.read(b, off, len);
+        }
+        if (len == 0) {
+          return 0;
+        }
+        if (position >= size) {
+          awaitSucceeded();
+          return -1;
+        }
+        long available = awaitWritten(position);
+        if (channel == null) {
+          Path partialPath = getPath();
+          if (available <= position || partialPath == null) {
+            return readLocal(b, off, len);
+          }
+          try {
+            channel = FileChannel.open(partialPath, READ);
+          } catch (NoSuchFileException e) {
+            // the entry was committed since the bytes were written
+            return readLocal(b, off, len);
+          }
+        }
+        int readLength = (int) Math.min(len, available - position);
+        int n = channel.read(ByteBuffer.wrap(b, off, readLength), position);
+        if (n < 0) {
+          throw new IOException(format("premature EOF for download at %d", position));
+        }
+        position += n;
+        return n;
+      }
+
+      private void awaitSucceeded() throws IOException {
+        try {
+          await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException(e);
+        }
+      }
+
+      private int readLocal(byte[] b, int off, int len) throws IOException {
+        awaitSucceeded();
+        localInput = localInputStreamGenerator.open(position);
+        return localInput.read(b, off, len);
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        if (localInput != null) {
+          return localInput.skip(n);
+        }
+        long skipped = Math.max(0, Math.min(n, size - position));
+        position += skipped;
+        return skipped;
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          if (channel != null) {
+            channel.close();
+          }
+        } finally {
+          if (localInput != null) {
+            localInput.close();
+          }
+        }
+      }
+    };
+  }
+}
@@ -15,6 +15,7 @@
 package build.buildfarm.cas.cfc;
 
 import static build.buildfarm.common.io.Directories.disableAllWriteAccess;
+import static build.buildfarm.common.io.EvenMoreFiles.hasReadOnlyPerms;
 import static build.buildfarm.common.io.EvenMoreFiles.isReadOnlyExecutable;
 import static build.buildfarm.common.io.EvenMoreFiles.setReadOnlyPerms;
 import static build.buildfarm.common.io.Utils.getFileKey;
@@ -22,10 +23,12 @@ import static build.buildfarm.common.io.Utils.getOrIOException;
 import static build.buildfarm.common.io.Utils.listDir;
 import static build.buildfarm.common.io.Utils.listDirentSorted;
 import static build.buildfarm.common.io.Utils.stat;
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.io.ByteStreams.nullOutputStream;
 import static com.google.common.util.concurrent.Futures.catchingAsync;
+import static com.google.common.util.concurrent.Futures.getDone;
 import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
 import static com.google.common.util.concurrent.Futures.immediateFuture;
 import static com.google.common.util.concurrent.Futures.successfulAsList;
@@ -36,11 +39,16 @@ import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
 import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
 import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
 import static java.nio.file.StandardOpenOption.APPEND;
 import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import build.bazel.remote.execution.v2.BatchReadBlobsResponse.Response;
@@ -52,6 +60,7 @@ import build.bazel.remote.execution.v2.RequestMetadata;
 import build.bazel.remote.execution.v2.SymlinkNode;
 import build.buildfarm.cas.ContentAddressableStorage;
 import build.buildfarm.cas.DigestMismatchException;
+import build.buildfarm.cas.MemoryCAS;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.EntryLimitException;
 import build.buildfarm.common.Write;
@@ -80,15 +89,22 @@ import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import io.grpc.Deadline;
 import io.grpc.stub.ServerCallStreamObserver;
 import io.prometheus.client.Counter;
+import io.prometheus.client.Summary;
+import java.io.EOFException;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileStore;
 import java.nio.file.Files;
@@ -96,7 +112,9 @@ import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -109,8 +127,11 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
@@ -125,9 +146,49 @@ public abstract class CASFileCache implements ContentAddressableStorage {
   // Prometheus metrics
   private static final Counter expiredKeyCounter =
       Counter.build().name("expired_key").help("Number of key expirations.").register();
+  // hit ratio and byte hit ratio are derived from these by result
+  private static final Counter lookupCounter =
+      Counter.build()
+          .name("cas_lookup")
+          .labelNames("result")
+          .help("Number of references and reads of cache entries.")
+          .register();
+  private static final Counter lookupBytesCounter =
+      Counter.build()
+          .name("cas_lookup_bytes")
+          .labelNames("result")
+          .help("Size of references and reads of cache entries.")
+          .register();
+  // eviction throughput by source, either the background evictor or a put over the max size
+  private static final Counter evictedEntryCounter =
+      Counter.build()
+          .name("cas_evicted_entries")
+          .labelNames("source")
+          .help("Number of entries expired to make space.")
+          .register();
+  private static final Counter evictedBytesCounter =
+      Counter.build()
+          .name("cas_evicted_bytes")
+          .labelNames("source")
+          .help("Size of entries expired to make space.")
+          .register();
+  private static final Counter ingestedBytesCounter =
+      Counter.build()
+          .name("cas_ingested_bytes")
+          .labelNames("method")
+          .help("Size of files ingested into the cache, by link or by copy.")
+          .register();
+  private static final Summary evictionStallTime =
+      Summary.build()
+          .name("cas_eviction_stall_time_ms")
+          .help("Time puts spent blocked on expiration to make space, in ms.")
+          .register();
 
   protected static final String DEFAULT_DIRECTORIES_INDEX_NAME = "directories.sqlite";
   protected static final String DIRECTORIES_INDEX_NAME_MEMORY = ":memory:";
+  // the db, and the write-ahead log and shared memory files of its WAL mode
+  private static final ImmutableList<String> DIRECTORIES_INDEX_DB_SUFFIXES =
+      ImmutableList.of("", "-wal", "-shm");
 
   private final Path root;
   private final EntryPathStrategy entryPathStrategy;
@@ -138,12 +199,32 @@ public abstract class CASFileCache implements ContentAddressableStorage {
   private final Consumer<Digest> onPut;
   private final Consumer<Iterable<Digest>> onExpire;
   private final Executor accessRecorder;
+  private final EvictionPolicy evictionPolicy;
+  private final long windowMaxSizeInBytes;
+  private final AtomicLong windowSizeInBytes = new AtomicLong(0);
+  private final StripedReadBuffer<String> accessBuffer =
+      new StripedReadBuffer<>(
+          /* stripeCount=*/ 4 * Runtime.getRuntime().availableProcessors(),
+          /* stripeCapacity=*/ 256);
+  private final AtomicBoolean accessDrainScheduled = new AtomicBoolean(false);
   private final ExecutorService expireService;
 
   private final Map<Digest, DirectoryEntry> directoryStorage = Maps.newConcurrentMap();
+  @Nullable private final CASIndexJournal indexJournal;
+  @Nullable private Thread indexValidator = null;
   private final DirectoriesIndex directoriesIndex;
   private final String directoriesIndexDbName;
   private final LockMap locks = new LockMap();
+  private final ConcurrentMap<String, BlobDownload> downloads = Maps.newConcurrentMap();
+  // downloads beyond these threads are queued, with their readers waiting for them to start
+  private static final int MAX_CONCURRENT_DOWNLOADS = 32;
+  private final ExecutorService downloadService =
+      Executors.newFixedThreadPool(
+          MAX_CONCURRENT_DOWNLOADS,
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("CASFileCache Download %d")
+              .build());
   @Nullable private final ContentAddressableStorage delegate;
   private final LoadingCache<BlobWriteKey, Write> writes =
       CacheBuilder.newBuilder()
@@ -187,18 +268,31 @@ public abstract class CASFileCache implements ContentAddressableStorage {
               });
 
   private FileStore fileStore; // bound to root
-  private transient long sizeInBytes = 0;
-  private transient Entry header = new SentinelEntry();
-  private volatile long unreferencedEntryCount = 0;
+  private final AtomicLong sizeInBytes = new AtomicLong(0);
+  private final Segment[] segments;
 
-  @GuardedBy("this")
-  private long removedEntrySize = 0;
+  // serializes expiration, ahead of directoriesLock and any segment
+  private final Lock evictionLock = new ReentrantLock();
+  // guards directoryStorage and directoriesIndex mutation against entry removal
+  private final Object directoriesLock = new Object();
+  // leaf monitor, signalled when entries become unreferenced or charges are discharged
+  private final Object releaseMonitor = new Object();
+  private final AtomicLong releases = new AtomicLong(0);
+  private final AtomicInteger releaseWaiters = new AtomicInteger(0);
 
-  @GuardedBy("this")
-  private int removedEntryCount = 0;
+  // the background evictor expires entries from the high watermark down to the low watermark
+  private static final int EVICTION_BATCH_SIZE = 64;
+  private final long evictionHighWatermarkInBytes;
+  private final long evictionLowWatermarkInBytes;
+  private final Object evictorMonitor = new Object();
+  private volatile boolean evictorWaiting = false;
+  @Nullable private Thread evictor = null;
 
-  public synchronized long size() {
-    return sizeInBytes;
+  private final AtomicLong removedEntrySize = new AtomicLong(0);
+  private final AtomicInteger removedEntryCount = new AtomicInteger(0);
+
+  public long size() {
+    return sizeInBytes.get();
   }
 
   public long maxSize() {
@@ -210,23 +304,23 @@ public abstract class CASFileCache implements ContentAddressableStorage {
   }
 
   public long unreferencedEntryCount() {
-    return unreferencedEntryCount;
+    long count = 0;
+    for (Segment segment : segments) {
+      count += segment.unreferencedEntryCount;
+    }
+    return count;
   }
 
   public long directoryStorageCount() {
     return directoryStorage.size();
   }
 
-  public synchronized int getEvictedCount() {
-    int count = removedEntryCount;
-    removedEntryCount = 0;
-    return count;
+  public int getEvictedCount() {
+    return removedEntryCount.getAndSet(0);
   }
 
-  public synchronized long getEvictedSize() {
-    long size = removedEntrySize;
-    removedEntrySize = 0;
-    return size;
+  public long getEvictedSize() {
+    return removedEntrySize.getAndSet(0);
   }
 
   public class CacheScanResults {
@@ -237,6 +331,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
 
   public class CacheLoadResults {
     public boolean loadSkipped;
+    public boolean indexLoaded;
     public CacheScanResults scan = new CacheScanResults();
     public List<Path> invalidDirectories = Collections.emptyList();
   }
@@ -244,6 +339,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
   public class StartupCacheResults {
     public Path cacheDirectory;
     public CacheLoadResults load;
+    public Duration loadTime;
     public Duration startupTime;
   }
 
@@ -278,6 +374,12 @@ public abstract class CASFileCache implements ContentAddressableStorage {
         maxEntrySizeInBytes,
         hexBucketLevels,
         storeFileDirsIndexInMemory,
+        /* internedDirectoriesIndex=*/ false,
+        /* lruSegments=*/ 0,
+        /* persistentIndex=*/ false,
+        new LruEvictionPolicy(),
+        /* evictionHighWatermarkPercent=*/ 0,
+        /* evictionLowWatermarkPercent=*/ 0,
         digestUtil,
         expireService,
         accessRecorder,
@@ -294,6 +396,12 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       long maxEntrySizeInBytes,
       int hexBucketLevels,
       boolean storeFileDirsIndexInMemory,
+      boolean internedDirectoriesIndex,
+      int lruSegments,
+      boolean persistentIndex,
+      EvictionPolicy evictionPolicy,
+      int evictionHighWatermarkPercent,
+      int evictionLowWatermarkPercent,
       DigestUtil digestUtil,
       ExecutorService expireService,
       Executor accessRecorder,
@@ -308,6 +416,23 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     this.digestUtil = digestUtil;
     this.expireService = expireService;
     this.accessRecorder = accessRecorder;
+    this.evictionPolicy = evictionPolicy;
+    windowMaxSizeInBytes = evictionPolicy.windowSizeInBytes(maxSizeInBytes);
+    if (evictionHighWatermarkPercent == 0) {
+      // no background eviction, puts expire entries when the cache would exceed its max size
+      evictionHighWatermarkInBytes = maxSizeInBytes;
+      evictionLowWatermarkInBytes = maxSizeInBytes;
+    } else {
+      checkArgument(
+          evictionHighWatermarkPercent <= 100
+              && evictionLowWatermarkPercent > 0
+              && evictionLowWatermarkPercent < evictionHighWatermarkPercent,
+          "eviction watermarks must satisfy 0 < low (%s) < high (%s) <= 100",
+          evictionLowWatermarkPercent,
+          evictionHighWatermarkPercent);
+      evictionHighWatermarkInBytes = maxSizeInBytes * evictionHighWatermarkPercent / 100;
+      evictionLowWatermarkInBytes = maxSizeInBytes * evictionLowWatermarkPercent / 100;
+    }
     this.storage = storage;
     this.onPut = onPut;
     this.onExpire = onExpire;
@@ -315,6 +440,10 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     this.directoriesIndexDbName = directoriesIndexDbName;
 
     entryPathStrategy = new HexBucketEntryPathStrategy(root, hexBucketLevels);
+    indexJournal =
+        persistentIndex
+            ? new CASIndexJournal(root, hexBucketLevels, this::startIndexCheckpoint)
+            : null;
 
     String directoriesIndexUrl = "jdbc:sqlite:";
     if (directoriesIndexDbName.equals(DIRECTORIES_INDEX_NAME_MEMORY)) {
@@ -322,21 +451,39 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     } else {
       // db is ephemeral for now, no reuse occurs to match it, computation
       // occurs each time anyway, and expected use of put is noop on collision
+      // a stale write-ahead log would otherwise be applied to the new db
       Path path = root.resolve(directoriesIndexDbName);
       try {
-        if (Files.exists(path)) {
-          Files.delete(path);
+        for (String suffix : DIRECTORIES_INDEX_DB_SUFFIXES) {
+          Files.deleteIfExists(root.resolve(directoriesIndexDbName + suffix));
         }
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
       directoriesIndexUrl += path.toString();
     }
-    this.directoriesIndex =
-        storeFileDirsIndexInMemory
-            ? new MemoryFileDirectoriesIndex(entryPathStrategy)
-            : new SqliteFileDirectoriesIndex(directoriesIndexUrl, entryPathStrategy);
-    header.before = header.after = header;
+    if (internedDirectoriesIndex) {
+      this.directoriesIndex = new InternedFileDirectoriesIndex(entryPathStrategy);
+    } else if (storeFileDirsIndexInMemory) {
+      this.directoriesIndex = new MemoryFileDirectoriesIndex(entryPathStrategy);
+    } else {
+      this.directoriesIndex =
+          new SqliteFileDirectoriesIndex(directoriesIndexUrl, entryPathStrategy);
+    }
+
+    if (lruSegments <= 0) {
+      lruSegments = Runtime.getRuntime().availableProcessors();
+    }
+    // round up to a power of two for masking
+    segments = new Segment[Integer.highestOneBit(lruSegments * 2 - 1)];
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  private Segment getSegment(String key) {
+    int h = key.hashCode();
+    return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
   }
 
   private static Digest keyToDigest(String key, long size, DigestUtil digestUtil)
@@ -407,32 +554,60 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     return false;
   }
 
-  private void accessed(Iterable<String> keys) {
-    /* could also bucket these */
+  private void accessed(String key) {
+    // a full buffer drops the access, leaving the entry in its current lru position
+    accessBuffer.offer(key);
+    scheduleAccessDrain();
+  }
+
+  private void scheduleAccessDrain() {
+    if (accessDrainScheduled.get() || !accessDrainScheduled.compareAndSet(false, true)) {
+      return;
+    }
     try {
-      accessRecorder.execute(() -> recordAccess(keys));
+      accessRecorder.execute(this::drainAccesses);
     } catch (RejectedExecutionException e) {
-      logger.log(
-          Level.SEVERE, format("could not record access for %d keys", Iterables.size(keys)), e);
+      accessDrainScheduled.set(false);
+      logger.log(Level.SEVERE, "could not schedule access recording", e);
+    }
+  }
+
+  private void drainAccesses() {
+    try {
+      accessBuffer.drainTo(this::recordAccess);
+    } finally {
+      accessDrainScheduled.set(false);
+    }
+    if (!accessBuffer.isEmpty()) {
+      scheduleAccessDrain();
+    }
+  }
+
+  // apply pending accesses before victim selection when no drain is in flight
+  private void drainAccessesIfIdle() {
+    if (!accessBuffer.isEmpty() && accessDrainScheduled.compareAndSet(false, true)) {
+      drainAccesses();
     }
   }
 
-  private synchronized void recordAccess(Iterable<String> keys) {
-    for (String key : keys) {
+  private void recordAccess(String key) {
+    Segment segment = getSegment(key);
+    synchronized (segment) {
       Entry e = storage.get(key);
       if (e != null) {
-        e.recordAccess(header);
+        e.recordAccess(segment.headerFor(e));
+        evictionPolicy.recordAccess(e);
       }
     }
   }
 
   private boolean entryExists(Entry e) {
-    if (!e.existsDeadline.isExpired()) {
+    if (!e.isExistsDeadlineExpired()) {
       return true;
     }
 
-    if (Files.exists(getPath(e.key))) {
-      e.existsDeadline = Deadline.after(10, SECONDS);
+    if (Files.exists(getPath(e.getKey()))) {
+      e.setExistsDeadline(Deadline.after(10, SECONDS));
       return true;
     }
     return false;
@@ -448,16 +623,11 @@ public abstract class CASFileCache implements ContentAddressableStorage {
   @Override
   public Iterable<Digest> findMissingBlobs(Iterable<Digest> digests) throws InterruptedException {
     ImmutableList.Builder<Digest> builder = ImmutableList.builder();
-    ImmutableList.Builder<String> found = ImmutableList.builder();
     for (Digest digest : digests) {
-      if (digest.getSizeBytes() != 0 && !containsLocal(digest, null, found::add)) {
+      if (digest.getSizeBytes() != 0 && !containsLocal(digest, null, this::accessed)) {
         builder.add(digest);
       }
     }
-    List<String> foundDigests = found.build();
-    if (!foundDigests.isEmpty()) {
-      accessed(foundDigests);
-    }
     ImmutableList<Digest> missingDigests = builder.build();
     if (delegate != null && !missingDigests.isEmpty()) {
       return delegate.findMissingBlobs(missingDigests);
@@ -467,13 +637,27 @@ public abstract class CASFileCache implements ContentAddressableStorage {
 
   @Override
   public boolean contains(Digest digest, Digest.Builder result) {
-    return containsLocal(digest, result, (key) -> accessed(ImmutableList.of(key)))
+    return containsLocal(digest, result, this::accessed)
         || (delegate != null && delegate.contains(digest, result));
   }
 
   @Override
   public ListenableFuture<Iterable<Response>> getAllFuture(Iterable<Digest> digests) {
-    throw new UnsupportedOperationException();
+    // batch reads are served from local entries only, missing blobs are reported as not found
+    return immediateFuture(MemoryCAS.getAll(digests, this::getLocalContent));
+  }
+
+  private @Nullable ByteString getLocalContent(Digest digest) {
+    if (digest.getSizeBytes() == 0) {
+      return ByteString.EMPTY;
+    }
+    try (InputStream in = newLocalInput(digest, /* offset=*/ 0)) {
+      return ByteString.readFrom(in);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   protected InputStream newTransparentInput(Digest digest, long offset) throws IOException {
@@ -487,42 +671,40 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     return delegate.newInput(digest, offset);
   }
 
+  private static void recordLookup(boolean hit, long sizeInBytes) {
+    String result = hit ? "hit" : "miss";
+    lookupCounter.labels(result).inc();
+    lookupBytesCounter.labels(result).inc(sizeInBytes);
+  }
+
   InputStream newLocalInput(Digest digest, long offset) throws IOException {
     logger.log(Level.FINE, format("getting input stream for %s", DigestUtil.toString(digest)));
+    return Channels.newInputStream(newLocalChannel(digest).position(offset));
+  }
+
+  FileChannel newLocalChannel(Digest digest) throws IOException {
     boolean isExecutable = false;
     do {
       String key = getKey(digest, isExecutable);
       Entry e = storage.get(key);
       if (e != null) {
-        InputStream input;
+        FileChannel channel;
         try {
-          input = Files.newInputStream(getPath(key));
-          input.skip(offset);
+          channel = FileChannel.open(getPath(key), READ);
         } catch (NoSuchFileException eNoEnt) {
-          boolean removed = false;
-          synchronized (this) {
-            Entry removedEntry = storage.remove(key);
-            if (removedEntry == e) {
-              unlinkEntry(removedEntry);
-              removed = true;
-            } else if (removedEntry != null) {
-              logger.log(
-                  Level.SEVERE,
-                  "nonexistent entry %s did not match last unreferenced entry, restoring it",
-                  key);
-              storage.put(key, removedEntry);
-            }
-          }
+          boolean removed = removeNonexistentEntry(key, e);
           if (removed && isExecutable) {
             onExpire.accept(ImmutableList.of(digest));
           }
           continue;
         }
-        accessed(ImmutableList.of(key));
-        return input;
+        accessed(key);
+        recordLookup(/* hit=*/ true, digest.getSizeBytes());
+        return channel;
       }
       isExecutable = !isExecutable;
     } while (isExecutable != false);
+    recordLookup(/* hit=*/ false, digest.getSizeBytes());
     throw new NoSuchFileException(DigestUtil.toString(digest));
   }
 
@@ -535,11 +717,64 @@ public abstract class CASFileCache implements ContentAddressableStorage {
         throw e;
       }
     }
+    return newDelegateInput(digest, offset);
+  }
+
+  private InputStream newDelegateInput(Digest digest, long offset) throws IOException {
     if (digest.getSizeBytes() > maxEntrySizeInBytes) {
       return delegate.newInput(digest, offset);
     }
-    Write write = getWrite(digest, UUID.randomUUID(), RequestMetadata.getDefaultInstance());
-    return newReadThroughInput(digest, offset, write);
+    // concurrent misses read the single download of an entry, which proceeds independently of them
+    String key = getKey(digest, /* isExecutable=*/ false);
+    BlobDownload download = downloads.get(key);
+    if (download == null) {
+      BlobDownload newDownload = new BlobDownload(digest.getSizeBytes());
+      download = downloads.putIfAbsent(key, newDownload);
+      if (download == null) {
+        download = newDownload;
+        InputStream in;
+        try {
+          in = delegate.newInput(digest, /* offset=*/ 0);
+        } catch (IOException e) {
+          downloads.remove(key, newDownload);
+          newDownload.complete(/* succeeded=*/ false);
+          throw e;
+        }
+        try {
+          downloadService.execute(() -> downloadFromDelegate(digest, key, newDownload, in));
+        } catch (RejectedExecutionException e) {
+          // stopped
+          downloads.remove(key, newDownload);
+          newDownload.complete(/* succeeded=*/ false);
+          in.close();
+          throw new IOException(e);
+        }
+      }
+    }
+    return download.newInput(offset, localOffset -> newTransparentInput(digest, localOffset));
+  }
+
+  private void downloadFromDelegate(
+      Digest digest, String key, BlobDownload download, InputStream in) {
+    boolean succeeded = false;
+    try {
+      copyToCache(digest, key, /* isExecutable=*/ false, download, () -> in);
+      // the download retains no reference to the entry it has put
+      decrementReference(key);
+      succeeded = true;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, format("error downloading %s", DigestUtil.toString(digest)), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      try {
+        in.close();
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "error closing delegate input stream", e);
+      }
+      downloads.remove(key, download);
+      download.complete(succeeded);
+    }
   }
 
   ReadThroughInputStream newReadThroughInput(Digest digest, long offset, Write write)
@@ -565,6 +800,9 @@ public abstract class CASFileCache implements ContentAddressableStorage {
 
   private static final int CHUNK_SIZE = 128 * 1024;
 
+  // reads of up to this many bytes are served from a single mapping of the file
+  private static final long MAPPED_READ_LIMIT = 1024 * 1024;
+
   @Override
   public void get(
       Digest digest,
@@ -572,13 +810,116 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       long count,
       ServerCallStreamObserver<ByteString> blobObserver,
       RequestMetadata requestMetadata) {
-    InputStream in;
+    FileChannel channel;
+    try {
+      channel = newLocalChannel(digest);
+    } catch (NoSuchFileException e) {
+      if (delegate == null) {
+        blobObserver.onError(e);
+        return;
+      }
+      InputStream in;
+      try {
+        in = newDelegateInput(digest, offset);
+      } catch (IOException delegateException) {
+        blobObserver.onError(delegateException);
+        return;
+      }
+      getFromInput(in, blobObserver);
+      return;
+    } catch (IOException e) {
+      blobObserver.onError(e);
+      return;
+    }
+    getFromChannel(channel, offset, count, blobObserver);
+  }
+
+  /**
+   * Serves a range of a local file without copying it into the heap.
+   *
+   * <p>Small ranges are mapped and wrapped as a single ByteString, which is sliced without copying
+   * into responses. Larger ranges are read in positional chunks, each into a buffer of its own,
+   * since observers may retain the data they are given.
+   */
+  private void getFromChannel(
+      FileChannel channel,
+      long offset,
+      long count,
+      ServerCallStreamObserver<ByteString> blobObserver) {
+    long available;
     try {
-      in = newInput(digest, offset);
+      available = Math.max(0, channel.size() - offset);
     } catch (IOException e) {
+      closeChannel(channel, "error closing channel on error");
       blobObserver.onError(e);
       return;
     }
+    long end = offset + (count > 0 ? Math.min(count, available) : available);
+    blobObserver.setOnCancelHandler(() -> closeChannel(channel, "error closing channel on cancel"));
+    final class ChannelOnReadyHandler implements Runnable {
+      private long position = offset;
+      private boolean complete = false;
+      private boolean mapped = end - offset <= MAPPED_READ_LIMIT;
+
+      ByteString next() throws IOException {
+        if (mapped) {
+          try {
+            // the mapping remains valid after the channel is closed, until it is collected
+            ByteString data =
+                UnsafeByteOperations.unsafeWrap(
+                    channel.map(FileChannel.MapMode.READ_ONLY, position, end - position));
+            position = end;
+            return data;
+          } catch (UnsupportedOperationException e) {
+            // not every filesystem supports mapping
+            mapped = false;
+          }
+        }
+        byte[] buffer = new byte[(int) Math.min(CHUNK_SIZE, end - position)];
+        ByteBuffer dst = ByteBuffer.wrap(buffer);
+        while (dst.hasRemaining()) {
+          if (channel.read(dst, position + dst.position()) < 0) {
+            throw new EOFException(
+                format("unexpected end of file at %d", position + dst.position()));
+          }
+        }
+        position += buffer.length;
+        return UnsafeByteOperations.unsafeWrap(buffer);
+      }
+
+      @Override
+      public void run() {
+        try {
+          while (!complete && blobObserver.isReady()) {
+            if (position < end) {
+              blobObserver.onNext(next());
+            }
+            if (position == end) {
+              complete = true;
+              channel.close();
+              blobObserver.onCompleted();
+            }
+          }
+        } catch (IOException e) {
+          logger.log(Level.SEVERE, "error reading from channel", e);
+          complete = true;
+          closeChannel(channel, "error closing channel on error");
+          blobObserver.onError(e);
+        }
+      }
+    }
+    blobObserver.setOnReadyHandler(new ChannelOnReadyHandler());
+  }
+
+  private static void closeChannel(FileChannel channel, String message) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, message, e);
+    }
+  }
+
+  private void getFromInput(InputStream in, ServerCallStreamObserver<ByteString> blobObserver) {
     blobObserver.setOnCancelHandler(
         () -> {
           try {
@@ -1209,17 +1550,37 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     // Load the cache
     if (!skipLoad) {
       initializeRootDirectory();
-      loadResults = loadCache(onStartPut, removeDirectoryService);
+      if (indexJournal != null && loadIndex(onStartPut)) {
+        loadResults.indexLoaded = true;
+        if (!indexJournal.loadedClean()) {
+          restoreUnindexedFiles(onStartPut);
+        }
+      } else {
+        loadResults = loadCache(onStartPut, removeDirectoryService);
+      }
     } else {
       // Skip loading the cache and ensure it is empty
       Directories.remove(root, removeDirectoryService);
       initializeRootDirectory();
     }
+    Duration loadTime = Duration.between(startTime, Instant.now());
+    logger.log(Level.INFO, "Load Time: " + loadTime.getSeconds() + "s");
 
     logger.log(Level.INFO, "Creating Index");
     directoriesIndex.start();
     logger.log(Level.INFO, "Index Created");
 
+    if (loadResults.indexLoaded) {
+      startIndexValidation();
+    } else if (indexJournal != null) {
+      // establish a new generation for the scanned contents
+      checkpointIndex();
+    }
+
+    if (evictionLowWatermarkInBytes < maxSizeInBytes) {
+      startEvictor();
+    }
+
     // Calculate Startup time
     Instant endTime = Instant.now();
     Duration startupTime = Duration.between(startTime, endTime);
@@ -1229,10 +1590,217 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     StartupCacheResults startupResults = new StartupCacheResults();
     startupResults.cacheDirectory = root;
     startupResults.load = loadResults;
+    startupResults.loadTime = loadTime;
     startupResults.startupTime = startupTime;
     return startupResults;
   }
 
+  private boolean loadIndex(Consumer<Digest> onStartPut) throws IOException {
+    logger.log(Level.INFO, "Loading cas index");
+    return indexJournal.load(
+        new CASIndexJournal.Visitor() {
+          @Override
+          public void visitFile(String key, long size) {
+            // an expired deadline requires the file to be checked on its first use
+            Entry e = new Entry(key, size, Deadline.after(0, SECONDS));
+            storage.put(key, e);
+            onStartPut.accept(keyToDigest(key, size, digestUtil));
+            addLoadedEntry(e);
+          }
+
+          @Override
+          public void visitDirectory(Digest digest, Directory directory, List<String> inputs)
+              throws IOException {
+            directoriesIndex.put(digest, inputs);
+            directoryStorage.put(digest, new DirectoryEntry(directory, Deadline.after(0, SECONDS)));
+          }
+        });
+  }
+
+  // puts that were not yet flushed to the journal when the cache last exited left their files
+  // without entries, which would prevent their reinsertion, and are restored as a scan would
+  private void restoreUnindexedFiles(Consumer<Digest> onStartPut) throws IOException {
+    logger.log(Level.INFO, "cas index was not closed, restoring unindexed files");
+    int restored = 0;
+    int removed = 0;
+    for (Path path : entryPathStrategy) {
+      for (Path file : listDir(path)) {
+        String name = file.getFileName().toString();
+        if (storage.containsKey(name)
+            || name.endsWith("_dir")
+            || (file.getParent().equals(root)
+                && (isDirectoriesIndexFile(name) || CASIndexJournal.isIndexFile(name)))) {
+          continue;
+        }
+        FileStatus stat = stat(file, false, fileStore);
+        if (stat.isDirectory()) {
+          continue;
+        }
+        long size = stat.getSize();
+        FileEntryKey fileEntryKey = parseFileEntryKey(name, size);
+        if (fileEntryKey == null
+            || !fileEntryKey.getKey().equals(name)
+            || stat.isReadOnlyExecutable() != fileEntryKey.getIsExecutable()
+            || size == 0
+            || size > maxEntrySizeInBytes
+            || sizeInBytes.get() + size > maxSizeInBytes) {
+          // includes incomplete writes
+          Files.delete(file);
+          removed++;
+        } else {
+          // an expired deadline requires the file to be checked on its first use
+          Entry e = new Entry(name, size, Deadline.after(0, SECONDS));
+          storage.put(name, e);
+          onStartPut.accept(fileEntryKey.getDigest());
+          addLoadedEntry(e);
+          indexJournal.putFile(name, size);
+          restored++;
+        }
+      }
+    }
+    logger.log(
+        Level.INFO,
+        format("restored %d unindexed files, removed %d invalid files", restored, removed));
+  }
+
+  private void addLoadedEntry(Entry e) {
+    Segment segment = getSegment(e.getKey());
+    synchronized (segment) {
+      segment.sizeInBytes += e.size;
+      if (e.decrementReference(segment.headerFor(e))) {
+        segment.unreferencedEntryCount++;
+      }
+    }
+    sizeInBytes.addAndGet(e.size);
+  }
+
+  // entries restored from the index are removed if their files are found to be missing or invalid
+  private void startIndexValidation() {
+    indexValidator = new Thread(this::validateIndexedEntries, "CASFileCache Index Validator");
+    indexValidator.setDaemon(true);
+    indexValidator.start();
+  }
+
+  private void validateIndexedEntries() {
+    ImmutableList.Builder<Digest> expiredDigests = ImmutableList.builder();
+    int validated = 0;
+    int removed = 0;
+    for (Entry e : ImmutableList.copyOf(storage.values())) {
+      if (Thread.currentThread().isInterrupted()) {
+        break;
+      }
+      Path path = getPath(e.getKey());
+      try {
+        long size;
+        try {
+          size = Files.size(path);
+        } catch (NoSuchFileException eNoEnt) {
+          size = -1;
+        }
+        if (size != e.size && removeNonexistentEntry(e.getKey(), e)) {
+          if (size >= 0) {
+            Files.delete(path);
+          }
+          expiredDigests.add(keyToDigest(e.getKey(), e.size, digestUtil));
+          removed++;
+        }
+      } catch (IOException ioEx) {
+        logger.log(Level.SEVERE, "error validating indexed entry " + e.getKey(), ioEx);
+      }
+      validated++;
+    }
+    List<Digest> expired = expiredDigests.build();
+    if (!expired.isEmpty()) {
+      onExpire.accept(expired);
+    }
+    logger.log(
+        Level.INFO,
+        format("validated %d indexed entries, removed %d invalid entries", validated, removed));
+  }
+
+  private boolean isDirectoriesIndexFile(String name) {
+    for (String suffix : DIRECTORIES_INDEX_DB_SUFFIXES) {
+      if (name.equals(directoriesIndexDbName + suffix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // requested by the journal writer when the journal outgrows its snapshot
+  private void startIndexCheckpoint() {
+    Thread checkpointer =
+        new Thread(
+            () -> {
+              try {
+                checkpointIndex();
+              } catch (IOException e) {
+                logger.log(Level.SEVERE, "error writing cas index checkpoint", e);
+              }
+            },
+            "CASFileCache Index Checkpoint");
+    checkpointer.setDaemon(true);
+    checkpointer.start();
+  }
+
+  private void checkpointIndex() throws IOException {
+    // changes made from here on are retained in the journal of the new generation
+    long generation = indexJournal.beginCheckpoint();
+    if (generation < 0) {
+      return;
+    }
+    List<Entry> entries = new ArrayList<>(storage.values());
+    // least recently used first, to be restored in order
+    entries.sort((a, b) -> Long.signum(a.accessTime - b.accessTime));
+    Map<Digest, CASIndexJournal.DirectoryRecord> directories = new HashMap<>();
+    for (Map.Entry<Digest, DirectoryEntry> directory : directoryStorage.entrySet()) {
+      Digest digest = directory.getKey();
+      directories.put(
+          digest,
+          new CASIndexJournal.DirectoryRecord(
+              directory.getValue().directory,
+              ImmutableList.copyOf(directoriesIndex.directoryEntries(digest))));
+    }
+    indexJournal.checkpoint(
+        generation,
+        Iterables.transform(entries, e -> Maps.immutableEntry(e.getKey(), e.size)),
+        directories);
+  }
+
+  @VisibleForTesting
+  void syncIndex() throws IOException {
+    if (indexJournal != null) {
+      indexJournal.sync();
+    }
+  }
+
+  /**
+   * Stops background eviction and validation of the cache contents and, when the cache has a
+   * persistent index, records a checkpoint of its contents for the next startup.
+   */
+  public void stop() {
+    // downloads in progress complete for their readers
+    downloadService.shutdown();
+    if (evictor != null) {
+      evictor.interrupt();
+    }
+    if (indexValidator != null) {
+      indexValidator.interrupt();
+    }
+    if (indexJournal != null) {
+      try {
+        checkpointIndex();
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "error writing cas index checkpoint", e);
+      } finally {
+        indexJournal.close();
+      }
+    }
+    if (delegate instanceof CASFileCache) {
+      ((CASFileCache) delegate).stop();
+    }
+  }
+
   private CacheLoadResults loadCache(
       Consumer<Digest> onStartPut, ExecutorService removeDirectoryService)
       throws IOException, InterruptedException {
@@ -1306,13 +1874,19 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       for (Path file : listDir(branchDir)) {
         // allow migration for digest-y names
         String name = file.getFileName().toString();
-        if (!(isRoot && name.equals(directoriesIndexDbName)) && !name.matches("[0-9a-f]{2}")) {
+        if (!(isRoot && (isDirectoriesIndexFile(name) || CASIndexJournal.isIndexFile(name)))
+            && !name.matches("[0-9a-f]{2}")) {
           deleteFilesBuilder.add(file);
         }
       }
     }
 
     for (Path file : files) {
+      String name = file.getFileName().toString();
+      if (file.getParent().equals(root)
+          && (isDirectoriesIndexFile(name) || CASIndexJournal.isIndexFile(name))) {
+        continue;
+      }
       pool.execute(
           () -> {
             try {
@@ -1364,7 +1938,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     } else {
       // if cas is full or entry is oversized or empty, mark file for later deletion.
       long size = stat.getSize();
-      if (sizeInBytes + size > maxSizeInBytes || size > maxEntrySizeInBytes || size == 0) {
+      if (sizeInBytes.get() + size > maxSizeInBytes || size > maxEntrySizeInBytes || size == 0) {
         synchronized (deleteFiles) {
           deleteFiles.add(file);
         }
@@ -1390,14 +1964,9 @@ public abstract class CASFileCache implements ContentAddressableStorage {
           synchronized (fileKeys) {
             fileKeys.put(fileKey, e);
           }
-          storage.put(e.key, e);
+          storage.put(e.getKey(), e);
           onStartPut.accept(fileEntryKey.getDigest());
-          synchronized (this) {
-            if (e.decrementReference(header)) {
-              unreferencedEntryCount++;
-            }
-          }
-          sizeInBytes += size;
+          addLoadedEntry(e);
         }
       }
     }
@@ -1510,9 +2079,9 @@ public abstract class CASFileCache implements ContentAddressableStorage {
               .setIsExecutable(isExecutable);
         } else {
           // non-empty file
-          inputsBuilder.add(e.key);
-          Digest digest = CASFileCache.keyToDigest(e.key, e.size, digestUtil);
-          boolean isExecutable = e.key.endsWith("_exec");
+          inputsBuilder.add(e.getKey());
+          Digest digest = CASFileCache.keyToDigest(e.getKey(), e.size, digestUtil);
+          boolean isExecutable = e.getKey().endsWith("_exec");
           b.addFilesBuilder().setName(name).setDigest(digest).setIsExecutable(isExecutable);
         }
       }
@@ -1545,15 +2114,14 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     return getFileName(digest, isExecutable);
   }
 
-  private synchronized void decrementReference(String inputFile) throws IOException {
-    decrementReferencesSynchronized(ImmutableList.of(inputFile), ImmutableList.of());
+  private void decrementReference(String inputFile) throws IOException {
+    decrementEntryReferences(ImmutableList.of(inputFile), ImmutableList.of());
   }
 
-  public synchronized void decrementReferences(
-      Iterable<String> inputFiles, Iterable<Digest> inputDirectories)
+  public void decrementReferences(Iterable<String> inputFiles, Iterable<Digest> inputDirectories)
       throws IOException, InterruptedException {
     try {
-      decrementReferencesSynchronized(inputFiles, inputDirectories);
+      decrementEntryReferences(inputFiles, inputDirectories);
     } catch (ClosedByInterruptException e) {
       InterruptedException intEx = new InterruptedException();
       intEx.addSuppressed(e);
@@ -1565,26 +2133,28 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     int entriesDereferenced = 0;
     for (String input : inputFiles) {
       checkNotNull(input);
-      Entry e = storage.get(input);
-      if (e == null) {
-        throw new IllegalStateException(input + " has been removed with references");
-      }
-      if (!e.key.equals(input)) {
-        throw new RuntimeException("ERROR: entry retrieved: " + e.key + " != " + input);
-      }
-      if (e.decrementReference(header)) {
-        entriesDereferenced++;
-        unreferencedEntryCount++;
+      Segment segment = getSegment(input);
+      synchronized (segment) {
+        Entry e = storage.get(input);
+        if (e == null) {
+          throw new IllegalStateException(input + " has been removed with references");
+        }
+        if (!e.keyEquals(input)) {
+          throw new RuntimeException("ERROR: entry retrieved: " + e.getKey() + " != " + input);
+        }
+        if (e.decrementReference(segment.headerFor(e))) {
+          entriesDereferenced++;
+          segment.unreferencedEntryCount++;
+        }
       }
     }
     return entriesDereferenced;
   }
 
-  @GuardedBy("this")
-  private void decrementReferencesSynchronized(
+  private void decrementEntryReferences(
       Iterable<String> inputFiles, Iterable<Digest> inputDirectories) throws IOException {
     // decrement references and notify if any dropped to 0
-    // insert after the last 0-reference count entry in list
+    // insert after the last 0-reference count entry in its segment
     int entriesDereferenced = decrementInputReferences(inputFiles);
     for (Digest inputDirectory : inputDirectories) {
       DirectoryEntry dirEntry = directoryStorage.get(inputDirectory);
@@ -1598,7 +2168,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
           decrementInputReferences(directoriesIndex.directoryEntries(inputDirectory));
     }
     if (entriesDereferenced > 0) {
-      notify();
+      signalRelease();
     }
   }
 
@@ -1610,19 +2180,41 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     return entryPathStrategy.getPath(filename);
   }
 
-  private synchronized void dischargeAndNotify(long size) {
+  private void dischargeAndNotify(long size) {
     discharge(size);
-    notify();
+    signalRelease();
   }
 
-  @GuardedBy("this")
   private void discharge(long size) {
-    sizeInBytes -= size;
-    removedEntryCount++;
-    removedEntrySize += size;
+    sizeInBytes.addAndGet(-size);
+    removedEntryCount.incrementAndGet();
+    removedEntrySize.addAndGet(size);
+  }
+
+  private void signalRelease() {
+    releases.incrementAndGet();
+    // waiters register before observing releases, so this cannot miss one
+    if (releaseWaiters.get() != 0) {
+      synchronized (releaseMonitor) {
+        releaseMonitor.notifyAll();
+      }
+    }
   }
 
-  @GuardedBy("this")
+  private void awaitRelease(long observedReleases) throws InterruptedException {
+    releaseWaiters.incrementAndGet();
+    try {
+      synchronized (releaseMonitor) {
+        while (releases.get() == observedReleases) {
+          releaseMonitor.wait();
+        }
+      }
+    } finally {
+      releaseWaiters.decrementAndGet();
+    }
+  }
+
+  @GuardedBy("directoriesLock")
   private void unlinkEntry(Entry entry) throws IOException {
     try {
       dischargeEntry(entry, expireService);
@@ -1633,14 +2225,108 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     // but we're only called in contexts where it doesn't exist...
   }
 
+  private boolean removeNonexistentEntry(String key, Entry e) throws IOException {
+    Segment segment = getSegment(key);
+    Entry removedEntry;
+    synchronized (directoriesLock) {
+      synchronized (segment) {
+        removedEntry = storage.remove(key);
+        if (removedEntry == e) {
+          unlinkEntry(removedEntry);
+        } else if (removedEntry != null) {
+          logger.log(
+              Level.SEVERE,
+              format(
+                  "nonexistent entry %s did not match last unreferenced entry, restoring it", key));
+          storage.put(key, removedEntry);
+        }
+      }
+    }
+    if (removedEntry != e) {
+      return false;
+    }
+    if (indexJournal != null) {
+      indexJournal.expireFile(key);
+    }
+    return true;
+  }
+
   @VisibleForTesting
   public Path getDirectoryPath(Digest digest) {
     return getPath(digestFilename(digest) + "_dir");
   }
 
-  @GuardedBy("this")
+  /**
+   * Selects the least recently released unreferenced entry among the heads of either the window or
+   * the main lru of all segments.
+   */
+  private @Nullable Entry eldestUnreferencedEntry(boolean window) {
+    Entry eldest = null;
+    long eldestAccessTime = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        Entry header = window ? segment.windowHeader : segment.header;
+        Entry e = header.after;
+        if (e != header && (eldest == null || e.accessTime - eldestAccessTime < 0)) {
+          eldest = e;
+          eldestAccessTime = e.accessTime;
+        }
+      }
+    }
+    return eldest;
+  }
+
+  /**
+   * Selects the entry to expire. The eldest entries of an oversized window are admitted to the main
+   * lru while it has room, and otherwise the policy determines whether the window's eldest or the
+   * main lru's eldest is expired.
+   */
+  @GuardedBy("evictionLock")
+  private @Nullable Entry selectUnreferencedEntry() {
+    for (; ; ) {
+      Entry candidate =
+          windowSizeInBytes.get() > windowMaxSizeInBytes ? eldestUnreferencedEntry(true) : null;
+      Entry victim = eldestUnreferencedEntry(false);
+      if (candidate == null) {
+        return victim != null ? victim : eldestUnreferencedEntry(true);
+      }
+      long mainSizeInBytes = sizeInBytes.get() - windowSizeInBytes.get();
+      if (victim != null
+          && mainSizeInBytes + candidate.size > maxSizeInBytes - windowMaxSizeInBytes) {
+        if (!evictionPolicy.admit(candidate, victim)) {
+          return candidate;
+        }
+        admit(candidate);
+        return victim;
+      }
+      // every admission shrinks the window
+      admit(candidate);
+    }
+  }
+
+  private void admit(Entry e) {
+    Segment segment = getSegment(e.getKey());
+    synchronized (segment) {
+      if (e.inWindow) {
+        e.inWindow = false;
+        windowSizeInBytes.addAndGet(-e.size);
+        // a referenced entry joins the main lru on its release
+        if (e.referenceCount == 0 && e.isLinked()) {
+          e.unlink();
+          e.addBefore(segment.header);
+        }
+      }
+    }
+  }
+
+  @GuardedBy("evictionLock")
   private Entry waitForLastUnreferencedEntry(long blobSizeInBytes) throws InterruptedException {
-    while (header.after == header) {
+    for (; ; ) {
+      long observedReleases = releases.get();
+      Entry selected = selectUnreferencedEntry();
+      if (selected != null) {
+        return selected;
+      }
       int references = 0;
       int keys = 0;
       int min = -1;
@@ -1650,11 +2336,8 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       logger.log(
           Level.INFO,
           format(
-              "CASFileCache::expireEntry(%d) header(%s): { after: %s, before: %s }",
-              blobSizeInBytes,
-              header.hashCode(),
-              header.after.hashCode(),
-              header.before.hashCode()));
+              "CASFileCache::expireEntry(%d) no unreferenced entries in %d segments",
+              blobSizeInBytes, segments.length));
       // this should be incorporated in the listenable future construction...
       for (Map.Entry<String, Entry> pe : storage.entrySet()) {
         String key = pe.getKey();
@@ -1690,38 +2373,46 @@ public abstract class CASFileCache implements ContentAddressableStorage {
           Level.INFO,
           format(
               "CASFileCache::expireEntry(%d) unreferenced list is empty, %d bytes, %d keys with %d references, min(%d, %s), max(%d, %s)",
-              blobSizeInBytes, sizeInBytes, keys, references, min, minkey, max, maxkey));
-      wait();
-      if (sizeInBytes <= maxSizeInBytes) {
+              blobSizeInBytes, sizeInBytes.get(), keys, references, min, minkey, max, maxkey));
+      awaitRelease(observedReleases);
+      if (sizeInBytes.get() <= maxSizeInBytes) {
         return null;
       }
     }
-    return header.after;
   }
 
-  @GuardedBy("this")
+  @GuardedBy("directoriesLock")
   List<ListenableFuture<Void>> unlinkAndExpireDirectories(Entry entry, ExecutorService service) {
     ImmutableList.Builder<ListenableFuture<Void>> builder = ImmutableList.builder();
     Iterable<Digest> containingDirectories;
     try {
-      containingDirectories = directoriesIndex.removeEntry(entry.key);
+      containingDirectories = directoriesIndex.removeEntry(entry.getKey());
     } catch (Exception e) {
       logger.log(
-          Level.SEVERE, format("error removing entry %s from directoriesIndex", entry.key), e);
+          Level.SEVERE, format("error removing entry %s from directoriesIndex", entry.getKey()), e);
       containingDirectories = ImmutableList.of();
     }
     for (Digest containingDirectory : containingDirectories) {
       builder.add(expireDirectory(containingDirectory, service));
     }
-    entry.unlink();
-    unreferencedEntryCount--;
-    if (entry.referenceCount != 0) {
-      logger.log(Level.SEVERE, "removed referenced entry " + entry.key);
+    Segment segment = getSegment(entry.getKey());
+    synchronized (segment) {
+      entry.unlink();
+      segment.sizeInBytes -= entry.size;
+      if (entry.inWindow) {
+        entry.inWindow = false;
+        windowSizeInBytes.addAndGet(-entry.size);
+      }
+      if (entry.referenceCount != 0) {
+        logger.log(Level.SEVERE, "removed referenced entry " + entry.getKey());
+      } else {
+        segment.unreferencedEntryCount--;
+      }
     }
     return builder.build();
   }
 
-  @GuardedBy("this")
+  @GuardedBy("directoriesLock")
   private ListenableFuture<Entry> dischargeEntryFuture(Entry entry, ExecutorService service) {
     List<ListenableFuture<Void>> directoryExpirationFutures =
         unlinkAndExpireDirectories(entry, service);
@@ -1740,7 +2431,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
                   } else {
                     logger.log(
                         Level.SEVERE,
-                        "undeferrable exception during discharge of " + entry.key,
+                        "undeferrable exception during discharge of " + entry.getKey(),
                         cause);
                     // errors and the like, avoid any deferrals
                     Throwables.throwIfUnchecked(cause);
@@ -1758,7 +2449,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
             service);
   }
 
-  @GuardedBy("this")
+  @GuardedBy("directoriesLock")
   private void dischargeEntry(Entry entry, ExecutorService service) throws Exception {
     Exception expirationException = null;
     for (ListenableFuture<Void> directoryExpirationFuture :
@@ -1772,7 +2463,9 @@ public abstract class CASFileCache implements ContentAddressableStorage {
             expirationException = (Exception) cause;
           } else {
             logger.log(
-                Level.SEVERE, "undeferrable exception during discharge of " + entry.key, cause);
+                Level.SEVERE,
+                "undeferrable exception during discharge of " + entry.getKey(),
+                cause);
             // errors and the like, avoid any deferrals
             Throwables.throwIfUnchecked(cause);
             throw new RuntimeException(cause);
@@ -1790,82 +2483,250 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     }
   }
 
-  @GuardedBy("this")
+  @GuardedBy("evictionLock")
   private ListenableFuture<Entry> expireEntry(long blobSizeInBytes, ExecutorService service)
       throws IOException, InterruptedException {
     for (Entry e = waitForLastUnreferencedEntry(blobSizeInBytes);
         e != null;
         e = waitForLastUnreferencedEntry(blobSizeInBytes)) {
-      if (e.referenceCount != 0) {
-        throw new IllegalStateException(
-            "ERROR: Reference counts lru ordering has not been maintained correctly, attempting to expire referenced (or negatively counted) content "
-                + e.key
-                + " with "
-                + e.referenceCount
-                + " references");
-      }
-      boolean interrupted = false;
-      if (delegate != null) {
-        FileEntryKey fileEntryKey = parseFileEntryKey(e.key, e.size);
-        if (fileEntryKey == null) {
-          logger.log(Level.SEVERE, format("error parsing expired key %s", e.key));
-        } else {
-          Write write =
-              delegate.getWrite(
-                  fileEntryKey.getDigest(),
-                  UUID.randomUUID(),
-                  RequestMetadata.getDefaultInstance());
-          try (OutputStream out = write.getOutput(1, MINUTES, () -> {});
-              InputStream in = Files.newInputStream(getPath(e.key))) {
-            ByteStreams.copy(in, out);
-          } catch (IOException ioEx) {
-            interrupted =
-                Thread.interrupted()
-                    || ioEx.getCause() instanceof InterruptedException
-                    || ioEx instanceof ClosedByInterruptException;
-            write.reset();
-            logger.log(Level.SEVERE, format("error delegating expired entry %s", e.key), ioEx);
-          }
+      ListenableFuture<Entry> entryFuture = expireSelectedEntry(e, service);
+      if (entryFuture != null) {
+        return entryFuture;
+      }
+    }
+    return null;
+  }
+
+  /** Expires a selected entry without waiting, or returns null if none are unreferenced. */
+  @GuardedBy("evictionLock")
+  private @Nullable ListenableFuture<Entry> expireUnreferencedEntry(ExecutorService service)
+      throws IOException, InterruptedException {
+    for (Entry e = selectUnreferencedEntry(); e != null; e = selectUnreferencedEntry()) {
+      ListenableFuture<Entry> entryFuture = expireSelectedEntry(e, service);
+      if (entryFuture != null) {
+        return entryFuture;
+      }
+    }
+    return null;
+  }
+
+  @GuardedBy("evictionLock")
+  private @Nullable ListenableFuture<Entry> expireSelectedEntry(Entry e, ExecutorService service)
+      throws IOException, InterruptedException {
+    Segment segment = getSegment(e.getKey());
+    synchronized (directoriesLock) {
+      synchronized (segment) {
+        if (e.referenceCount != 0 || segment.headerFor(e).after != e) {
+          // referenced or accessed since selection, select again
+          return null;
         }
+        return expireSegmentEntry(segment, e, service);
       }
-      Entry removedEntry = storage.remove(e.key);
-      // reference compare on purpose
-      if (removedEntry == e) {
-        ListenableFuture<Entry> entryFuture = dischargeEntryFuture(e, service);
-        if (interrupted) {
-          Thread.currentThread().interrupt();
+    }
+  }
+
+  private void startEvictor() {
+    evictor = new Thread(this::runEvictor, "CASFileCache Evictor");
+    evictor.setDaemon(true);
+    evictor.start();
+  }
+
+  private void requestEviction() {
+    // the evictor registers before observing the size, so this cannot miss it
+    if (evictorWaiting) {
+      synchronized (evictorMonitor) {
+        evictorMonitor.notify();
+      }
+    }
+  }
+
+  private void awaitEvictionDemand() throws InterruptedException {
+    evictorWaiting = true;
+    try {
+      synchronized (evictorMonitor) {
+        while (sizeInBytes.get() <= evictionHighWatermarkInBytes) {
+          evictorMonitor.wait();
         }
-        return entryFuture;
       }
-      if (removedEntry == null) {
-        logger.log(Level.SEVERE, format("entry %s was already removed during expiration", e.key));
-        if (e.isLinked()) {
-          logger.log(Level.SEVERE, format("removing spuriously non-existent entry %s", e.key));
-          e.unlink();
-          unreferencedEntryCount--;
-        } else {
-          logger.log(
-              Level.SEVERE,
-              format(
-                  "spuriously non-existent entry %s was somehow unlinked, should not appear again",
-                  e.key));
+    } finally {
+      evictorWaiting = false;
+    }
+  }
+
+  private void runEvictor() {
+    try {
+      for (; ; ) {
+        awaitEvictionDemand();
+        while (sizeInBytes.get() > evictionLowWatermarkInBytes) {
+          long observedReleases = releases.get();
+          if (evictBatch() == 0) {
+            // every entry is referenced
+            awaitRelease(observedReleases);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      // stopped
+    }
+  }
+
+  /**
+   * Expires a batch of unreferenced entries toward the low watermark, releasing the eviction lock
+   * between batches for puts over the max size. The files of the batch are deleted in a single
+   * task, with one notification of their expiration.
+   */
+  @SuppressWarnings("FutureReturnValueIgnored")
+  private int evictBatch() throws InterruptedException {
+    List<ListenableFuture<Entry>> expiredFutures = new ArrayList<>();
+    evictionLock.lock();
+    try {
+      drainAccessesIfIdle();
+      while (expiredFutures.size() < EVICTION_BATCH_SIZE
+          && sizeInBytes.get() > evictionLowWatermarkInBytes) {
+        ListenableFuture<Entry> expiredFuture = expireUnreferencedEntry(expireService);
+        if (expiredFuture == null) {
+          break;
+        }
+        expiredFutures.add(expiredFuture);
+      }
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "error expiring entries", e);
+    } finally {
+      evictionLock.unlock();
+    }
+    if (!expiredFutures.isEmpty()) {
+      whenAllComplete(expiredFutures)
+          .run(() -> deleteExpiredEntries(expiredFutures), expireService);
+    }
+    return expiredFutures.size();
+  }
+
+  private void deleteExpiredEntries(List<ListenableFuture<Entry>> expiredFutures) {
+    ImmutableSet.Builder<Digest> builder = ImmutableSet.builder();
+    for (ListenableFuture<Entry> expiredFuture : expiredFutures) {
+      try {
+        Entry expiredEntry = getDone(expiredFuture);
+        recordEviction("evictor", expiredEntry.size);
+        Digest digest = deleteExpiredEntry(expiredEntry);
+        if (digest != null) {
+          builder.add(digest);
+        }
+      } catch (ExecutionException | IOException e) {
+        logger.log(Level.SEVERE, "error deleting expired entry", e);
+      }
+    }
+    Set<Digest> expiredDigests = builder.build();
+    if (!expiredDigests.isEmpty()) {
+      onExpire.accept(expiredDigests);
+    }
+  }
+
+  private static void recordEviction(String source, long size) {
+    evictedEntryCounter.labels(source).inc();
+    evictedBytesCounter.labels(source).inc(size);
+  }
+
+  /**
+   * Deletes the file of an expired entry, returning its digest if no entry remains for it in either
+   * executable state.
+   */
+  private @Nullable Digest deleteExpiredEntry(Entry expiredEntry) throws IOException {
+    String expiredKey = expiredEntry.getKey();
+    // recorded ahead of the deletion, which must precede any reinsertion of the key
+    if (indexJournal != null) {
+      indexJournal.expireFile(expiredKey);
+    }
+    try {
+      Files.delete(getPath(expiredKey));
+    } catch (NoSuchFileException eNoEnt) {
+      logger.log(
+          Level.SEVERE,
+          format("CASFileCache::putImpl: expired key %s did not exist to delete", expiredKey));
+    }
+    FileEntryKey fileEntryKey = parseFileEntryKey(expiredKey, expiredEntry.size);
+    if (fileEntryKey == null) {
+      logger.log(Level.SEVERE, format("error parsing expired key %s", expiredKey));
+      return null;
+    }
+    if (storage.containsKey(getKey(fileEntryKey.getDigest(), !fileEntryKey.getIsExecutable()))) {
+      return null;
+    }
+    expiredKeyCounter.inc();
+    logger.log(Level.INFO, format("expired key %s", expiredKey));
+    return fileEntryKey.getDigest();
+  }
+
+  @GuardedBy("directoriesLock")
+  private @Nullable ListenableFuture<Entry> expireSegmentEntry(
+      Segment segment, Entry e, ExecutorService service) throws IOException, InterruptedException {
+    if (e.referenceCount != 0) {
+      throw new IllegalStateException(
+          "ERROR: Reference counts lru ordering has not been maintained correctly, attempting to expire referenced (or negatively counted) content "
+              + e.getKey()
+              + " with "
+              + e.referenceCount
+              + " references");
+    }
+    boolean interrupted = false;
+    if (delegate != null) {
+      FileEntryKey fileEntryKey = parseFileEntryKey(e.getKey(), e.size);
+      if (fileEntryKey == null) {
+        logger.log(Level.SEVERE, format("error parsing expired key %s", e.getKey()));
+      } else {
+        Write write =
+            delegate.getWrite(
+                fileEntryKey.getDigest(), UUID.randomUUID(), RequestMetadata.getDefaultInstance());
+        try (OutputStream out = write.getOutput(1, MINUTES, () -> {});
+            InputStream in = Files.newInputStream(getPath(e.getKey()))) {
+          ByteStreams.copy(in, out);
+        } catch (IOException ioEx) {
+          interrupted =
+              Thread.interrupted()
+                  || ioEx.getCause() instanceof InterruptedException
+                  || ioEx instanceof ClosedByInterruptException;
+          write.reset();
+          logger.log(Level.SEVERE, format("error delegating expired entry %s", e.getKey()), ioEx);
         }
+      }
+    }
+    Entry removedEntry = storage.remove(e.getKey());
+    // reference compare on purpose
+    if (removedEntry == e) {
+      ListenableFuture<Entry> entryFuture = dischargeEntryFuture(e, service);
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      return entryFuture;
+    }
+    if (removedEntry == null) {
+      logger.log(
+          Level.SEVERE, format("entry %s was already removed during expiration", e.getKey()));
+      if (e.isLinked()) {
+        logger.log(Level.SEVERE, format("removing spuriously non-existent entry %s", e.getKey()));
+        e.unlink();
+        segment.unreferencedEntryCount--;
       } else {
         logger.log(
             Level.SEVERE,
-            "removed entry %s did not match last unreferenced entry, restoring it",
-            e.key);
-        storage.put(e.key, removedEntry);
-      }
-      // possibly delegated, but no removal, if we're interrupted, abort loop
-      if (interrupted || Thread.currentThread().isInterrupted()) {
-        throw new InterruptedException();
+            format(
+                "spuriously non-existent entry %s was somehow unlinked, should not appear again",
+                e.getKey()));
       }
+    } else {
+      logger.log(
+          Level.SEVERE,
+          format(
+              "removed entry %s did not match last unreferenced entry, restoring it", e.getKey()));
+      storage.put(e.getKey(), removedEntry);
+    }
+    // possibly delegated, but no removal, if we're interrupted, abort loop
+    if (interrupted || Thread.currentThread().isInterrupted()) {
+      throw new InterruptedException();
     }
     return null;
   }
 
-  @GuardedBy("this")
+  @GuardedBy("directoriesLock")
   private ListenableFuture<Void> expireDirectory(Digest digest, ExecutorService service) {
     DirectoryEntry e = directoryStorage.remove(digest);
     if (e == null) {
@@ -1874,8 +2735,18 @@ public abstract class CASFileCache implements ContentAddressableStorage {
           format("CASFileCache::expireDirectory(%s) does not exist", DigestUtil.toString(digest)));
       return immediateFuture(null);
     }
-
-    return Directories.remove(getDirectoryPath(digest), service);
+    ListenableFuture<Void> removeFuture = Directories.remove(getDirectoryPath(digest), service);
+    if (indexJournal == null) {
+      return removeFuture;
+    }
+    // recorded upon removal, which any reinsertion of the directory awaits
+    return whenAllComplete(removeFuture)
+        .callAsync(
+            () -> {
+              indexJournal.expireDirectory(digest);
+              return removeFuture;
+            },
+            directExecutor());
   }
 
   // FIXME look into whether this is needed at all
@@ -2086,14 +2957,21 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       throws IOException, InterruptedException {
     logger.log(Level.FINE, format("directory %s has been locked", path.getFileName()));
     ListenableFuture<Void> expireFuture;
-    synchronized (this) {
+    synchronized (directoriesLock) {
       DirectoryEntry e = directoryStorage.get(digest);
       if (e == null) {
         expireFuture = immediateFuture(null);
       } else {
         ImmutableList.Builder<String> inputsBuilder = ImmutableList.builder();
         for (String input : directoriesIndex.directoryEntries(digest)) {
-          Entry fileEntry = storage.get(input);
+          Segment segment = getSegment(input);
+          Entry fileEntry;
+          synchronized (segment) {
+            fileEntry = storage.get(input);
+            if (fileEntry != null && fileEntry.incrementReference()) {
+              segment.unreferencedEntryCount--;
+            }
+          }
           if (fileEntry == null) {
             logger.log(
                 Level.SEVERE,
@@ -2103,9 +2981,6 @@ public abstract class CASFileCache implements ContentAddressableStorage {
             e = null;
             break;
           }
-          if (fileEntry.incrementReference()) {
-            unreferencedEntryCount--;
-          }
           checkNotNull(input);
           inputsBuilder.add(input);
         }
@@ -2122,7 +2997,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
                   path.getFileName()));
         }
 
-        decrementReferencesSynchronized(inputsBuilder.build(), ImmutableList.of());
+        decrementEntryReferences(inputsBuilder.build(), ImmutableList.of());
         expireFuture = expireDirectory(digest, service);
         logger.log(Level.FINE, format("expiring existing entry for %s", path.getFileName()));
       }
@@ -2209,12 +3084,10 @@ public abstract class CASFileCache implements ContentAddressableStorage {
             e -> {
               ImmutableList<String> inputs = inputsBuilder.build();
               directoriesIndex.remove(digest);
-              synchronized (this) {
-                try {
-                  decrementReferencesSynchronized(inputs, ImmutableList.of());
-                } catch (IOException ioEx) {
-                  e.addSuppressed(ioEx);
-                }
+              try {
+                decrementEntryReferences(inputs, ImmutableList.of());
+              } catch (IOException ioEx) {
+                e.addSuppressed(ioEx);
               }
               try {
                 logger.log(Level.FINE, "removing directory to roll back " + path);
@@ -2243,16 +3116,125 @@ public abstract class CASFileCache implements ContentAddressableStorage {
                       : directoriesByDigest.get(digest),
                   Deadline.after(10, SECONDS));
           directoryStorage.put(digest, e);
+          if (indexJournal != null) {
+            indexJournal.putDirectory(digest, e.directory, inputsBuilder.build());
+          }
           return path;
         },
         service);
   }
 
-  @VisibleForTesting
   public Path put(Digest digest, boolean isExecutable) throws IOException, InterruptedException {
     checkState(digest.getSizeBytes() > 0, "file entries may not be empty");
 
-    return putAndCopy(digest, isExecutable);
+    return putAndCopy(digest, isExecutable, () -> newExternalInput(digest, /* offset=*/ 0));
+  }
+
+  /**
+   * Puts the entry for a digest with content which has already been retrieved, referencing it as
+   * with {@link #put(Digest, boolean)}. The content is verified against the digest.
+   */
+  public Path put(Digest digest, boolean isExecutable, ByteString content)
+      throws IOException, InterruptedException {
+    checkState(digest.getSizeBytes() > 0, "file entries may not be empty");
+
+    return putAndCopy(digest, isExecutable, content::newInput);
+  }
+
+  /**
+   * Inserts a file as the content of an entry, returning its digest, as with a write of its
+   * content. The file is read once: it is hard linked into the cache and hashed if it has no other
+   * links and already has the ownership and read-only permissions of an entry, and is otherwise
+   * hashed as it is copied into the cache. The permissions of the file are never changed, and a
+   * linked file must not be modified after its ingestion. The entry is left unreferenced.
+   */
+  public Digest ingest(Path file) throws IOException, InterruptedException {
+    long size = Files.size(file);
+    if (size == 0) {
+      return digestUtil.empty();
+    }
+    if (size > maxEntrySizeInBytes) {
+      throw new EntryLimitException(size, maxEntrySizeInBytes);
+    }
+    Path ingestPath = root.resolve("ingest." + UUID.randomUUID());
+    Digest digest;
+    boolean linked = false;
+    try {
+      // symlinks are copied from their targets
+      if (Files.isRegularFile(file, NOFOLLOW_LINKS)
+          && getLinkCount(file) == 1
+          && isLinkableForIngestion(file)) {
+        try {
+          Files.createLink(ingestPath, file);
+          linked = true;
+        } catch (IOException e) {
+          logger.log(Level.FINE, format("could not link %s for ingestion", file), e);
+        }
+      }
+      if (linked) {
+        digest = digestUtil.compute(ingestPath);
+      } else {
+        digest = copyAndCompute(file, ingestPath);
+      }
+    } catch (IOException e) {
+      Files.deleteIfExists(ingestPath);
+      throw e;
+    }
+    if (digest.getSizeBytes() != size) {
+      Files.delete(ingestPath);
+      throw new IOException(format("%s changed size during ingestion", file));
+    }
+    ingestedBytesCounter.labels(linked ? "link" : "copy").inc(size);
+
+    String key = getKey(digest, /* isExecutable=*/ false);
+    AtomicBoolean requiresDischarge = new AtomicBoolean(false);
+    try {
+      if (charge(key, size, requiresDischarge)) {
+        if (!linked) {
+          setReadOnlyPerms(ingestPath, /* isExecutable=*/ false, fileStore);
+        }
+        requiresDischarge.set(false); // insertion now owns discharge
+        insertEntry(
+            key, size, ingestPath, () -> completeWrite(digest), () -> invalidateWrite(digest));
+      }
+    } finally {
+      Files.deleteIfExists(ingestPath);
+      if (requiresDischarge.get()) {
+        dischargeAndNotify(size);
+      }
+    }
+    // the entry is referenced by its charge, and released as a write releases it
+    decrementReference(key);
+    return digest;
+  }
+
+  private static int getLinkCount(Path file) {
+    try {
+      return (int) Files.getAttribute(file, "unix:nlink", NOFOLLOW_LINKS);
+    } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+      // unknown, treated as shared
+      return -1;
+    }
+  }
+
+  // a link shares its permissions with the file, which must not be changed by the cache
+  private boolean isLinkableForIngestion(Path file) {
+    try {
+      return hasReadOnlyPerms(file, /* isExecutable=*/ false, fileStore)
+          && Files.getOwner(file, NOFOLLOW_LINKS).equals(Files.getOwner(root));
+    } catch (IOException | UnsupportedOperationException e) {
+      return false;
+    }
+  }
+
+  private Digest copyAndCompute(Path file, Path ingestPath) throws IOException {
+    try (InputStream in = Files.newInputStream(file);
+        HashingOutputStream out =
+            digestUtil.newHashingOutputStream(Files.newOutputStream(ingestPath, CREATE_NEW))) {
+      long size = ByteStreams.copy(in, out);
+      out.flush();
+      return digestUtil.build(out.hash().asBytes(), size);
+    }
   }
 
   // This can result in deadlock if called with a direct executor. I'm unsure how to guard
@@ -2263,13 +3245,41 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     return transformAsync(
         immediateFuture(null),
         (result) -> {
-          return immediateFuture(putAndCopy(digest, isExecutable));
+          return immediateFuture(
+              putAndCopy(digest, isExecutable, () -> newExternalInput(digest, /* offset=*/ 0)));
         },
         executor);
   }
 
-  Path putAndCopy(Digest digest, boolean isExecutable) throws IOException, InterruptedException {
+  private Path putAndCopy(Digest digest, boolean isExecutable, InputSupplier source)
+      throws IOException, InterruptedException {
     String key = getKey(digest, isExecutable);
+    for (; ; ) {
+      BlobDownload download = new BlobDownload(digest.getSizeBytes());
+      BlobDownload existing = downloads.putIfAbsent(key, download);
+      if (existing == null) {
+        boolean succeeded = false;
+        try {
+          copyToCache(digest, key, isExecutable, download, source);
+          succeeded = true;
+        } finally {
+          downloads.remove(key, download);
+          download.complete(succeeded);
+        }
+        return getPath(key);
+      }
+      // concurrent puts wait for a single download, and reference its entry when it completes
+      try {
+        existing.await();
+      } catch (IOException e) {
+        logger.log(Level.FINE, format("retrying failed download of %s", key), e);
+      }
+    }
+  }
+
+  private void copyToCache(
+      Digest digest, String key, boolean isExecutable, BlobDownload download, InputSupplier source)
+      throws IOException, InterruptedException {
     CancellableOutputStream out =
         putImpl(
             key,
@@ -2280,9 +3290,10 @@ public abstract class CASFileCache implements ContentAddressableStorage {
             () -> invalidateWrite(digest),
             /* isReset=*/ true);
     if (out != null) {
+      download.start(out.getPath());
       boolean complete = false;
       try {
-        copyExternalInput(digest, out);
+        copyExternalInput(digest, source, out, download);
         complete = true;
       } finally {
         try {
@@ -2313,14 +3324,18 @@ public abstract class CASFileCache implements ContentAddressableStorage {
         }
       }
     }
-    return getPath(key);
   }
 
-  private void copyExternalInput(Digest digest, CancellableOutputStream out)
+  private void copyExternalInput(
+      Digest digest, InputSupplier source, CancellableOutputStream out, BlobDownload download)
       throws IOException, InterruptedException {
     logger.log(Level.FINE, format("downloading %s", DigestUtil.toString(digest)));
-    try (InputStream in = newExternalInput(digest, /* offset=*/ 0)) {
-      ByteStreams.copy(in, out);
+    try (InputStream in = source.get()) {
+      byte[] buffer = new byte[CHUNK_SIZE];
+      for (int len = in.read(buffer); len != -1; len = in.read(buffer)) {
+        out.write(buffer, 0, len);
+        download.advance(out.getWritten());
+      }
     } catch (IOException e) {
       out.cancel();
       logger.log(
@@ -2337,6 +3352,11 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     void run() throws IOException;
   }
 
+  @FunctionalInterface
+  private interface InputSupplier {
+    InputStream get() throws IOException, InterruptedException;
+  }
+
   private abstract static class CancellableOutputStream extends WriteOutputStream {
     CancellableOutputStream(OutputStream out) {
       super(out);
@@ -2435,24 +3455,29 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     }
   }
 
-  private synchronized boolean referenceIfExists(String key) throws IOException {
-    Entry e = storage.get(key);
-    if (e == null) {
-      return false;
-    }
+  private boolean referenceIfExists(String key) throws IOException {
+    Segment segment = getSegment(key);
+    Entry e;
+    boolean exists;
+    synchronized (segment) {
+      e = storage.get(key);
+      if (e == null) {
+        return false;
+      }
 
-    if (!entryExists(e)) {
-      Entry removedEntry = storage.remove(key);
-      if (removedEntry != null) {
-        unlinkEntry(removedEntry);
+      exists = entryExists(e);
+      if (exists && e.incrementReference()) {
+        segment.unreferencedEntryCount--;
       }
-      return false;
     }
-
-    if (e.incrementReference()) {
-      unreferencedEntryCount--;
+    if (exists) {
+      // the reference is a use of the entry for its eviction policy
+      accessed(key);
+      return true;
     }
-    return true;
+    // removal must acquire the directoriesLock ahead of the segment
+    removeNonexistentEntry(key, e);
+    return false;
   }
 
   private CancellableOutputStream putOrReference(
@@ -2489,44 +3514,34 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       throws IOException, InterruptedException {
     boolean interrupted = false;
     Iterable<ListenableFuture<Digest>> expiredDigestsFutures;
-    synchronized (this) {
-      if (referenceIfExists(key)) {
-        return false;
-      }
-      sizeInBytes += blobSizeInBytes;
-      requiresDischarge.set(true);
+    if (referenceIfExists(key)) {
+      recordLookup(/* hit=*/ true, blobSizeInBytes);
+      return false;
+    }
+    recordLookup(/* hit=*/ false, blobSizeInBytes);
+    if (sizeInBytes.addAndGet(blobSizeInBytes) > evictionHighWatermarkInBytes) {
+      requestEviction();
+    }
+    requiresDischarge.set(true);
 
-      ImmutableList.Builder<ListenableFuture<Digest>> builder = ImmutableList.builder();
+    ImmutableList.Builder<ListenableFuture<Digest>> expiredBuilder = ImmutableList.builder();
+    // only a put which would exceed the max size waits for expiration
+    long stallStartTime = System.nanoTime();
+    boolean stalled = sizeInBytes.get() > maxSizeInBytes;
+    if (stalled) {
+      evictionLock.lock();
       try {
-        while (!interrupted && sizeInBytes > maxSizeInBytes) {
+        drainAccessesIfIdle();
+        while (!interrupted && sizeInBytes.get() > maxSizeInBytes) {
           ListenableFuture<Entry> expiredFuture = expireEntry(blobSizeInBytes, expireService);
           interrupted = Thread.interrupted();
           if (expiredFuture != null) {
-            builder.add(
+            expiredBuilder.add(
                 transformAsync(
                     expiredFuture,
                     (expiredEntry) -> {
-                      String expiredKey = expiredEntry.key;
-                      try {
-                        Files.delete(getPath(expiredKey));
-                      } catch (NoSuchFileException eNoEnt) {
-                        logger.log(
-                            Level.SEVERE,
-                            format(
-                                "CASFileCache::putImpl: expired key %s did not exist to delete",
-                                expiredKey));
-                      }
-                      FileEntryKey fileEntryKey = parseFileEntryKey(expiredKey, expiredEntry.size);
-                      if (fileEntryKey == null) {
-                        logger.log(
-                            Level.SEVERE, format("error parsing expired key %s", expiredKey));
-                      } else if (storage.containsKey(
-                          getKey(fileEntryKey.getDigest(), !fileEntryKey.getIsExecutable()))) {
-                        return immediateFuture(null);
-                      }
-                      expiredKeyCounter.inc();
-                      logger.log(Level.INFO, format("expired key %s", expiredKey));
-                      return immediateFuture(fileEntryKey.getDigest());
+                      recordEviction("put", expiredEntry.size);
+                      return immediateFuture(deleteExpiredEntry(expiredEntry));
                     },
                     expireService));
           }
@@ -2535,9 +3550,11 @@ public abstract class CASFileCache implements ContentAddressableStorage {
         // clear interrupted flag
         Thread.interrupted();
         interrupted = true;
+      } finally {
+        evictionLock.unlock();
       }
-      expiredDigestsFutures = builder.build();
     }
+    expiredDigestsFutures = expiredBuilder.build();
 
     ImmutableSet.Builder<Digest> builder = ImmutableSet.builder();
     for (ListenableFuture<Digest> expiredDigestFuture : expiredDigestsFutures) {
@@ -2553,6 +3570,9 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     if (!expiredDigests.isEmpty()) {
       onExpire.accept(expiredDigests);
     }
+    if (stalled) {
+      evictionStallTime.observe((System.nanoTime() - stallStartTime) / 1000000.0);
+    }
     if (interrupted || Thread.currentThread().isInterrupted()) {
       throw new InterruptedException();
     }
@@ -2682,81 +3702,258 @@ public abstract class CASFileCache implements ContentAddressableStorage {
           throw e;
         }
 
-        Entry entry = new Entry(key, blobSizeInBytes, Deadline.after(10, SECONDS));
-
-        Entry existingEntry = null;
-        boolean inserted = false;
-        try {
-          Files.createLink(CASFileCache.this.getPath(key), writePath);
-          existingEntry = storage.putIfAbsent(key, entry);
-          inserted = existingEntry == null;
-        } catch (FileAlreadyExistsException e) {
-          logger.log(
-              Level.FINE, "file already exists for " + key + ", nonexistent entry will fail");
-        } finally {
-          Files.delete(writePath);
-          if (!inserted) {
-            dischargeAndNotify(blobSizeInBytes);
-          }
-        }
+        insertEntry(key, blobSizeInBytes, writePath, writeWinner, onInsert);
+      }
+    };
+  }
 
-        int attempts = 10;
-        if (!inserted) {
-          while (existingEntry == null && attempts-- != 0) {
-            existingEntry = storage.get(key);
-            try {
-              MILLISECONDS.sleep(10);
-            } catch (InterruptedException intEx) {
-              throw new IOException(intEx);
-            }
-          }
+  /**
+   * Inserts a committed read-only file as the entry for a key, removing the file. An existing entry
+   * for the key is referenced instead. The charge for the entry is discharged if it is not
+   * inserted.
+   */
+  private void insertEntry(
+      String key,
+      long blobSizeInBytes,
+      Path writePath,
+      Supplier<Boolean> writeWinner,
+      Runnable onInsert)
+      throws IOException {
+    Entry entry = new Entry(key, blobSizeInBytes, Deadline.after(10, SECONDS));
+    // new entries are released into the admission window, if there is one
+    entry.inWindow = windowMaxSizeInBytes > 0;
 
-          if (existingEntry == null) {
-            throw new IOException("existing entry did not appear for " + key);
+    Entry existingEntry = null;
+    boolean inserted = false;
+    try {
+      Files.createLink(getPath(key), writePath);
+      Segment segment = getSegment(key);
+      synchronized (segment) {
+        existingEntry = storage.putIfAbsent(key, entry);
+        inserted = existingEntry == null;
+        if (inserted) {
+          segment.sizeInBytes += blobSizeInBytes;
+          if (entry.inWindow) {
+            windowSizeInBytes.addAndGet(blobSizeInBytes);
           }
         }
+      }
+      // the entry remains referenced by this put, and cannot be expired ahead of this record
+      if (inserted && indexJournal != null) {
+        indexJournal.putFile(key, blobSizeInBytes);
+      }
+    } catch (FileAlreadyExistsException e) {
+      logger.log(Level.FINE, "file already exists for " + key + ", nonexistent entry will fail");
+    } finally {
+      Files.delete(writePath);
+      if (!inserted) {
+        dischargeAndNotify(blobSizeInBytes);
+      }
+    }
 
-        if (existingEntry != null) {
-          logger.log(Level.FINE, "lost the race to insert " + key);
-          if (!referenceIfExists(key)) {
-            // we would lose our accountability and have a presumed reference if we returned
-            throw new IllegalStateException("storage conflict with existing key for " + key);
-          }
-        } else if (writeWinner.get()) {
-          logger.log(Level.FINE, "won the race to insert " + key);
-          try {
-            onInsert.run();
-          } catch (RuntimeException e) {
-            throw new IOException(e);
-          }
-        } else {
-          logger.log(Level.FINE, "did not win the race to insert " + key);
+    int attempts = 10;
+    if (!inserted) {
+      while (existingEntry == null && attempts-- != 0) {
+        existingEntry = storage.get(key);
+        try {
+          MILLISECONDS.sleep(10);
+        } catch (InterruptedException intEx) {
+          throw new IOException(intEx);
         }
       }
-    };
+
+      if (existingEntry == null) {
+        throw new IOException("existing entry did not appear for " + key);
+      }
+    }
+
+    if (inserted) {
+      evictionPolicy.recordInsert(entry);
+    }
+
+    if (existingEntry != null) {
+      logger.log(Level.FINE, "lost the race to insert " + key);
+      if (!referenceIfExists(key)) {
+        // we would lose our accountability and have a presumed reference if we returned
+        throw new IllegalStateException("storage conflict with existing key for " + key);
+      }
+    } else if (writeWinner.get()) {
+      logger.log(Level.FINE, "won the race to insert " + key);
+      try {
+        onInsert.run();
+      } catch (RuntimeException e) {
+        throw new IOException(e);
+      }
+    } else {
+      logger.log(Level.FINE, "did not win the race to insert " + key);
+    }
+  }
+
+  /**
+   * A hash partition of the cache entries. Each segment guards the reference counts and lru links
+   * of the entries whose keys it is selected for, and maintains its own unreferenced list, so that
+   * operations on a single entry only contend within a segment. Expiration selects the eldest
+   * unreferenced entry among all segment heads.
+   */
+  private static final class Segment {
+    final Entry header = new SentinelEntry();
+    // new entries are released here until admitted to the main lru, when the policy has a window
+    final Entry windowHeader = new SentinelEntry();
+
+    @GuardedBy("this")
+    long sizeInBytes = 0;
+
+    // written under the segment lock, read without it for metrics
+    volatile long unreferencedEntryCount = 0;
+
+    Segment() {
+      header.before = header.after = header;
+      windowHeader.before = windowHeader.after = windowHeader;
+    }
+
+    Entry headerFor(Entry e) {
+      return e.inWindow ? windowHeader : header;
+    }
   }
 
   @VisibleForTesting
   public static class Entry {
+    private static final String EXEC_SUFFIX = "_exec";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final byte EXECUTABLE = 1;
+    // the key is not a lowercase hex hash, and is retained as utf-8
+    private static final byte UNENCODED = 2;
+
     Entry before;
     Entry after;
-    final String key;
+    // the decoded hash of the key, materialized as a string only on demand
+    private final byte[] keyBytes;
+    private final byte flags;
     final long size;
     int referenceCount;
-    Deadline existsDeadline;
+    // nanoTime after which the existence of the entry's file must be checked
+    private long existsDeadline;
+    // nanoTime at which the entry was last placed at the tail of its segment
+    long accessTime;
+    // released into its segment's admission window rather than its main lru
+    boolean inWindow;
 
     private Entry() {
-      key = null;
+      keyBytes = null;
+      flags = 0;
       size = -1;
       referenceCount = -1;
-      existsDeadline = null;
     }
 
     public Entry(String key, long size, Deadline existsDeadline) {
-      this.key = key;
+      int hashLength = hashLength(key);
+      if (hashLength < 0) {
+        keyBytes = key.getBytes(UTF_8);
+        flags = UNENCODED;
+      } else {
+        keyBytes = new byte[hashLength / 2];
+        for (int i = 0; i < keyBytes.length; i++) {
+          keyBytes[i] = (byte) (hexValue(key.charAt(i * 2)) << 4 | hexValue(key.charAt(i * 2 + 1)));
+        }
+        flags = hashLength == key.length() ? 0 : EXECUTABLE;
+      }
       this.size = size;
       referenceCount = 1;
-      this.existsDeadline = existsDeadline;
+      setExistsDeadline(existsDeadline);
+    }
+
+    // the length of the lowercase hex hash of a key, or -1 if it cannot be decoded
+    private static int hashLength(String key) {
+      int length = key.length();
+      if (key.endsWith(EXEC_SUFFIX)) {
+        length -= EXEC_SUFFIX.length();
+      }
+      if (length == 0 || length % 2 != 0) {
+        return -1;
+      }
+      for (int i = 0; i < length; i++) {
+        if (hexValue(key.charAt(i)) < 0) {
+          return -1;
+        }
+      }
+      return length;
+    }
+
+    private static int hexValue(char c) {
+      if (c >= '0' && c <= '9') {
+        return c - '0';
+      }
+      if (c >= 'a' && c <= 'f') {
+        return c - 'a' + 10;
+      }
+      return -1;
+    }
+
+    /** Computes the hash of a key, consistent with {@link #keyHash()} for its entry. */
+    static int keyHash(String key) {
+      int hashLength = hashLength(key);
+      if (hashLength < 0) {
+        return key.hashCode();
+      }
+      int h = 0;
+      for (int i = 0; i < Math.min(hashLength, 8); i += 2) {
+        h = h << 8 | hexValue(key.charAt(i)) << 4 | hexValue(key.charAt(i + 1));
+      }
+      return hashLength == key.length() ? h : ~h;
+    }
+
+    int keyHash() {
+      if ((flags & UNENCODED) != 0) {
+        return getKey().hashCode();
+      }
+      int h = 0;
+      for (int i = 0; i < Math.min(keyBytes.length, 4); i++) {
+        h = h << 8 | (keyBytes[i] & 0xff);
+      }
+      return (flags & EXECUTABLE) == 0 ? h : ~h;
+    }
+
+    /** Compares the key with this entry's without materializing it. */
+    boolean keyEquals(String key) {
+      if ((flags & UNENCODED) != 0) {
+        return getKey().equals(key);
+      }
+      int hashLength = keyBytes.length * 2;
+      boolean isExecutable = (flags & EXECUTABLE) != 0;
+      if (key.length() != hashLength + (isExecutable ? EXEC_SUFFIX.length() : 0)
+          || (isExecutable && !key.endsWith(EXEC_SUFFIX))) {
+        return false;
+      }
+      for (int i = 0; i < keyBytes.length; i++) {
+        int b = keyBytes[i] & 0xff;
+        if (key.charAt(i * 2) != HEX_DIGITS[b >>> 4]
+            || key.charAt(i * 2 + 1) != HEX_DIGITS[b & 0xf]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    public String getKey() {
+      if ((flags & UNENCODED) != 0) {
+        return new String(keyBytes, UTF_8);
+      }
+      StringBuilder key = new StringBuilder(keyBytes.length * 2 + EXEC_SUFFIX.length());
+      for (byte b : keyBytes) {
+        key.append(HEX_DIGITS[(b & 0xff) >>> 4]).append(HEX_DIGITS[b & 0xf]);
+      }
+      if ((flags & EXECUTABLE) != 0) {
+        key.append(EXEC_SUFFIX);
+      }
+      return key.toString();
+    }
+
+    boolean isExistsDeadlineExpired() {
+      return System.nanoTime() - existsDeadline >= 0;
+    }
+
+    void setExistsDeadline(Deadline deadline) {
+      existsDeadline = System.nanoTime() + deadline.timeRemaining(NANOSECONDS);
     }
 
     public boolean isLinked() {
@@ -2771,6 +3968,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     }
 
     protected void addBefore(Entry existingEntry) {
+      accessTime = System.nanoTime();
       after = existingEntry;
       before = existingEntry.before;
       before.after = this;
@@ -2781,21 +3979,27 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     public boolean incrementReference() {
       if (referenceCount < 0) {
         throw new IllegalStateException(
-            "entry " + key + " has " + referenceCount + " references and is being incremented...");
+            "entry "
+                + getKey()
+                + " has "
+                + referenceCount
+                + " references and is being incremented...");
+      }
+      if (logger.isLoggable(Level.FINER)) {
+        logger.log(
+            Level.FINER,
+            "incrementing references to "
+                + getKey()
+                + " from "
+                + referenceCount
+                + " to "
+                + (referenceCount + 1));
       }
-      logger.log(
-          Level.FINER,
-          "incrementing references to "
-              + key
-              + " from "
-              + referenceCount
-              + " to "
-              + (referenceCount + 1));
       if (referenceCount == 0) {
         if (!isLinked()) {
           throw new IllegalStateException(
               "entry "
-                  + key
+                  + getKey()
                   + " has a broken link ("
                   + before
                   + ", "
@@ -2811,16 +4015,18 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     public boolean decrementReference(Entry header) {
       if (referenceCount == 0) {
         throw new IllegalStateException(
-            "entry " + key + " has 0 references and is being decremented...");
+            "entry " + getKey() + " has 0 references and is being decremented...");
+      }
+      if (logger.isLoggable(Level.FINER)) {
+        logger.log(
+            Level.FINER,
+            "decrementing references to "
+                + getKey()
+                + " from "
+                + referenceCount
+                + " to "
+                + (referenceCount - 1));
       }
-      logger.log(
-          Level.FINER,
-          "decrementing references to "
-              + key
-              + " from "
-              + referenceCount
-              + " to "
-              + (referenceCount - 1));
       if (--referenceCount == 0) {
         addBefore(header);
         return true;
@@ -2833,7 +4039,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
         if (!isLinked()) {
           throw new IllegalStateException(
               "entry "
-                  + key
+                  + getKey()
                   + " has a broken link ("
                   + before
                   + ", "
@@ -0,0 +1,675 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas.cfc;
+
+import static java.lang.String.format;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An on-disk record of the entries and directories of a CASFileCache, used to restore the cache on
+ * startup without scanning its root.
+ *
+ * <p>The index consists of a checkpoint of the full contents at some generation, and a journal per
+ * generation of the puts and expirations made since. A checkpoint first rotates the journal to the
+ * next generation, and its snapshot is taken of the contents after the rotation, so that any change
+ * made while the snapshot is taken or written is present in the new journal, and replay of every
+ * journal from the snapshot generation onward reproduces the cache contents. Only the journals of
+ * earlier generations are removed with the snapshot. A journal that was not completely written is
+ * replayed up to its last complete record.
+ *
+ * <p>Records are appended to a queue without blocking and written by a single writer thread, which
+ * flushes each group of records that it drains together. A record survives the failure of the
+ * process once its group is flushed, and the failure of the host once its journal is synced, which
+ * occurs when the journal is rotated or closed. The snapshot is synced before it replaces its
+ * predecessor. Once a journal outgrows the snapshot, the owner is asked for a checkpoint, so that
+ * replay at startup is bounded by the size of the contents.
+ *
+ * <p>The snapshot is removed upon any failure to append to the journal, forcing a scan of the cache
+ * on the next startup. A marker is written when the journal is closed with every record synced, and
+ * removed when the index is loaded, so that the owner can tell whether puts made before the last
+ * exit may be missing from the index.
+ */
+final class CASIndexJournal {
+  private static final Logger logger = Logger.getLogger(CASIndexJournal.class.getName());
+
+  static final String FILENAME_PREFIX = "cas-index";
+  private static final String SNAPSHOT_NAME = FILENAME_PREFIX + ".snapshot";
+  private static final String CLEAN_NAME = FILENAME_PREFIX + ".clean";
+  private static final String JOURNAL_SUFFIX = ".journal";
+
+  private static final int MAGIC = 0x43464349; // CFCI
+  private static final int VERSION = 1;
+
+  private static final byte PUT_FILE = 1;
+  private static final byte EXPIRE_FILE = 2;
+  private static final byte PUT_DIRECTORY = 3;
+  private static final byte EXPIRE_DIRECTORY = 4;
+  private static final byte END = 0;
+
+  // journals smaller than this do not request a checkpoint, regardless of the snapshot size
+  private static final long MIN_CHECKPOINT_JOURNAL_SIZE = 16 * 1024 * 1024;
+
+  private static final Object CLOSE = new Object();
+
+  /** Receives the contents of a loaded index, files in least recently used order. */
+  interface Visitor {
+    void visitFile(String key, long size) throws IOException;
+
+    void visitDirectory(Digest digest, Directory directory, List<String> inputs) throws IOException;
+  }
+
+  static final class DirectoryRecord {
+    final Directory directory;
+    final List<String> inputs;
+
+    DirectoryRecord(Directory directory, List<String> inputs) {
+      this.directory = directory;
+      this.inputs = inputs;
+    }
+  }
+
+  // a request to the writer to continue in the journal at path
+  private static final class Rotation {
+    final Path path;
+    final long generation;
+    final long validLength;
+    final SettableFuture<Void> done = SettableFuture.create();
+
+    // validLength < 0 starts a new journal for the generation
+    Rotation(Path path, long generation, long validLength) {
+      this.path = path;
+      this.generation = generation;
+      this.validLength = validLength;
+    }
+  }
+
+  // a request to the writer to sync every record appended ahead of it
+  private static final class Sync {
+    final SettableFuture<Void> done = SettableFuture.create();
+  }
+
+  private final Path root;
+  private final int hexBucketLevels;
+  private final Runnable onCheckpointDue;
+  private final BlockingQueue<Object> pending = new LinkedBlockingQueue<>();
+
+  // appends are dropped while nothing is recorded
+  private volatile boolean recording = false;
+  private volatile long checkpointJournalSize = MIN_CHECKPOINT_JOURNAL_SIZE;
+
+  @GuardedBy("this")
+  private long generation = 0;
+
+  @GuardedBy("this")
+  private long snapshotGeneration = -1;
+
+  @GuardedBy("this")
+  private @Nullable Thread writer = null;
+
+  @GuardedBy("this")
+  private boolean closed = false;
+
+  @GuardedBy("this")
+  private boolean loadedClean = false;
+
+  // set by the writer thread when the journal is synced upon close
+  private volatile boolean closedClean = false;
+
+  // owned by the writer thread
+  private @Nullable FileOutputStream journalFile = null;
+  private @Nullable DataOutputStream journal = null;
+  private long journalSize = 0;
+  private boolean checkpointRequested = false;
+
+  /**
+   * Creates a journal for the cache at root. onCheckpointDue is invoked on the writer thread when
+   * the journal has outgrown its snapshot, and must not wait for the journal.
+   */
+  CASIndexJournal(Path root, int hexBucketLevels, Runnable onCheckpointDue) {
+    this.root = root;
+    this.hexBucketLevels = hexBucketLevels;
+    this.onCheckpointDue = onCheckpointDue;
+  }
+
+  static boolean isIndexFile(String name) {
+    return name.startsWith(FILENAME_PREFIX);
+  }
+
+  private Path getSnapshotPath() {
+    return root.resolve(SNAPSHOT_NAME);
+  }
+
+  private Path getCleanPath() {
+    return root.resolve(CLEAN_NAME);
+  }
+
+  private Path getJournalPath(long generation) {
+    return root.resolve(FILENAME_PREFIX + "." + generation + JOURNAL_SUFFIX);
+  }
+
+  /**
+   * Reads the snapshot and replays its journals into the visitor, resuming appends to the latest
+   * journal. Returns false without visiting anything if the snapshot is missing, unreadable or does
+   * not match the journals present.
+   */
+  synchronized boolean load(Visitor visitor) throws IOException {
+    // removed ahead of any append, so that an exit without close leaves it missing
+    loadedClean = Files.deleteIfExists(getCleanPath());
+    if (!replay(visitor)) {
+      // unusable journals must not be replayed onto a later snapshot
+      removeJournalsBefore(Long.MAX_VALUE);
+      return false;
+    }
+    return true;
+  }
+
+  @GuardedBy("this")
+  private boolean replay(Visitor visitor) throws IOException {
+    Map<String, Long> files = new LinkedHashMap<>();
+    Map<Digest, DirectoryRecord> directories = new LinkedHashMap<>();
+    long snapshotGeneration;
+    try (DataInputStream in = newDataInputStream(Files.newInputStream(getSnapshotPath()))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != hexBucketLevels) {
+        logger.log(Level.INFO, "cas index snapshot is incompatible, ignoring it");
+        return false;
+      }
+      snapshotGeneration = in.readLong();
+      for (byte type = in.readByte(); type != END; type = in.readByte()) {
+        applyRecord(type, in, files, directories);
+      }
+    } catch (NoSuchFileException e) {
+      logger.log(Level.INFO, "no cas index snapshot present");
+      return false;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "could not read cas index snapshot, ignoring it", e);
+      return false;
+    }
+
+    long journalGeneration = snapshotGeneration;
+    long validLength = replayJournal(journalGeneration, files, directories);
+    if (validLength < 0) {
+      logger.log(
+          Level.INFO,
+          format("cas index journal for generation %d does not match", snapshotGeneration));
+      return false;
+    }
+    for (; ; ) {
+      long nextValidLength = replayJournal(journalGeneration + 1, files, directories);
+      if (nextValidLength < 0) {
+        break;
+      }
+      journalGeneration++;
+      validLength = nextValidLength;
+    }
+
+    for (Map.Entry<String, Long> file : files.entrySet()) {
+      visitor.visitFile(file.getKey(), file.getValue());
+    }
+    for (Map.Entry<Digest, DirectoryRecord> directory : directories.entrySet()) {
+      DirectoryRecord record = directory.getValue();
+      visitor.visitDirectory(directory.getKey(), record.directory, record.inputs);
+    }
+
+    checkpointJournalSize = Math.max(MIN_CHECKPOINT_JOURNAL_SIZE, Files.size(getSnapshotPath()));
+    this.snapshotGeneration = snapshotGeneration;
+    generation = journalGeneration;
+    // discards any incomplete trailing record before resuming appends
+    rotate(new Rotation(getJournalPath(journalGeneration), journalGeneration, validLength));
+    return true;
+  }
+
+  /**
+   * Returns true if the journal was closed with every record synced before the last load, false if
+   * records may have been lost with the exit of its previous owner.
+   */
+  synchronized boolean loadedClean() {
+    return loadedClean;
+  }
+
+  // returns the length of the complete records in the journal, or -1 if it does not exist or
+  // belongs to another generation
+  private long replayJournal(
+      long generation, Map<String, Long> files, Map<Digest, DirectoryRecord> directories)
+      throws IOException {
+    CountingInputStream counter;
+    try {
+      counter =
+          new CountingInputStream(
+              new BufferedInputStream(Files.newInputStream(getJournalPath(generation))));
+    } catch (NoSuchFileException e) {
+      return -1;
+    }
+    try (DataInputStream in = new DataInputStream(counter)) {
+      if (in.readInt() != MAGIC || in.readLong() != generation) {
+        return -1;
+      }
+      long validLength = counter.getCount();
+      for (; ; ) {
+        try {
+          applyRecord(in.readByte(), in, files, directories);
+        } catch (EOFException e) {
+          return validLength;
+        } catch (IOException e) {
+          logger.log(
+              Level.WARNING,
+              format("cas index journal %d is corrupt after %d bytes", generation, validLength),
+              e);
+          return validLength;
+        }
+        validLength = counter.getCount();
+      }
+    } catch (EOFException e) {
+      // truncated header
+      return -1;
+    }
+  }
+
+  private static DataInputStream newDataInputStream(InputStream in) {
+    return new DataInputStream(new BufferedInputStream(in));
+  }
+
+  private static void applyRecord(
+      byte type,
+      DataInputStream in,
+      Map<String, Long> files,
+      Map<Digest, DirectoryRecord> directories)
+      throws IOException {
+    switch (type) {
+      case PUT_FILE:
+        String key = in.readUTF();
+        long size = in.readLong();
+        // reinsert to retain recency
+        files.remove(key);
+        files.put(key, size);
+        break;
+      case EXPIRE_FILE:
+        files.remove(in.readUTF());
+        break;
+      case PUT_DIRECTORY:
+        Digest digest = readDigest(in);
+        byte[] directoryBytes = new byte[in.readInt()];
+        in.readFully(directoryBytes);
+        int inputCount = in.readInt();
+        ImmutableList.Builder<String> inputs = ImmutableList.builder();
+        for (int i = 0; i < inputCount; i++) {
+          inputs.add(in.readUTF());
+        }
+        directories.put(
+            digest, new DirectoryRecord(Directory.parseFrom(directoryBytes), inputs.build()));
+        break;
+      case EXPIRE_DIRECTORY:
+        directories.remove(readDigest(in));
+        break;
+      default:
+        throw new IOException(format("unrecognized cas index record type %d", type));
+    }
+  }
+
+  private static Digest readDigest(DataInputStream in) throws IOException {
+    String hash = in.readUTF();
+    long size = in.readLong();
+    return Digest.newBuilder().setHash(hash).setSizeBytes(size).build();
+  }
+
+  private static void writeDigest(DataOutputStream out, Digest digest) throws IOException {
+    out.writeUTF(digest.getHash());
+    out.writeLong(digest.getSizeBytes());
+  }
+
+  private static void writeFile(DataOutputStream out, String key, long size) throws IOException {
+    out.writeByte(PUT_FILE);
+    out.writeUTF(key);
+    out.writeLong(size);
+  }
+
+  private static void writeDirectory(
+      DataOutputStream out, Digest digest, Directory directory, Iterable<String> inputs)
+      throws IOException {
+    out.writeByte(PUT_DIRECTORY);
+    writeDigest(out, digest);
+    byte[] directoryBytes = directory.toByteArray();
+    out.writeInt(directoryBytes.length);
+    out.write(directoryBytes);
+    List<String> inputList = ImmutableList.copyOf(inputs);
+    out.writeInt(inputList.size());
+    for (String input : inputList) {
+      out.writeUTF(input);
+    }
+  }
+
+  /**
+   * Rotates the journal to the next generation, returning that generation, or -1 once the journal
+   * is closed. Every change recorded after the return is retained in the new generation's journal,
+   * and the contents for its checkpoint must be taken afterward.
+   */
+  synchronized long beginCheckpoint() throws IOException {
+    if (closed) {
+      return -1;
+    }
+    long nextGeneration = generation + 1;
+    rotate(new Rotation(getJournalPath(nextGeneration), nextGeneration, /* validLength=*/ -1));
+    generation = nextGeneration;
+    return nextGeneration;
+  }
+
+  /**
+   * Writes a snapshot of the given contents, taken after the journal was rotated to generation by
+   * {@link #beginCheckpoint()}, and removes the journals that it covers. Files should be ordered
+   * from least to most recently used. Does nothing once the journal is closed, or if a later
+   * generation has been checkpointed.
+   */
+  synchronized void checkpoint(
+      long generation,
+      Iterable<Map.Entry<String, Long>> files,
+      Map<Digest, DirectoryRecord> directories)
+      throws IOException {
+    if (closed || generation <= snapshotGeneration) {
+      return;
+    }
+
+    Path snapshotPath = getSnapshotPath();
+    Path tmpPath = root.resolve(SNAPSHOT_NAME + ".tmp");
+    try (FileOutputStream fileOut = new FileOutputStream(tmpPath.toFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(hexBucketLevels);
+      out.writeLong(generation);
+      for (Map.Entry<String, Long> file : files) {
+        writeFile(out, file.getKey(), file.getValue());
+      }
+      for (Map.Entry<Digest, DirectoryRecord> directory : directories.entrySet()) {
+        DirectoryRecord record = directory.getValue();
+        writeDirectory(out, directory.getKey(), record.directory, record.inputs);
+      }
+      out.writeByte(END);
+      out.flush();
+      fileOut.getChannel().force(/* metaData=*/ true);
+      checkpointJournalSize = Math.max(MIN_CHECKPOINT_JOURNAL_SIZE, fileOut.getChannel().size());
+    }
+    Files.move(tmpPath, snapshotPath, REPLACE_EXISTING, ATOMIC_MOVE);
+    snapshotGeneration = generation;
+    removeJournalsBefore(generation);
+  }
+
+  // journals of later generations may have been started by another checkpoint
+  private void removeJournalsBefore(long generation) throws IOException {
+    String prefix = FILENAME_PREFIX + ".";
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(root, prefix + "*" + JOURNAL_SUFFIX)) {
+      for (Path path : stream) {
+        String name = path.getFileName().toString();
+        long journalGeneration;
+        try {
+          journalGeneration =
+              Long.parseLong(
+                  name.substring(prefix.length(), name.length() - JOURNAL_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+          journalGeneration = -1;
+        }
+        if (journalGeneration < generation) {
+          Files.delete(path);
+        }
+      }
+    }
+  }
+
+  // records are appended behind every record already queued, and changes after the rotation are
+  // recorded in its journal
+  @GuardedBy("this")
+  private void rotate(Rotation rotation) throws IOException {
+    recording = true;
+    if (writer == null) {
+      writer = new Thread(this::runWriter, "CASFileCache Index Journal");
+      writer.setDaemon(true);
+      writer.start();
+    }
+    pending.add(rotation);
+    Futures.getChecked(rotation.done, IOException.class);
+  }
+
+  void putFile(String key, long size) {
+    append(out -> writeFile(out, key, size));
+  }
+
+  void expireFile(String key) {
+    append(
+        out -> {
+          out.writeByte(EXPIRE_FILE);
+          out.writeUTF(key);
+        });
+  }
+
+  void putDirectory(Digest digest, Directory directory, Iterable<String> inputs) {
+    append(out -> writeDirectory(out, digest, directory, inputs));
+  }
+
+  void expireDirectory(Digest digest) {
+    append(
+        out -> {
+          out.writeByte(EXPIRE_DIRECTORY);
+          writeDigest(out, digest);
+        });
+  }
+
+  @FunctionalInterface
+  private interface RecordWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private void append(RecordWriter recordWriter) {
+    if (!recording) {
+      return;
+    }
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(record)) {
+      recordWriter.write(out);
+    } catch (IOException e) {
+      // not thrown by the in-memory stream
+      throw new IllegalStateException(e);
+    }
+    pending.add(record.toByteArray());
+  }
+
+  private void runWriter() {
+    List<Object> batch = new ArrayList<>();
+    try {
+      for (; ; ) {
+        batch.add(pending.take());
+        pending.drainTo(batch);
+        for (Object item : batch) {
+          if (item == CLOSE) {
+            closedClean = journal != null && closeJournal();
+            return;
+          } else if (item instanceof Rotation) {
+            startJournal((Rotation) item);
+          } else if (item instanceof Sync) {
+            syncJournal((Sync) item);
+          } else {
+            writeRecord((byte[]) item);
+          }
+        }
+        batch.clear();
+        flushJournal();
+      }
+    } catch (InterruptedException e) {
+      closeJournal();
+    }
+  }
+
+  private void writeRecord(byte[] record) {
+    if (journal == null) {
+      return;
+    }
+    try {
+      journal.write(record);
+    } catch (IOException e) {
+      invalidate(e);
+      return;
+    }
+    journalSize += record.length;
+    if (!checkpointRequested && journalSize > checkpointJournalSize) {
+      checkpointRequested = true;
+      onCheckpointDue.run();
+    }
+  }
+
+  private void flushJournal() {
+    if (journal != null) {
+      try {
+        journal.flush();
+      } catch (IOException e) {
+        invalidate(e);
+      }
+    }
+  }
+
+  private void syncJournal(Sync sync) {
+    if (journal != null) {
+      try {
+        journal.flush();
+        journalFile.getChannel().force(/* metaData=*/ false);
+      } catch (IOException e) {
+        invalidate(e);
+        sync.done.setException(e);
+        return;
+      }
+    }
+    sync.done.set(null);
+  }
+
+  private void startJournal(Rotation rotation) {
+    // everything recorded in the previous journal is durable before the next begins
+    closeJournal();
+    try {
+      journalFile = new FileOutputStream(rotation.path.toFile(), rotation.validLength >= 0);
+      journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+      if (rotation.validLength >= 0) {
+        journalFile.getChannel().truncate(rotation.validLength);
+        journalSize = rotation.validLength;
+      } else {
+        journal.writeInt(MAGIC);
+        journal.writeLong(rotation.generation);
+        journal.flush();
+        journalFile.getChannel().force(/* metaData=*/ true);
+        journalSize = journal.size();
+      }
+      checkpointRequested = false;
+      rotation.done.set(null);
+    } catch (IOException e) {
+      closeJournal();
+      rotation.done.setException(e);
+    }
+  }
+
+  private void invalidate(IOException cause) {
+    logger.log(Level.SEVERE, "error writing cas index journal, invalidating the index", cause);
+    recording = false;
+    closeJournal();
+    try {
+      Files.deleteIfExists(getSnapshotPath());
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "error removing cas index snapshot", e);
+    }
+  }
+
+  // returns false if the journal could not be synced
+  private boolean closeJournal() {
+    boolean synced = true;
+    if (journal != null) {
+      try {
+        journal.flush();
+        journalFile.getChannel().force(/* metaData=*/ true);
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "error syncing cas index journal", e);
+        synced = false;
+      }
+      try {
+        journal.close();
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "error closing cas index journal", e);
+      }
+      journal = null;
+      journalFile = null;
+    }
+    return synced;
+  }
+
+  /** Waits for every change recorded so far to be synced to the journal. */
+  void sync() throws IOException {
+    Sync sync = new Sync();
+    synchronized (this) {
+      if (writer == null) {
+        return;
+      }
+      pending.add(sync);
+    }
+    Futures.getChecked(sync.done, IOException.class);
+  }
+
+  /**
+   * Stops recording changes, syncing those already recorded, and marks the index as complete if
+   * every record was synced.
+   */
+  synchronized void close() {
+    closed = true;
+    boolean wasRecording = recording;
+    recording = false;
+    if (writer != null) {
+      pending.add(CLOSE);
+      Uninterruptibles.joinUninterruptibly(writer);
+      writer = null;
+      if (wasRecording && closedClean) {
+        try {
+          Files.write(getCleanPath(), new byte[0]);
+        } catch (IOException e) {
+          logger.log(Level.SEVERE, "error marking cas index as complete", e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,332 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas.cfc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.Maps;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A concurrent map of CASFileCache entries by key which retains neither key strings nor map nodes.
+ *
+ * <p>Entries are held directly in lock striped open addressing tables with linear probing, and are
+ * located by the leading bytes of their decoded hash. Keys are compared against an entry's hash
+ * bytes without materializing either as a string. Iteration is weakly consistent, over a snapshot
+ * of each stripe, and materializes keys.
+ */
+public final class CompactEntryTable extends AbstractMap<String, CASFileCache.Entry>
+    implements ConcurrentMap<String, CASFileCache.Entry> {
+  private static final int INITIAL_STRIPE_CAPACITY = 16;
+
+  private final Stripe[] stripes;
+  private final int stripeShift;
+
+  private static final class Stripe {
+    @GuardedBy("this")
+    private CASFileCache.Entry[] table = new CASFileCache.Entry[INITIAL_STRIPE_CAPACITY];
+
+    private volatile int size = 0;
+
+    @GuardedBy("this")
+    private int indexOf(String key, int hash) {
+      int mask = table.length - 1;
+      for (int i = hash & mask; ; i = (i + 1) & mask) {
+        CASFileCache.Entry e = table[i];
+        if (e == null || e.keyEquals(key)) {
+          return i;
+        }
+      }
+    }
+
+    synchronized @Nullable CASFileCache.Entry get(String key, int hash) {
+      return table[indexOf(key, hash)];
+    }
+
+    synchronized @Nullable CASFileCache.Entry put(
+        String key, int hash, CASFileCache.Entry value, boolean onlyIfAbsent) {
+      int index = indexOf(key, hash);
+      CASFileCache.Entry existing = table[index];
+      if (existing == null) {
+        table[index] = value;
+        // resize at a load factor of 3/4
+        if (++size > table.length - (table.length >>> 2)) {
+          resize();
+        }
+      } else if (!onlyIfAbsent) {
+        table[index] = value;
+      }
+      return existing;
+    }
+
+    synchronized @Nullable CASFileCache.Entry replace(
+        String key, int hash, @Nullable CASFileCache.Entry expected, CASFileCache.Entry value) {
+      int index = indexOf(key, hash);
+      CASFileCache.Entry existing = table[index];
+      if (existing != null && (expected == null || existing == expected)) {
+        table[index] = value;
+      }
+      return existing;
+    }
+
+    // removes the key's entry if it is the expected entry, or any entry if expected is null
+    synchronized @Nullable CASFileCache.Entry remove(
+        String key, int hash, @Nullable CASFileCache.Entry expected) {
+      int index = indexOf(key, hash);
+      CASFileCache.Entry existing = table[index];
+      if (existing != null && (expected == null || existing == expected)) {
+        delete(index);
+        size--;
+      }
+      return existing;
+    }
+
+    // backward shift deletion retains the probe sequence of every remaining entry
+    @GuardedBy("this")
+    private void delete(int index) {
+      int mask = table.length - 1;
+      int hole = index;
+      for (int i = (hole + 1) & mask; table[i] != null; i = (i + 1) & mask) {
+        int home = spread(table[i].keyHash()) & mask;
+        // move the entry into the hole if its home does not lie cyclically within (hole, i]
+        if (hole <= i ? (home <= hole || home > i) : (home <= hole && home > i)) {
+          table[hole] = table[i];
+          hole = i;
+        }
+      }
+      table[hole] = null;
+    }
+
+    @GuardedBy("this")
+    private void resize() {
+      CASFileCache.Entry[] oldTable = table;
+      table = new CASFileCache.Entry[oldTable.length * 2];
+      int mask = table.length - 1;
+      for (CASFileCache.Entry e : oldTable) {
+        if (e != null) {
+          int i = spread(e.keyHash()) & mask;
+          while (table[i] != null) {
+            i = (i + 1) & mask;
+          }
+          table[i] = e;
+        }
+      }
+    }
+
+    synchronized void clear() {
+      table = new CASFileCache.Entry[INITIAL_STRIPE_CAPACITY];
+      size = 0;
+    }
+
+    synchronized void copyTo(List<CASFileCache.Entry> entries) {
+      for (CASFileCache.Entry e : table) {
+        if (e != null) {
+          entries.add(e);
+        }
+      }
+    }
+  }
+
+  public CompactEntryTable() {
+    this(4 * Runtime.getRuntime().availableProcessors());
+  }
+
+  public CompactEntryTable(int stripeCount) {
+    // at least two stripes, so that the stripe shift is less than the width of an int
+    int stripeBits =
+        Integer.numberOfTrailingZeros(Integer.highestOneBit(Math.max(2, stripeCount) * 2 - 1));
+    stripes = new Stripe[1 << stripeBits];
+    stripeShift = Integer.SIZE - stripeBits;
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  // the leading bytes of digest hashes are uniform, but other keys may not be
+  private static int spread(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    return h ^ (h >>> 16);
+  }
+
+  // stripes are selected by the high bits of the spread hash, table slots by the low bits
+  private Stripe stripeFor(int hash) {
+    return stripes[hash >>> stripeShift];
+  }
+
+  @Override
+  public @Nullable CASFileCache.Entry get(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    String k = (String) key;
+    int hash = spread(CASFileCache.Entry.keyHash(k));
+    return stripeFor(hash).get(k, hash);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  private int checkedHash(String key, CASFileCache.Entry value) {
+    checkArgument(value.keyEquals(key), "entry %s does not match key %s", value.getKey(), key);
+    return spread(CASFileCache.Entry.keyHash(key));
+  }
+
+  @Override
+  public @Nullable CASFileCache.Entry put(String key, CASFileCache.Entry value) {
+    int hash = checkedHash(key, value);
+    return stripeFor(hash).put(key, hash, value, /* onlyIfAbsent=*/ false);
+  }
+
+  @Override
+  public @Nullable CASFileCache.Entry putIfAbsent(String key, CASFileCache.Entry value) {
+    int hash = checkedHash(key, value);
+    return stripeFor(hash).put(key, hash, value, /* onlyIfAbsent=*/ true);
+  }
+
+  @Override
+  public @Nullable CASFileCache.Entry replace(String key, CASFileCache.Entry value) {
+    int hash = checkedHash(key, value);
+    return stripeFor(hash).replace(key, hash, /* expected=*/ null, value);
+  }
+
+  @Override
+  public boolean replace(String key, CASFileCache.Entry oldValue, CASFileCache.Entry newValue) {
+    int hash = checkedHash(key, newValue);
+    return stripeFor(hash).replace(key, hash, oldValue, newValue) == oldValue;
+  }
+
+  @Override
+  public @Nullable CASFileCache.Entry remove(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    String k = (String) key;
+    int hash = spread(CASFileCache.Entry.keyHash(k));
+    return stripeFor(hash).remove(k, hash, /* expected=*/ null);
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    if (!(key instanceof String) || !(value instanceof CASFileCache.Entry)) {
+      return false;
+    }
+    String k = (String) key;
+    int hash = spread(CASFileCache.Entry.keyHash(k));
+    return stripeFor(hash).remove(k, hash, (CASFileCache.Entry) value) == value;
+  }
+
+  @Override
+  public int size() {
+    long size = 0;
+    for (Stripe stripe : stripes) {
+      size += stripe.size;
+    }
+    return (int) Math.min(size, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    for (Stripe stripe : stripes) {
+      if (stripe.size != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    for (Stripe stripe : stripes) {
+      stripe.clear();
+    }
+  }
+
+  private List<CASFileCache.Entry> snapshot() {
+    List<CASFileCache.Entry> entries = new ArrayList<>(size());
+    for (Stripe stripe : stripes) {
+      stripe.copyTo(entries);
+    }
+    return entries;
+  }
+
+  @Override
+  public Collection<CASFileCache.Entry> values() {
+    return new AbstractCollection<CASFileCache.Entry>() {
+      @Override
+      public Iterator<CASFileCache.Entry> iterator() {
+        return snapshot().iterator();
+      }
+
+      @Override
+      public int size() {
+        return CompactEntryTable.this.size();
+      }
+    };
+  }
+
+  @Override
+  public Set<Map.Entry<String, CASFileCache.Entry>> entrySet() {
+    return new AbstractSet<Map.Entry<String, CASFileCache.Entry>>() {
+      @Override
+      public Iterator<Map.Entry<String, CASFileCache.Entry>> iterator() {
+        Iterator<CASFileCache.Entry> entries = snapshot().iterator();
+        return new Iterator<Map.Entry<String, CASFileCache.Entry>>() {
+          private @Nullable CASFileCache.Entry last = null;
+
+          @Override
+          public boolean hasNext() {
+            return entries.hasNext();
+          }
+
+          @Override
+          public Map.Entry<String, CASFileCache.Entry> next() {
+            last = entries.next();
+            return Maps.immutableEntry(last.getKey(), last);
+          }
+
+          @Override
+          public void remove() {
+            if (last == null) {
+              throw new IllegalStateException();
+            }
+            CompactEntryTable.this.remove(last.getKey(), last);
+            last = null;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return CompactEntryTable.this.size();
+      }
+    };
+  }
+}
@@ -0,0 +1,144 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas.cfc;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.DigestUtil.HashFunction;
+import build.buildfarm.common.io.Directories;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Measures DirectoriesIndex operations as performed by CASFileCache: a put for each directory
+// materialized, a lookup of the entries of a directory, and the removal of an entry's
+// directories on its expiration. Directories draw their entries from a shared pool, as inputs
+// are shared by many actions, and are sized by the number of files they contain.
+// Run with: bazel run //src/main/java/build/buildfarm/cas:bf-directories-index-benchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectoriesIndexBenchmark {
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(HashFunction.SHA256);
+  private static final int ENTRY_POOL_SIZE = 1 << 16;
+  private static final int DIRECTORY_COUNT = 1024;
+
+  @Param({"sqlite", "memory", "interned"})
+  public String type;
+
+  @Param({"16", "256", "4096"})
+  public int directorySize;
+
+  private Path root;
+  private DirectoriesIndex index;
+  private String[] entries;
+  private Digest[] directories;
+  private final AtomicLong directoryCounter = new AtomicLong(0);
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    root = Files.createTempDirectory("directories-index");
+    EntryPathStrategy entryPathStrategy = new HexBucketEntryPathStrategy(root, /* levels=*/ 0);
+    for (Path dir : entryPathStrategy) {
+      Files.createDirectories(dir);
+    }
+    if (type.equals("sqlite")) {
+      index =
+          new SqliteFileDirectoriesIndex(
+              "jdbc:sqlite:" + root.resolve("directories.sqlite"), entryPathStrategy);
+    } else if (type.equals("memory")) {
+      index = new MemoryFileDirectoriesIndex(entryPathStrategy);
+    } else {
+      index = new InternedFileDirectoriesIndex(entryPathStrategy);
+    }
+    index.start();
+
+    entries = new String[ENTRY_POOL_SIZE];
+    for (int i = 0; i < ENTRY_POOL_SIZE; i++) {
+      entries[i] = DIGEST_UTIL.compute(ByteString.copyFromUtf8("entry " + i)).getHash();
+    }
+    directories = new Digest[DIRECTORY_COUNT];
+    for (int i = 0; i < DIRECTORY_COUNT; i++) {
+      directories[i] = newDirectory();
+      index.put(directories[i], directoryEntries());
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    index.close();
+    Directories.remove(root);
+  }
+
+  private Digest newDirectory() {
+    return DIGEST_UTIL.compute(
+        ByteString.copyFromUtf8("directory " + directoryCounter.getAndIncrement()));
+  }
+
+  private Iterable<String> directoryEntries() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    ImmutableList.Builder<String> builder = ImmutableList.builder();
+    for (int i = 0; i < directorySize; i++) {
+      builder.add(entries[random.nextInt(ENTRY_POOL_SIZE)]);
+    }
+    return builder.build();
+  }
+
+  @Benchmark
+  public void putAndRemove() throws IOException {
+    Digest directory = newDirectory();
+    index.put(directory, directoryEntries());
+    index.remove(directory);
+  }
+
+  @Benchmark
+  public Iterable<String> directoryEntriesLookup() throws IOException {
+    return index.directoryEntries(
+        directories[ThreadLocalRandom.current().nextInt(DIRECTORY_COUNT)]);
+  }
+
+  // the expiration of an entry removes every directory which contains it, and a directory is put
+  // for each removal to sustain the size of the index
+  @Benchmark
+  public Set<Digest> removeEntry() throws IOException {
+    Iterable<String> directoryEntries = directoryEntries();
+    Digest directory = newDirectory();
+    index.put(directory, directoryEntries);
+    directories[ThreadLocalRandom.current().nextInt(DIRECTORY_COUNT)] = directory;
+    return index.removeEntry(directoryEntries.iterator().next());
+  }
+}
@@ -0,0 +1,45 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas.cfc;
+
+import build.buildfarm.cas.cfc.CASFileCache.Entry;
+
+/**
+ * Admission and eviction decisions for the unreferenced entries of a CASFileCache.
+ *
+ * <p>The cache maintains unreferenced entries in recency order in a main lru and, when the policy
+ * requests one, an admission window. Inserted entries enter the window. When space is required and
+ * the window exceeds its size, the least recently used entry of the window is a candidate for
+ * admission to the main lru, competing against its least recently used entry, and the loser is
+ * expired. Otherwise, the least recently used entry of the main lru is expired.
+ *
+ * <p>Insertions and accesses are recorded concurrently. Admission decisions are serialized.
+ */
+public interface EvictionPolicy {
+  /** Returns the size of the admission window for a cache of the given size, 0 for none. */
+  long windowSizeInBytes(long maxSizeInBytes);
+
+  /** Records the insertion of a new entry into the cache. */
+  void recordInsert(Entry entry);
+
+  /** Records an access to, or reference of, an existing entry. */
+  void recordAccess(Entry entry);
+
+  /**
+   * Returns true if the candidate from the window should be admitted into the main lru, expiring
+   * the victim, or false if the candidate should be expired.
+   */
+  boolean admit(Entry candidate, Entry victim);
+}
@@ -0,0 +1,132 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas.cfc;
+
+import java.util.Arrays;
+
+/**
+ * Assigns dense int ids to distinct values, reusing the ids of released values.
+ *
+ * <p>Values are held in an array by id, and located by an open addressing table of ids with linear
+ * probing, so that no node is allocated per value. Not thread safe.
+ */
+final class IntInterner<T> {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private Object[] values = new Object[INITIAL_CAPACITY];
+  // id + 1 of each value in its probe sequence, 0 for empty slots
+  private int[] table = new int[INITIAL_CAPACITY * 2];
+  private int[] freeIds = new int[INITIAL_CAPACITY];
+  private int freeCount = 0;
+  private int nextId = 0;
+  private int size = 0;
+
+  private static int spread(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /** Returns the id of the value, or -1 if it is not interned. */
+  int find(T value) {
+    int mask = table.length - 1;
+    for (int i = spread(value.hashCode()) & mask; table[i] != 0; i = (i + 1) & mask) {
+      int id = table[i] - 1;
+      if (values[id].equals(value)) {
+        return id;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the id of the value, assigning one if it is not interned. */
+  int intern(T value) {
+    int id = find(value);
+    if (id >= 0) {
+      return id;
+    }
+    if (freeCount != 0) {
+      id = freeIds[--freeCount];
+    } else {
+      id = nextId++;
+      if (id == values.length) {
+        values = Arrays.copyOf(values, values.length * 2);
+      }
+    }
+    values[id] = value;
+    // resize at a load factor of 1/2
+    if (++size * 2 > table.length) {
+      resize();
+    } else {
+      insert(table, id);
+    }
+    return id;
+  }
+
+  @SuppressWarnings("unchecked")
+  T get(int id) {
+    return (T) values[id];
+  }
+
+  /** The exclusive upper bound of assigned ids. */
+  int capacity() {
+    return values.length;
+  }
+
+  int size() {
+    return size;
+  }
+
+  void release(int id) {
+    int mask = table.length - 1;
+    int hole = spread(values[id].hashCode()) & mask;
+    while (table[hole] != id + 1) {
+      hole = (hole + 1) & mask;
+    }
+    // backward shift deletion retains the probe sequence of every remaining id
+    for (int i = (hole + 1) & mask; table[i] != 0; i = (i + 1) & mask) {
+      int home = spread(values[table[i] - 1].hashCode()) & mask;
+      if (hole <= i ? (home <= hole || home > i) : (home <= hole && home > i)) {
+        table[hole] = table[i];
+        hole = i;
+      }
+    }
+    table[hole] = 0;
+    values[id] = null;
+    if (freeCount == freeIds.length) {
+      freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+    }
+    freeIds[freeCount++] = id;
+    size--;
+  }
+
+  private void insert(int[] table, int id) {
+    int mask = table.length - 1;
+    int i = spread(values[id].hashCode()) & mask;
+    while (table[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    table[i] = id + 1;
+  }
+
+  private void resize() {
+    int[] newTable = new int[table.length * 2];
+    for (int id = 0; id < nextId; id++) {
+      if (values[id] != null) {
+        insert(newTable, id);
+      }
+    }
+    table = newTable;
+  }
+}
@@ -0,0 +1,199 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas.cfc;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Memory implementation of entry/directory mappings over interned ids, with file manifestations of
+ * directory entries.
+ *
+ * <p>Each entry key and directory digest is held once, interned to a dense int id, and the mappings
+ * are primitive int arrays by id: the entries of each directory in order, and a sorted array of the
+ * directories featuring each entry. Removal of an entry removes all directories which feature it,
+ * along with every mapping to them. Comparing to MemoryFileDirectoriesIndex, no map node or string
+ * is retained per mapping.
+ */
+class InternedFileDirectoriesIndex extends FileDirectoriesIndex {
+  private static final int[] NO_IDS = new int[0];
+
+  @GuardedBy("this")
+  private final IntInterner<String> internedEntries = new IntInterner<>();
+
+  @GuardedBy("this")
+  private final IntInterner<Digest> internedDirectories = new IntInterner<>();
+
+  // sorted directory ids featuring each entry, and their counts, by entry id
+  @GuardedBy("this")
+  private int[][] entryDirectories = new int[0][];
+
+  @GuardedBy("this")
+  private int[] entryDirectoryCounts = new int[0];
+
+  // entry ids of each directory, including duplicates, by directory id
+  @GuardedBy("this")
+  private int[][] directoryEntries = new int[0][];
+
+  InternedFileDirectoriesIndex(EntryPathStrategy entryPathStrategy) {
+    super(entryPathStrategy);
+  }
+
+  @Override
+  public void close() {}
+
+  @Override
+  public void start() {}
+
+  @Override
+  public synchronized Iterable<String> directoryEntries(Digest directory) {
+    int directoryId = internedDirectories.find(directory);
+    if (directoryId < 0) {
+      return ImmutableList.of();
+    }
+    int[] entryIds = directoryEntries[directoryId];
+    ImmutableList.Builder<String> builder = ImmutableList.builderWithExpectedSize(entryIds.length);
+    for (int entryId : entryIds) {
+      builder.add(internedEntries.get(entryId));
+    }
+    return builder.build();
+  }
+
+  @Override
+  public Set<Digest> removeEntry(String entry) throws IOException {
+    Set<Digest> directories = removeEntryDirectories(entry);
+    super.removeDirectories(directories);
+    return directories;
+  }
+
+  private synchronized Set<Digest> removeEntryDirectories(String entry) {
+    int entryId = internedEntries.find(entry);
+    if (entryId < 0) {
+      return ImmutableSet.of();
+    }
+    ImmutableSet.Builder<Digest> removed = ImmutableSet.builder();
+    // the entry's id is released with the removal of its last directory
+    for (int count = entryDirectoryCounts[entryId]; count != 0; ) {
+      int directoryId = entryDirectories[entryId][count - 1];
+      removed.add(internedDirectories.get(directoryId));
+      removeDirectoryId(directoryId);
+      count = entryDirectoryCounts[entryId];
+    }
+    return removed.build();
+  }
+
+  @Override
+  public void put(Digest directory, Iterable<String> entries) throws IOException {
+    super.put(directory, entries);
+    addDirectory(directory, entries);
+  }
+
+  private synchronized void addDirectory(Digest directory, Iterable<String> entryKeys) {
+    int existingId = internedDirectories.find(directory);
+    if (existingId >= 0) {
+      removeDirectoryId(existingId);
+    }
+    int directoryId = internedDirectories.intern(directory);
+    if (directoryId >= directoryEntries.length) {
+      directoryEntries = Arrays.copyOf(directoryEntries, internedDirectories.capacity());
+    }
+
+    int[] entryIds = NO_IDS;
+    int entryCount = 0;
+    for (String entry : entryKeys) {
+      int entryId = internedEntries.intern(entry);
+      if (entryId >= entryDirectories.length) {
+        entryDirectories = Arrays.copyOf(entryDirectories, internedEntries.capacity());
+        entryDirectoryCounts = Arrays.copyOf(entryDirectoryCounts, internedEntries.capacity());
+      }
+      if (entryCount == entryIds.length) {
+        entryIds = Arrays.copyOf(entryIds, Math.max(8, entryCount * 2));
+      }
+      entryIds[entryCount++] = entryId;
+      addEntryDirectory(entryId, directoryId);
+    }
+    directoryEntries[directoryId] =
+        entryCount == entryIds.length ? entryIds : Arrays.copyOf(entryIds, entryCount);
+  }
+
+  @Override
+  public void remove(Digest directory) throws IOException {
+    super.remove(directory);
+    removeDirectory(directory);
+  }
+
+  private synchronized void removeDirectory(Digest directory) {
+    int directoryId = internedDirectories.find(directory);
+    if (directoryId >= 0) {
+      removeDirectoryId(directoryId);
+    }
+  }
+
+  @GuardedBy("this")
+  private void removeDirectoryId(int directoryId) {
+    // safe for duplicate entries
+    for (int entryId : directoryEntries[directoryId]) {
+      removeEntryDirectory(entryId, directoryId);
+    }
+    directoryEntries[directoryId] = null;
+    internedDirectories.release(directoryId);
+  }
+
+  @GuardedBy("this")
+  private void addEntryDirectory(int entryId, int directoryId) {
+    int[] directoryIds = entryDirectories[entryId];
+    int count = entryDirectoryCounts[entryId];
+    if (directoryIds == null) {
+      directoryIds = entryDirectories[entryId] = new int[2];
+    }
+    int index = Arrays.binarySearch(directoryIds, 0, count, directoryId);
+    if (index >= 0) {
+      return; // a duplicate entry within the directory
+    }
+    index = -(index + 1);
+    if (count == directoryIds.length) {
+      directoryIds = entryDirectories[entryId] = Arrays.copyOf(directoryIds, count * 2);
+    }
+    System.arraycopy(directoryIds, index, directoryIds, index + 1, count - index);
+    directoryIds[index] = directoryId;
+    entryDirectoryCounts[entryId] = count + 1;
+  }
+
+  @GuardedBy("this")
+  private void removeEntryDirectory(int entryId, int directoryId) {
+    int[] directoryIds = entryDirectories[entryId];
+    if (directoryIds == null) {
+      return;
+    }
+    int count = entryDirectoryCounts[entryId];
+    int index = Arrays.binarySearch(directoryIds, 0, count, directoryId);
+    if (index < 0) {
+      return;
+    }
+    System.arraycopy(directoryIds, index + 1, directoryIds, index, count - index - 1);
+    if (--count == 0) {
+      entryDirectories[entryId] = null;
+      internedEntries.release(entryId);
+    } else if (count * 4 < directoryIds.length && directoryIds.length > 8) {
+      entryDirectories[entryId] = Arrays.copyOf(directoryIds, directoryIds.length / 2);
+    }
+    entryDirectoryCounts[entryId] = count;
+  }
+}
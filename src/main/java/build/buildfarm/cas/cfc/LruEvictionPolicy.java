@@ -0,0 +1,36 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas.cfc;
+
+import build.buildfarm.cas.cfc.CASFileCache.Entry;
+
+/** Expires the least recently used entry, admitting everything. */
+public final class LruEvictionPolicy implements EvictionPolicy {
+  @Override
+  public long windowSizeInBytes(long maxSizeInBytes) {
+    return 0;
+  }
+
+  @Override
+  public void recordInsert(Entry entry) {}
+
+  @Override
+  public void recordAccess(Entry entry) {}
+
+  @Override
+  public boolean admit(Entry candidate, Entry victim) {
+    return true;
+  }
+}
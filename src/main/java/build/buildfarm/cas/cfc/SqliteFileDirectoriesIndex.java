@@ -14,9 +14,13 @@
 
 package build.buildfarm.cas.cfc;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
 import build.bazel.remote.execution.v2.Digest;
 import build.buildfarm.common.DigestUtil;
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.SetMultimap;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -24,7 +28,15 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 /**
@@ -32,25 +44,107 @@ import javax.annotation.concurrent.GuardedBy;
  * files (and expected to be immutable) Entry directories are maintained in sqlite.
  *
  * <p>Sqlite db should be removed prior to using this index
+ *
+ * <p>Mutations are queued and committed by a writer thread in a single transaction per group commit
+ * interval, with prepared statements reused across commits. Queued mutations are applied to the
+ * results of entry lookups until they are committed. A group that fails to commit is rolled back
+ * and retried with backoff, remaining applied to lookups, so that the index never loses a write.
+ *
+ * <p>A file db is opened in WAL mode with a separate connection for lookups, so that they do not
+ * block on commits. An in memory db cannot be shared across connections, and its lookups wait for
+ * any commit in progress, though never while holding the monitor of the index, so that puts and
+ * removals are not held behind them.
  */
 class SqliteFileDirectoriesIndex extends FileDirectoriesIndex {
+  private static final Logger logger = Logger.getLogger(SqliteFileDirectoriesIndex.class.getName());
+
+  private static final long GROUP_COMMIT_INTERVAL_MILLIS = 10;
+  private static final long MAX_COMMIT_RETRY_MILLIS = 10000;
+
   private final String dbUrl;
+  private final boolean inMemory;
+
+  @GuardedBy("this")
   private boolean opened = false;
+
+  @GuardedBy("this")
+  private boolean closed = false;
+
+  // statements are executed under the monitor of their connection
   private Connection conn;
+  private PreparedStatement insertStatement;
+  private PreparedStatement deleteStatement;
+  // the same as conn for an in memory db, which cannot be shared across connections
+  private Connection readConn;
+  private PreparedStatement selectStatement;
+  private Thread writer;
+
+  @GuardedBy("this")
+  private PendingWrites pending = new PendingWrites();
+
+  @GuardedBy("this")
+  private @Nullable PendingWrites committing = null;
+
+  @GuardedBy("this")
+  private long commitCount = 0;
+
+  /** A directory's rows to insert, or to delete when entries is null. */
+  private static final class Write {
+    final Digest directory;
+    final @Nullable Set<String> entries;
+
+    Write(Digest directory, @Nullable Set<String> entries) {
+      this.directory = directory;
+      this.entries = entries;
+    }
+  }
+
+  /** Writes in order, and their effect on the directories of entries, as of the last write. */
+  private static final class PendingWrites {
+    final List<Write> writes = new ArrayList<>();
+    final Map<Digest, Set<String>> puts = new HashMap<>();
+    final SetMultimap<String, Digest> entryDirectories = HashMultimap.create();
+    final Set<Digest> removals = new HashSet<>();
+
+    void put(Digest directory, Set<String> entries) {
+      writes.add(new Write(directory, entries));
+      removals.remove(directory);
+      puts.put(directory, entries);
+      for (String entry : entries) {
+        entryDirectories.put(entry, directory);
+      }
+    }
+
+    void remove(Digest directory) {
+      writes.add(new Write(directory, null));
+      Set<String> entries = puts.remove(directory);
+      if (entries != null) {
+        for (String entry : entries) {
+          entryDirectories.remove(entry, directory);
+        }
+      }
+      removals.add(directory);
+    }
+
+    void apply(String entry, Set<Digest> directories) {
+      directories.removeAll(removals);
+      directories.addAll(entryDirectories.get(entry));
+    }
+  }
 
   SqliteFileDirectoriesIndex(String dbUrl, EntryPathStrategy entryPathStrategy) {
     super(entryPathStrategy);
     this.dbUrl = dbUrl;
+    inMemory = dbUrl.endsWith(":memory:");
   }
 
-  @GuardedBy("this")
-  private void open() {
+  private synchronized void open() {
     if (!opened) {
       try {
         conn = DriverManager.getConnection(dbUrl);
         try (Statement safetyStatement = conn.createStatement()) {
           safetyStatement.execute("PRAGMA synchronous=OFF");
-          safetyStatement.execute("PRAGMA journal_mode=OFF");
+          safetyStatement.execute(inMemory ? "PRAGMA journal_mode=OFF" : "PRAGMA journal_mode=WAL");
           safetyStatement.execute("PRAGMA cache_size=100000");
         }
       } catch (SQLException e) {
@@ -69,116 +163,241 @@ class SqliteFileDirectoriesIndex extends FileDirectoriesIndex {
         throw new RuntimeException(e);
       }
 
+      try {
+        conn.setAutoCommit(false);
+        insertStatement =
+            conn.prepareStatement("INSERT INTO entries (path, directory) VALUES (?,?)");
+        deleteStatement = conn.prepareStatement("DELETE FROM entries WHERE directory = ?");
+        readConn = inMemory ? conn : DriverManager.getConnection(dbUrl);
+        selectStatement = readConn.prepareStatement("SELECT directory FROM entries WHERE path = ?");
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
+      }
+
+      closed = false;
+      writer = new Thread(this::runWriter, "SqliteFileDirectoriesIndex Writer");
+      writer.setDaemon(true);
+      writer.start();
+
       opened = true;
     }
   }
 
   @Override
-  public synchronized void start() {
+  public void start() {
     open();
 
     String createPathIndexSql = "CREATE INDEX path_idx ON entries (path)";
     String createDirectoryIndexSql = "CREATE INDEX directory_idx ON entries (directory)";
-    try (Statement stmt = conn.createStatement()) {
-      stmt.execute(createPathIndexSql);
-      stmt.execute(createDirectoryIndexSql);
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
+    synchronized (conn) {
+      try (Statement stmt = conn.createStatement()) {
+        stmt.execute(createPathIndexSql);
+        stmt.execute(createDirectoryIndexSql);
+        conn.commit();
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
+      }
     }
   }
 
   @Override
   public void close() {
+    synchronized (this) {
+      if (!opened) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+    }
     try {
+      // the writer commits all queued writes before exiting
+      writer.join();
+      if (readConn != conn) {
+        readConn.close();
+      }
       conn.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      synchronized (this) {
+        opened = false;
+      }
     }
-    opened = false;
   }
 
-  @GuardedBy("this")
-  private Set<Digest> removeEntryDirectories(String entry) {
-    open();
-
-    String selectSql = "SELECT directory FROM entries WHERE path = ?";
+  private void runWriter() {
+    try {
+      for (; ; ) {
+        PendingWrites writes;
+        synchronized (this) {
+          while (pending.writes.isEmpty() && !closed) {
+            wait();
+          }
+          if (pending.writes.isEmpty()) {
+            return;
+          }
+          committing = writes = pending;
+          pending = new PendingWrites();
+        }
+        long retryMillis = GROUP_COMMIT_INTERVAL_MILLIS;
+        while (!commit(writes.writes)) {
+          synchronized (this) {
+            if (closed) {
+              // the db is ephemeral, and is removed before its next use
+              logger.log(
+                  Level.SEVERE,
+                  String.format("abandoning %d index writes on close", writes.writes.size()));
+              return;
+            }
+          }
+          MILLISECONDS.sleep(retryMillis);
+          retryMillis = Math.min(retryMillis * 2, MAX_COMMIT_RETRY_MILLIS);
+        }
+        synchronized (this) {
+          committing = null;
+          commitCount++;
+        }
+        // writes accumulate for the next group during the interval
+        MILLISECONDS.sleep(GROUP_COMMIT_INTERVAL_MILLIS);
+      }
+    } catch (InterruptedException e) {
+      // exit
+    }
+  }
 
-    ImmutableSet.Builder<Digest> directoriesBuilder = ImmutableSet.builder();
-    try (PreparedStatement selectStatement = conn.prepareStatement(selectSql)) {
-      selectStatement.setString(1, entry);
-      try (ResultSet rs = selectStatement.executeQuery()) {
-        while (rs.next()) {
-          directoriesBuilder.add(DigestUtil.parseDigest(rs.getString("directory")));
+  // returns false if the writes were rolled back
+  private boolean commit(List<Write> writes) {
+    synchronized (conn) {
+      try {
+        // batches are executed in order of the writes, as a directory may be both put and removed
+        int insertCount = 0;
+        int deleteCount = 0;
+        for (Write write : writes) {
+          String directory = DigestUtil.toString(write.directory);
+          if (write.entries == null) {
+            if (insertCount != 0) {
+              insertStatement.executeBatch();
+              insertCount = 0;
+            }
+            deleteStatement.setString(1, directory);
+            deleteStatement.addBatch();
+            deleteCount++;
+          } else {
+            if (deleteCount != 0) {
+              deleteStatement.executeBatch();
+              deleteCount = 0;
+            }
+            insertStatement.setString(2, directory);
+            for (String entry : write.entries) {
+              insertStatement.setString(1, entry);
+              insertStatement.addBatch();
+              insertCount++;
+            }
+          }
         }
+        if (insertCount != 0) {
+          insertStatement.executeBatch();
+        }
+        if (deleteCount != 0) {
+          deleteStatement.executeBatch();
+        }
+        conn.commit();
+        return true;
+      } catch (SQLException e) {
+        try {
+          insertStatement.clearBatch();
+          deleteStatement.clearBatch();
+          conn.rollback();
+        } catch (SQLException rollbackException) {
+          e.addSuppressed(rollbackException);
+        }
+        logger.log(
+            Level.SEVERE,
+            String.format("error committing %d index writes, retrying", writes.size()),
+            e);
+        return false;
       }
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
     }
-    // all directories featuring this entry are now invalid
-    ImmutableSet<Digest> directories = directoriesBuilder.build();
-    String deleteSql = "DELETE FROM entries where directory = ?";
-    try (PreparedStatement deleteStatement = conn.prepareStatement(deleteSql)) {
-      conn.setAutoCommit(false);
-      for (Digest directory : directories) {
-        deleteStatement.setString(1, DigestUtil.toString(directory));
-        deleteStatement.addBatch();
+  }
+
+  private Set<Digest> selectEntryDirectories(String entry) {
+    Set<Digest> directories = new HashSet<>();
+    synchronized (readConn) {
+      try {
+        selectStatement.setString(1, entry);
+        try (ResultSet rs = selectStatement.executeQuery()) {
+          while (rs.next()) {
+            directories.add(DigestUtil.parseDigest(rs.getString("directory")));
+          }
+        }
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
       }
-      deleteStatement.executeBatch();
-      conn.commit();
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
     }
     return directories;
   }
 
+  private Set<Digest> removeEntryDirectories(String entry) {
+    for (; ; ) {
+      long observedCommitCount;
+      PendingWrites observedCommitting;
+      synchronized (this) {
+        observedCommitCount = commitCount;
+        observedCommitting = committing;
+      }
+      Set<Digest> directories = selectEntryDirectories(entry);
+      synchronized (this) {
+        // only the group observed as committing may have committed unseen by the select
+        if (commitCount - observedCommitCount > (observedCommitting == null ? 0 : 1)) {
+          continue;
+        }
+        if (observedCommitting != null) {
+          observedCommitting.apply(entry, directories);
+        }
+        if (committing != null && committing != observedCommitting) {
+          committing.apply(entry, directories);
+        }
+        pending.apply(entry, directories);
+        // all directories featuring this entry are now invalid
+        for (Digest directory : directories) {
+          pending.remove(directory);
+        }
+        notify();
+        return ImmutableSet.copyOf(directories);
+      }
+    }
+  }
+
   @Override
-  public synchronized Set<Digest> removeEntry(String entry) throws IOException {
+  public Set<Digest> removeEntry(String entry) throws IOException {
+    open();
     Set<Digest> directories = removeEntryDirectories(entry);
     super.removeDirectories(directories);
     return directories;
   }
 
   private synchronized void addEntriesDirectory(Set<String> entries, Digest directory) {
-    open();
-
-    String digest = DigestUtil.toString(directory);
-    String insertSql = "INSERT INTO entries (path, directory) VALUES (?,?)";
-    try (PreparedStatement insertStatement = conn.prepareStatement(insertSql)) {
-      conn.setAutoCommit(false);
-      insertStatement.setString(2, digest);
-      for (String entry : entries) {
-        insertStatement.setString(1, entry);
-        insertStatement.addBatch();
-      }
-      insertStatement.executeBatch();
-      conn.commit();
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
-    }
+    pending.put(directory, entries);
+    notify();
   }
 
   @Override
   public void put(Digest directory, Iterable<String> entries) throws IOException {
+    open();
     super.put(directory, entries);
     addEntriesDirectory(ImmutableSet.copyOf(entries), directory);
   }
 
-  @GuardedBy("this")
-  private void removeEntriesDirectory(Digest directory) {
-    open();
-
-    String digest = DigestUtil.toString(directory);
-    String deleteSql = "DELETE FROM entries WHERE directory = ?";
-    try (PreparedStatement deleteStatement = conn.prepareStatement(deleteSql)) {
-      deleteStatement.setString(1, digest);
-      deleteStatement.executeUpdate();
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
-    }
+  private synchronized void removeEntriesDirectory(Digest directory) {
+    pending.remove(directory);
+    notify();
   }
 
   @Override
-  public synchronized void remove(Digest directory) throws IOException {
+  public void remove(Digest directory) throws IOException {
+    open();
     super.remove(directory);
     removeEntriesDirectory(directory);
   }
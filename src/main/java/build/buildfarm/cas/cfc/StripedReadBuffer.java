@@ -0,0 +1,120 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas.cfc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A lossy multiple producer, single consumer buffer of elements, striped by thread.
+ *
+ * <p>Each stripe is a fixed capacity ring. Producers claim a slot with a single compare and set and
+ * never block or allocate; an element is dropped when its stripe is full or the slot is contended.
+ * A single consumer drains all stripes in batches. Suitable for recording accesses where losing
+ * some of them only makes the ordering they maintain approximate.
+ */
+final class StripedReadBuffer<E> {
+  private final Stripe<E>[] stripes;
+
+  private static final class Stripe<E> {
+    private final AtomicReferenceArray<E> ring;
+    private final int mask;
+    private final AtomicLong writeCounter = new AtomicLong(0);
+    // only advanced by the draining thread
+    private final AtomicLong readCounter = new AtomicLong(0);
+
+    Stripe(int capacity) {
+      ring = new AtomicReferenceArray<>(capacity);
+      mask = capacity - 1;
+    }
+
+    boolean offer(E e) {
+      long tail = writeCounter.get();
+      if (tail - readCounter.get() > mask) {
+        return false; // full
+      }
+      if (!writeCounter.compareAndSet(tail, tail + 1)) {
+        return false; // contended
+      }
+      ring.lazySet((int) (tail & mask), e);
+      return true;
+    }
+
+    int drainTo(Consumer<E> consumer) {
+      long head = readCounter.get();
+      long tail = writeCounter.get();
+      int drained = 0;
+      while (head < tail) {
+        int index = (int) (head & mask);
+        E e = ring.get(index);
+        if (e == null) {
+          break; // claimed, but not yet published
+        }
+        ring.lazySet(index, null);
+        consumer.accept(e);
+        head++;
+        drained++;
+      }
+      readCounter.lazySet(head);
+      return drained;
+    }
+
+    boolean isEmpty() {
+      return writeCounter.get() == readCounter.get();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  StripedReadBuffer(int stripeCount, int stripeCapacity) {
+    stripes = new Stripe[ceilingPowerOfTwo(stripeCount)];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe<>(ceilingPowerOfTwo(stripeCapacity));
+    }
+  }
+
+  private static int ceilingPowerOfTwo(int n) {
+    return Integer.highestOneBit(Math.max(1, n) * 2 - 1);
+  }
+
+  private Stripe<E> stripe() {
+    long id = Thread.currentThread().getId();
+    int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+  }
+
+  /** Records the element, returning false if it was dropped. */
+  boolean offer(E e) {
+    return stripe().offer(e);
+  }
+
+  /** Must only be called by one thread at a time. */
+  int drainTo(Consumer<E> consumer) {
+    int drained = 0;
+    for (Stripe<E> stripe : stripes) {
+      drained += stripe.drainTo(consumer);
+    }
+    return drained;
+  }
+
+  boolean isEmpty() {
+    for (Stripe<E> stripe : stripes) {
+      if (!stripe.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,58 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas.cfc;
+
+import build.buildfarm.cas.cfc.CASFileCache.Entry;
+
+/**
+ * A W-TinyLFU policy: entries are inserted into a window of 1% of the cache size in bytes, and are
+ * admitted into the main lru only when they have been used more frequently than the entry they
+ * would displace, as estimated by a frequency sketch of recent insertions and accesses.
+ *
+ * <p>Entries which are used once, as by a single large action or a bulk load of the cache, expire
+ * from the window without displacing frequently used entries, such as toolchains.
+ */
+public final class TinyLfuEvictionPolicy implements EvictionPolicy {
+  // used to size the sketch to the expected number of entries in the cache
+  private static final long ASSUMED_AVERAGE_ENTRY_SIZE = 32 * 1024;
+  private static final long WINDOW_PERCENTAGE = 1;
+
+  private final FrequencySketch sketch;
+
+  public TinyLfuEvictionPolicy(long maxSizeInBytes) {
+    sketch =
+        new FrequencySketch((int) Math.min(maxSizeInBytes / ASSUMED_AVERAGE_ENTRY_SIZE, 1 << 26));
+  }
+
+  @Override
+  public long windowSizeInBytes(long maxSizeInBytes) {
+    return Math.max(1, maxSizeInBytes * WINDOW_PERCENTAGE / 100);
+  }
+
+  @Override
+  public void recordInsert(Entry entry) {
+    sketch.increment(entry.keyHash());
+  }
+
+  @Override
+  public void recordAccess(Entry entry) {
+    sketch.increment(entry.keyHash());
+  }
+
+  @Override
+  public boolean admit(Entry candidate, Entry victim) {
+    return sketch.frequency(candidate.keyHash()) > sketch.frequency(victim.keyHash());
+  }
+}
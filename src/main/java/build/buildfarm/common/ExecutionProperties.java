@@ -286,4 +286,29 @@ public class ExecutionProperties {
    *     operation queue).
    */
   public static final String POOL = "Pool";
+
+  /**
+   * @field PERSISTENT_WORKER_KEY
+   * @brief The exec_property which identifies the persistent worker of an action.
+   * @details Originated from bazel's --experimental_remote_mark_tool_inputs, where the value is a
+   *     hash of the action's tool inputs. Actions with this property may be run on persistent
+   *     workers.
+   */
+  public static final String PERSISTENT_WORKER_KEY = "persistentWorkerKey";
+
+  /**
+   * @field SUPPORTS_WORKERS
+   * @brief The exec_property for indicating that an action may be run on a persistent worker.
+   * @details Originated from bazel's supports-workers execution requirement. The key value should
+   *     be a boolean.
+   */
+  public static final String SUPPORTS_WORKERS = "supports-workers";
+
+  /**
+   * @field WORKER_PROTOCOL
+   * @brief The exec_property for choosing the protocol spoken by an action's persistent worker.
+   * @details Originated from bazel's requires-worker-protocol execution requirement. The key value
+   *     should be "json" or "proto", with "proto" the default.
+   */
+  public static final String WORKER_PROTOCOL = "requires-worker-protocol";
 }
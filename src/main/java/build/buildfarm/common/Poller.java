@@ -21,10 +21,15 @@ import static java.util.concurrent.TimeUnit.MICROSECONDS;
 import com.google.protobuf.Duration;
 import com.google.protobuf.util.Durations;
 import io.grpc.Deadline;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BooleanSupplier;
 
 public class Poller {
   private final long periodMicros;
+  private final ThreadFactory threadFactory;
   private Deadline periodDeadline;
   private ActivePoller activePoller = null;
 
@@ -32,6 +37,9 @@ public class Poller {
     private final BooleanSupplier poll;
     private final Runnable onExpiration;
     private final Deadline expirationDeadline;
+    // a lock rather than a monitor, so that a waiting virtual thread does not pin its carrier
+    private final Lock lock = new ReentrantLock();
+    private final Condition stopped = lock.newCondition();
     private volatile boolean running = true;
 
     ActivePoller(BooleanSupplier poll, Runnable onExpiration, Deadline expirationDeadline) {
@@ -54,9 +62,7 @@ public class Poller {
       try {
         Duration waitTime = getWaitTime();
         if (waitTime.getSeconds() != 0 || waitTime.getNanos() != 0) {
-          wait(
-              waitTime.getSeconds() * 1000 + waitTime.getNanos() / 1000000,
-              waitTime.getNanos() % 1000000);
+          stopped.awaitNanos(waitTime.getSeconds() * 1000000000L + waitTime.getNanos());
         }
       } catch (InterruptedException e) {
         running = false;
@@ -64,39 +70,54 @@ public class Poller {
     }
 
     @Override
-    public synchronized void run() {
-      while (running) {
-        if (expirationDeadline.isExpired()) {
-          onExpiration.run();
-          running = false;
-        } else if (periodDeadline.isExpired()) {
-          // FP interface with distinct returns, do not memoize!
-          running = poll.getAsBoolean();
-          while (periodDeadline.isExpired()) {
-            periodDeadline = periodDeadline.offset(periodMicros, MICROSECONDS);
+    public void run() {
+      lock.lock();
+      try {
+        while (running) {
+          if (expirationDeadline.isExpired()) {
+            onExpiration.run();
+            running = false;
+          } else if (periodDeadline.isExpired()) {
+            // FP interface with distinct returns, do not memoize!
+            running = poll.getAsBoolean();
+            while (periodDeadline.isExpired()) {
+              periodDeadline = periodDeadline.offset(periodMicros, MICROSECONDS);
+            }
+          } else {
+            waitForNextDeadline();
           }
-        } else {
-          waitForNextDeadline();
         }
+      } finally {
+        lock.unlock();
       }
     }
 
-    public synchronized void stop() {
-      running = false;
-      notify();
+    public void stop() {
+      lock.lock();
+      try {
+        running = false;
+        stopped.signal();
+      } finally {
+        lock.unlock();
+      }
     }
   }
 
   public Poller(Duration period) {
+    this(period, Thread::new);
+  }
+
+  public Poller(Duration period, ThreadFactory threadFactory) {
     checkState(period.getSeconds() > 0 || period.getNanos() >= 1000);
     periodMicros = period.getSeconds() * 1000000 + period.getNanos() / 1000;
+    this.threadFactory = threadFactory;
     periodDeadline = Deadline.after(periodMicros, MICROSECONDS);
   }
 
   public void resume(BooleanSupplier poll, Runnable onExpiry, Deadline expiryDeadline) {
     checkState(activePoller == null);
     activePoller = new ActivePoller(poll, onExpiry, expiryDeadline);
-    new Thread(activePoller).start();
+    threadFactory.newThread(activePoller).start();
   }
 
   public void pause() {
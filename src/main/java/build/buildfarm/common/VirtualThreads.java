@@ -0,0 +1,48 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads on runtimes which provide them. The virtual thread builder is located
+ * reflectively, so that this may be compiled for and run on runtimes which predate it.
+ */
+public final class VirtualThreads {
+  private VirtualThreads() {}
+
+  public static boolean isSupported() {
+    try {
+      factory("probe-");
+      return true;
+    } catch (UnsupportedOperationException e) {
+      return false;
+    }
+  }
+
+  /** Returns a factory of unstarted virtual threads, named by the prefix and a counter. */
+  public static ThreadFactory factory(String prefix) {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder =
+          builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      // a missing builder, or one which has not been enabled as a preview feature
+      throw new UnsupportedOperationException("virtual threads are not supported", e);
+    }
+  }
+}
@@ -72,6 +72,17 @@ public class EvenMoreFiles {
     }
   }
 
+  /** Returns true if the permissions of path are those that setReadOnlyPerms would apply. */
+  public static boolean hasReadOnlyPerms(Path path, boolean executable, FileStore fileStore)
+      throws IOException {
+    if (fileStore.supportsFileAttributeView("posix")) {
+      return Files.getPosixFilePermissions(path)
+          .equals(executable ? readOnlyExecPerms : readOnlyPerms);
+    }
+    // acl entries are always added by setReadOnlyPerms
+    return false;
+  }
+
   public static boolean isReadOnlyExecutable(Path path, FileStore fileStore) throws IOException {
     if (fileStore.supportsFileAttributeView("posix")) {
       Set<PosixFilePermission> perms = Files.getPosixFilePermissions(path);
@@ -28,4 +28,20 @@ public interface LibC {
   int closedir(Pointer dir);
 
   Pointer readdir(Pointer d);
+
+  Pointer fdopendir(int fd);
+
+  int openat(int dirfd, String path, int flags, int mode);
+
+  int close(int fd);
+
+  int fchmod(int fd, int mode);
+
+  int mkdirat(int dirfd, String path, int mode);
+
+  int linkat(int olddirfd, String oldpath, int newdirfd, String newpath, int flags);
+
+  int symlinkat(String target, int newdirfd, String linkpath);
+
+  int unlinkat(int dirfd, String path, int flags);
 }
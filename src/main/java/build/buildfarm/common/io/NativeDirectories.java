@@ -0,0 +1,284 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common.io;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import jnr.constants.platform.Errno;
+import jnr.constants.platform.OpenFlags;
+import jnr.ffi.LastError;
+import jnr.ffi.LibraryLoader;
+import jnr.ffi.Pointer;
+
+/**
+ * Directory tree operations relative to open directory file descriptors, with the *at family of
+ * libc calls. Each entry is created or removed by its name within an open directory, rather than by
+ * the resolution of its full path. Supported on linux only, where the dirent layout is known.
+ */
+public class NativeDirectories {
+  private static final Supplier<LibC> libc =
+      Suppliers.memoize(() -> LibraryLoader.create(LibC.class).load("c"));
+
+  private static final Supplier<Boolean> isLinux =
+      Suppliers.memoize(() -> System.getProperty("os.name").toLowerCase().startsWith("linux"));
+
+  // the dirfd is ignored for absolute paths
+  private static final int NO_DIRFD = -1;
+  private static final int AT_REMOVEDIR = 0x200;
+  private static final int DT_DIR = 4;
+  private static final int DT_REG = 8;
+  private static final int DT_LNK = 10;
+  private static final int DIRECTORY_MODE = 0755;
+  private static final int FILE_MODE = 0644;
+
+  private static final int OPEN_DIRECTORY_FLAGS =
+      OpenFlags.O_RDONLY.intValue()
+          | OpenFlags.O_DIRECTORY.intValue()
+          | OpenFlags.O_NOFOLLOW.intValue()
+          | OpenFlags.O_CLOEXEC.intValue();
+  private static final int CREATE_FILE_FLAGS =
+      OpenFlags.O_WRONLY.intValue()
+          | OpenFlags.O_CREAT.intValue()
+          | OpenFlags.O_EXCL.intValue()
+          | OpenFlags.O_NOFOLLOW.intValue()
+          | OpenFlags.O_CLOEXEC.intValue();
+
+  private NativeDirectories() {}
+
+  public static boolean isSupported() {
+    if (!isLinux.get()) {
+      return false;
+    }
+    try {
+      libc.get();
+      return true;
+    } catch (UnsatisfiedLinkError e) {
+      return false;
+    }
+  }
+
+  private static int errno() {
+    return LastError.getLastError(jnr.ffi.Runtime.getRuntime(libc.get()));
+  }
+
+  private static boolean isErrno(Errno expected) {
+    return errno() == expected.intValue();
+  }
+
+  private static IOException error(String call, String path) {
+    int errno = errno();
+    if (errno == Errno.ENOENT.intValue()) {
+      return new NoSuchFileException(path);
+    }
+    if (errno == Errno.EEXIST.intValue()) {
+      return new FileAlreadyExistsException(path);
+    }
+    return new IOException(
+        String.format("%s(%s): %s", call, path, Errno.valueOf(errno).description()));
+  }
+
+  /** Opens a directory by its absolute path, returning its file descriptor. */
+  public static int open(Path directory) throws IOException {
+    String path = directory.toAbsolutePath().toString();
+    int fd = libc.get().openat(NO_DIRFD, path, OPEN_DIRECTORY_FLAGS, 0);
+    if (fd < 0) {
+      throw error("open", path);
+    }
+    return fd;
+  }
+
+  /** Opens a directory named within an open directory, returning its file descriptor. */
+  public static int openAt(int dirfd, String name) throws IOException {
+    int fd = libc.get().openat(dirfd, name, OPEN_DIRECTORY_FLAGS, 0);
+    if (fd < 0) {
+      throw error("openat", name);
+    }
+    return fd;
+  }
+
+  public static void close(int fd) throws IOException {
+    if (libc.get().close(fd) != 0) {
+      throw error("close", Integer.toString(fd));
+    }
+  }
+
+  /** Creates and opens a directory within an open directory, returning its file descriptor. */
+  public static int createDirectoryAt(int dirfd, String name) throws IOException {
+    if (libc.get().mkdirat(dirfd, name, DIRECTORY_MODE) != 0) {
+      throw error("mkdirat", name);
+    }
+    return openAt(dirfd, name);
+  }
+
+  /** Creates an empty file within an open directory. */
+  public static void createFileAt(int dirfd, String name) throws IOException {
+    int fd = libc.get().openat(dirfd, name, CREATE_FILE_FLAGS, FILE_MODE);
+    if (fd < 0) {
+      throw error("openat", name);
+    }
+    close(fd);
+  }
+
+  /** Creates a hard link within an open directory to an existing file. */
+  public static void createLinkAt(int dirfd, String name, Path existing) throws IOException {
+    String existingPath = existing.toAbsolutePath().toString();
+    if (libc.get().linkat(NO_DIRFD, existingPath, dirfd, name, 0) != 0) {
+      throw error("linkat", name);
+    }
+  }
+
+  /** Creates a hard link within an open directory to a file named within another. */
+  public static void createLinkAt(int dirfd, String name, int existingDirfd, String existingName)
+      throws IOException {
+    if (libc.get().linkat(existingDirfd, existingName, dirfd, name, 0) != 0) {
+      throw error("linkat", name);
+    }
+  }
+
+  /**
+   * Lists the entries of an open directory, typed as reported by readdir. An entry's type is
+   * UNKNOWN when the file system does not report it.
+   */
+  public static List<Dirent> readdirAt(int dirfd) throws IOException {
+    LibC libC = libc.get();
+    // the stream takes ownership of its fd, which must not be the caller's
+    int fd = openAt(dirfd, ".");
+    Pointer dir = libC.fdopendir(fd);
+    if (dir == null) {
+      IOException e = error("fdopendir", ".");
+      close(fd);
+      throw e;
+    }
+    try {
+      return readdir(libC, dir);
+    } finally {
+      libC.closedir(dir);
+    }
+  }
+
+  /** Creates a symbolic link within an open directory. */
+  public static void createSymbolicLinkAt(int dirfd, String name, String target)
+      throws IOException {
+    if (libc.get().symlinkat(target, dirfd, name) != 0) {
+      throw error("symlinkat", name);
+    }
+  }
+
+  /**
+   * Removes a directory tree, with the subdirectories of each directory removed in parallel on the
+   * pool. Directories are made writable as they are visited, and symlinks are not followed.
+   */
+  public static void remove(Path directory, ForkJoinPool pool) throws IOException {
+    Path parent = directory.toAbsolutePath().getParent();
+    int parentFd = open(parent);
+    try {
+      pool.invoke(new RemoveTask(parentFd, directory.getFileName().toString()));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      close(parentFd);
+    }
+  }
+
+  private static final class RemoveTask extends RecursiveAction {
+    private final int parentFd;
+    private final String name;
+
+    RemoveTask(int parentFd, String name) {
+      this.parentFd = parentFd;
+      this.name = name;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        removeTree();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private void removeTree() throws IOException {
+      LibC libC = libc.get();
+      int fd = openAt(parentFd, name);
+      // the stream owns the fd, which remains valid for the *at calls until closedir
+      Pointer dir = libC.fdopendir(fd);
+      if (dir == null) {
+        IOException e = error("fdopendir", name);
+        close(fd);
+        throw e;
+      }
+      try {
+        if (libC.fchmod(fd, DIRECTORY_MODE) != 0) {
+          throw error("fchmod", name);
+        }
+        List<RemoveTask> subdirectories = new ArrayList<>();
+        for (Dirent entry : readdir(libC, dir)) {
+          if (entry.getType() == Dirent.Type.DIRECTORY) {
+            subdirectories.add(new RemoveTask(fd, entry.getName()));
+          } else if (libC.unlinkat(fd, entry.getName(), 0) != 0) {
+            if (!isErrno(Errno.EISDIR)) {
+              throw error("unlinkat", entry.getName());
+            }
+            // a directory not identified by its dirent type
+            subdirectories.add(new RemoveTask(fd, entry.getName()));
+          }
+        }
+        invokeAll(subdirectories);
+      } finally {
+        libC.closedir(dir);
+      }
+      if (libC.unlinkat(parentFd, name, AT_REMOVEDIR) != 0) {
+        throw error("unlinkat", name);
+      }
+    }
+  }
+
+  private static Dirent.Type direntType(int type) {
+    switch (type) {
+      case DT_DIR:
+        return Dirent.Type.DIRECTORY;
+      case DT_REG:
+        return Dirent.Type.FILE;
+      case DT_LNK:
+        return Dirent.Type.SYMLINK;
+      default:
+        return Dirent.Type.UNKNOWN;
+    }
+  }
+
+  // the entries are read completely before any are removed
+  private static List<Dirent> readdir(LibC libC, Pointer dir) {
+    FFIdirent dirent = new FFIdirent(jnr.ffi.Runtime.getRuntime(libC));
+    List<Dirent> entries = new ArrayList<>();
+    for (Pointer direntPtr = libC.readdir(dir); direntPtr != null; direntPtr = libC.readdir(dir)) {
+      dirent.useMemory(direntPtr);
+      String name = dirent.getName();
+      if (!name.equals(".") && !name.equals("..")) {
+        entries.add(new Dirent(name, direntType(dirent.d_type.get()), /* stat=*/ null));
+      }
+    }
+    return entries;
+  }
+}
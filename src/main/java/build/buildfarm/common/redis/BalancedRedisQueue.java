@@ -19,6 +19,7 @@ import build.buildfarm.v1test.QueueStatus;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Predicate;
 import redis.clients.jedis.JedisCluster;
 
 /**
@@ -28,7 +29,9 @@ import redis.clients.jedis.JedisCluster;
  *     uses multiple redis nodes to distribute the data across the cluster. Its important to know
  *     that the lifetime of the queue persists before and after the queue data structure is created
  *     (since it exists in redis). Therefore, two redis queues with the same name, would in fact be
- *     the same underlying redis queues.
+ *     the same underlying redis queues. With priority bands, each internal queue pops its bands in
+ *     order, and the round-robin over the internal queues bounds any inversion of priority between
+ *     them to a single cycle.
  */
 public class BalancedRedisQueue {
   private static final int START_TIMEOUT_SECONDS = 1;
@@ -62,6 +65,20 @@ public class BalancedRedisQueue {
    */
   private final int maxQueueSize;
 
+  /**
+   * @field bands
+   * @brief The priority bands of each internal queue.
+   * @details A single band if the queue is not prioritized.
+   */
+  private final PriorityBands bands;
+
+  /**
+   * @field fairShare
+   * @brief Whether the internal queues hold elements by tenant.
+   * @details Tenants of a band are popped in turn, rather than in order of arrival.
+   */
+  private final boolean fairShare;
+
   /**
    * @field queues
    * @brief Internal queues used to distribute data across redis nodes.
@@ -97,6 +114,8 @@ public class BalancedRedisQueue {
     this.originalHashtag = RedisHashtags.existingHash(name);
     this.name = RedisHashtags.unhashedName(name);
     this.maxQueueSize = -1; // infinite size
+    this.bands = PriorityBands.SINGLE;
+    this.fairShare = false;
     createHashedQueues(this.name, hashtags);
   }
 
@@ -109,9 +128,45 @@ public class BalancedRedisQueue {
    * @note Overloaded.
    */
   public BalancedRedisQueue(String name, List<String> hashtags, int maxQueueSize) {
+    this(name, hashtags, maxQueueSize, PriorityBands.SINGLE);
+  }
+
+  /**
+   * @brief Constructor.
+   * @details Construct a named redis queue with priority bands.
+   * @param name The global name of the queue.
+   * @param hashtags Hashtags to distribute queue data.
+   * @param maxQueueSize The maximum amount of elements that should be added to the queue.
+   * @param bands The priority bands of each internal queue.
+   * @note Overloaded.
+   */
+  public BalancedRedisQueue(
+      String name, List<String> hashtags, int maxQueueSize, PriorityBands bands) {
+    this(name, hashtags, maxQueueSize, bands, /* fairShare=*/ false);
+  }
+
+  /**
+   * @brief Constructor.
+   * @details Construct a named redis queue with priority bands, which may share each band fairly
+   *     between tenants.
+   * @param name The global name of the queue.
+   * @param hashtags Hashtags to distribute queue data.
+   * @param maxQueueSize The maximum amount of elements that should be added to the queue.
+   * @param bands The priority bands of each internal queue.
+   * @param fairShare Whether the internal queues hold elements by tenant.
+   * @note Overloaded.
+   */
+  public BalancedRedisQueue(
+      String name,
+      List<String> hashtags,
+      int maxQueueSize,
+      PriorityBands bands,
+      boolean fairShare) {
     this.originalHashtag = RedisHashtags.existingHash(name);
     this.name = RedisHashtags.unhashedName(name);
     this.maxQueueSize = maxQueueSize;
+    this.bands = bands;
+    this.fairShare = fairShare;
     createHashedQueues(this.name, hashtags);
   }
 
@@ -119,11 +174,37 @@ public class BalancedRedisQueue {
    * @brief Push a value onto the queue.
    * @details Adds the value into one of the internal backend redis queues.
    * @param val The value to push onto the queue.
+   * @note Overloaded.
    */
   public void push(JedisCluster jedis, String val) {
     queues.get(roundRobinPushIndex()).push(jedis, val);
   }
 
+  /**
+   * @brief Push a value onto the queue.
+   * @details Adds the value into the band of its priority in one of the internal backend redis
+   *     queues.
+   * @param val The value to push onto the queue.
+   * @param priority The execution priority of the value.
+   * @note Overloaded.
+   */
+  public void push(JedisCluster jedis, String val, int priority) {
+    queues.get(roundRobinPushIndex()).push(jedis, val, priority);
+  }
+
+  /**
+   * @brief Push a value onto the queue.
+   * @details Adds the value into the list of its tenant in one of the internal backend redis
+   *     queues, if the queue is a fair share queue.
+   * @param val The value to push onto the queue.
+   * @param priority The execution priority of the value.
+   * @param tenant The tenant of the value.
+   * @note Overloaded.
+   */
+  public void push(JedisCluster jedis, String val, int priority, String tenant) {
+    queues.get(roundRobinPushIndex()).push(jedis, val, priority, tenant);
+  }
+
   /**
    * @brief Remove element from dequeue.
    * @details Removes an element from the dequeue and specifies whether it was removed.
@@ -146,9 +227,25 @@ public class BalancedRedisQueue {
    *     dequeue. It will perform an exponential backoff. Null is returned if the overall backoff
    *     times out.
    * @return The value of the transfered element. null if the thread was interrupted.
+   * @note Overloaded.
    * @note Suggested return identifier: val.
    */
   public String dequeue(JedisCluster jedis) throws InterruptedException {
+    return dequeue(jedis, tenant -> true);
+  }
+
+  /**
+   * @brief Pop element into internal dequeue and return value.
+   * @details This pops the element from one queue atomically into an internal list called the
+   *     dequeue, skipping any tenant which is not eligible. It will perform an exponential backoff.
+   *     Null is returned if the overall backoff times out.
+   * @param isEligible Whether the elements of a tenant may be dequeued.
+   * @return The value of the transfered element. null if the thread was interrupted.
+   * @note Overloaded.
+   * @note Suggested return identifier: val.
+   */
+  public String dequeue(JedisCluster jedis, Predicate<String> isEligible)
+      throws InterruptedException {
     // The conditions of this algorithm are as followed:
     // - from a client's perspective we want to block indefinitely.
     //   (so this function should not return null under any normal circumstances.)
@@ -176,9 +273,9 @@ public class BalancedRedisQueue {
       final String val;
       RedisQueue queue = queues.get(roundRobinPopIndex());
       if (blocking) {
-        val = queue.dequeue(jedis, currentTimeout_s);
+        val = queue.dequeue(jedis, currentTimeout_s, isEligible);
       } else {
-        val = queue.nonBlockingDequeue(jedis);
+        val = queue.nonBlockingDequeue(jedis, isEligible);
       }
       // return if found
       if (val != null) {
@@ -196,6 +293,24 @@ public class BalancedRedisQueue {
     }
   }
 
+  /**
+   * @brief Pop elements into internal dequeues and return their values.
+   * @details This pops up to count elements without blocking, continuing the round-robin over the
+   *     internal queues for at most one cycle. Each internal queue is popped in a single request.
+   * @param count The maximum number of elements to dequeue.
+   * @return The values of the transfered elements, which may be empty.
+   * @note Suggested return identifier: vals.
+   */
+  public List<String> nonBlockingDequeue(JedisCluster jedis, int count)
+      throws InterruptedException {
+    List<String> vals = new ArrayList<>();
+    for (int i = 0; i < queues.size() && vals.size() < count; i++) {
+      RedisQueue queue = queues.get(roundRobinPopIndex());
+      vals.addAll(queue.nonBlockingDequeue(jedis, count - vals.size()));
+    }
+    return vals;
+  }
+
   /**
    * @brief Get the current pop queue.
    * @details Get the queue that the balanced queue intends to pop from next.
@@ -227,6 +342,16 @@ public class BalancedRedisQueue {
     return queues.get(index);
   }
 
+  /**
+   * @brief Get the number of internal queues.
+   * @details A queue constructed without hashtags has a single internal queue.
+   * @return The number of internal queues.
+   * @note Suggested return identifier: internalQueueCount.
+   */
+  public int getInternalQueueCount() {
+    return queues.size();
+  }
+
   /**
    * @brief Get dequeue name.
    * @details Get the name of the internal dequeue used by the queue. since each internal queue has
@@ -267,19 +392,35 @@ public class BalancedRedisQueue {
   /**
    * @brief Get status information about the queue.
    * @details Helpful for understanding the current load on the queue and how elements are balanced.
+   *     The depth of each priority band is accumulated over the internal queues.
    * @return The current status of the queue.
    * @note Suggested return identifier: status.
    */
   public QueueStatus status(JedisCluster jedis) {
     // get properties
-    long size = size(jedis);
+    long size = 0;
     List<Long> sizes = new ArrayList<>();
+    long[] bandSizes = new long[bands.size()];
     for (RedisQueue queue : queues) {
-      sizes.add(queue.size(jedis));
+      List<Long> queueBandSizes = queue.bandSizes(jedis);
+      long queueSize = 0;
+      for (int band = 0; band < bandSizes.length; band++) {
+        bandSizes[band] += queueBandSizes.get(band);
+        queueSize += queueBandSizes.get(band);
+      }
+      sizes.add(queueSize);
+      size += queueSize;
     }
 
     // build proto
-    return QueueStatus.newBuilder().setName(name).setSize(size).addAllInternalSizes(sizes).build();
+    QueueStatus.Builder status =
+        QueueStatus.newBuilder().setName(name).setSize(size).addAllInternalSizes(sizes);
+    if (bandSizes.length > 1) {
+      for (long bandSize : bandSizes) {
+        status.addBandSizes(bandSize);
+      }
+    }
+    return status.build();
   }
 
   /**
@@ -344,7 +485,7 @@ public class BalancedRedisQueue {
   private void createHashedQueues(String name, List<String> hashtags) {
     // create an internal queue for each of the provided hashtags
     for (String hashtag : hashtags) {
-      queues.add(new RedisQueue(RedisHashtags.hashedName(name, hashtag)));
+      queues.add(new RedisQueue(RedisHashtags.hashedName(name, hashtag), bands, fairShare));
     }
 
     // if there were no hashtags, we'll create a single internal queue
@@ -356,9 +497,10 @@ public class BalancedRedisQueue {
     // to the same redis slot.
     if (hashtags.isEmpty()) {
       if (!originalHashtag.isEmpty()) {
-        queues.add(new RedisQueue(RedisHashtags.hashedName(name, originalHashtag)));
+        queues.add(
+            new RedisQueue(RedisHashtags.hashedName(name, originalHashtag), bands, fairShare));
       } else {
-        queues.add(new RedisQueue(RedisHashtags.hashedName(name, "06S")));
+        queues.add(new RedisQueue(RedisHashtags.hashedName(name, "06S"), bands, fairShare));
       }
     }
   }
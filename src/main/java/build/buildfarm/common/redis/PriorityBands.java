@@ -0,0 +1,107 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common.redis;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+
+/**
+ * @class PriorityBands
+ * @brief A partition of execution priorities into bands.
+ * @details Each band is a separate list of a queue, and the lists are popped in band order. Lower
+ *     priority values are more urgent, as in the ExecutionPolicy of an ExecuteRequest, so the first
+ *     band holds the lowest values. The band of the default priority (0) keeps the name of the
+ *     queue, so that a queue without bands, and the contents of existing queues, are unchanged.
+ */
+public class PriorityBands {
+  /**
+   * @field SINGLE
+   * @brief A single band for all priorities.
+   * @details Queues with a single band are first-in first-out.
+   */
+  public static final PriorityBands SINGLE = new PriorityBands(ImmutableList.of());
+
+  /**
+   * @field limits
+   * @brief The greatest priority of each band but the last, in ascending order.
+   * @details The last band holds every priority greater than the last limit.
+   */
+  private final List<Integer> limits;
+
+  /**
+   * @field defaultBand
+   * @brief The band of the default priority.
+   * @details Named after the queue itself.
+   */
+  private final int defaultBand;
+
+  /**
+   * @brief Constructor.
+   * @details Construct bands from their limits.
+   * @param limits The greatest priority of each band but the last, in ascending order.
+   */
+  public PriorityBands(List<Integer> limits) {
+    for (int i = 1; i < limits.size(); i++) {
+      checkArgument(
+          limits.get(i - 1) < limits.get(i), "priority band limits must be in ascending order");
+    }
+    this.limits = ImmutableList.copyOf(limits);
+    defaultBand = band(0);
+  }
+
+  /**
+   * @brief Get the number of bands.
+   * @details One more than the number of limits.
+   * @return The number of bands.
+   * @note Suggested return identifier: size.
+   */
+  public int size() {
+    return limits.size() + 1;
+  }
+
+  /**
+   * @brief Get the band of a priority.
+   * @details The first band whose limit is not less than the priority.
+   * @param priority The priority of an execution.
+   * @return The index of the band, with 0 as the most urgent.
+   * @note Suggested return identifier: band.
+   */
+  public int band(int priority) {
+    for (int band = 0; band < limits.size(); band++) {
+      if (priority <= limits.get(band)) {
+        return band;
+      }
+    }
+    return limits.size();
+  }
+
+  /**
+   * @brief Get the names of the lists of a queue.
+   * @details The band of the default priority is named after the queue, and other bands are
+   *     suffixed with their index, preserving any hashtag of the queue name.
+   * @param name The name of the queue.
+   * @return The names of the lists of each band, in band order.
+   * @note Suggested return identifier: bandNames.
+   */
+  public List<String> bandNames(String name) {
+    ImmutableList.Builder<String> bandNames = ImmutableList.builder();
+    for (int band = 0; band < size(); band++) {
+      bandNames.add(band == defaultBand ? name : name + "_band" + band);
+    }
+    return bandNames.build();
+  }
+}
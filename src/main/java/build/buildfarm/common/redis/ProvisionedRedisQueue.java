@@ -111,7 +111,27 @@ public class ProvisionedRedisQueue {
       List<String> hashtags,
       SetMultimap<String, String> filterProvisions,
       boolean allowUserUnmatched) {
-    this.queue = new BalancedRedisQueue(name, hashtags);
+    this(name, hashtags, filterProvisions, allowUserUnmatched, PriorityBands.SINGLE);
+  }
+
+  /**
+   * @brief Constructor.
+   * @details Construct the provision queue with priority bands.
+   * @param name The global name of the queue.
+   * @param hashtags Hashtags to distribute queue data.
+   * @param filterProvisions The filtered provisions of the queue.
+   * @param allowUserUnmatched Whether the user can provide extra platform properties and still
+   *     match the queue.
+   * @param bands The priority bands of the queue.
+   * @note Overloaded.
+   */
+  public ProvisionedRedisQueue(
+      String name,
+      List<String> hashtags,
+      SetMultimap<String, String> filterProvisions,
+      boolean allowUserUnmatched,
+      PriorityBands bands) {
+    this.queue = new BalancedRedisQueue(name, hashtags, /* maxQueueSize=*/ -1, bands);
     isFullyWildcard = filterProvisions.containsKey(WILDCARD_VALUE);
     provisions = filterProvisionsByWildcard(filterProvisions, isFullyWildcard, WILDCARD_VALUE);
     this.allowUserUnmatched = allowUserUnmatched;
@@ -17,6 +17,7 @@ package build.buildfarm.common.redis;
 import build.buildfarm.common.ScanCount;
 import redis.clients.jedis.JedisCluster;
 import redis.clients.jedis.JedisClusterPipeline;
+import redis.clients.jedis.util.SafeEncoder;
 
 /**
  * @class RedisMap
@@ -24,7 +25,9 @@ import redis.clients.jedis.JedisClusterPipeline;
  * @details A redis map is an implementation of a map data structure which internally uses redis to
  *     store and distribute the data. Its important to know that the lifetime of the map persists
  *     before and after the map data structure is created (since it exists in redis). Therefore, two
- *     redis maps with the same name, would in fact be the same underlying redis map.
+ *     redis maps with the same name, would in fact be the same underlying redis map. Values are
+ *     exchanged with redis as the bytes of their records, so that binary records are stored without
+ *     expansion.
  */
 public class RedisMap {
   /**
@@ -54,7 +57,7 @@ public class RedisMap {
    * @note Overloaded.
    */
   public void insert(JedisCluster jedis, String key, String value, int timeout_s) {
-    jedis.setex(createKeyName(key), timeout_s, value);
+    jedis.setex(SafeEncoder.encode(createKeyName(key)), timeout_s, RedisRecords.encode(value));
   }
 
   /**
@@ -69,7 +72,8 @@ public class RedisMap {
   public void insert(JedisCluster jedis, String key, String value, long timeout_s) {
     // Jedis only provides int precision.  this is fine as the units are seconds.
     // We supply an interface for longs as a convenience to callers.
-    jedis.setex(createKeyName(key), (int) timeout_s, value);
+    jedis.setex(
+        SafeEncoder.encode(createKeyName(key)), (int) timeout_s, RedisRecords.encode(value));
   }
 
   /**
@@ -107,7 +111,7 @@ public class RedisMap {
    * @note Suggested return identifier: value.
    */
   public String get(JedisCluster jedis, String key) {
-    return jedis.get(createKeyName(key));
+    return RedisRecords.decode(jedis.get(SafeEncoder.encode(createKeyName(key))));
   }
 
   /**
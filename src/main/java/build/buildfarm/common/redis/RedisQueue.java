@@ -14,9 +14,14 @@
 
 package build.buildfarm.common.redis;
 
+import static com.google.common.base.Preconditions.checkState;
+
 import build.buildfarm.common.StringVisitor;
+import com.google.common.collect.ImmutableList;
 import java.util.List;
+import java.util.function.Predicate;
 import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.util.SafeEncoder;
 
 /**
  * @class RedisQueue
@@ -25,9 +30,65 @@ import redis.clients.jedis.JedisCluster;
  *     to store and distribute the data. Its important to know that the lifetime of the queue
  *     persists before and after the queue data structure is created (since it exists in redis).
  *     Therefore, two redis queues with the same name, would in fact be the same underlying redis
- *     queue.
+ *     queue. A queue with priority bands holds a list for each band, all of which share its
+ *     dequeue, and pops the lists in band order. A fair share queue further holds a list for each
+ *     tenant of a band, and a ring of the tenants with elements, which is rotated to pop the
+ *     tenants of the band in turn. Values are exchanged with redis as the bytes of their records,
+ *     so that binary records are stored without expansion.
  */
 public class RedisQueue {
+  /**
+   * @field nonBlockingDequeueScript
+   * @brief Pops several elements into the dequeue in a single request.
+   * @details KEYS: the list of each band in band order, then the dequeue. ARGV: the maximum number
+   *     of elements. Returns the popped elements in the order of the queue.
+   */
+  private static final RedisScript nonBlockingDequeueScript =
+      new RedisScript(
+          "local vals = {}\n"
+              + "local dequeue = KEYS[#KEYS]\n"
+              + "local count = tonumber(ARGV[1])\n"
+              + "for band = 1, #KEYS - 1 do\n"
+              + "  while #vals < count do\n"
+              + "    local val = redis.call('rpoplpush', KEYS[band], dequeue)\n"
+              + "    if not val then\n"
+              + "      break\n"
+              + "    end\n"
+              + "    vals[#vals + 1] = val\n"
+              + "  end\n"
+              + "end\n"
+              + "return vals\n");
+
+  /**
+   * @field pushTenantScript
+   * @brief Pushes an element onto the list of its tenant.
+   * @details KEYS: tenant list, tenants, tenant count. ARGV: element, tenant. The tenant is added
+   *     to the tenants when its list becomes non-empty.
+   */
+  private static final RedisScript pushTenantScript =
+      new RedisScript(
+          "redis.call('incr', KEYS[3])\n"
+              + "if redis.call('lpush', KEYS[1], ARGV[1]) == 1 then\n"
+              + "  redis.call('lpush', KEYS[2], ARGV[2])\n"
+              + "end\n");
+
+  /**
+   * @field popTenantScript
+   * @brief Pops an element of a tenant into the dequeue.
+   * @details KEYS: tenant list, tenants, tenant count, dequeue. ARGV: tenant. The tenant is removed
+   *     from the tenants when its list becomes empty. Returns the popped element.
+   */
+  private static final RedisScript popTenantScript =
+      new RedisScript(
+          "local val = redis.call('rpoplpush', KEYS[1], KEYS[4])\n"
+              + "if redis.call('llen', KEYS[1]) == 0 then\n"
+              + "  redis.call('lrem', KEYS[2], 0, ARGV[1])\n"
+              + "end\n"
+              + "if val then\n"
+              + "  redis.call('decr', KEYS[3])\n"
+              + "end\n"
+              + "return val\n");
+
   /**
    * @field name
    * @brief The unique name of the queue.
@@ -36,22 +97,105 @@ public class RedisQueue {
    */
   private final String name;
 
+  /**
+   * @field bands
+   * @brief The priority bands of the queue.
+   * @details Selects the list that a value is pushed onto by its priority.
+   */
+  private final PriorityBands bands;
+
+  /**
+   * @field bandNames
+   * @brief The names of the lists of each band, in band order.
+   * @details The band of the default priority is named after the queue.
+   */
+  private final List<String> bandNames;
+
+  /**
+   * @field fairShare
+   * @brief Whether elements are held by tenant.
+   * @details Tenants of a band are popped in turn, rather than in order of arrival.
+   */
+  private final boolean fairShare;
+
   /**
    * @brief Constructor.
    * @details Construct a named redis queue with an established redis cluster.
    * @param name The global name of the queue.
+   * @note Overloaded.
    */
   public RedisQueue(String name) {
+    this(name, PriorityBands.SINGLE);
+  }
+
+  /**
+   * @brief Constructor.
+   * @details Construct a named redis queue with priority bands.
+   * @param name The global name of the queue.
+   * @param bands The priority bands of the queue.
+   * @note Overloaded.
+   */
+  public RedisQueue(String name, PriorityBands bands) {
+    this(name, bands, /* fairShare=*/ false);
+  }
+
+  /**
+   * @brief Constructor.
+   * @details Construct a named redis queue with priority bands, which may share each band fairly
+   *     between tenants.
+   * @param name The global name of the queue.
+   * @param bands The priority bands of the queue.
+   * @param fairShare Whether elements are held by tenant.
+   * @note Overloaded.
+   */
+  public RedisQueue(String name, PriorityBands bands, boolean fairShare) {
     this.name = name;
+    this.bands = bands;
+    this.fairShare = fairShare;
+    bandNames = bands.bandNames(name);
   }
 
   /**
    * @brief Push a value onto the queue.
-   * @details Adds the value into the backend redis queue.
+   * @details Adds the value into the backend redis queue, in the band of the default priority.
    * @param val The value to push onto the queue.
+   * @note Overloaded.
    */
   public void push(JedisCluster jedis, String val) {
-    jedis.lpush(name, val);
+    jedis.lpush(SafeEncoder.encode(name), RedisRecords.encode(val));
+  }
+
+  /**
+   * @brief Push a value onto the queue.
+   * @details Adds the value into the backend redis queue, in the band of its priority.
+   * @param val The value to push onto the queue.
+   * @param priority The execution priority of the value.
+   * @note Overloaded.
+   */
+  public void push(JedisCluster jedis, String val, int priority) {
+    jedis.lpush(SafeEncoder.encode(getName(priority)), RedisRecords.encode(val));
+  }
+
+  /**
+   * @brief Push a value onto the queue.
+   * @details Adds the value into the list of its tenant in the band of its priority, if the queue
+   *     is a fair share queue, otherwise into the band of its priority.
+   * @param val The value to push onto the queue.
+   * @param priority The execution priority of the value.
+   * @param tenant The tenant of the value.
+   * @note Overloaded.
+   */
+  public void push(JedisCluster jedis, String val, int priority, String tenant) {
+    if (!fairShare) {
+      push(jedis, val, priority);
+      return;
+    }
+    int band = bands.band(priority);
+    pushTenantScript.evalBinary(
+        jedis,
+        ImmutableList.of(
+            getTenantName(band, tenant), getTenantsName(band), getTenantCountName(band)),
+        ImmutableList.of(RedisRecords.encode(val), SafeEncoder.encode(tenant)));
   }
 
   /**
@@ -62,33 +206,65 @@ public class RedisQueue {
    * @note Suggested return identifier: wasRemoved.
    */
   public boolean removeFromDequeue(JedisCluster jedis, String val) {
-    return jedis.lrem(getDequeueName(), -1, val) != 0;
+    return jedis.lrem(SafeEncoder.encode(getDequeueName()), -1, RedisRecords.encode(val)) != 0;
   }
 
   /**
    * @brief Remove all elements that match from queue.
    * @details Removes all matching elements from the queue and specifies whether it was removed.
+   *     Elements held by tenant are not removed.
    * @param val The value to remove.
    * @return Whether or not the value was removed.
    * @note Suggested return identifier: wasRemoved.
    */
   public boolean removeAll(JedisCluster jedis, String val) {
-    return jedis.lrem(name, 0, val) != 0;
+    boolean removed = false;
+    byte[] value = RedisRecords.encode(val);
+    for (String bandName : bandNames) {
+      removed = jedis.lrem(SafeEncoder.encode(bandName), 0, value) != 0 || removed;
+    }
+    return removed;
   }
 
   /**
    * @brief Pop element into internal dequeue and return value.
    * @details This pops the element from one queue atomically into an internal list called the
    *     dequeue. It will wait until the timeout has expired. Null is returned if the timeout has
-   *     expired.
+   *     expired. A queue with several bands only waits on the band of the default priority, and
+   *     checks the other bands once per second. A fair share queue checks its tenants once per
+   *     second.
    * @param timeout_s Timeout to wait if there is no item to dequeue. (units: seconds (s))
    * @return The value of the transfered element. null if the thread was interrupted.
    * @note Overloaded.
    * @note Suggested return identifier: val.
    */
   public String dequeue(JedisCluster jedis, int timeout_s) throws InterruptedException {
+    return dequeue(jedis, timeout_s, tenant -> true);
+  }
+
+  /**
+   * @brief Pop element into internal dequeue and return value.
+   * @details This pops the element from one queue atomically into an internal list called the
+   *     dequeue, skipping any tenant which is not eligible. It will wait until the timeout has
+   *     expired. Null is returned if the timeout has expired.
+   * @param timeout_s Timeout to wait if there is no item to dequeue. (units: seconds (s))
+   * @param isEligible Whether the elements of a tenant may be dequeued.
+   * @return The value of the transfered element. null if the thread was interrupted.
+   * @note Overloaded.
+   * @note Suggested return identifier: val.
+   */
+  public String dequeue(JedisCluster jedis, int timeout_s, Predicate<String> isEligible)
+      throws InterruptedException {
     for (int i = 0; i < timeout_s; ++i) {
-      String val = jedis.brpoplpush(name, getDequeueName(), 1);
+      if (bands.size() > 1 || fairShare) {
+        String val = nonBlockingDequeue(jedis, isEligible);
+        if (val != null) {
+          return val;
+        }
+      }
+      String val =
+          RedisRecords.decode(
+              jedis.brpoplpush(SafeEncoder.encode(name), SafeEncoder.encode(getDequeueName()), 1));
       if (val != null) {
         return val;
       }
@@ -99,14 +275,40 @@ public class RedisQueue {
   /**
    * @brief Pop element into internal dequeue and return value.
    * @details This pops the element from one queue atomically into an internal list called the
-   *     dequeue. It does not block and null is returned if there is nothing to dequeue.
+   *     dequeue. It does not block and null is returned if there is nothing to dequeue. The bands
+   *     are popped in band order.
    * @return The value of the transfered element. null if nothing was dequeued.
+   * @note Overloaded.
    * @note Suggested return identifier: val.
    */
   public String nonBlockingDequeue(JedisCluster jedis) throws InterruptedException {
-    String val = jedis.rpoplpush(name, getDequeueName());
-    if (val != null) {
-      return val;
+    return nonBlockingDequeue(jedis, tenant -> true);
+  }
+
+  /**
+   * @brief Pop element into internal dequeue and return value.
+   * @details This pops the element from one queue atomically into an internal list called the
+   *     dequeue. It does not block and null is returned if there is nothing to dequeue. The bands
+   *     are popped in band order. Within a band, elements pushed without a tenant are popped first,
+   *     then the eligible tenants are popped in turn.
+   * @param isEligible Whether the elements of a tenant may be dequeued.
+   * @return The value of the transfered element. null if nothing was dequeued.
+   * @note Overloaded.
+   * @note Suggested return identifier: val.
+   */
+  public String nonBlockingDequeue(JedisCluster jedis, Predicate<String> isEligible)
+      throws InterruptedException {
+    for (int band = 0; band < bandNames.size(); band++) {
+      String val =
+          RedisRecords.decode(
+              jedis.rpoplpush(
+                  SafeEncoder.encode(bandNames.get(band)), SafeEncoder.encode(getDequeueName())));
+      if (val == null && fairShare) {
+        val = nonBlockingTenantDequeue(jedis, band, isEligible);
+      }
+      if (val != null) {
+        return val;
+      }
     }
     if (Thread.currentThread().isInterrupted()) {
       throw new InterruptedException();
@@ -114,16 +316,62 @@ public class RedisQueue {
     return null;
   }
 
+  /**
+   * @brief Pop elements into internal dequeue and return their values.
+   * @details This pops up to count elements from the queue atomically into an internal list called
+   *     the dequeue, in a single request. It does not block and the result is empty if there is
+   *     nothing to dequeue. The bands are popped in band order. The queue must be named with a
+   *     hashtag, so that its bands share a slot with its dequeue. A fair share queue may not be
+   *     popped in batches, since the eligibility of its tenants changes with each element popped.
+   * @param count The maximum number of elements to dequeue.
+   * @return The values of the transfered elements.
+   * @note Overloaded.
+   * @note Suggested return identifier: vals.
+   */
+  @SuppressWarnings("unchecked")
+  public List<String> nonBlockingDequeue(JedisCluster jedis, int count)
+      throws InterruptedException {
+    checkState(!fairShare, "fair share queue %s may not be dequeued in batches", name);
+    List<byte[]> vals =
+        (List<byte[]>)
+            nonBlockingDequeueScript.evalBinary(
+                jedis,
+                ImmutableList.<String>builder().addAll(bandNames).add(getDequeueName()).build(),
+                ImmutableList.of(SafeEncoder.encode(Integer.toString(count))));
+    if (vals.isEmpty() && Thread.currentThread().isInterrupted()) {
+      throw new InterruptedException();
+    }
+    ImmutableList.Builder<String> decodedVals = ImmutableList.builder();
+    for (byte[] val : vals) {
+      decodedVals.add(RedisRecords.decode(val));
+    }
+    return decodedVals.build();
+  }
+
   /**
    * @brief Get name.
-   * @details Get the name of the queue. this is the redis key used for the list.
+   * @details Get the name of the queue. this is the redis key used for the list of the band of the
+   *     default priority.
    * @return The name of the queue.
+   * @note Overloaded.
    * @note Suggested return identifier: name.
    */
   public String getName() {
     return name;
   }
 
+  /**
+   * @brief Get the name of a priority.
+   * @details Get the redis key used for the list of the band of the priority.
+   * @param priority The execution priority of a value.
+   * @return The name of the list.
+   * @note Overloaded.
+   * @note Suggested return identifier: name.
+   */
+  public String getName(int priority) {
+    return bandNames.get(bands.band(priority));
+  }
+
   /**
    * @brief Get dequeue name.
    * @details Get the name of the internal dequeue used by the queue. this is the redis key used for
@@ -142,17 +390,49 @@ public class RedisQueue {
    * @note Suggested return identifier: length.
    */
   public long size(JedisCluster jedis) {
-    return jedis.llen(name);
+    long size = 0;
+    for (long bandSize : bandSizes(jedis)) {
+      size += bandSize;
+    }
+    return size;
+  }
+
+  /**
+   * @brief Get the size of each band.
+   * @details Checks the current length of the list of each band.
+   * @return The current length of each band, in band order.
+   * @note Suggested return identifier: bandSizes.
+   */
+  public List<Long> bandSizes(JedisCluster jedis) {
+    ImmutableList.Builder<Long> bandSizes = ImmutableList.builder();
+    for (int band = 0; band < bandNames.size(); band++) {
+      long bandSize = jedis.llen(bandNames.get(band));
+      if (fairShare) {
+        String tenantCount = jedis.get(getTenantCountName(band));
+        if (tenantCount != null) {
+          bandSize += Long.parseLong(tenantCount);
+        }
+      }
+      bandSizes.add(bandSize);
+    }
+    return bandSizes.build();
   }
 
   /**
    * @brief Visit each element in the queue.
-   * @details Enacts a visitor over each element in the queue.
+   * @details Enacts a visitor over each element in the queue, in band order.
    * @param visitor A visitor for each visited element in the queue.
    * @note Overloaded.
    */
   public void visit(JedisCluster jedis, StringVisitor visitor) {
-    visit(jedis, name, visitor);
+    for (int band = 0; band < bandNames.size(); band++) {
+      visit(jedis, bandNames.get(band), visitor);
+      if (fairShare) {
+        for (String tenant : jedis.lrange(getTenantsName(band), 0, -1)) {
+          visit(jedis, getTenantName(band, tenant), visitor);
+        }
+      }
+    }
   }
 
   /**
@@ -164,6 +444,78 @@ public class RedisQueue {
     visit(jedis, getDequeueName(), visitor);
   }
 
+  /**
+   * @brief Pop an element of a tenant into internal dequeue and return value.
+   * @details Rotates the tenants of a band until an eligible tenant yields an element, trying each
+   *     tenant at most once.
+   * @param band The band to pop.
+   * @param isEligible Whether the elements of a tenant may be dequeued.
+   * @return The value of the transfered element. null if nothing was dequeued.
+   * @note Suggested return identifier: val.
+   */
+  private String nonBlockingTenantDequeue(
+      JedisCluster jedis, int band, Predicate<String> isEligible) {
+    String tenants = getTenantsName(band);
+    long tenantsSize = jedis.llen(tenants);
+    for (long i = 0; i < tenantsSize; i++) {
+      String tenant = jedis.rpoplpush(tenants, tenants);
+      if (tenant == null) {
+        break;
+      }
+      if (isEligible.test(tenant)) {
+        String val =
+            RedisRecords.decode(
+                (byte[])
+                    popTenantScript.evalBinary(
+                        jedis,
+                        ImmutableList.of(
+                            getTenantName(band, tenant),
+                            tenants,
+                            getTenantCountName(band),
+                            getDequeueName()),
+                        ImmutableList.of(SafeEncoder.encode(tenant))));
+        if (val != null) {
+          return val;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @brief Get the name of the list of a tenant.
+   * @details Shares the hashtag of the queue.
+   * @param band The band of the list.
+   * @param tenant The tenant of the list.
+   * @return The name of the list.
+   * @note Suggested return identifier: name.
+   */
+  private String getTenantName(int band, String tenant) {
+    return bandNames.get(band) + "_tenant_" + tenant;
+  }
+
+  /**
+   * @brief Get the name of the tenants of a band.
+   * @details The ring of tenants with elements in the band.
+   * @param band The band of the tenants.
+   * @return The name of the list.
+   * @note Suggested return identifier: name.
+   */
+  private String getTenantsName(int band) {
+    return bandNames.get(band) + "_tenants";
+  }
+
+  /**
+   * @brief Get the name of the tenant count of a band.
+   * @details The number of elements held by the tenants of the band.
+   * @param band The band of the count.
+   * @return The name of the count.
+   * @note Suggested return identifier: name.
+   */
+  private String getTenantCountName(int band) {
+    return bandNames.get(band) + "_tenant_count";
+  }
+
   /**
    * @brief Visit each element in the queue via queue name.
    * @details Enacts a visitor over each element in the queue.
@@ -176,12 +528,12 @@ public class RedisQueue {
 
     int index = 0;
     int nextIndex = listPageSize;
-    List<String> entries;
+    List<byte[]> entries;
 
     do {
-      entries = jedis.lrange(queueName, index, nextIndex - 1);
-      for (String entry : entries) {
-        visitor.visit(entry);
+      entries = jedis.lrange(SafeEncoder.encode(queueName), index, nextIndex - 1);
+      for (byte[] entry : entries) {
+        visitor.visit(RedisRecords.decode(entry));
       }
       index = nextIndex;
       nextIndex += entries.size();
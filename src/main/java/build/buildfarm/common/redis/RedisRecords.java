@@ -0,0 +1,177 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common.redis;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonFormat;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * @class RedisRecords
+ * @brief The encoding of protobuf records stored in and published through redis.
+ * @details Records are written either as json, or as binary protobuf prefixed with a version
+ *     character. Binary records are held in strings with a char per byte, and are exchanged with
+ *     redis as the bytes themselves, through the encode and decode of a value, so that they are
+ *     stored without any expansion. Records exchanged as strings, such as published changes, are
+ *     sent as utf-8, which expands only their bytes above 0x7f. Records of any encoding are read,
+ *     so that the written encoding may be changed while clients of each are running.
+ */
+public class RedisRecords {
+  /**
+   * @field PROTOBUF_V1
+   * @brief The prefix of base64 encoded binary records, which json records never begin with.
+   * @details No longer written, but still read.
+   */
+  public static final char PROTOBUF_V1 = '\u0001';
+
+  /**
+   * @field PROTOBUF_V2
+   * @brief The prefix of raw binary records, which json records never begin with.
+   * @details A later binary encoding would be introduced with a new prefix.
+   */
+  public static final char PROTOBUF_V2 = '\u0002';
+
+  /**
+   * @field binary
+   * @brief Whether records are written with the binary encoding.
+   * @details Otherwise they are written as json.
+   */
+  private final boolean binary;
+
+  /**
+   * @field printer
+   * @brief The printer of json records.
+   * @details Must be able to print any Any fields of the records.
+   */
+  private final JsonFormat.Printer printer;
+
+  /**
+   * @brief Constructor.
+   * @details Construct records of an encoding.
+   * @param binary Whether records are written with the binary encoding.
+   * @param printer The printer of json records.
+   */
+  public RedisRecords(boolean binary, JsonFormat.Printer printer) {
+    this.binary = binary;
+    this.printer = printer;
+  }
+
+  /**
+   * @brief Print a record.
+   * @details Printed with the encoding of these records.
+   * @param message The message to print.
+   * @return The record.
+   */
+  public String print(Message message) throws InvalidProtocolBufferException {
+    if (binary) {
+      return PROTOBUF_V2 + new String(message.toByteArray(), ISO_8859_1);
+    }
+    return printer.print(message);
+  }
+
+  /**
+   * @brief Encode a value for redis.
+   * @details Binary records are encoded as their bytes, and any other value as utf-8, as with the
+   *     string commands of jedis.
+   * @param value The value to encode.
+   * @return The bytes of the value.
+   */
+  public static byte[] encode(String value) {
+    return isBinary(value) ? value.getBytes(ISO_8859_1) : value.getBytes(UTF_8);
+  }
+
+  /**
+   * @brief Decode a value from redis.
+   * @details The inverse of encode.
+   * @param value The bytes of the value. May be null.
+   * @return The value. null if the bytes are null.
+   * @note Overloaded.
+   */
+  public static String decode(byte[] value) {
+    if (value == null) {
+      return null;
+    }
+    if (value.length > 0 && value[0] == PROTOBUF_V2) {
+      return new String(value, ISO_8859_1);
+    }
+    return new String(value, UTF_8);
+  }
+
+  /**
+   * @brief Decode the fields of a hash from redis.
+   * @details Fields are decoded as utf-8, and values as with decode.
+   * @param values The fields and values of the hash.
+   * @return The decoded fields and values.
+   * @note Overloaded.
+   */
+  public static Map<String, String> decode(Map<byte[], byte[]> values) {
+    ImmutableMap.Builder<String, String> decoded = ImmutableMap.builder();
+    for (Map.Entry<byte[], byte[]> entry : values.entrySet()) {
+      decoded.put(new String(entry.getKey(), UTF_8), decode(entry.getValue()));
+    }
+    return decoded.build();
+  }
+
+  private static boolean isBinary(String value) {
+    return !value.isEmpty() && value.charAt(0) == PROTOBUF_V2;
+  }
+
+  /**
+   * @brief Merge a record of either encoding into a builder.
+   * @details Json records are parsed with the default parser.
+   * @param record The record to parse.
+   * @param builder The builder to merge the record into.
+   * @note Overloaded.
+   */
+  public static void merge(String record, Message.Builder builder)
+      throws InvalidProtocolBufferException {
+    merge(record, JsonFormat.parser(), builder);
+  }
+
+  /**
+   * @brief Merge a record of either encoding into a builder.
+   * @details Json records are parsed with the parser, which must be able to parse any Any fields of
+   *     the record.
+   * @param record The record to parse.
+   * @param parser The parser of json records.
+   * @param builder The builder to merge the record into.
+   * @note Overloaded.
+   */
+  public static void merge(String record, JsonFormat.Parser parser, Message.Builder builder)
+      throws InvalidProtocolBufferException {
+    if (isBinary(record)) {
+      byte[] bytes = record.getBytes(ISO_8859_1);
+      builder.mergeFrom(bytes, 1, bytes.length - 1);
+      return;
+    }
+    if (record.isEmpty() || record.charAt(0) != PROTOBUF_V1) {
+      parser.merge(record, builder);
+      return;
+    }
+    byte[] bytes;
+    try {
+      bytes = Base64.getDecoder().decode(record.substring(1));
+    } catch (IllegalArgumentException e) {
+      throw new InvalidProtocolBufferException("invalid binary record: " + e.getMessage());
+    }
+    builder.mergeFrom(bytes);
+  }
+}
@@ -120,6 +120,9 @@ public interface Instance {
 
   void match(Platform platform, MatchListener listener) throws InterruptedException;
 
+  /** Matches up to maxEntries queued operations to the listener, waiting only for the first. */
+  void match(Platform platform, int maxEntries, MatchListener listener) throws InterruptedException;
+
   BackplaneStatus backplaneStatus();
 
   boolean putOperation(Operation operation) throws InterruptedException;
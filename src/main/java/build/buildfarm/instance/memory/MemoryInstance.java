@@ -782,13 +782,14 @@ public class MemoryInstance extends AbstractServerInstance {
     return createProvisions(command.getPlatform());
   }
 
-  private void matchSynchronized(Platform platform, MatchListener listener)
+  private void matchSynchronized(Platform platform, int maxEntries, MatchListener listener)
       throws InterruptedException {
     ImmutableList.Builder<Operation> rejectedOperations = ImmutableList.builder();
-    boolean matched = false;
+    int matched = 0;
+    boolean declined = false;
     SetMultimap<String, String> provisions = createProvisions(platform);
     WorkerQueue queue = queuedOperations.MatchEligibleQueue(provisions);
-    while (!matched && !queue.operations.isEmpty()) {
+    while (matched < maxEntries && !declined && !queue.operations.isEmpty()) {
       Operation operation = queue.operations.remove(0);
       ExecuteOperationMetadata metadata = expectExecuteOperationMetadata(operation);
       Preconditions.checkState(metadata != null, "metadata not found");
@@ -849,11 +850,12 @@ public class MemoryInstance extends AbstractServerInstance {
                   .setPlatform(command.getPlatform())
                   .build();
 
-          matched = true;
+          matched++;
           if (listener.onEntry(queueEntry)) {
             onDispatched(operation);
           } else {
             enqueueOperation(operation);
+            declined = true;
           }
         } catch (StatusException | IOException e) {
           logger.log(
@@ -866,7 +868,7 @@ public class MemoryInstance extends AbstractServerInstance {
     for (Operation operation : rejectedOperations.build()) {
       requeueOperation(operation);
     }
-    if (!matched) {
+    if (matched == 0) {
       synchronized (queue.workers) {
         listener.setOnCancelHandler(() -> queuedOperations.removeWorker(listener));
         listener.onWaitStart();
@@ -877,9 +879,16 @@ public class MemoryInstance extends AbstractServerInstance {
 
   @Override
   public void match(Platform platform, MatchListener listener) throws InterruptedException {
+    match(platform, 1, listener);
+  }
+
+  // a waiting listener is only registered if no entries are available, and receives one entry
+  @Override
+  public void match(Platform platform, int maxEntries, MatchListener listener)
+      throws InterruptedException {
     WorkerQueue queue = queuedOperations.MatchEligibleQueue(createProvisions(platform));
     synchronized (queue.operations) {
-      matchSynchronized(platform, listener);
+      matchSynchronized(platform, maxEntries, listener);
     }
   }
 
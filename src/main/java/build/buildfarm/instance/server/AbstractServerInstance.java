@@ -69,6 +69,7 @@ import build.buildfarm.common.TreeIterator.DirectoryEntry;
 import build.buildfarm.common.Watcher;
 import build.buildfarm.common.Write;
 import build.buildfarm.instance.Instance;
+import build.buildfarm.instance.MatchListener;
 import build.buildfarm.operations.EnrichedOperation;
 import build.buildfarm.operations.FindOperationsResults;
 import build.buildfarm.v1test.CompletedOperationMetadata;
@@ -1785,6 +1786,13 @@ public abstract class AbstractServerInstance implements Instance {
     return metadata.getStage() == stage;
   }
 
+  // instances without batch dispatch match a single entry
+  @Override
+  public void match(Platform platform, int maxEntries, MatchListener listener)
+      throws InterruptedException {
+    match(platform, listener);
+  }
+
   protected CacheCapabilities getCacheCapabilities() {
     return CacheCapabilities.newBuilder()
         .addDigestFunction(digestUtil.getDigestFunction())
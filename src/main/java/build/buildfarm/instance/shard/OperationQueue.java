@@ -18,12 +18,15 @@ import build.bazel.remote.execution.v2.Platform;
 import build.buildfarm.common.StringVisitor;
 import build.buildfarm.common.redis.BalancedRedisQueue;
 import build.buildfarm.common.redis.ProvisionedRedisQueue;
+import build.buildfarm.common.redis.RedisQueue;
 import build.buildfarm.v1test.OperationQueueStatus;
 import build.buildfarm.v1test.QueueStatus;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.SetMultimap;
 import java.util.ArrayList;
 import java.util.List;
+import javax.annotation.Nullable;
 import redis.clients.jedis.JedisCluster;
 
 /**
@@ -110,6 +113,23 @@ public class OperationQueue {
     }
   }
 
+  /**
+   * @brief Get the internal queues.
+   * @details The internal queues of each of the provisioned queues, in order.
+   * @return The internal queues.
+   * @note Suggested return identifier: internalQueues.
+   */
+  public List<RedisQueue> getInternalQueues() {
+    ImmutableList.Builder<RedisQueue> internalQueues = ImmutableList.builder();
+    for (ProvisionedRedisQueue provisionedQueue : queues) {
+      BalancedRedisQueue queue = provisionedQueue.queue();
+      for (int i = 0; i < queue.getInternalQueueCount(); i++) {
+        internalQueues.add(queue.getInternalQueue(i));
+      }
+    }
+    return internalQueues.build();
+  }
+
   /**
    * @brief Get size.
    * @details Checks the current length of the queue.
@@ -148,6 +168,22 @@ public class OperationQueue {
     return queue.getDequeueName();
   }
 
+  /**
+   * @brief Get the single internal queue of an eligible queue.
+   * @details Queues constructed without hashtags are not balanced, and have a single internal queue
+   *     whose keys hash to the slot of the hashtag of their name.
+   * @param provisions Provisions used to select an eligible queue.
+   * @return The internal queue, or null if the eligible queue is balanced across several.
+   * @note Suggested return identifier: internalQueue.
+   */
+  public @Nullable RedisQueue getUnbalancedQueue(List<Platform.Property> provisions) {
+    BalancedRedisQueue queue = chooseEligibleQueue(provisions);
+    if (queue.getInternalQueueCount() != 1) {
+      return null;
+    }
+    return queue.getInternalQueue(0);
+  }
+
   /**
    * @brief Get internal queue name.
    * @details Get the name of the internal queue based on the platform properties.
@@ -166,12 +202,29 @@ public class OperationQueue {
    * @param jedis Jedis cluster client.
    * @param provisions Provisions used to select an eligible queue.
    * @param val The value to push onto the queue.
+   * @note Overloaded.
    */
   public void push(JedisCluster jedis, List<Platform.Property> provisions, String val) {
     BalancedRedisQueue queue = chooseEligibleQueue(provisions);
     queue.push(jedis, val);
   }
 
+  /**
+   * @brief Push a value onto the queue.
+   * @details Adds the value into the band of its priority in one of the internal backend redis
+   *     queues.
+   * @param jedis Jedis cluster client.
+   * @param provisions Provisions used to select an eligible queue.
+   * @param val The value to push onto the queue.
+   * @param priority The execution priority of the value.
+   * @note Overloaded.
+   */
+  public void push(
+      JedisCluster jedis, List<Platform.Property> provisions, String val, int priority) {
+    BalancedRedisQueue queue = chooseEligibleQueue(provisions);
+    queue.push(jedis, val, priority);
+  }
+
   /**
    * @brief Pop element into internal dequeue and return value.
    * @details This pops the element from one queue atomically into an internal list called the
@@ -188,6 +241,22 @@ public class OperationQueue {
     return queue.dequeue(jedis);
   }
 
+  /**
+   * @brief Pop elements into internal dequeues and return their values.
+   * @details This pops up to count elements from an eligible queue without blocking.
+   * @param jedis Jedis cluster client.
+   * @param provisions Provisions used to select an eligible queue.
+   * @param count The maximum number of elements to dequeue.
+   * @return The values of the transfered elements, which may be empty.
+   * @note Suggested return identifier: vals.
+   */
+  public List<String> nonBlockingDequeue(
+      JedisCluster jedis, List<Platform.Property> provisions, int count)
+      throws InterruptedException {
+    BalancedRedisQueue queue = chooseEligibleQueue(provisions);
+    return queue.nonBlockingDequeue(jedis, count);
+  }
+
   /**
    * @brief Get status information about the queue.
    * @details Helpful for understanding the current load on the queue and how elements are balanced.
@@ -34,11 +34,15 @@ import build.buildfarm.common.Watcher;
 import build.buildfarm.common.WorkerIndexer;
 import build.buildfarm.common.function.InterruptingRunnable;
 import build.buildfarm.common.redis.BalancedRedisQueue;
+import build.buildfarm.common.redis.PriorityBands;
 import build.buildfarm.common.redis.ProvisionedRedisQueue;
 import build.buildfarm.common.redis.RedisClient;
 import build.buildfarm.common.redis.RedisHashtags;
 import build.buildfarm.common.redis.RedisMap;
 import build.buildfarm.common.redis.RedisNodeHashes;
+import build.buildfarm.common.redis.RedisQueue;
+import build.buildfarm.common.redis.RedisRecords;
+import build.buildfarm.common.redis.RedisScript;
 import build.buildfarm.instance.Instance;
 import build.buildfarm.instance.shard.RedisShardSubscriber.TimedWatchFuture;
 import build.buildfarm.operations.FindOperationsResults;
@@ -55,10 +59,14 @@ import build.buildfarm.v1test.ProvisionedQueue;
 import build.buildfarm.v1test.QueueEntry;
 import build.buildfarm.v1test.QueuedOperationMetadata;
 import build.buildfarm.v1test.RedisShardBackplaneConfig;
+import build.buildfarm.v1test.RedisShardBackplaneConfig.FairShareKey;
+import build.buildfarm.v1test.RedisShardBackplaneConfig.RecordEncoding;
 import build.buildfarm.v1test.ShardWorker;
 import build.buildfarm.v1test.WorkerChange;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.ListMultimap;
@@ -76,6 +84,7 @@ import com.google.protobuf.util.Timestamps;
 import com.google.rpc.Code;
 import com.google.rpc.PreconditionFailure;
 import com.google.rpc.Status;
+import io.prometheus.client.Histogram;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.AbstractMap;
@@ -106,6 +115,7 @@ import redis.clients.jedis.JedisClusterPipeline;
 import redis.clients.jedis.Response;
 import redis.clients.jedis.ScanParams;
 import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.util.SafeEncoder;
 
 public class RedisShardBackplane implements Backplane {
   private static final Logger logger = Logger.getLogger(RedisShardBackplane.class.getName());
@@ -122,6 +132,85 @@ public class RedisShardBackplane implements Backplane {
                   .build())
           .ignoringUnknownFields();
 
+  private static final Histogram dispatchOperationTime =
+      Histogram.build()
+          .name("dispatch_operation_seconds")
+          .labelNames("method")
+          .help("Time to move a batch of dequeued operations to the dispatched operations.")
+          .register();
+
+  private static final Histogram prequeueWaitTime =
+      Histogram.build()
+          .name("prequeue_wait_seconds")
+          .labelNames("tenant")
+          .buckets(0.1, 0.5, 1, 5, 10, 30, 60, 300, 900, 3600)
+          .help("Time from execution to deprequeue, by fair share tenant.")
+          .register();
+
+  // bounds the tenants labelled in the prequeue wait time, which may be per invocation, and
+  // removes the label of a tenant only when it is evicted, rather than replaced
+  private static final Cache<String, Boolean> prequeueWaitTenants =
+      CacheBuilder.newBuilder()
+          .maximumSize(1000)
+          .expireAfterAccess(1, TimeUnit.HOURS)
+          .removalListener(
+              (RemovalListener<String, Boolean>)
+                  notification -> {
+                    if (notification.wasEvicted()) {
+                      prequeueWaitTime.remove(notification.getKey());
+                    }
+                  })
+          .build();
+
+  // KEYS: dispatched operations, dequeue
+  // ARGV, for each operation: name, dispatched operation, queue entry, channel, reset change
+  // returns for each operation 0 if already dispatched, 1 if missing from the dequeue, 2 if moved
+  // from the dequeue
+  private static final RedisScript dispatchScript =
+      new RedisScript(
+          "local results = {}\n"
+              + "for i = 1, #ARGV, 5 do\n"
+              + "  redis.call('publish', ARGV[i + 3], ARGV[i + 4])\n"
+              + "  if redis.call('hsetnx', KEYS[1], ARGV[i], ARGV[i + 1]) == 0 then\n"
+              + "    results[#results + 1] = 0\n"
+              + "  else\n"
+              + "    results[#results + 1] = 1 + redis.call('lrem', KEYS[2], -1, ARGV[i + 2])\n"
+              + "  end\n"
+              + "end\n"
+              + "return results\n");
+
+  // KEYS: dispatched operations
+  // ARGV: operation name, dispatched operation
+  // returns 1 if the dispatched operation was updated
+  private static final RedisScript pollScript =
+      new RedisScript(
+          "if redis.call('hexists', KEYS[1], ARGV[1]) == 0 then\n"
+              + "  return 0\n"
+              + "end\n"
+              + "redis.call('hset', KEYS[1], ARGV[1], ARGV[2])\n"
+              + "return 1\n");
+
+  // KEYS: dispatched operations, queue
+  // ARGV: operation name, queue entry
+  // returns 1 if the dispatched operation was moved to the queue
+  private static final RedisScript rejectScript =
+      new RedisScript(
+          "if redis.call('hdel', KEYS[1], ARGV[1]) == 0 then\n"
+              + "  return 0\n"
+              + "end\n"
+              + "redis.call('lpush', KEYS[2], ARGV[2])\n"
+              + "return 1\n");
+
+  // KEYS: dispatched operations, queue
+  // ARGV: operation name, queue entry, operation channel, reset change
+  // returns 1 if the operation was removed from the dispatched operations
+  private static final RedisScript requeueScript =
+      new RedisScript(
+          "local removed = redis.call('hdel', KEYS[1], ARGV[1])\n"
+              + "redis.call('lpush', KEYS[2], ARGV[2])\n"
+              + "redis.call('publish', ARGV[3], ARGV[4])\n"
+              + "return removed\n");
+
   static final JsonFormat.Printer operationPrinter =
       JsonFormat.printer()
           .usingTypeRegistry(
@@ -144,6 +233,8 @@ public class RedisShardBackplane implements Backplane {
   private final Function<Operation, Operation> onPublish;
   private final Function<Operation, Operation> onComplete;
   private final Supplier<JedisCluster> jedisClusterFactory;
+  private final RedisRecords records;
+  private final RedisRecords operationRecords;
 
   private @Nullable InterruptingRunnable onUnsubscribe = null;
   private Thread subscriptionThread = null;
@@ -186,6 +277,9 @@ public class RedisShardBackplane implements Backplane {
     this.onPublish = onPublish;
     this.onComplete = onComplete;
     this.jedisClusterFactory = jedisClusterFactory;
+    boolean binary = config.getRecordEncoding() == RecordEncoding.PROTOBUF;
+    records = new RedisRecords(binary, JsonFormat.printer());
+    operationRecords = new RedisRecords(binary, operationPrinter);
   }
 
   @Override
@@ -201,10 +295,10 @@ public class RedisShardBackplane implements Backplane {
     public void visit(String entry) {
       QueueEntry.Builder queueEntry = QueueEntry.newBuilder();
       try {
-        JsonFormat.parser().merge(entry, queueEntry);
+        RedisRecords.merge(entry, queueEntry);
         visit(queueEntry.build(), entry);
       } catch (InvalidProtocolBufferException e) {
-        logger.log(Level.SEVERE, "invalid QueueEntry json: " + entry, e);
+        logger.log(Level.SEVERE, "invalid QueueEntry: " + entry, e);
       }
     }
   }
@@ -215,10 +309,10 @@ public class RedisShardBackplane implements Backplane {
     public void visit(String entry) {
       ExecuteEntry.Builder executeEntry = ExecuteEntry.newBuilder();
       try {
-        JsonFormat.parser().merge(entry, executeEntry);
+        RedisRecords.merge(entry, executeEntry);
         visit(executeEntry.build(), entry);
       } catch (InvalidProtocolBufferException e) {
-        logger.log(Level.FINE, "invalid ExecuteEntry json: " + entry, e);
+        logger.log(Level.FINE, "invalid ExecuteEntry: " + entry, e);
       }
     }
   }
@@ -394,7 +488,7 @@ public class RedisShardBackplane implements Backplane {
       OperationChange.Builder operationChange) {
     try {
       String operationChangeJson =
-          printOperationChange(
+          operationRecords.print(
               operationChange.setEffectiveAt(toTimestamp(effectiveAt)).setSource(source).build());
       jedis.publish(channel, operationChangeJson);
     } catch (InvalidProtocolBufferException e) {
@@ -403,6 +497,20 @@ public class RedisShardBackplane implements Backplane {
     }
   }
 
+  private String printReset(Operation operation) throws InvalidProtocolBufferException {
+    Instant effectiveAt = Instant.now();
+    return operationRecords.print(
+        OperationChange.newBuilder()
+            .setEffectiveAt(toTimestamp(effectiveAt))
+            .setSource(source)
+            .setReset(
+                OperationChange.Reset.newBuilder()
+                    .setExpiresAt(toTimestamp(nextExpiresAt(effectiveAt)))
+                    .setOperation(operation)
+                    .build())
+            .build());
+  }
+
   void publishReset(JedisCluster jedis, Operation operation) {
     Instant effectiveAt = Instant.now();
     Instant expiresAt = nextExpiresAt(effectiveAt);
@@ -441,17 +549,18 @@ public class RedisShardBackplane implements Backplane {
     }
 
     Instant now = Instant.now();
-    List<Map.Entry<String, Response<String>>> operations = new ArrayList(operationChannels.size());
+    List<Map.Entry<String, Response<byte[]>>> operations = new ArrayList(operationChannels.size());
     JedisClusterPipeline p = jedis.pipelined();
     for (String operationName :
         Iterables.transform(operationChannels, RedisShardBackplane::parseOperationChannel)) {
       operations.add(
-          new AbstractMap.SimpleEntry<>(operationName, p.get(operationKey(operationName))));
+          new AbstractMap.SimpleEntry<>(
+              operationName, p.get(SafeEncoder.encode(operationKey(operationName)))));
     }
     p.sync();
 
-    for (Map.Entry<String, Response<String>> entry : operations) {
-      String json = entry.getValue().get();
+    for (Map.Entry<String, Response<byte[]>> entry : operations) {
+      String json = RedisRecords.decode(entry.getValue().get());
       Operation operation = json == null ? null : RedisShardBackplane.parseOperationJson(json);
       String operationName = entry.getKey();
       if (operation == null || operation.getDone()) {
@@ -540,6 +649,7 @@ public class RedisShardBackplane implements Backplane {
     actionCache = createActionCache(client, config);
     prequeue = createPrequeue(client, config);
     operationQueue = createOperationQueue(client, config);
+    drainOperationQueue(createOperationQueue(client, withOtherDispatch(config)));
     blockedActions = new RedisMap(config.getActionBlacklistPrefix());
     blockedInvocations = new RedisMap(config.getInvocationBlacklistPrefix());
     processingOperations = new RedisMap(config.getProcessingPrefix());
@@ -582,7 +692,13 @@ public class RedisShardBackplane implements Backplane {
     return new BalancedRedisQueue(
         config.getPreQueuedOperationsListName(),
         getQueueHashes(client, config.getPreQueuedOperationsListName()),
-        config.getMaxPreQueueDepth());
+        config.getMaxPreQueueDepth(),
+        createPriorityBands(config),
+        config.getFairShareKey() != FairShareKey.NONE);
+  }
+
+  static PriorityBands createPriorityBands(RedisShardBackplaneConfig config) {
+    return new PriorityBands(config.getPriorityBandLimitsList());
   }
 
   static OperationQueue createOperationQueue(RedisClient client, RedisShardBackplaneConfig config)
@@ -596,10 +712,11 @@ public class RedisShardBackplane implements Backplane {
     for (ProvisionedQueue queueConfig : config.getProvisionedQueues().getQueuesList()) {
       ProvisionedRedisQueue provisionedQueue =
           new ProvisionedRedisQueue(
-              queueConfig.getName(),
-              getQueueHashes(client, queueConfig.getName()),
+              operationQueueName(config, queueConfig.getName()),
+              getOperationQueueHashes(client, config, queueConfig.getName()),
               toMultimap(queueConfig.getPlatform().getPropertiesList()),
-              queueConfig.getAllowUnmatched());
+              queueConfig.getAllowUnmatched(),
+              createPriorityBands(config));
       provisionedQueues.add(provisionedQueue);
     }
     // If there is no configuration for provisioned queues, we might consider that an error.
@@ -615,15 +732,90 @@ public class RedisShardBackplane implements Backplane {
           ProvisionedRedisQueue.WILDCARD_VALUE, ProvisionedRedisQueue.WILDCARD_VALUE);
       ProvisionedRedisQueue defaultQueue =
           new ProvisionedRedisQueue(
-              config.getQueuedOperationsListName(),
-              getQueueHashes(client, config.getQueuedOperationsListName()),
-              defaultProvisions);
+              operationQueueName(config, config.getQueuedOperationsListName()),
+              getOperationQueueHashes(client, config, config.getQueuedOperationsListName()),
+              defaultProvisions,
+              /* allowUserUnmatched=*/ false,
+              createPriorityBands(config));
       provisionedQueues.add(defaultQueue);
     }
 
     return new OperationQueue(provisionedQueues.build(), config.getMaxQueueDepth());
   }
 
+  static RedisShardBackplaneConfig withOtherDispatch(RedisShardBackplaneConfig config) {
+    return config.toBuilder().setDispatchScripts(!config.getDispatchScripts()).build();
+  }
+
+  // the operation queues are named for their dispatch, and any entries queued by clients with the
+  // other dispatch are moved onto the queues of this one. Each entry is popped into the dequeue of
+  // its queue until it is pushed, so that it remains visible if the move is interrupted
+  private void drainOperationQueue(OperationQueue source) throws IOException {
+    Set<String> queueNames = new HashSet<>();
+    for (RedisQueue queue : operationQueue.getInternalQueues()) {
+      queueNames.add(queue.getName());
+    }
+    for (RedisQueue queue : source.getInternalQueues()) {
+      if (queueNames.contains(queue.getName())) {
+        continue;
+      }
+      int count;
+      try {
+        count = client.blockingCall(jedis -> drainOperationQueue(jedis, queue));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+      if (count != 0) {
+        logger.log(
+            Level.INFO, format("moved %d queued operations from %s", count, queue.getName()));
+      }
+    }
+  }
+
+  private int drainOperationQueue(JedisCluster jedis, RedisQueue queue)
+      throws InterruptedException {
+    int count = 0;
+    for (String entry = queue.nonBlockingDequeue(jedis);
+        entry != null;
+        entry = queue.nonBlockingDequeue(jedis)) {
+      QueueEntry.Builder queueEntry = QueueEntry.newBuilder();
+      try {
+        RedisRecords.merge(entry, queueEntry);
+      } catch (InvalidProtocolBufferException e) {
+        logger.log(Level.SEVERE, "invalid QueueEntry left in " + queue.getDequeueName(), e);
+        continue;
+      }
+      operationQueue.push(
+          jedis, queueEntry.getPlatform().getPropertiesList(), entry, priority(queueEntry.build()));
+      queue.removeFromDequeue(jedis, entry);
+      count++;
+    }
+    return count;
+  }
+
+  static String operationQueueName(RedisShardBackplaneConfig config, String queueName) {
+    if (!config.getDispatchScripts()) {
+      return queueName;
+    }
+    // scripts may only move operations between keys in the same slot
+    String hashtag = RedisHashtags.existingHash(config.getDispatchedOperationsHashName());
+    if (hashtag.isEmpty()) {
+      // a key without a hashtag is in the slot of its entire name
+      hashtag = config.getDispatchedOperationsHashName();
+    }
+    return RedisHashtags.hashedName(RedisHashtags.unhashedName(queueName), hashtag);
+  }
+
+  static List<String> getOperationQueueHashes(
+      RedisClient client, RedisShardBackplaneConfig config, String queueName) throws IOException {
+    if (config.getDispatchScripts()) {
+      // a single internal queue, in the slot of the dispatched operations
+      return ImmutableList.of();
+    }
+    return getQueueHashes(client, queueName);
+  }
+
   static List<String> getQueueHashes(RedisClient client, String queueName) throws IOException {
     return client.call(
         jedis ->
@@ -677,20 +869,23 @@ public class RedisShardBackplane implements Backplane {
 
   @Override
   public boolean addWorker(ShardWorker shardWorker) throws IOException {
-    String json = JsonFormat.printer().print(shardWorker);
+    String json = records.print(shardWorker);
     String workerChangeJson =
-        JsonFormat.printer()
-            .print(
-                WorkerChange.newBuilder()
-                    .setEffectiveAt(toTimestamp(Instant.now()))
-                    .setName(shardWorker.getEndpoint())
-                    .setAdd(WorkerChange.Add.getDefaultInstance())
-                    .build());
+        records.print(
+            WorkerChange.newBuilder()
+                .setEffectiveAt(toTimestamp(Instant.now()))
+                .setName(shardWorker.getEndpoint())
+                .setAdd(WorkerChange.Add.getDefaultInstance())
+                .build());
     return client.call(
         jedis -> {
           // could rework with an hget to publish prior, but this seems adequate, and
           // we are the only guaranteed source
-          if (jedis.hset(config.getWorkersHashName(), shardWorker.getEndpoint(), json) == 1) {
+          if (jedis.hset(
+                  SafeEncoder.encode(config.getWorkersHashName()),
+                  SafeEncoder.encode(shardWorker.getEndpoint()),
+                  RedisRecords.encode(json))
+              == 1) {
             jedis.publish(config.getWorkerChannel(), workerChangeJson);
             return true;
           }
@@ -713,7 +908,7 @@ public class RedisShardBackplane implements Backplane {
             .setName(name)
             .setRemove(WorkerChange.Remove.newBuilder().setSource(source).setReason(reason).build())
             .build();
-    String workerChangeJson = JsonFormat.printer().print(workerChange);
+    String workerChangeJson = records.print(workerChange);
     return subscriber.removeWorker(name)
         && client.call(jedis -> removeWorkerAndPublish(jedis, name, workerChangeJson));
   }
@@ -795,7 +990,7 @@ public class RedisShardBackplane implements Backplane {
                     WorkerChange.Remove.newBuilder().setSource(source).setReason(reason).build())
                 .build();
         try {
-          String workerChangeJson = JsonFormat.printer().print(workerChange);
+          String workerChangeJson = records.print(workerChange);
           removeWorkerAndPublish(jedis, name, workerChangeJson);
         } catch (InvalidProtocolBufferException e) {
           logger.log(Level.SEVERE, "error printing workerChange", e);
@@ -807,7 +1002,9 @@ public class RedisShardBackplane implements Backplane {
   private Set<String> fetchAndExpireWorkers(JedisCluster jedis, long now) {
     Set<String> workers = Sets.newConcurrentHashSet();
     ImmutableList.Builder<ShardWorker> invalidWorkers = ImmutableList.builder();
-    for (Map.Entry<String, String> entry : jedis.hgetAll(config.getWorkersHashName()).entrySet()) {
+    Map<String, String> workerRecords =
+        RedisRecords.decode(jedis.hgetAll(SafeEncoder.encode(config.getWorkersHashName())));
+    for (Map.Entry<String, String> entry : workerRecords.entrySet()) {
       String json = entry.getValue();
       String name = entry.getKey();
       try {
@@ -815,7 +1012,7 @@ public class RedisShardBackplane implements Backplane {
           invalidWorkers.add(ShardWorker.newBuilder().setEndpoint(name).build());
         } else {
           ShardWorker.Builder builder = ShardWorker.newBuilder();
-          JsonFormat.parser().merge(json, builder);
+          RedisRecords.merge(json, builder);
           ShardWorker worker = builder.build();
           if (worker.getExpireAt() <= now) {
             invalidWorkers.add(worker);
@@ -834,7 +1031,7 @@ public class RedisShardBackplane implements Backplane {
   private static ActionResult parseActionResult(String json) {
     try {
       ActionResult.Builder builder = ActionResult.newBuilder();
-      JsonFormat.parser().merge(json, builder);
+      RedisRecords.merge(json, builder);
       return builder.build();
     } catch (InvalidProtocolBufferException e) {
       return null;
@@ -864,7 +1061,7 @@ public class RedisShardBackplane implements Backplane {
 
   @Override
   public void putActionResult(ActionKey actionKey, ActionResult actionResult) throws IOException {
-    String json = JsonFormat.printer().print(actionResult);
+    String json = records.print(actionResult);
     client.run(
         jedis ->
             actionCache.insert(jedis, asDigestStr(actionKey), json, config.getActionCacheExpire()));
@@ -909,14 +1106,14 @@ public class RedisShardBackplane implements Backplane {
               ScanResult<String> scanResult = jedis.scan(jedisScanToken, scanParams);
               List<String> keyResults = scanResult.getResult();
 
-              List<Response<String>> actionResults = new ArrayList<>(keyResults.size());
+              List<Response<byte[]>> actionResults = new ArrayList<>(keyResults.size());
               JedisClusterPipeline p = jedis.pipelined();
               for (String key : keyResults) {
-                actionResults.add(p.get(key));
+                actionResults.add(p.get(SafeEncoder.encode(key)));
               }
               p.sync();
               for (int i = 0; i < keyResults.size(); i++) {
-                String json = actionResults.get(i).get();
+                String json = RedisRecords.decode(actionResults.get(i).get());
                 if (json == null) {
                   continue;
                 }
@@ -983,14 +1180,14 @@ public class RedisShardBackplane implements Backplane {
   public static WorkerChange parseWorkerChange(String workerChangeJson)
       throws InvalidProtocolBufferException {
     WorkerChange.Builder workerChange = WorkerChange.newBuilder();
-    JsonFormat.parser().merge(workerChangeJson, workerChange);
+    RedisRecords.merge(workerChangeJson, workerChange);
     return workerChange.build();
   }
 
   public static OperationChange parseOperationChange(String operationChangeJson)
       throws InvalidProtocolBufferException {
     OperationChange.Builder operationChange = OperationChange.newBuilder();
-    operationParser.merge(operationChangeJson, operationChange);
+    RedisRecords.merge(operationChangeJson, operationParser, operationChange);
     return operationChange.build();
   }
 
@@ -1000,7 +1197,7 @@ public class RedisShardBackplane implements Backplane {
     }
     try {
       Operation.Builder operationBuilder = Operation.newBuilder();
-      operationParser.merge(operationJson, operationBuilder);
+      RedisRecords.merge(operationJson, operationParser, operationBuilder);
       return operationBuilder.build();
     } catch (InvalidProtocolBufferException e) {
       logger.log(Level.SEVERE, "error parsing operation from " + operationJson, e);
@@ -1009,7 +1206,14 @@ public class RedisShardBackplane implements Backplane {
   }
 
   private String getOperation(JedisCluster jedis, String operationName) {
-    return jedis.get(operationKey(operationName));
+    return RedisRecords.decode(jedis.get(SafeEncoder.encode(operationKey(operationName))));
+  }
+
+  private void setOperation(JedisCluster jedis, String operationName, String operationJson) {
+    jedis.setex(
+        SafeEncoder.encode(operationKey(operationName)),
+        config.getOperationExpire(),
+        RedisRecords.encode(operationJson));
   }
 
   @Override
@@ -1031,7 +1235,7 @@ public class RedisShardBackplane implements Backplane {
 
     String json;
     try {
-      json = operationPrinter.print(operation);
+      json = operationRecords.print(operation);
     } catch (InvalidProtocolBufferException e) {
       logger.log(Level.SEVERE, "error printing operation " + operation.getName(), e);
       return false;
@@ -1047,7 +1251,7 @@ public class RedisShardBackplane implements Backplane {
     String name = operation.getName();
     client.run(
         jedis -> {
-          jedis.setex(operationKey(name), config.getOperationExpire(), json);
+          setOperation(jedis, name, json);
           if (publishOperation != null) {
             publishReset(jedis, publishOperation);
           }
@@ -1062,41 +1266,44 @@ public class RedisShardBackplane implements Backplane {
       JedisCluster jedis,
       String operationName,
       List<Platform.Property> provisions,
-      String queueEntryJson) {
+      String queueEntryJson,
+      int priority) {
     if (jedis.hdel(config.getDispatchedOperationsHashName(), operationName) == 1) {
       logger.log(Level.WARNING, format("removed dispatched operation %s", operationName));
     }
-    operationQueue.push(jedis, provisions, queueEntryJson);
+    operationQueue.push(jedis, provisions, queueEntryJson, priority);
+  }
+
+  private static int priority(QueueEntry queueEntry) {
+    return queueEntry.getExecuteEntry().getExecutionPolicy().getPriority();
   }
 
   @Override
   public void queue(QueueEntry queueEntry, Operation operation) throws IOException {
     String operationName = operation.getName();
-    String operationJson = operationPrinter.print(operation);
-    String queueEntryJson = JsonFormat.printer().print(queueEntry);
+    String operationJson = operationRecords.print(operation);
+    String queueEntryJson = records.print(queueEntry);
     Operation publishOperation = onPublish.apply(operation);
     client.run(
         jedis -> {
-          jedis.setex(operationKey(operationName), config.getOperationExpire(), operationJson);
+          setOperation(jedis, operationName, operationJson);
           queue(
               jedis,
               operation.getName(),
               queueEntry.getPlatform().getPropertiesList(),
-              queueEntryJson);
+              queueEntryJson,
+              priority(queueEntry));
           publishReset(jedis, publishOperation);
         });
   }
 
   public Map<String, Operation> getOperationsMap() throws IOException {
-    ImmutableMap.Builder<String, String> builder = new ImmutableMap.Builder<>();
-    client.run(
-        jedis -> {
-          for (Map.Entry<String, String> entry :
-              jedis.hgetAll(config.getDispatchedOperationsHashName()).entrySet()) {
-            builder.put(entry.getKey(), entry.getValue());
-          }
-        });
-    return Maps.transformValues(builder.build(), RedisShardBackplane::parseOperationJson);
+    Map<String, String> dispatchedOperations =
+        client.call(
+            jedis ->
+                RedisRecords.decode(
+                    jedis.hgetAll(SafeEncoder.encode(config.getDispatchedOperationsHashName()))));
+    return Maps.transformValues(dispatchedOperations, RedisShardBackplane::parseOperationJson);
   }
 
   @Override
@@ -1115,14 +1322,17 @@ public class RedisShardBackplane implements Backplane {
   public ImmutableList<DispatchedOperation> getDispatchedOperations() throws IOException {
     ImmutableList.Builder<DispatchedOperation> builder = new ImmutableList.Builder<>();
     Map<String, String> dispatchedOperations =
-        client.call(jedis -> jedis.hgetAll(config.getDispatchedOperationsHashName()));
+        client.call(
+            jedis ->
+                RedisRecords.decode(
+                    jedis.hgetAll(SafeEncoder.encode(config.getDispatchedOperationsHashName()))));
     ImmutableList.Builder<String> invalidOperationNames = new ImmutableList.Builder<>();
     boolean hasInvalid = false;
     // executor work queue?
     for (Map.Entry<String, String> entry : dispatchedOperations.entrySet()) {
       try {
         DispatchedOperation.Builder dispatchedOperationBuilder = DispatchedOperation.newBuilder();
-        JsonFormat.parser().merge(entry.getValue(), dispatchedOperationBuilder);
+        RedisRecords.merge(entry.getValue(), dispatchedOperationBuilder);
         builder.add(dispatchedOperationBuilder.build());
       } catch (InvalidProtocolBufferException e) {
         logger.log(
@@ -1149,15 +1359,74 @@ public class RedisShardBackplane implements Backplane {
     return builder.build();
   }
 
+  private String tenant(RequestMetadata requestMetadata) {
+    switch (config.getFairShareKey()) {
+      case TOOL_INVOCATION_ID:
+        return requestMetadata.getToolInvocationId();
+      case CORRELATED_INVOCATIONS_ID:
+        return requestMetadata.getCorrelatedInvocationsId();
+      case TOOL_NAME:
+        return requestMetadata.getToolDetails().getToolName();
+      default:
+        return "";
+    }
+  }
+
+  private boolean hasTenantLimit() {
+    return config.getFairShareKey() != FairShareKey.NONE && config.getMaxTenantOperations() > 0;
+  }
+
+  private String tenantOperationsKey(String tenant) {
+    return RedisHashtags.unhashedName(config.getPreQueuedOperationsListName())
+        + "_tenant_operations:"
+        + tenant;
+  }
+
+  private String operationTenantKey(String operationName) {
+    return RedisHashtags.unhashedName(config.getPreQueuedOperationsListName())
+        + "_operation_tenant:"
+        + operationName;
+  }
+
+  // the operations of a tenant expire from its count with the operation itself, in case their
+  // completion is missed
+  private boolean isTenantEligible(JedisCluster jedis, String tenant) {
+    String key = tenantOperationsKey(tenant);
+    jedis.zremrangeByScore(key, Double.NEGATIVE_INFINITY, System.currentTimeMillis());
+    return jedis.zcard(key) < config.getMaxTenantOperations();
+  }
+
+  private void startTenantOperation(JedisCluster jedis, String tenant, String operationName) {
+    String key = tenantOperationsKey(tenant);
+    long expiresAt = System.currentTimeMillis() + config.getOperationExpire() * 1000L;
+    jedis.zadd(key, expiresAt, operationName);
+    jedis.expire(key, config.getOperationExpire());
+    jedis.setex(operationTenantKey(operationName), config.getOperationExpire(), tenant);
+  }
+
+  private void completeTenantOperation(JedisCluster jedis, String operationName) {
+    String key = operationTenantKey(operationName);
+    String tenant = jedis.get(key);
+    if (tenant != null) {
+      jedis.zrem(tenantOperationsKey(tenant), operationName);
+      jedis.del(key);
+    }
+  }
+
   private ExecuteEntry deprequeueOperation(JedisCluster jedis) throws InterruptedException {
-    String executeEntryJson = prequeue.dequeue(jedis);
+    String executeEntryJson;
+    if (hasTenantLimit()) {
+      executeEntryJson = prequeue.dequeue(jedis, tenant -> isTenantEligible(jedis, tenant));
+    } else {
+      executeEntryJson = prequeue.dequeue(jedis);
+    }
     if (executeEntryJson == null) {
       return null;
     }
 
     ExecuteEntry.Builder executeEntryBuilder = ExecuteEntry.newBuilder();
     try {
-      JsonFormat.parser().merge(executeEntryJson, executeEntryBuilder);
+      RedisRecords.merge(executeEntryJson, executeEntryBuilder);
       ExecuteEntry executeEntry = executeEntryBuilder.build();
       String operationName = executeEntry.getOperationName();
 
@@ -1173,6 +1442,17 @@ public class RedisShardBackplane implements Backplane {
         return null;
       }
       processingOperations.remove(jedis, operationName);
+      if (config.getFairShareKey() != FairShareKey.NONE) {
+        String tenant = tenant(executeEntry.getRequestMetadata());
+        // an access of a present tenant extends its expiration without replacing it
+        prequeueWaitTenants.asMap().putIfAbsent(tenant, true);
+        long waitMillis =
+            System.currentTimeMillis() - Timestamps.toMillis(executeEntry.getQueuedTimestamp());
+        prequeueWaitTime.labels(tenant).observe(waitMillis / 1000.0);
+        if (hasTenantLimit()) {
+          startTenantOperation(jedis, tenant, operationName);
+        }
+      }
       return executeEntry;
     } catch (InvalidProtocolBufferException e) {
       logger.log(Level.SEVERE, "error parsing execute entry", e);
@@ -1185,56 +1465,165 @@ public class RedisShardBackplane implements Backplane {
     return client.blockingCall(this::deprequeueOperation);
   }
 
-  private QueueEntry dispatchOperation(JedisCluster jedis, List<Platform.Property> provisions)
-      throws InterruptedException {
-    String queueEntryJson = operationQueue.dequeue(jedis, provisions);
-    if (queueEntryJson == null) {
-      return null;
+  private static class DequeuedEntry {
+    final String queueEntryJson;
+    final QueueEntry queueEntry;
+    final DispatchedOperation dispatchedOperation;
+
+    DequeuedEntry(
+        String queueEntryJson, QueueEntry queueEntry, DispatchedOperation dispatchedOperation) {
+      this.queueEntryJson = queueEntryJson;
+      this.queueEntry = queueEntry;
+      this.dispatchedOperation = dispatchedOperation;
     }
 
+    String getOperationName() {
+      return queueEntry.getExecuteEntry().getOperationName();
+    }
+  }
+
+  private @Nullable DequeuedEntry parseDequeuedEntry(String queueEntryJson, long requeueAt) {
     QueueEntry.Builder queueEntryBuilder = QueueEntry.newBuilder();
     try {
-      JsonFormat.parser().merge(queueEntryJson, queueEntryBuilder);
+      RedisRecords.merge(queueEntryJson, queueEntryBuilder);
     } catch (InvalidProtocolBufferException e) {
       logger.log(Level.SEVERE, "error parsing queue entry", e);
       return null;
     }
     QueueEntry queueEntry =
         queueEntryBuilder.setRequeueAttempts(queueEntryBuilder.getRequeueAttempts() + 1).build();
+    DispatchedOperation o =
+        DispatchedOperation.newBuilder().setQueueEntry(queueEntry).setRequeueAt(requeueAt).build();
+    return new DequeuedEntry(queueEntryJson, queueEntry, o);
+  }
 
-    String operationName = queueEntry.getExecuteEntry().getOperationName();
+  private List<QueueEntry> dispatchOperations(
+      JedisCluster jedis, List<Platform.Property> provisions, int maxEntries)
+      throws InterruptedException {
+    String queueEntryJson = operationQueue.dequeue(jedis, provisions);
+    if (queueEntryJson == null) {
+      return ImmutableList.of();
+    }
+    List<String> queueEntryJsons = new ArrayList<>(maxEntries);
+    queueEntryJsons.add(queueEntryJson);
+    if (maxEntries > 1) {
+      // the rest of the batch is whatever is immediately available
+      queueEntryJsons.addAll(operationQueue.nonBlockingDequeue(jedis, provisions, maxEntries - 1));
+    }
+
+    long requeueAt = System.currentTimeMillis() + config.getDispatchingTimeoutMillis();
+    List<DequeuedEntry> entries = new ArrayList<>(queueEntryJsons.size());
+    for (String json : queueEntryJsons) {
+      DequeuedEntry entry = parseDequeuedEntry(json, requeueAt);
+      if (entry != null) {
+        entries.add(entry);
+      }
+    }
+    if (entries.isEmpty()) {
+      return ImmutableList.of();
+    }
+
+    RedisQueue queue = scriptQueue(provisions);
+    List<DequeuedEntry> dispatched;
+    long startTime = System.nanoTime();
+    if (queue != null) {
+      dispatched = dispatchWithScript(jedis, queue, entries);
+      dispatchOperationTime.labels("script").observe((System.nanoTime() - startTime) / 1e9);
+    } else {
+      dispatched = new ArrayList<>(entries.size());
+      for (DequeuedEntry entry : entries) {
+        if (dispatchWithCommands(jedis, entry)) {
+          dispatched.add(entry);
+        }
+      }
+      dispatchOperationTime.labels("commands").observe((System.nanoTime() - startTime) / 1e9);
+    }
+    ImmutableList.Builder<QueueEntry> queueEntries = ImmutableList.builder();
+    for (DequeuedEntry entry : dispatched) {
+      dispatchedOperations.remove(jedis, entry.getOperationName());
+      queueEntries.add(entry.queueEntry);
+    }
+    return queueEntries.build();
+  }
+
+  // the queue that scripts move operations to and from, if they are enabled
+  private @Nullable RedisQueue scriptQueue(List<Platform.Property> provisions) {
+    if (!config.getDispatchScripts()) {
+      return null;
+    }
+    return operationQueue.getUnbalancedQueue(provisions);
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<DequeuedEntry> dispatchWithScript(
+      JedisCluster jedis, RedisQueue queue, List<DequeuedEntry> entries) {
+    List<String> keys =
+        ImmutableList.of(config.getDispatchedOperationsHashName(), queue.getDequeueName());
+    ImmutableList.Builder<byte[]> args = ImmutableList.builder();
+    try {
+      for (DequeuedEntry entry : entries) {
+        String operationName = entry.getOperationName();
+        // the reset is published, and subscribers receive strings
+        args.add(
+            SafeEncoder.encode(operationName),
+            RedisRecords.encode(records.print(entry.dispatchedOperation)),
+            RedisRecords.encode(entry.queueEntryJson),
+            SafeEncoder.encode(operationChannel(operationName)),
+            SafeEncoder.encode(printReset(keepaliveOperation(operationName))));
+      }
+    } catch (InvalidProtocolBufferException e) {
+      logger.log(Level.SEVERE, "error printing dispatched operation", e);
+      // very unlikely, printer would have to fail
+      return ImmutableList.of();
+    }
+    List<Long> results = (List<Long>) dispatchScript.evalBinary(jedis, keys, args.build());
+    List<DequeuedEntry> dispatched = new ArrayList<>(entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      DequeuedEntry entry = entries.get(i);
+      long result = results.get(i);
+      if (result == 1) {
+        logger.log(
+            Level.WARNING,
+            format(
+                "operation %s was missing in %s, may be orphaned",
+                entry.getOperationName(), queue.getDequeueName()));
+      }
+      if (result != 0) {
+        dispatched.add(entry);
+      }
+    }
+    return dispatched;
+  }
+
+  private boolean dispatchWithCommands(JedisCluster jedis, DequeuedEntry entry) {
+    String operationName = entry.getOperationName();
     Operation operation = keepaliveOperation(operationName);
     publishReset(jedis, operation);
 
-    long requeueAt = System.currentTimeMillis() + config.getDispatchingTimeoutMillis();
-    DispatchedOperation o =
-        DispatchedOperation.newBuilder().setQueueEntry(queueEntry).setRequeueAt(requeueAt).build();
     boolean success = false;
     try {
-      String dispatchedOperationJson = JsonFormat.printer().print(o);
+      String dispatchedOperationJson = records.print(entry.dispatchedOperation);
 
       /* if the operation is already in the dispatch list, fail the dispatch */
       long result =
           jedis.hsetnx(
-              config.getDispatchedOperationsHashName(), operationName, dispatchedOperationJson);
+              SafeEncoder.encode(config.getDispatchedOperationsHashName()),
+              SafeEncoder.encode(operationName),
+              RedisRecords.encode(dispatchedOperationJson));
       success = result == 1;
     } catch (InvalidProtocolBufferException e) {
       logger.log(Level.SEVERE, "error printing dispatched operation", e);
       // very unlikely, printer would have to fail
     }
 
-    if (success) {
-      if (!operationQueue.removeFromDequeue(jedis, queueEntryJson)) {
-        logger.log(
-            Level.WARNING,
-            format(
-                "operation %s was missing in %s, may be orphaned",
-                operationName, operationQueue.getDequeueName()));
-      }
-      dispatchedOperations.remove(jedis, operationName);
-      return queueEntry;
+    if (success && !operationQueue.removeFromDequeue(jedis, entry.queueEntryJson)) {
+      logger.log(
+          Level.WARNING,
+          format(
+              "operation %s was missing in %s, may be orphaned",
+              operationName, operationQueue.getDequeueName()));
     }
-    return null;
+    return success;
   }
 
   @Override
@@ -1242,21 +1631,27 @@ public class RedisShardBackplane implements Backplane {
       throws IOException, InterruptedException {
     return client.blockingCall(
         jedis -> {
-          return dispatchOperation(jedis, provisions);
+          return Iterables.getOnlyElement(dispatchOperations(jedis, provisions, 1), null);
         });
   }
 
+  @Override
+  public List<QueueEntry> dispatchOperations(List<Platform.Property> provisions, int maxEntries)
+      throws IOException, InterruptedException {
+    return client.blockingCall(jedis -> dispatchOperations(jedis, provisions, maxEntries));
+  }
+
   String printPollOperation(QueueEntry queueEntry, ExecutionStage.Value stage, long requeueAt)
       throws InvalidProtocolBufferException {
     DispatchedOperation o =
         DispatchedOperation.newBuilder().setQueueEntry(queueEntry).setRequeueAt(requeueAt).build();
-    return JsonFormat.printer().print(o);
+    return records.print(o);
   }
 
   @Override
   public void rejectOperation(QueueEntry queueEntry) throws IOException {
     String operationName = queueEntry.getExecuteEntry().getOperationName();
-    String queueEntryJson = JsonFormat.printer().print(queueEntry);
+    String queueEntryJson = records.print(queueEntry);
     String dispatchedEntryJson = printPollOperation(queueEntry, ExecutionStage.Value.QUEUED, 0);
     client.run(
         jedis -> {
@@ -1267,10 +1662,22 @@ public class RedisShardBackplane implements Backplane {
             Operation operation = parseOperationJson(getOperation(jedis, operationName));
             boolean requeue =
                 operation != null && !operation.getDone(); // operation removed or completed somehow
-            if (jedis.hdel(config.getDispatchedOperationsHashName(), operationName) == 1
+            RedisQueue queue = scriptQueue(queueEntry.getPlatform().getPropertiesList());
+            if (requeue && queue != null) {
+              rejectScript.evalBinary(
+                  jedis,
+                  ImmutableList.of(
+                      config.getDispatchedOperationsHashName(),
+                      queue.getName(priority(queueEntry))),
+                  ImmutableList.of(
+                      SafeEncoder.encode(operationName), RedisRecords.encode(queueEntryJson)));
+            } else if (jedis.hdel(config.getDispatchedOperationsHashName(), operationName) == 1
                 && requeue) {
               operationQueue.push(
-                  jedis, queueEntry.getPlatform().getPropertiesList(), queueEntryJson);
+                  jedis,
+                  queueEntry.getPlatform().getPropertiesList(),
+                  queueEntryJson,
+                  priority(queueEntry));
             }
           }
         });
@@ -1291,9 +1698,22 @@ public class RedisShardBackplane implements Backplane {
   }
 
   boolean pollOperation(JedisCluster jedis, String operationName, String dispatchedOperationJson) {
+    if (config.getDispatchScripts()) {
+      long result =
+          (Long)
+              pollScript.evalBinary(
+                  jedis,
+                  ImmutableList.of(config.getDispatchedOperationsHashName()),
+                  ImmutableList.of(
+                      SafeEncoder.encode(operationName),
+                      RedisRecords.encode(dispatchedOperationJson)));
+      return result == 1;
+    }
     if (jedis.hexists(config.getDispatchedOperationsHashName(), operationName)) {
       if (jedis.hset(
-              config.getDispatchedOperationsHashName(), operationName, dispatchedOperationJson)
+              SafeEncoder.encode(config.getDispatchedOperationsHashName()),
+              SafeEncoder.encode(operationName),
+              RedisRecords.encode(dispatchedOperationJson))
           == 0) {
         return true;
       }
@@ -1306,13 +1726,17 @@ public class RedisShardBackplane implements Backplane {
   @Override
   public void prequeue(ExecuteEntry executeEntry, Operation operation) throws IOException {
     String operationName = operation.getName();
-    String operationJson = operationPrinter.print(operation);
-    String executeEntryJson = JsonFormat.printer().print(executeEntry);
+    String operationJson = operationRecords.print(operation);
+    String executeEntryJson = records.print(executeEntry);
     Operation publishOperation = onPublish.apply(operation);
     client.run(
         jedis -> {
-          jedis.setex(operationKey(operationName), config.getOperationExpire(), operationJson);
-          prequeue.push(jedis, executeEntryJson);
+          setOperation(jedis, operationName, operationJson);
+          prequeue.push(
+              jedis,
+              executeEntryJson,
+              executeEntry.getExecutionPolicy().getPriority(),
+              tenant(executeEntry.getRequestMetadata()));
           publishReset(jedis, publishOperation);
         });
   }
@@ -1333,18 +1757,42 @@ public class RedisShardBackplane implements Backplane {
 
   @Override
   public void requeueDispatchedOperation(QueueEntry queueEntry) throws IOException {
-    String queueEntryJson = JsonFormat.printer().print(queueEntry);
+    String queueEntryJson = records.print(queueEntry);
     String operationName = queueEntry.getExecuteEntry().getOperationName();
     Operation publishOperation = keepaliveOperation(operationName);
+    String resetJson = config.getDispatchScripts() ? printReset(publishOperation) : null;
+    List<Platform.Property> provisions = queueEntry.getPlatform().getPropertiesList();
     client.run(
         jedis -> {
-          queue(jedis, operationName, queueEntry.getPlatform().getPropertiesList(), queueEntryJson);
-          publishReset(jedis, publishOperation);
+          RedisQueue queue = scriptQueue(provisions);
+          if (queue != null) {
+            long removed =
+                (Long)
+                    requeueScript.evalBinary(
+                        jedis,
+                        ImmutableList.of(
+                            config.getDispatchedOperationsHashName(),
+                            queue.getName(priority(queueEntry))),
+                        ImmutableList.of(
+                            SafeEncoder.encode(operationName),
+                            RedisRecords.encode(queueEntryJson),
+                            SafeEncoder.encode(operationChannel(operationName)),
+                            SafeEncoder.encode(resetJson)));
+            if (removed == 1) {
+              logger.log(Level.WARNING, format("removed dispatched operation %s", operationName));
+            }
+          } else {
+            queue(jedis, operationName, provisions, queueEntryJson, priority(queueEntry));
+            publishReset(jedis, publishOperation);
+          }
         });
   }
 
   private void completeOperation(JedisCluster jedis, String operationName) {
     jedis.hdel(config.getDispatchedOperationsHashName(), operationName);
+    if (hasTenantLimit()) {
+      completeTenantOperation(jedis, operationName);
+    }
   }
 
   @Override
@@ -17,12 +17,14 @@ package build.buildfarm.instance.shard;
 import static build.buildfarm.instance.shard.Util.SHARD_IS_RETRIABLE;
 import static build.buildfarm.instance.shard.Util.correctMissingBlob;
 import static com.google.common.util.concurrent.Futures.addCallback;
+import static com.google.common.util.concurrent.Futures.catching;
 import static com.google.common.util.concurrent.Futures.immediateFuture;
 import static com.google.common.util.concurrent.Futures.transform;
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import build.bazel.remote.execution.v2.BatchReadBlobsResponse.Response;
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.RequestMetadata;
 import build.buildfarm.backplane.Backplane;
@@ -32,6 +34,7 @@ import build.buildfarm.instance.Instance;
 import build.buildfarm.instance.shard.ShardInstance.WorkersCallback;
 import com.google.common.base.Throwables;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
@@ -46,7 +49,9 @@ import java.io.InputStream;
 import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
@@ -62,6 +67,9 @@ public class RemoteInputStreamFactory implements InputStreamFactory {
     void accept(String worker, Throwable t, String context);
   }
 
+  // an allowance for the digest and status of each response in a batch read
+  private static final int BATCH_RESPONSE_OVERHEAD = 16;
+
   private final @Nullable String publicName;
   private final Backplane backplane;
   private final Random rand;
@@ -138,6 +146,94 @@ public class RemoteInputStreamFactory implements InputStreamFactory {
     throw new NoSuchFileException(DigestUtil.toString(blobDigest));
   }
 
+  /**
+   * Reads blobs with batch requests to the workers which hold them, preferring workers already
+   * selected for other blobs, with the content of each request limited to requestSizeLimit bytes.
+   * Every digest has a single response among the results, with a NOT_FOUND status if it has no
+   * location, or the status of the failure of its request.
+   */
+  public List<ListenableFuture<Iterable<Response>>> readBlobs(
+      Iterable<Digest> blobDigests, long requestSizeLimit) throws IOException {
+    Set<String> workers = backplane.getWorkers();
+    Map<Digest, Set<String>> blobDigestsWorkers = backplane.getBlobDigestsWorkers(blobDigests);
+    Map<String, List<Digest>> workersBlobDigests = new HashMap<>();
+    ImmutableList.Builder<Response> missing = ImmutableList.builder();
+    boolean hasMissing = false;
+    for (Digest blobDigest : blobDigests) {
+      List<String> locations = new ArrayList<>();
+      for (String worker : blobDigestsWorkers.getOrDefault(blobDigest, ImmutableSet.of())) {
+        if (!worker.equals(publicName) && workers.contains(worker)) {
+          locations.add(worker);
+        }
+      }
+      if (locations.isEmpty()) {
+        missing.add(errorResponse(blobDigest, Code.NOT_FOUND.value()));
+        hasMissing = true;
+      } else {
+        String selected = null;
+        for (String worker : locations) {
+          if (workersBlobDigests.containsKey(worker)) {
+            selected = worker;
+            break;
+          }
+        }
+        if (selected == null) {
+          selected = locations.get(rand.nextInt(locations.size()));
+        }
+        workersBlobDigests.computeIfAbsent(selected, w -> new ArrayList<>()).add(blobDigest);
+      }
+    }
+
+    List<ListenableFuture<Iterable<Response>>> reads = new ArrayList<>();
+    if (hasMissing) {
+      reads.add(immediateFuture(missing.build()));
+    }
+    for (Map.Entry<String, List<Digest>> entry : workersBlobDigests.entrySet()) {
+      String worker = entry.getKey();
+      List<Digest> batch = new ArrayList<>();
+      long batchSize = 0;
+      for (Digest blobDigest : entry.getValue()) {
+        long size =
+            blobDigest.getSizeBytes() + blobDigest.getSerializedSize() + BATCH_RESPONSE_OVERHEAD;
+        if (!batch.isEmpty() && batchSize + size > requestSizeLimit) {
+          reads.add(readBatch(worker, batch));
+          batch = new ArrayList<>();
+          batchSize = 0;
+        }
+        batch.add(blobDigest);
+        batchSize += size;
+      }
+      reads.add(readBatch(worker, batch));
+    }
+    return reads;
+  }
+
+  private ListenableFuture<Iterable<Response>> readBatch(String worker, List<Digest> blobDigests) {
+    return catching(
+        workerStub(worker).getAllBlobsFuture(blobDigests),
+        Throwable.class,
+        (t) -> {
+          Status status = Status.fromThrowable(t);
+          if (status.getCode() == Code.UNAVAILABLE || status.getCode() == Code.UNIMPLEMENTED) {
+            onUnavailable.accept(
+                worker, t, String.format("getAllBlobs(%d blobs)", blobDigests.size()));
+          }
+          ImmutableList.Builder<Response> responses = ImmutableList.builder();
+          for (Digest blobDigest : blobDigests) {
+            responses.add(errorResponse(blobDigest, status.getCode().value()));
+          }
+          return responses.build();
+        },
+        directExecutor());
+  }
+
+  private static Response errorResponse(Digest blobDigest, int code) {
+    return Response.newBuilder()
+        .setDigest(blobDigest)
+        .setStatus(com.google.rpc.Status.newBuilder().setCode(code))
+        .build();
+  }
+
   @Override
   public InputStream newInput(Digest blobDigest, long offset)
       throws IOException, InterruptedException {
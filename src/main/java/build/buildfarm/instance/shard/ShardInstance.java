@@ -181,6 +181,12 @@ public class ShardInstance extends AbstractServerInstance {
       Gauge.build().name("worker_pool_size").help("Active worker pool size.").register();
   private static final Gauge queueSize =
       Gauge.build().name("queue_size").labelNames("queue_name").help("Queue size.").register();
+  private static final Gauge queueBandSize =
+      Gauge.build()
+          .name("queue_band_size")
+          .labelNames("queue_name", "band")
+          .help("Queue size by priority band.")
+          .register();
 
   private static final Summary ioMetric =
       Summary.build().name("io_bytes_read").help("I/O (bytes)").register();
@@ -494,6 +500,11 @@ public class ShardInstance extends AbstractServerInstance {
     if (queueSize != null) {
       for (QueueStatus queueStatus : queues) {
         queueSize.labels(queueStatus.getName()).set(queueStatus.getSize());
+        for (int band = 0; band < queueStatus.getBandSizesCount(); band++) {
+          queueBandSize
+              .labels(queueStatus.getName(), Integer.toString(band))
+              .set(queueStatus.getBandSizes(band));
+        }
       }
     }
   }
@@ -85,6 +85,7 @@ import build.buildfarm.v1test.ShutDownWorkerGracefullyRequest;
 import build.buildfarm.v1test.ShutDownWorkerGrpc;
 import build.buildfarm.v1test.ShutDownWorkerGrpc.ShutDownWorkerBlockingStub;
 import build.buildfarm.v1test.TakeOperationRequest;
+import build.buildfarm.v1test.TakeOperationResponse;
 import build.buildfarm.v1test.Tree;
 import build.buildfarm.v1test.WorkerListMessage;
 import build.buildfarm.v1test.WorkerListRequest;
@@ -734,6 +735,47 @@ public class StubInstance implements Instance {
     }
   }
 
+  @Override
+  public void match(Platform platform, int maxEntries, MatchListener listener)
+      throws InterruptedException {
+    throwIfStopped();
+    TakeOperationRequest request =
+        TakeOperationRequest.newBuilder()
+            .setInstanceName(getName())
+            .setPlatform(platform)
+            .setMaxEntries(maxEntries)
+            .build();
+    boolean complete = false;
+    while (!complete) {
+      listener.onWaitStart();
+      try {
+        TakeOperationResponse response;
+        try {
+          response = deadlined(operationQueueBlockingStub).takeBatch(request);
+        } finally {
+          listener.onWaitEnd();
+        }
+        complete = true;
+        // every entry has been dispatched, and a declined entry must be requeued by the listener
+        for (QueueEntry queueEntry : response.getQueueEntriesList()) {
+          listener.onEntry(queueEntry);
+        }
+      } catch (Exception e) {
+        Status status = Status.fromThrowable(e);
+        if (status.getCode() == Status.Code.CANCELLED && Thread.currentThread().isInterrupted()) {
+          InterruptedException intEx = new InterruptedException();
+          intEx.addSuppressed(e);
+          throw intEx;
+        }
+        if (status.getCode() != Status.Code.DEADLINE_EXCEEDED) {
+          listener.onError(e);
+          complete = true;
+        }
+        // ignore DEADLINE_EXCEEDED to prevent long running request behavior
+      }
+    }
+  }
+
   @Override
   public BackplaneStatus backplaneStatus() {
     throwIfStopped();
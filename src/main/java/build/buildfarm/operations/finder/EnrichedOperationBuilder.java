@@ -19,6 +19,7 @@ import build.bazel.remote.execution.v2.Command;
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.ExecuteOperationMetadata;
 import build.bazel.remote.execution.v2.RequestMetadata;
+import build.buildfarm.common.redis.RedisRecords;
 import build.buildfarm.instance.Instance;
 import build.buildfarm.instance.Utils;
 import build.buildfarm.operations.EnrichedOperation;
@@ -33,6 +34,7 @@ import com.google.rpc.PreconditionFailure;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.util.SafeEncoder;
 
 /**
  * @class EnrichedOperationBuilder
@@ -86,7 +88,7 @@ public class EnrichedOperationBuilder {
    * @note Suggested return identifier: operation.
    */
   private static Operation operationKeyToOperation(JedisCluster cluster, String operationKey) {
-    String json = cluster.get(operationKey);
+    String json = RedisRecords.decode(cluster.get(SafeEncoder.encode(operationKey)));
     return jsonToOperation(json);
   }
 
@@ -117,7 +119,7 @@ public class EnrichedOperationBuilder {
     }
     try {
       Operation.Builder operationBuilder = Operation.newBuilder();
-      operationParser.merge(json, operationBuilder);
+      RedisRecords.merge(json, operationParser, operationBuilder);
       return operationBuilder.build();
     } catch (InvalidProtocolBufferException e) {
       logger.log(Level.WARNING, "InvalidProtocolBufferException while building an operation.", e);
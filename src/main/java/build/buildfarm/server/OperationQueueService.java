@@ -23,6 +23,7 @@ import build.buildfarm.v1test.OperationQueueGrpc;
 import build.buildfarm.v1test.PollOperationRequest;
 import build.buildfarm.v1test.QueueEntry;
 import build.buildfarm.v1test.TakeOperationRequest;
+import build.buildfarm.v1test.TakeOperationResponse;
 import com.google.common.base.Throwables;
 import com.google.longrunning.Operation;
 import com.google.rpc.Code;
@@ -31,6 +32,7 @@ import io.grpc.StatusRuntimeException;
 import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import java.util.function.Consumer;
+import javax.annotation.concurrent.GuardedBy;
 
 public class OperationQueueService extends OperationQueueGrpc.OperationQueueImplBase {
   private final Instances instances;
@@ -118,6 +120,117 @@ public class OperationQueueService extends OperationQueueGrpc.OperationQueueImpl
     }
   }
 
+  // buffers the entries matched synchronously, and responds with them once the match returns.
+  // Entries matched to a waiting listener afterwards are responded to immediately.
+  private static class BatchMatchListener implements MatchListener {
+    private final Instance instance;
+    private final int maxEntries;
+    private final StreamObserver<TakeOperationResponse> responseObserver;
+    private final Consumer<Runnable> setOnCancelHandler;
+
+    @GuardedBy("this")
+    private final TakeOperationResponse.Builder response = TakeOperationResponse.newBuilder();
+
+    @GuardedBy("this")
+    private boolean returned = false;
+
+    @GuardedBy("this")
+    private boolean completed = false;
+
+    BatchMatchListener(
+        Instance instance,
+        int maxEntries,
+        StreamObserver<TakeOperationResponse> responseObserver,
+        Consumer<Runnable> setOnCancelHandler) {
+      this.instance = instance;
+      this.maxEntries = maxEntries;
+      this.responseObserver = responseObserver;
+      this.setOnCancelHandler = setOnCancelHandler;
+    }
+
+    @Override
+    public void onWaitStart() {}
+
+    @Override
+    public void onWaitEnd() {}
+
+    @Override
+    public synchronized boolean onEntry(QueueEntry queueEntry) throws InterruptedException {
+      if (queueEntry == null || completed || response.getQueueEntriesCount() == maxEntries) {
+        return false;
+      }
+      response.addQueueEntries(queueEntry);
+      if (returned) {
+        return respond();
+      }
+      return true;
+    }
+
+    synchronized void onReturned() throws InterruptedException {
+      returned = true;
+      if (!completed && response.getQueueEntriesCount() != 0) {
+        respond();
+      }
+    }
+
+    @GuardedBy("this")
+    private boolean respond() throws InterruptedException {
+      completed = true;
+      try {
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+        return true;
+      } catch (StatusRuntimeException e) {
+        Status status = Status.fromThrowable(e);
+        if (status.getCode() != Status.Code.CANCELLED) {
+          responseObserver.onError(e);
+        }
+      }
+      for (QueueEntry queueEntry : response.getQueueEntriesList()) {
+        String operationName = queueEntry.getExecuteEntry().getOperationName();
+        instance.putOperation(instance.getOperation(operationName));
+      }
+      return false;
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      Throwables.throwIfUnchecked(t);
+      throw new RuntimeException(t);
+    }
+
+    @Override
+    public void setOnCancelHandler(Runnable onCancelHandler) {
+      setOnCancelHandler.accept(onCancelHandler);
+    }
+  }
+
+  @Override
+  public void takeBatch(
+      TakeOperationRequest request, StreamObserver<TakeOperationResponse> responseObserver) {
+    Instance instance;
+    try {
+      instance = instances.get(request.getInstanceName());
+    } catch (InstanceNotFoundException e) {
+      responseObserver.onError(BuildFarmInstances.toStatusException(e));
+      return;
+    }
+
+    ServerCallStreamObserver<TakeOperationResponse> callObserver =
+        (ServerCallStreamObserver<TakeOperationResponse>) responseObserver;
+
+    int maxEntries = Math.max(request.getMaxEntries(), 1);
+    BatchMatchListener listener =
+        new BatchMatchListener(
+            instance, maxEntries, responseObserver, callObserver::setOnCancelHandler);
+    try {
+      instance.match(request.getPlatform(), maxEntries, listener);
+      listener.onReturned();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   @Override
   public void status(
       BackplaneStatusRequest request, StreamObserver<BackplaneStatus> responseObserver) {
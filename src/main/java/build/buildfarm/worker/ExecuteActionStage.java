@@ -134,7 +134,7 @@ public class ExecuteActionStage extends SuperscalarPipelineStage {
     OperationContext operationContext = take();
     ResourceLimits limits = workerContext.commandExecutionSettings(operationContext.command);
     Executor executor = new Executor(workerContext, operationContext, this);
-    Thread executorThread = new Thread(() -> executor.run(limits));
+    Thread executorThread = workerContext.getThreadFactory().newThread(() -> executor.run(limits));
 
     synchronized (this) {
       executors.add(executorThread);
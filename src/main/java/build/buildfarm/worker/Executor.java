@@ -30,12 +30,17 @@ import build.buildfarm.common.Write;
 import build.buildfarm.common.Write.NullWrite;
 import build.buildfarm.v1test.ExecutingOperationMetadata;
 import build.buildfarm.v1test.ExecutionPolicy;
+import build.buildfarm.v1test.ExecutionResourceUsage;
 import build.buildfarm.v1test.ExecutionWrapper;
 import build.buildfarm.worker.WorkerContext.IOResource;
+import build.buildfarm.worker.persistent.PersistentWork;
+import build.buildfarm.worker.persistent.PersistentWorkerPool;
 import build.buildfarm.worker.resources.ResourceLimits;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.shell.Protos.ExecutionStatistics;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
 import com.google.longrunning.Operation;
 import com.google.protobuf.Any;
 import com.google.protobuf.ByteString;
@@ -52,8 +57,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 class Executor {
   private static final int INCOMPLETE_EXIT_CODE = -1;
@@ -174,6 +181,24 @@ class Executor {
     }
   }
 
+  /**
+   * Persistent workers are started without the wrappers of any action they serve, and so may only
+   * serve actions which would run under no wrapper, from either their policies or the limits of
+   * their execution.
+   */
+  static boolean isPersistentWorkAllowed(
+      Iterable<ExecutionPolicy> policies, List<String> limitArguments) {
+    if (!limitArguments.isEmpty()) {
+      return false;
+    }
+    for (ExecutionPolicy policy : policies) {
+      if (policy.getPolicyCase() == WRAPPER) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   private long executePolled(
       Operation operation,
       ResourceLimits limits,
@@ -203,36 +228,62 @@ class Executor {
     try (IOResource resource =
         workerContext.limitExecution(
             operationName, arguments, operationContext.command, workingDirectory)) {
-      for (ExecutionPolicy policy : policies) {
-        if (policy.getPolicyCase() == WRAPPER) {
-          arguments.addAll(transformWrapper(policy.getWrapper()));
+      statusCode = null;
+      PersistentWorkerPool persistentWorkerPool = workerContext.getPersistentWorkerPool();
+      if (persistentWorkerPool != null
+          && !limits.debugBeforeExecution
+          && isPersistentWorkAllowed(policies, arguments.build())) {
+        PersistentWork work = PersistentWork.parse(command, operationContext.execDir);
+        if (work != null) {
+          statusCode =
+              executePersistentWork(
+                  persistentWorkerPool,
+                  work,
+                  operationName,
+                  timeout,
+                  isDefaultTimeout,
+                  resultBuilder);
         }
       }
 
-      if (System.getProperty("os.name").contains("Win")) {
-        // Make sure that the executable path is absolute, otherwise processbuilder fails on windows
-        Iterator<String> argumentItr = command.getArgumentsList().iterator();
-        if (argumentItr.hasNext()) {
-          String exe = argumentItr.next(); // Get first element, this is the executable
-          arguments.add(workingDirectory.resolve(exe).toAbsolutePath().normalize().toString());
-          argumentItr.forEachRemaining(arg -> arguments.add(arg));
+      if (statusCode == null) {
+        for (ExecutionPolicy policy : policies) {
+          if (policy.getPolicyCase() == WRAPPER) {
+            arguments.addAll(transformWrapper(policy.getWrapper()));
+          }
         }
-      } else {
-        arguments.addAll(command.getArgumentsList());
-      }
 
-      statusCode =
-          executeCommand(
-              operationName,
-              workingDirectory,
-              arguments.build(),
-              command.getEnvironmentVariablesList(),
-              limits,
-              timeout,
-              isDefaultTimeout,
-              "", // executingMetadata.getStdoutStreamName(),
-              "", // executingMetadata.getStderrStreamName(),
-              resultBuilder);
+        if (System.getProperty("os.name").contains("Win")) {
+          // Make sure that the executable path is absolute, otherwise processbuilder fails on
+          // windows
+          Iterator<String> argumentItr = command.getArgumentsList().iterator();
+          if (argumentItr.hasNext()) {
+            String exe = argumentItr.next(); // Get first element, this is the executable
+            arguments.add(workingDirectory.resolve(exe).toAbsolutePath().normalize().toString());
+            argumentItr.forEachRemaining(arg -> arguments.add(arg));
+          }
+        } else {
+          arguments.addAll(command.getArgumentsList());
+        }
+
+        statusCode =
+            executeCommand(
+                operationName,
+                workingDirectory,
+                arguments.build(),
+                command.getEnvironmentVariablesList(),
+                limits,
+                timeout,
+                isDefaultTimeout,
+                "", // executingMetadata.getStdoutStreamName(),
+                "", // executingMetadata.getStderrStreamName(),
+                resultBuilder);
+
+        ExecutionResourceUsage usage = workerContext.getResourceUsage(operationName);
+        if (usage != null) {
+          resultBuilder.getExecutionMetadataBuilder().addAuxiliaryMetadata(Any.pack(usage));
+        }
+      }
 
       // From Bazel Test Encyclopedia:
       // If the main process of a test exits, but some of its children are still running,
@@ -389,6 +440,45 @@ class Executor {
     return arguments.build();
   }
 
+  /**
+   * Performs the work of an action on a persistent worker, returning null if there is no worker
+   * available for it. Workers are not wrapped or limited by execution policies, and outlive the
+   * resources claimed for each action.
+   */
+  private @Nullable Code executePersistentWork(
+      PersistentWorkerPool persistentWorkerPool,
+      PersistentWork work,
+      String operationName,
+      Duration timeout,
+      boolean isDefaultTimeout,
+      ActionResult.Builder resultBuilder)
+      throws IOException, InterruptedException {
+    Command command = operationContext.command;
+    WorkResponse response;
+    try {
+      response =
+          persistentWorkerPool.execute(
+              work,
+              operationContext.execDir,
+              Iterables.concat(command.getOutputFilesList(), command.getOutputDirectoriesList()),
+              timeout);
+    } catch (TimeoutException e) {
+      logger.log(
+          Level.INFO,
+          format(
+              "persistent worker timed out for %s after %ds with %s timeout",
+              operationName, timeout.getSeconds(), isDefaultTimeout ? "default" : "action"));
+      resultBuilder.setExitCode(INCOMPLETE_EXIT_CODE);
+      return Code.DEADLINE_EXCEEDED;
+    }
+    if (response == null) {
+      return null;
+    }
+    exitCode = response.getExitCode();
+    resultBuilder.setExitCode(exitCode).setStderrRaw(ByteString.copyFromUtf8(response.getOutput()));
+    return Code.OK;
+  }
+
   private Code executeCommand(
       String operationName,
       Path execDir,
@@ -472,8 +562,8 @@ class Executor {
         new ByteStringWriteReader(
             process.getErrorStream(), stderrWrite, (int) workerContext.getStandardErrorLimit());
 
-    Thread stdoutReaderThread = new Thread(stdoutReader);
-    Thread stderrReaderThread = new Thread(stderrReader);
+    Thread stdoutReaderThread = workerContext.getThreadFactory().newThread(stdoutReader);
+    Thread stderrReaderThread = workerContext.getThreadFactory().newThread(stderrReader);
     stdoutReaderThread.start();
     stderrReaderThread.start();
 
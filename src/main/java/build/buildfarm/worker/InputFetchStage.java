@@ -96,7 +96,10 @@ public class InputFetchStage extends SuperscalarPipelineStage {
   @Override
   protected void iterate() throws InterruptedException {
     OperationContext operationContext = take();
-    Thread fetcher = new Thread(new InputFetcher(workerContext, operationContext, this));
+    Thread fetcher =
+        workerContext
+            .getThreadFactory()
+            .newThread(new InputFetcher(workerContext, operationContext, this));
 
     synchronized (this) {
       fetchers.add(fetcher);
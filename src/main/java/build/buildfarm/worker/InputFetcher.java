@@ -144,6 +144,15 @@ public class InputFetcher implements Runnable {
     return null;
   }
 
+  static Map<Digest, Directory> getDirectoriesIndex(
+      QueuedOperation queuedOperation, DigestUtil digestUtil) {
+    if (queuedOperation.hasTree()) {
+      return DigestUtil.proxyDirectoriesIndex(queuedOperation.getTree().getDirectories());
+    }
+    // TODO remove legacy interpretation and field after transition
+    return digestUtil.createDirectoriesIndex(queuedOperation.getLegacyTree());
+  }
+
   private long fetchPolled(Stopwatch stopwatch) throws InterruptedException {
     String operationName = operationContext.queueEntry.getExecuteEntry().getOperationName();
     logger.log(Level.FINE, format("fetching inputs: %s", operationName));
@@ -159,21 +168,17 @@ public class InputFetcher implements Runnable {
     QueuedOperation queuedOperation;
     Path execDir;
     try {
-      queuedOperation = workerContext.getQueuedOperation(operationContext.queueEntry);
+      queuedOperation = operationContext.queuedOperation;
+      if (queuedOperation == null) {
+        queuedOperation = workerContext.getQueuedOperation(operationContext.queueEntry);
+      }
       if (queuedOperation == null || !isQueuedOperationValid(queuedOperation)) {
         logger.log(Level.SEVERE, format("invalid queued operation: %s", operationName));
         owner.error().put(operationContext);
         return 0;
       }
 
-      if (queuedOperation.hasTree()) {
-        directoriesIndex =
-            DigestUtil.proxyDirectoriesIndex(queuedOperation.getTree().getDirectories());
-      } else {
-        // TODO remove legacy interpretation and field after transition
-        directoriesIndex =
-            workerContext.getDigestUtil().createDirectoriesIndex(queuedOperation.getLegacyTree());
-      }
+      directoriesIndex = getDirectoriesIndex(queuedOperation, workerContext.getDigestUtil());
 
       execDir =
           workerContext.createExecDir(
@@ -241,6 +246,7 @@ public class InputFetcher implements Runnable {
             .setExecDir(execDir)
             .setAction(action)
             .setCommand(command)
+            .setQueuedOperation(null)
             .build();
     boolean claimed = owner.output().claim(fetchedOperationContext);
     operationContext.poller.pause();
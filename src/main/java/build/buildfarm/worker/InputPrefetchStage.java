@@ -0,0 +1,260 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static build.bazel.remote.execution.v2.ExecutionStage.Value.QUEUED;
+import static com.google.common.util.concurrent.Futures.addCallback;
+import static com.google.common.util.concurrent.Futures.getDone;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.google.common.util.concurrent.Futures.transformAsync;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import build.buildfarm.v1test.QueuedOperation;
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.Deadline;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Summary;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * Holds matched operations until they can be claimed by the input fetch stage, while the inputs of
+ * each are fetched into storage. The exec dir is still created by the input fetch stage, which then
+ * finds most of its inputs present, and reuses the queued operation loaded for the prefetch.
+ */
+public class InputPrefetchStage extends SuperscalarPipelineStage {
+  private static final Logger logger = Logger.getLogger(InputPrefetchStage.class.getName());
+  private static final Gauge inputPrefetchSlotUsage =
+      Gauge.build().name("input_prefetch_slot_usage").help("Input prefetch slot Usage.").register();
+  private static final Summary inputPrefetchBytes =
+      Summary.build()
+          .name("input_prefetch_bytes")
+          .help("Input bytes prefetched for an operation.")
+          .register();
+  private static final Summary inputPrefetchOverlapTime =
+      Summary.build()
+          .name("input_prefetch_overlap_time_ms")
+          .help("Input prefetch time in ms before the input fetch of an operation began.")
+          .register();
+
+  private final BlockingQueue<OperationContext> queue;
+  private final Map<String, Prefetch> prefetches = new ConcurrentHashMap<>();
+  // loads queued operations, the inputs are fetched by the worker context
+  private final ListeningExecutorService prefetchService =
+      listeningDecorator(
+          newSingleThreadExecutor(
+              new ThreadFactoryBuilder().setNameFormat("input-prefetch-%d").build()));
+
+  private static class Prefetch {
+    final Stopwatch stopwatch = Stopwatch.createStarted();
+    final ListenableFuture<QueuedOperation> queuedOperation;
+    final ListenableFuture<Long> future;
+
+    Prefetch(ListenableFuture<QueuedOperation> queuedOperation, ListenableFuture<Long> future) {
+      this.queuedOperation = queuedOperation;
+      this.future = future;
+    }
+
+    // the queued operation if it has been loaded, to be reused by the input fetch
+    @Nullable
+    QueuedOperation getQueuedOperation() {
+      if (!queuedOperation.isDone() || queuedOperation.isCancelled()) {
+        return null;
+      }
+      try {
+        return getDone(queuedOperation);
+      } catch (ExecutionException e) {
+        return null;
+      }
+    }
+
+    // the prefetch time which has overlapped the execution of other operations so far
+    long elapsedUSecs() {
+      synchronized (stopwatch) {
+        return stopwatch.elapsed(MICROSECONDS);
+      }
+    }
+
+    void stop() {
+      synchronized (stopwatch) {
+        if (stopwatch.isRunning()) {
+          stopwatch.stop();
+        }
+      }
+    }
+  }
+
+  public InputPrefetchStage(
+      WorkerContext workerContext, PipelineStage output, PipelineStage error, int width) {
+    super("InputPrefetchStage", workerContext, output, error, width);
+    queue = new ArrayBlockingQueue<>(width);
+  }
+
+  @Override
+  protected Logger getLogger() {
+    return logger;
+  }
+
+  @Override
+  public OperationContext take() throws InterruptedException {
+    return takeOrDrain(queue);
+  }
+
+  @Override
+  public void put(OperationContext operationContext) throws InterruptedException {
+    String operationName = operationContext.queueEntry.getExecuteEntry().getOperationName();
+    // the matched operation must remain alive while it waits for an input fetch slot
+    workerContext.resumePoller(
+        operationContext.poller,
+        "InputPrefetchStage",
+        operationContext.queueEntry,
+        QUEUED,
+        () -> {},
+        Deadline.after(10, DAYS));
+    ListenableFuture<QueuedOperation> queuedOperation =
+        prefetchService.submit(() -> workerContext.getQueuedOperation(operationContext.queueEntry));
+    Prefetch prefetch = new Prefetch(queuedOperation, prefetchInputs(queuedOperation));
+    addCallback(
+        prefetch.future,
+        new FutureCallback<Long>() {
+          @Override
+          public void onSuccess(Long size) {
+            prefetch.stop();
+            inputPrefetchBytes.observe(size);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            prefetch.stop();
+            if (!prefetch.future.isCancelled()) {
+              // the input fetch stage will encounter and report any persistent failure
+              logger.log(
+                  Level.FINE, String.format("error prefetching inputs for %s", operationName), t);
+            }
+          }
+        },
+        directExecutor());
+    prefetches.put(operationName, prefetch);
+    queue.put(operationContext);
+    inputPrefetchSlotUsage.set(claims.size());
+  }
+
+  private ListenableFuture<Long> prefetchInputs(
+      ListenableFuture<QueuedOperation> queuedOperationFuture) {
+    return transformAsync(
+        queuedOperationFuture,
+        (queuedOperation) -> {
+          if (queuedOperation == null) {
+            return immediateFuture(0L);
+          }
+          Map<Digest, Directory> directoriesIndex =
+              InputFetcher.getDirectoriesIndex(queuedOperation, workerContext.getDigestUtil());
+          return workerContext.prefetchInputs(
+              directoriesIndex, queuedOperation.getAction().getInputRootDigest());
+        },
+        directExecutor());
+  }
+
+  public int getSlotUsage() {
+    return claims.size();
+  }
+
+  @Override
+  protected void interruptAll() {
+    for (Prefetch prefetch : prefetches.values()) {
+      prefetch.future.cancel(true);
+    }
+  }
+
+  @Override
+  protected int claimsRequired(OperationContext operationContext) {
+    return 1;
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    prefetchService.shutdownNow();
+  }
+
+  @Override
+  protected void iterate() throws InterruptedException {
+    OperationContext operationContext = take();
+    String operationName = operationContext.queueEntry.getExecuteEntry().getOperationName();
+    Prefetch prefetch = prefetches.remove(operationName);
+    logStart(operationName, getUsage(claims.size()));
+    long stallUSecs = 0;
+    boolean success = false;
+    try {
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      boolean claimed = output.claim(operationContext);
+      stallUSecs = stopwatch.elapsed(MICROSECONDS);
+      operationContext.poller.pause();
+      if (claimed) {
+        if (prefetch != null) {
+          inputPrefetchOverlapTime.observe(prefetch.elapsedUSecs() / 1000.0);
+        }
+        QueuedOperation queuedOperation = prefetch == null ? null : prefetch.getQueuedOperation();
+        if (queuedOperation != null) {
+          operationContext =
+              operationContext.toBuilder().setQueuedOperation(queuedOperation).build();
+        }
+        try {
+          output.put(operationContext);
+        } catch (InterruptedException e) {
+          output.release();
+          throw e;
+        }
+        success = true;
+      } else {
+        if (prefetch != null) {
+          prefetch.future.cancel(true);
+        }
+        error.put(operationContext);
+      }
+    } catch (InterruptedException e) {
+      if (prefetch != null) {
+        prefetch.future.cancel(true);
+      }
+      operationContext.poller.pause();
+      error.put(operationContext);
+      throw e;
+    } finally {
+      releaseClaim(operationName, 1);
+      inputPrefetchSlotUsage.set(claims.size());
+    }
+    logComplete(
+        operationName,
+        prefetch == null ? 0 : prefetch.elapsedUSecs(),
+        stallUSecs,
+        success ? "Success" : "Failure");
+  }
+}
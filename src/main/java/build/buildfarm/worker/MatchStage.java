@@ -18,11 +18,9 @@ import static build.bazel.remote.execution.v2.ExecutionStage.Value.QUEUED;
 import static java.util.concurrent.TimeUnit.MICROSECONDS;
 
 import build.bazel.remote.execution.v2.ExecuteOperationMetadata;
-import build.buildfarm.common.Poller;
 import build.buildfarm.instance.MatchListener;
 import build.buildfarm.v1test.ExecuteEntry;
 import build.buildfarm.v1test.QueueEntry;
-import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
 import com.google.longrunning.Operation;
@@ -41,22 +39,24 @@ public class MatchStage extends PipelineStage {
   }
 
   class MatchOperationListener implements MatchListener {
-    private OperationContext operationContext;
+    private final OperationContext operationContext;
+    private final int claims;
     private Stopwatch stopwatch;
     private long waitStart;
     private long waitDuration;
-    private Poller poller = null;
-    private QueueEntry queueEntry = null;
-    private boolean matched = false;
+    private int matched = 0;
     private Runnable onCancelHandler = null; // never called, only blocking stub used
 
-    public MatchOperationListener(OperationContext operationContext, Stopwatch stopwatch) {
+    public MatchOperationListener(
+        OperationContext operationContext, int claims, Stopwatch stopwatch) {
       this.operationContext = operationContext;
+      this.claims = claims;
       this.stopwatch = stopwatch;
       waitDuration = this.stopwatch.elapsed(MICROSECONDS);
     }
 
-    boolean wasMatched() {
+    // the number of entries matched, each of which has consumed a claim
+    int getMatched() {
       return matched;
     }
 
@@ -74,18 +74,16 @@ public class MatchStage extends PipelineStage {
 
     @Override
     public boolean onEntry(@Nullable QueueEntry queueEntry) throws InterruptedException {
-      if (queueEntry == null) {
+      if (queueEntry == null || matched == claims) {
         return false;
       }
 
-      Preconditions.checkState(poller == null);
-      operationContext =
+      return onOperationPolled(
           operationContext
               .toBuilder()
               .setQueueEntry(queueEntry)
               .setPoller(workerContext.createPoller("MatchStage", queueEntry, QUEUED))
-              .build();
-      return onOperationPolled();
+              .build());
     }
 
     @Override
@@ -99,7 +97,8 @@ public class MatchStage extends PipelineStage {
       this.onCancelHandler = onCancelHandler;
     }
 
-    private boolean onOperationPolled() throws InterruptedException {
+    private boolean onOperationPolled(OperationContext operationContext)
+        throws InterruptedException {
       String operationName = operationContext.queueEntry.getExecuteEntry().getOperationName();
       logStart(operationName);
 
@@ -114,7 +113,7 @@ public class MatchStage extends PipelineStage {
         error.put(matchedOperationContext);
         throw e;
       }
-      matched = true;
+      matched++;
       return true;
     }
   }
@@ -135,12 +134,19 @@ public class MatchStage extends PipelineStage {
     if (!output.claim(operationContext)) {
       return;
     }
-    MatchOperationListener listener = new MatchOperationListener(operationContext, stopwatch);
+    // take as many operations as there are immediately available claims for
+    int claims = 1;
+    int matchBatchSize = workerContext.getMatchBatchSize();
+    while (claims < matchBatchSize && output.tryClaim(operationContext)) {
+      claims++;
+    }
+    MatchOperationListener listener =
+        new MatchOperationListener(operationContext, claims, stopwatch);
     try {
       logStart();
-      workerContext.match(listener);
+      workerContext.match(listener, claims);
     } finally {
-      if (!listener.wasMatched()) {
+      for (int i = listener.getMatched(); i < claims; i++) {
         output.release();
       }
     }
@@ -19,8 +19,10 @@ import build.bazel.remote.execution.v2.Command;
 import build.bazel.remote.execution.v2.ExecuteResponse;
 import build.buildfarm.common.Poller;
 import build.buildfarm.v1test.QueueEntry;
+import build.buildfarm.v1test.QueuedOperation;
 import com.google.longrunning.Operation;
 import java.nio.file.Path;
+import javax.annotation.Nullable;
 
 final class OperationContext {
   final ExecuteResponse.Builder executeResponse;
@@ -30,6 +32,8 @@ final class OperationContext {
   final Action action;
   final Command command;
   final QueueEntry queueEntry;
+  // loaded ahead of the input fetch, and released by it
+  final @Nullable QueuedOperation queuedOperation;
 
   private OperationContext(
       ExecuteResponse.Builder executeResponse,
@@ -38,7 +42,8 @@ final class OperationContext {
       Path execDir,
       Action action,
       Command command,
-      QueueEntry queueEntry) {
+      QueueEntry queueEntry,
+      QueuedOperation queuedOperation) {
     this.executeResponse = executeResponse;
     this.operation = operation;
     this.poller = poller;
@@ -46,6 +51,7 @@ final class OperationContext {
     this.action = action;
     this.command = command;
     this.queueEntry = queueEntry;
+    this.queuedOperation = queuedOperation;
   }
 
   public static class Builder {
@@ -56,6 +62,7 @@ final class OperationContext {
     private Action action;
     private Command command;
     private QueueEntry queueEntry;
+    private QueuedOperation queuedOperation;
 
     private Builder(
         ExecuteResponse.Builder executeResponse,
@@ -64,7 +71,8 @@ final class OperationContext {
         Path execDir,
         Action action,
         Command command,
-        QueueEntry queueEntry) {
+        QueueEntry queueEntry,
+        QueuedOperation queuedOperation) {
       this.executeResponse = executeResponse;
       this.operation = operation;
       this.poller = poller;
@@ -72,6 +80,7 @@ final class OperationContext {
       this.action = action;
       this.command = command;
       this.queueEntry = queueEntry;
+      this.queuedOperation = queuedOperation;
     }
 
     public Builder setExecuteResponseBuilder(ExecuteResponse.Builder executeResponse) {
@@ -109,9 +118,21 @@ final class OperationContext {
       return this;
     }
 
+    public Builder setQueuedOperation(QueuedOperation queuedOperation) {
+      this.queuedOperation = queuedOperation;
+      return this;
+    }
+
     public OperationContext build() {
       return new OperationContext(
-          executeResponse, operation, poller, execDir, action, command, queueEntry);
+          executeResponse,
+          operation,
+          poller,
+          execDir,
+          action,
+          command,
+          queueEntry,
+          queuedOperation);
     }
   }
 
@@ -123,10 +144,12 @@ final class OperationContext {
         /* execDir=*/ null,
         /* action=*/ null,
         /* command=*/ null,
-        /* queueEntry=*/ null);
+        /* queueEntry=*/ null,
+        /* queuedOperation=*/ null);
   }
 
   public Builder toBuilder() {
-    return new Builder(executeResponse, operation, poller, execDir, action, command, queueEntry);
+    return new Builder(
+        executeResponse, operation, poller, execDir, action, command, queueEntry, queuedOperation);
   }
 }
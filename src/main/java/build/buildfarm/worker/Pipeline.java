@@ -86,6 +86,14 @@ public class Pipeline {
               String.format("InputFetchStage is not empty with slot usage: %d!", slotUsage));
           return false;
         }
+      } else if (stage instanceof InputPrefetchStage) { // InputPrefetchStage
+        int slotUsage = ((InputPrefetchStage) stage).getSlotUsage();
+        if (slotUsage != 0) {
+          logger.log(
+              Level.INFO,
+              String.format("InputPrefetchStage is not empty with slot usage: %d!", slotUsage));
+          return false;
+        }
       } else if (stage instanceof ExecuteActionStage) { // ExecuteActionStage
         int slotUsage = ((ExecuteActionStage) stage).getSlotUsage();
         if (slotUsage != 0) {
@@ -175,6 +175,15 @@ public abstract class PipelineStage implements Runnable {
     return true;
   }
 
+  /** Claims capacity for an operation without waiting, returning false if none is available. */
+  public synchronized boolean tryClaim(OperationContext operationContext) {
+    if (closed || claimed) {
+      return false;
+    }
+    claimed = true;
+    return true;
+  }
+
   public synchronized void release() {
     claimed = false;
     notify();
@@ -14,42 +14,36 @@
 
 package build.buildfarm.worker;
 
-import static build.bazel.remote.execution.v2.ExecutionStage.Value.COMPLETED;
-import static build.bazel.remote.execution.v2.ExecutionStage.Value.EXECUTING;
-import static build.buildfarm.common.Actions.asExecutionStatus;
-import static build.buildfarm.common.Actions.isRetriable;
-import static java.util.concurrent.TimeUnit.SECONDS;
-
-import build.bazel.remote.execution.v2.ActionResult;
-import build.bazel.remote.execution.v2.ExecuteOperationMetadata;
-import build.bazel.remote.execution.v2.ExecuteResponse;
-import build.buildfarm.common.DigestUtil;
-import build.buildfarm.v1test.CompletedOperationMetadata;
-import build.buildfarm.v1test.ExecutingOperationMetadata;
-import com.google.longrunning.Operation;
-import com.google.protobuf.Any;
-import com.google.protobuf.InvalidProtocolBufferException;
-import com.google.protobuf.Timestamp;
-import com.google.protobuf.util.Timestamps;
-import com.google.rpc.Code;
-import com.google.rpc.Status;
-import io.grpc.Deadline;
-import io.grpc.StatusException;
-import io.grpc.protobuf.StatusProto;
-import java.io.IOException;
-import java.nio.channels.ClosedByInterruptException;
+import com.google.common.collect.Sets;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Summary;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class ReportResultStage extends PipelineStage {
+public class ReportResultStage extends SuperscalarPipelineStage {
   private static final Logger logger = Logger.getLogger(ReportResultStage.class.getName());
-
+  private static final Gauge reportResultSlotUsage =
+      Gauge.build().name("report_result_slot_usage").help("Report result slot Usage.").register();
+  private static final Summary reportResultTime =
+      Summary.build().name("report_result_time_ms").help("Report result time in ms.").register();
+  private static final Summary reportResultStallTime =
+      Summary.build()
+          .name("report_result_stall_time_ms")
+          .help("Report result stall time in ms.")
+          .register();
+
+  private final Set<Thread> reporters = Sets.newHashSet();
   private final BlockingQueue<OperationContext> queue = new ArrayBlockingQueue<>(1);
 
   public ReportResultStage(WorkerContext workerContext, PipelineStage output, PipelineStage error) {
-    super("ReportResultStage", workerContext, output, error);
+    super(
+        "ReportResultStage",
+        workerContext,
+        output,
+        error,
+        workerContext.getReportResultStageWidth());
   }
 
   @Override
@@ -59,7 +53,7 @@ public class ReportResultStage extends PipelineStage {
 
   @Override
   public OperationContext take() throws InterruptedException {
-    return queue.take();
+    return takeOrDrain(queue);
   }
 
   @Override
@@ -67,148 +61,55 @@ public class ReportResultStage extends PipelineStage {
     queue.put(operationContext);
   }
 
-  @Override
-  protected OperationContext tick(OperationContext operationContext) throws InterruptedException {
-    workerContext.resumePoller(
-        operationContext.poller,
-        "ReportResultStage",
-        operationContext.queueEntry,
-        EXECUTING,
-        this::cancelTick,
-        Deadline.after(60, SECONDS));
-    try {
-      return reportPolled(operationContext);
-    } finally {
-      operationContext.poller.pause();
+  synchronized int removeAndRelease(String operationName) {
+    if (!reporters.remove(Thread.currentThread())) {
+      throw new IllegalStateException("tried to remove unknown reporter thread");
     }
+    releaseClaim(operationName, 1);
+    return reporters.size();
   }
 
-  private OperationContext reportPolled(OperationContext operationContext)
-      throws InterruptedException {
-    String operationName = operationContext.operation.getName();
-
-    ActionResult.Builder resultBuilder = operationContext.executeResponse.getResultBuilder();
-    resultBuilder
-        .getExecutionMetadataBuilder()
-        .setOutputUploadStartTimestamp(Timestamps.fromMillis(System.currentTimeMillis()));
-
-    boolean blacklist = false;
-    try {
-      workerContext.uploadOutputs(
-          operationContext.queueEntry.getExecuteEntry().getActionDigest(),
-          resultBuilder,
-          operationContext.execDir,
-          operationContext.command.getOutputFilesList(),
-          operationContext.command.getOutputDirectoriesList());
-    } catch (StatusException e) {
-      ExecuteResponse executeResponse = operationContext.executeResponse.build();
-      if (executeResponse.getStatus().getCode() == Code.OK.getNumber()
-          && executeResponse.getResult().getExitCode() == 0) {
-        // something about the outputs was malformed - fail the operation with this status if not
-        // already failing
-        Status status = StatusProto.fromThrowable(e);
-        if (status == null) {
-          logger.log(
-              Level.SEVERE, String.format("no rpc status from exception for %s", operationName), e);
-          status = asExecutionStatus(e);
-        }
-        operationContext.executeResponse.setStatus(status);
-        if (isRetriable(status)) {
-          blacklist = true;
-        }
-      }
-    } catch (InterruptedException | ClosedByInterruptException e) {
-      // cancellation here should not be logged
-      return null;
-    } catch (IOException e) {
-      logger.log(Level.SEVERE, String.format("error uploading outputs for %s", operationName), e);
-      return null;
-    }
-
-    Operation operation = operationContext.operation;
-    ExecuteOperationMetadata metadata;
-    try {
-      metadata =
-          operation
-              .getMetadata()
-              .unpack(ExecutingOperationMetadata.class)
-              .getExecuteOperationMetadata();
-    } catch (InvalidProtocolBufferException e) {
-      logger.log(
-          Level.SEVERE,
-          String.format("invalid execute operation metadata for %s", operationName),
-          e);
-      return null;
-    }
-
-    Timestamp now = Timestamps.fromMillis(System.currentTimeMillis());
-    resultBuilder
-        .getExecutionMetadataBuilder()
-        .setWorkerCompletedTimestamp(now)
-        .setOutputUploadCompletedTimestamp(now);
-
-    ExecuteResponse executeResponse = operationContext.executeResponse.build();
-
-    if (blacklist
-        || (!operationContext.action.getDoNotCache()
-            && executeResponse.getStatus().getCode() == Code.OK.getNumber()
-            && executeResponse.getResult().getExitCode() == 0)) {
-      try {
-        if (blacklist) {
-          workerContext.blacklistAction(metadata.getActionDigest().getHash());
-        } else {
-          workerContext.putActionResult(
-              DigestUtil.asActionKey(metadata.getActionDigest()), executeResponse.getResult());
-        }
-      } catch (IOException e) {
-        logger.log(
-            Level.SEVERE, String.format("error reporting action result for %s", operationName), e);
-        return null;
-      }
-    }
-
-    CompletedOperationMetadata completedMetadata =
-        CompletedOperationMetadata.newBuilder()
-            .setExecuteOperationMetadata(metadata.toBuilder().setStage(COMPLETED).build())
-            .setRequestMetadata(operationContext.queueEntry.getExecuteEntry().getRequestMetadata())
-            .build();
-
-    Operation completedOperation =
-        operation
-            .toBuilder()
-            .setDone(true)
-            .setMetadata(Any.pack(completedMetadata))
-            .setResponse(Any.pack(executeResponse))
-            .build();
+  public void releaseResultReporter(
+      String operationName, long usecs, long stallUSecs, boolean success) {
+    int size = removeAndRelease(operationName);
+    reportResultTime.observe(usecs / 1000.0);
+    reportResultStallTime.observe(stallUSecs / 1000.0);
+    reportResultSlotUsage.set(size);
+    logComplete(
+        operationName,
+        usecs,
+        stallUSecs,
+        String.format("%s, %s", success ? "Success" : "Failure", getUsage(size)));
+  }
 
-    operationContext.poller.pause();
+  public int getSlotUsage() {
+    return reporters.size();
+  }
 
-    try {
-      if (!workerContext.putOperation(completedOperation, operationContext.action)) {
-        return null;
-      }
-    } catch (IOException e) {
-      logger.log(
-          Level.SEVERE,
-          String.format("error reporting operation complete for %s", operationName),
-          e);
-      return null;
+  @Override
+  protected synchronized void interruptAll() {
+    for (Thread reporter : reporters) {
+      reporter.interrupt();
     }
+  }
 
-    return operationContext.toBuilder().setOperation(completedOperation).build();
+  @Override
+  protected int claimsRequired(OperationContext operationContext) {
+    return 1;
   }
 
   @Override
-  protected void after(OperationContext operationContext) {
-    try {
-      workerContext.destroyExecDir(operationContext.execDir);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-    } catch (IOException e) {
-      logger.log(
-          Level.SEVERE,
-          String.format("error destroying exec dir %s", operationContext.execDir.toString()),
-          e);
+  protected void iterate() throws InterruptedException {
+    OperationContext operationContext = take();
+    Thread reporter =
+        workerContext
+            .getThreadFactory()
+            .newThread(new ResultReporter(workerContext, operationContext, this));
+
+    synchronized (this) {
+      reporters.add(reporter);
+      logStart(operationContext.operation.getName(), getUsage(reporters.size()));
+      reporter.start();
     }
   }
 }
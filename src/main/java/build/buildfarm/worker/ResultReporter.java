@@ -0,0 +1,272 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static build.bazel.remote.execution.v2.ExecutionStage.Value.COMPLETED;
+import static build.bazel.remote.execution.v2.ExecutionStage.Value.EXECUTING;
+import static build.buildfarm.common.Actions.asExecutionStatus;
+import static build.buildfarm.common.Actions.isRetriable;
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import build.bazel.remote.execution.v2.ActionResult;
+import build.bazel.remote.execution.v2.ExecuteOperationMetadata;
+import build.bazel.remote.execution.v2.ExecuteResponse;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.v1test.CompletedOperationMetadata;
+import build.buildfarm.v1test.ExecutingOperationMetadata;
+import com.google.common.base.Stopwatch;
+import com.google.longrunning.Operation;
+import com.google.protobuf.Any;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.util.Timestamps;
+import com.google.rpc.Code;
+import com.google.rpc.Status;
+import io.grpc.Deadline;
+import io.grpc.StatusException;
+import io.grpc.protobuf.StatusProto;
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class ResultReporter implements Runnable {
+  private static final Logger logger = Logger.getLogger(ResultReporter.class.getName());
+
+  private final WorkerContext workerContext;
+  private final OperationContext operationContext;
+  private final ReportResultStage owner;
+  private boolean success = false;
+
+  ResultReporter(
+      WorkerContext workerContext, OperationContext operationContext, ReportResultStage owner) {
+    this.workerContext = workerContext;
+    this.operationContext = operationContext;
+    this.owner = owner;
+  }
+
+  private long runInterruptibly(Stopwatch stopwatch) throws InterruptedException {
+    final Thread reporterThread = Thread.currentThread();
+    workerContext.resumePoller(
+        operationContext.poller,
+        "ResultReporter",
+        operationContext.queueEntry,
+        EXECUTING,
+        () -> reporterThread.interrupt(),
+        Deadline.after(60, SECONDS));
+    OperationContext reportedOperationContext;
+    try {
+      reportedOperationContext = reportPolled(operationContext);
+    } finally {
+      operationContext.poller.pause();
+    }
+    long reportUSecs = stopwatch.elapsed(MICROSECONDS);
+    if (reportedOperationContext == null) {
+      owner.error().put(operationContext);
+    } else {
+      proceedToOutput(reportedOperationContext);
+    }
+    return stopwatch.elapsed(MICROSECONDS) - reportUSecs;
+  }
+
+  private void proceedToOutput(OperationContext reportedOperationContext)
+      throws InterruptedException {
+    boolean claimed = owner.output().claim(reportedOperationContext);
+    if (claimed) {
+      try {
+        owner.output().put(reportedOperationContext);
+      } catch (InterruptedException e) {
+        owner.output().release();
+        throw e;
+      }
+      success = true;
+    } else {
+      String operationName = operationContext.operation.getName();
+      logger.log(
+          Level.FINE, "ResultReporter: Operation " + operationName + " Failed to claim output");
+
+      owner.error().put(operationContext);
+    }
+  }
+
+  private OperationContext reportPolled(OperationContext operationContext)
+      throws InterruptedException {
+    String operationName = operationContext.operation.getName();
+
+    ActionResult.Builder resultBuilder = operationContext.executeResponse.getResultBuilder();
+    resultBuilder
+        .getExecutionMetadataBuilder()
+        .setOutputUploadStartTimestamp(Timestamps.fromMillis(System.currentTimeMillis()));
+
+    boolean blacklist = false;
+    try {
+      workerContext.uploadOutputs(
+          operationContext.queueEntry.getExecuteEntry().getActionDigest(),
+          resultBuilder,
+          operationContext.execDir,
+          operationContext.command.getOutputFilesList(),
+          operationContext.command.getOutputDirectoriesList());
+    } catch (StatusException e) {
+      ExecuteResponse executeResponse = operationContext.executeResponse.build();
+      if (executeResponse.getStatus().getCode() == Code.OK.getNumber()
+          && executeResponse.getResult().getExitCode() == 0) {
+        // something about the outputs was malformed - fail the operation with this status if not
+        // already failing
+        Status status = StatusProto.fromThrowable(e);
+        if (status == null) {
+          logger.log(
+              Level.SEVERE, String.format("no rpc status from exception for %s", operationName), e);
+          status = asExecutionStatus(e);
+        }
+        operationContext.executeResponse.setStatus(status);
+        if (isRetriable(status)) {
+          blacklist = true;
+        }
+      }
+    } catch (InterruptedException | ClosedByInterruptException e) {
+      // cancellation here should not be logged
+      return null;
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, String.format("error uploading outputs for %s", operationName), e);
+      return null;
+    }
+
+    Operation operation = operationContext.operation;
+    ExecuteOperationMetadata metadata;
+    try {
+      metadata =
+          operation
+              .getMetadata()
+              .unpack(ExecutingOperationMetadata.class)
+              .getExecuteOperationMetadata();
+    } catch (InvalidProtocolBufferException e) {
+      logger.log(
+          Level.SEVERE,
+          String.format("invalid execute operation metadata for %s", operationName),
+          e);
+      return null;
+    }
+
+    Timestamp now = Timestamps.fromMillis(System.currentTimeMillis());
+    resultBuilder
+        .getExecutionMetadataBuilder()
+        .setWorkerCompletedTimestamp(now)
+        .setOutputUploadCompletedTimestamp(now);
+
+    ExecuteResponse executeResponse = operationContext.executeResponse.build();
+
+    if (blacklist
+        || (!operationContext.action.getDoNotCache()
+            && executeResponse.getStatus().getCode() == Code.OK.getNumber()
+            && executeResponse.getResult().getExitCode() == 0)) {
+      try {
+        if (blacklist) {
+          workerContext.blacklistAction(metadata.getActionDigest().getHash());
+        } else {
+          workerContext.putActionResult(
+              DigestUtil.asActionKey(metadata.getActionDigest()), executeResponse.getResult());
+        }
+      } catch (IOException e) {
+        logger.log(
+            Level.SEVERE, String.format("error reporting action result for %s", operationName), e);
+        return null;
+      }
+    }
+
+    CompletedOperationMetadata completedMetadata =
+        CompletedOperationMetadata.newBuilder()
+            .setExecuteOperationMetadata(metadata.toBuilder().setStage(COMPLETED).build())
+            .setRequestMetadata(operationContext.queueEntry.getExecuteEntry().getRequestMetadata())
+            .build();
+
+    Operation completedOperation =
+        operation
+            .toBuilder()
+            .setDone(true)
+            .setMetadata(Any.pack(completedMetadata))
+            .setResponse(Any.pack(executeResponse))
+            .build();
+
+    operationContext.poller.pause();
+
+    try {
+      if (!workerContext.putOperation(completedOperation, operationContext.action)) {
+        return null;
+      }
+    } catch (IOException e) {
+      logger.log(
+          Level.SEVERE,
+          String.format("error reporting operation complete for %s", operationName),
+          e);
+      return null;
+    }
+
+    return operationContext.toBuilder().setOperation(completedOperation).build();
+  }
+
+  private void destroyExecDir() {
+    try {
+      workerContext.destroyExecDir(operationContext.execDir);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      logger.log(
+          Level.SEVERE,
+          String.format("error destroying exec dir %s", operationContext.execDir.toString()),
+          e);
+    }
+  }
+
+  @Override
+  public void run() {
+    long stallUSecs = 0;
+    String operationName = operationContext.operation.getName();
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    try {
+      stallUSecs = runInterruptibly(stopwatch);
+    } catch (InterruptedException e) {
+      /* we can be interrupted when the poller fails */
+      try {
+        owner.error().put(operationContext);
+      } catch (InterruptedException errorEx) {
+        logger.log(Level.SEVERE, format("interrupted while erroring %s", operationName), errorEx);
+      } finally {
+        Thread.currentThread().interrupt();
+      }
+    } catch (Exception e) {
+      logger.log(Level.WARNING, format("error while reporting result: %s", operationName), e);
+      try {
+        owner.error().put(operationContext);
+      } catch (InterruptedException errorEx) {
+        logger.log(Level.SEVERE, format("interrupted while erroring %s", operationName), errorEx);
+      }
+      throw e;
+    } finally {
+      boolean wasInterrupted = Thread.interrupted();
+      // allow destruction and release to occur without interrupted state
+      try {
+        destroyExecDir();
+        owner.releaseResultReporter(
+            operationName, stopwatch.elapsed(MICROSECONDS), stallUSecs, success);
+      } finally {
+        if (wasInterrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+}
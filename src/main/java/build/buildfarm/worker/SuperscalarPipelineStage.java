@@ -17,6 +17,8 @@ package build.buildfarm.worker;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
 abstract class SuperscalarPipelineStage extends PipelineStage {
@@ -25,7 +27,8 @@ abstract class SuperscalarPipelineStage extends PipelineStage {
   private volatile boolean catastrophic = false;
 
   // ensure that only a single claim waits for available slots for core count
-  private Object claimLock = new Object();
+  // a lock rather than a monitor, so that a waiting virtual thread does not pin its carrier
+  private final Lock claimLock = new ReentrantLock();
 
   public SuperscalarPipelineStage(
       String name,
@@ -123,7 +126,8 @@ abstract class SuperscalarPipelineStage extends PipelineStage {
   private boolean claim(int count) throws InterruptedException {
     Object handle = new Object();
     int claimed = 0;
-    synchronized (claimLock) {
+    claimLock.lock();
+    try {
       while (count > 0 && !isClosed()) {
         try {
           if (claims.offer(handle, 10, TimeUnit.MILLISECONDS)) {
@@ -148,6 +152,8 @@ abstract class SuperscalarPipelineStage extends PipelineStage {
           throw e;
         }
       }
+    } finally {
+      claimLock.unlock();
     }
     return count == 0;
   }
@@ -157,6 +163,28 @@ abstract class SuperscalarPipelineStage extends PipelineStage {
     return claim(claimsRequired(operationContext));
   }
 
+  @Override
+  public boolean tryClaim(OperationContext operationContext) {
+    int count = claimsRequired(operationContext);
+    // a claim waiting for slots has precedence
+    if (isClosed() || !claimLock.tryLock()) {
+      return false;
+    }
+    try {
+      // claims are only offered under the lock, so the capacity cannot shrink
+      if (claims.remainingCapacity() < count) {
+        return false;
+      }
+      Object handle = new Object();
+      for (int i = 0; i < count; i++) {
+        claims.offer(handle);
+      }
+      return true;
+    } finally {
+      claimLock.unlock();
+    }
+  }
+
   @Override
   public void release() {
     releaseClaim("unidentified operation", 1);
@@ -27,10 +27,13 @@ import build.buildfarm.common.Write;
 import build.buildfarm.instance.MatchListener;
 import build.buildfarm.v1test.CASInsertionPolicy;
 import build.buildfarm.v1test.ExecutionPolicy;
+import build.buildfarm.v1test.ExecutionResourceUsage;
 import build.buildfarm.v1test.QueueEntry;
 import build.buildfarm.v1test.QueuedOperation;
+import build.buildfarm.worker.persistent.PersistentWorkerPool;
 import build.buildfarm.worker.resources.ResourceLimits;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.longrunning.Operation;
 import com.google.protobuf.Duration;
 import io.grpc.Deadline;
@@ -38,6 +41,8 @@ import io.grpc.StatusException;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import javax.annotation.Nullable;
 
 public interface WorkerContext {
   interface IOResource extends AutoCloseable {
@@ -62,6 +67,15 @@ public interface WorkerContext {
 
   void match(MatchListener listener) throws InterruptedException;
 
+  /**
+   * Matches up to maxEntries operations, each of which is delivered to the listener. Waits only for
+   * the first, and any that the listener does not accept are requeued.
+   */
+  void match(MatchListener listener, int maxEntries) throws InterruptedException;
+
+  /** The maximum number of operations to match at once. */
+  int getMatchBatchSize();
+
   CASInsertionPolicy getFileCasPolicy();
 
   CASInsertionPolicy getStdoutCasPolicy();
@@ -76,6 +90,22 @@ public interface WorkerContext {
 
   int getInputFetchStageWidth();
 
+  int getReportResultStageWidth();
+
+  /** Creates the threads of operations within stages, and of their processes' outputs. */
+  ThreadFactory getThreadFactory();
+
+  /**
+   * Reads the resources used by the execution of an operation, which must not yet have released its
+   * execution limits. Returns null if they are not accounted.
+   */
+  @Nullable
+  ExecutionResourceUsage getResourceUsage(String operationName);
+
+  /** The pool of persistent workers for eligible actions, or null if they are not supported. */
+  @Nullable
+  PersistentWorkerPool getPersistentWorkerPool();
+
   boolean hasDefaultActionTimeout();
 
   boolean hasMaximumActionTimeout();
@@ -97,6 +127,13 @@ public interface WorkerContext {
 
   void destroyExecDir(Path execDir) throws IOException, InterruptedException;
 
+  /**
+   * Fetches the inputs of an action which are missing from storage, without creating an exec dir.
+   * The result is the number of bytes fetched.
+   */
+  ListenableFuture<Long> prefetchInputs(
+      Map<Digest, Directory> directoriesIndex, Digest inputRootDigest);
+
   void uploadOutputs(
       Digest actionDigest,
       ActionResult.Builder resultBuilder,
@@ -15,6 +15,7 @@
 package build.buildfarm.worker.cgroup;
 
 import build.buildfarm.worker.WorkerContext.IOResource;
+import com.google.common.collect.ImmutableMap;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
@@ -22,6 +23,8 @@ import java.io.Reader;
 import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Map;
+import javax.annotation.Nullable;
 
 abstract class Controller implements IOResource {
   protected final Group group;
@@ -38,7 +41,8 @@ abstract class Controller implements IOResource {
     return group.getPath(getName());
   }
 
-  protected final void open() throws IOException {
+  /** Creates the group for this controller, if it has not been created. */
+  public final void open() throws IOException {
     if (!opened) {
       group.create(getName());
       opened = true;
@@ -110,7 +114,7 @@ abstract class Controller implements IOResource {
     }
   }
 
-  protected int readLong(String propertyName) throws IOException {
+  protected long readLong(String propertyName) throws IOException {
     char[] data = new char[64];
     Path path = getPath().resolve(propertyName);
     int len;
@@ -123,6 +127,62 @@ abstract class Controller implements IOResource {
     if (len == 0 || data[0] == '\n' || data[len - 1] != '\n') {
       throw new NumberFormatException("invalid integer in '" + propertyName + "'");
     }
-    return Integer.parseInt(String.copyValueOf(data, 0, len - 1));
+    String value = String.copyValueOf(data, 0, len - 1);
+    // unlimited values are written as max under the unified hierarchy
+    if (value.equals("max")) {
+      return Long.MAX_VALUE;
+    }
+    return Long.parseLong(value);
+  }
+
+  protected String readString(String propertyName) throws IOException {
+    return new String(Files.readAllBytes(getPath().resolve(propertyName))).trim();
+  }
+
+  protected void writeString(String propertyName, String value) throws IOException {
+    Path path = getPath().resolve(propertyName);
+    try (Writer out = new OutputStreamWriter(Files.newOutputStream(path))) {
+      out.write(value + "\n");
+    }
+  }
+
+  /** Reads a file of a key and value per line, such as cpu.stat. */
+  protected Map<String, Long> readKeyedLongs(String propertyName) throws IOException {
+    ImmutableMap.Builder<String, Long> values = ImmutableMap.builder();
+    for (String line : Files.readAllLines(getPath().resolve(propertyName))) {
+      String[] fields = line.split(" ");
+      if (fields.length == 2) {
+        values.put(fields[0], Long.parseLong(fields[1]));
+      }
+    }
+    return values.build();
+  }
+
+  /**
+   * Reads the pressure stall information of the group for this controller's resource, available
+   * under the unified hierarchy with a kernel built with PSI. Returns null if it is unavailable.
+   */
+  public @Nullable Pressure getPressure() throws IOException {
+    Path path = getPath().resolve(getName() + ".pressure");
+    if (!Files.exists(path)) {
+      return null;
+    }
+    long someMicros = 0;
+    long fullMicros = 0;
+    for (String line : Files.readAllLines(path)) {
+      // some avg10=0.00 avg60=0.00 avg300=0.00 total=0
+      String[] fields = line.split(" ");
+      for (String field : fields) {
+        if (field.startsWith("total=")) {
+          long total = Long.parseLong(field.substring("total=".length()));
+          if (fields[0].equals("some")) {
+            someMicros = total;
+          } else if (fields[0].equals("full")) {
+            fullMicros = total;
+          }
+        }
+      }
+    }
+    return new Pressure(someMicros, fullMicros);
   }
 }
@@ -15,8 +15,17 @@
 package build.buildfarm.worker.cgroup;
 
 import java.io.IOException;
+import java.util.Map;
 
+/**
+ * The cpu controller of a group. Under the unified hierarchy, shares are converted to and from
+ * cpu.weight by the linear mapping of their ranges used by container runtimes, and the cfs period
+ * and quota are both held in cpu.max.
+ */
 public class Cpu extends Controller {
+  private static final int DEFAULT_SHARES = 1024;
+  private static final int DEFAULT_CFS_PERIOD = 100000;
+
   Cpu(Group group) {
     super(group);
   }
@@ -26,28 +35,75 @@ public class Cpu extends Controller {
     return "cpu";
   }
 
+  // the kernel's mapping of cpu.shares [2, 262144] onto cpu.weight [1, 10000]
+  static int sharesToWeight(int shares) {
+    return (int) (1 + ((long) Math.max(shares, 2) - 2) * 9999 / 262142);
+  }
+
+  static int weightToShares(int weight) {
+    return (int) (2 + ((long) weight - 1) * 262142 / 9999);
+  }
+
   public int getShares() throws IOException {
+    if (group.hasUnifiedHierarchy()) {
+      // the root group has no weight, and every child is weighted against its siblings
+      if (group.isRoot()) {
+        return DEFAULT_SHARES;
+      }
+      open();
+      return weightToShares(readInt("cpu.weight"));
+    }
     open();
     return readInt("cpu.shares");
   }
 
   public void setShares(int shares) throws IOException {
     open();
-    writeInt("cpu.shares", shares);
+    if (group.hasUnifiedHierarchy()) {
+      writeInt("cpu.weight", sharesToWeight(shares));
+    } else {
+      writeInt("cpu.shares", shares);
+    }
   }
 
   public int getCFSPeriod() throws IOException {
+    if (group.hasUnifiedHierarchy()) {
+      if (group.isRoot()) {
+        return DEFAULT_CFS_PERIOD;
+      }
+      open();
+      return Integer.parseInt(readString("cpu.max").split(" ")[1]);
+    }
     open();
     return readInt("cpu.cfs_period_us");
   }
 
   public void setCFSPeriod(int microseconds) throws IOException {
     open();
-    writeInt("cpu.cfs_period_us", microseconds);
+    if (group.hasUnifiedHierarchy()) {
+      String quota = readString("cpu.max").split(" ")[0];
+      writeString("cpu.max", quota + " " + microseconds);
+    } else {
+      writeInt("cpu.cfs_period_us", microseconds);
+    }
   }
 
   public void setCFSQuota(int microseconds) throws IOException {
     open();
-    writeInt("cpu.cfs_quota_us", microseconds);
+    if (group.hasUnifiedHierarchy()) {
+      // the period is retained when only the quota is written
+      writeString("cpu.max", Integer.toString(microseconds));
+    } else {
+      writeInt("cpu.cfs_quota_us", microseconds);
+    }
+  }
+
+  /**
+   * Returns the cpu.stat counters of the group. Under the unified hierarchy these include
+   * usage_usec, user_usec and system_usec, along with throttled_usec where the controller is
+   * enabled.
+   */
+  public Map<String, Long> getStat() throws IOException {
+    return readKeyedLongs("cpu.stat");
   }
 }
@@ -16,38 +16,77 @@ package build.buildfarm.worker.cgroup;
 
 import static java.util.stream.Collectors.joining;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
+/**
+ * A cgroup, with a directory per controller under a v1 hierarchy, or a single directory for all of
+ * its controllers under the v2 unified hierarchy.
+ */
 public final class Group {
   private static final Logger logger = Logger.getLogger(Group.class.getName());
-  private static final Group root = new Group(/* name=*/ null, /* parent=*/ null);
-  private static final Path rootPath = Paths.get("/sys/fs/cgroup");
+  private static final Group root = newRoot(Paths.get("/sys/fs/cgroup"));
 
+  // the group to which the processes of the root are moved when it must delegate controllers
+  private static final String ROOT_LEAF_NAME = "leaf";
+
+  private final Path rootPath;
+  private final Supplier<Boolean> unified;
   private @Nullable String name;
   private @Nullable Group parent;
   private Cpu cpu;
   private Mem mem;
+  private Io io;
 
   public static Group getRoot() {
     return root;
   }
 
-  private Group(String name, Group parent) {
+  /** Returns a root group for the hierarchy mounted at rootPath. */
+  @VisibleForTesting
+  static Group newRoot(Path rootPath) {
+    return new Group(
+        rootPath,
+        Suppliers.memoize(() -> Files.exists(rootPath.resolve("cgroup.controllers"))),
+        /* name=*/ null,
+        /* parent=*/ null);
+  }
+
+  private Group(Path rootPath, Supplier<Boolean> unified, String name, Group parent) {
+    this.rootPath = rootPath;
+    this.unified = unified;
     this.name = name;
     this.parent = parent;
     cpu = new Cpu(this);
     mem = new Mem(this);
+    io = new Io(this);
+  }
+
+  /** Returns true if cgroups are mounted as the v2 unified hierarchy. */
+  public static boolean isUnified() {
+    return root.hasUnifiedHierarchy();
+  }
+
+  boolean hasUnifiedHierarchy() {
+    return unified.get();
+  }
+
+  boolean isRoot() {
+    return parent == null;
   }
 
   public Group getChild(String name) {
-    return new Group(name, this);
+    return new Group(rootPath, unified, name, this);
   }
 
   public String getName() {
@@ -62,6 +101,10 @@ public final class Group {
     return mem;
   }
 
+  public Io getIo() {
+    return io;
+  }
+
   public String getHierarchy() {
     /* is root */
     if (parent == null) {
@@ -83,6 +126,9 @@ public final class Group {
   }
 
   Path getPath(String controllerName) {
+    if (hasUnifiedHierarchy()) {
+      return rootPath.resolve(getHierarchy());
+    }
     return rootPath.resolve(getHierarchy(controllerName));
   }
 
@@ -131,10 +177,62 @@ public final class Group {
     /* root already has all controllers created */
     if (parent != null) {
       parent.create(controllerName);
+      if (hasUnifiedHierarchy()) {
+        parent.enableSubtreeControl(controllerName);
+      }
       Path path = getPath(controllerName);
       if (!Files.exists(path)) {
         Files.createDirectory(path);
       }
     }
   }
+
+  // under the unified hierarchy, a controller is available to the children of a group only once
+  // it has been enabled for them, and only in a group without processes of its own
+  private void enableSubtreeControl(String controllerName) throws IOException {
+    Path subtreeControl = getPath(controllerName).resolve("cgroup.subtree_control");
+    String enabled = new String(Files.readAllBytes(subtreeControl)).trim();
+    if (!Arrays.asList(enabled.split(" ")).contains(controllerName)) {
+      try {
+        Files.write(subtreeControl, ("+" + controllerName).getBytes());
+      } catch (IOException e) {
+        // the root of a cgroup namespace, as within a container, holds the worker itself, and is
+        // refused with EBUSY, which is not distinguished by its exception, until it is emptied
+        if (!isRoot() || getPids(controllerName).isEmpty()) {
+          throw e;
+        }
+        moveProcsToLeaf(controllerName);
+        try {
+          Files.write(subtreeControl, ("+" + controllerName).getBytes());
+        } catch (IOException retryException) {
+          retryException.addSuppressed(e);
+          throw retryException;
+        }
+      }
+    }
+  }
+
+  // moves every process of this group into a leaf child, which takes no controllers
+  private void moveProcsToLeaf(String controllerName) throws IOException {
+    Group leaf = getChild(ROOT_LEAF_NAME);
+    Path leafPath = leaf.getPath(controllerName);
+    if (!Files.exists(leafPath)) {
+      Files.createDirectory(leafPath);
+    }
+    Path leafProcs = leafPath.resolve("cgroup.procs");
+    for (int pid : getPids(controllerName)) {
+      try {
+        // processes are moved with a write each
+        Files.write(leafProcs, Integer.toString(pid).getBytes());
+      } catch (IOException e) {
+        // the process may have exited since it was listed
+        if (Files.exists(Paths.get("/proc", Integer.toString(pid)))) {
+          throw e;
+        }
+      }
+    }
+    logger.info(
+        String.format(
+            "moved the processes of cgroup root %s to %s", getPath(controllerName), leafPath));
+  }
 }
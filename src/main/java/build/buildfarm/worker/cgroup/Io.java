@@ -0,0 +1,56 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.cgroup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+public class Io extends Controller {
+  Io(Group group) {
+    super(group);
+  }
+
+  @Override
+  public String getName() {
+    return group.hasUnifiedHierarchy() ? "io" : "blkio";
+  }
+
+  /**
+   * Returns the io.stat counters of the group, such as rbytes and wios, summed over its devices.
+   * Empty if they are unavailable, as with the v1 hierarchy.
+   */
+  public Map<String, Long> getStat() throws IOException {
+    Map<String, Long> stat = new HashMap<>();
+    if (!group.hasUnifiedHierarchy() || !Files.exists(getPath().resolve("io.stat"))) {
+      return stat;
+    }
+    for (String line : Files.readAllLines(getPath().resolve("io.stat"))) {
+      // 8:16 rbytes=1459200 wbytes=314773504 rios=192 wios=353 dbytes=0 dios=0
+      String[] fields = line.split(" ");
+      for (int i = 1; i < fields.length; i++) {
+        int separator = fields[i].indexOf('=');
+        if (separator > 0) {
+          stat.merge(
+              fields[i].substring(0, separator),
+              Long.parseLong(fields[i].substring(separator + 1)),
+              Long::sum);
+        }
+      }
+    }
+    return stat;
+  }
+}
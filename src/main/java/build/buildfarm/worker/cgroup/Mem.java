@@ -15,7 +15,12 @@
 package build.buildfarm.worker.cgroup;
 
 import java.io.IOException;
+import java.nio.file.Files;
 
+/**
+ * The memory controller of a group. Under the unified hierarchy, the swap limit is held apart from
+ * the memory limit, and is converted to and from the v1 limit of memory and swap combined.
+ */
 public class Mem extends Controller {
   Mem(Group group) {
     super(group);
@@ -28,21 +33,45 @@ public class Mem extends Controller {
 
   public long getMemoryLimit() throws IOException {
     open();
-    return readLong("memory.limit_in_bytes");
+    return readLong(group.hasUnifiedHierarchy() ? "memory.max" : "memory.limit_in_bytes");
   }
 
   public void setMemoryLimit(long limitBytes) throws IOException {
     open();
-    writeLong("memory.limit_in_bytes", limitBytes);
+    writeLong(group.hasUnifiedHierarchy() ? "memory.max" : "memory.limit_in_bytes", limitBytes);
   }
 
   public long getMemorySwapLimit() throws IOException {
     open();
+    if (group.hasUnifiedHierarchy()) {
+      long memoryLimit = getMemoryLimit();
+      long swapLimit = readLong("memory.swap.max");
+      if (memoryLimit == Long.MAX_VALUE || swapLimit == Long.MAX_VALUE) {
+        return Long.MAX_VALUE;
+      }
+      return memoryLimit + swapLimit;
+    }
     return readLong("memory.memsw.limit_in_bytes");
   }
 
   public void setMemorySwapLimit(long limitBytes) throws IOException {
     open();
-    writeLong("memory.memsw.limit_in_bytes", limitBytes);
+    if (group.hasUnifiedHierarchy()) {
+      writeLong("memory.swap.max", Math.max(limitBytes - getMemoryLimit(), 0));
+    } else {
+      writeLong("memory.memsw.limit_in_bytes", limitBytes);
+    }
+  }
+
+  /**
+   * Returns the peak memory usage of the group, or 0 if it is unavailable, as with kernels before
+   * 5.19 under the unified hierarchy.
+   */
+  public long getPeakUsage() throws IOException {
+    String propertyName = group.hasUnifiedHierarchy() ? "memory.peak" : "memory.max_usage_in_bytes";
+    if (!Files.exists(getPath().resolve(propertyName))) {
+      return 0;
+    }
+    return readLong(propertyName);
   }
 }
@@ -0,0 +1,29 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.cgroup;
+
+/**
+ * The total time for which some, and for which all, of the non-idle tasks in a group were stalled
+ * on a resource.
+ */
+public final class Pressure {
+  public final long someMicros;
+  public final long fullMicros;
+
+  Pressure(long someMicros, long fullMicros) {
+    this.someMicros = someMicros;
+    this.fullMicros = fullMicros;
+  }
+}
@@ -49,6 +49,10 @@ class OperationQueueClient {
   }
 
   void match(MatchListener listener) throws InterruptedException {
+    match(listener, 1);
+  }
+
+  void match(MatchListener listener, int maxEntries) throws InterruptedException {
     RetryingMatchListener dedupMatchListener =
         new RetryingMatchListener() {
           boolean matched = false;
@@ -116,7 +120,11 @@ class OperationQueueClient {
           }
         };
     while (!dedupMatchListener.getMatched()) {
-      instance.match(matchPlatform, dedupMatchListener);
+      if (maxEntries == 1) {
+        instance.match(matchPlatform, dedupMatchListener);
+      } else {
+        instance.match(matchPlatform, maxEntries, dedupMatchListener);
+      }
     }
   }
 
@@ -17,6 +17,7 @@ package build.buildfarm.worker.memory;
 import static build.buildfarm.common.io.Utils.getInterruptiblyOrIOException;
 import static build.buildfarm.instance.Utils.getBlob;
 import static com.google.common.util.concurrent.Futures.allAsList;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
 import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
 import static java.lang.String.format;
 import static java.util.concurrent.TimeUnit.DAYS;
@@ -44,6 +45,7 @@ import build.buildfarm.instance.stub.ByteStreamUploader;
 import build.buildfarm.instance.stub.Chunker;
 import build.buildfarm.v1test.CASInsertionPolicy;
 import build.buildfarm.v1test.ExecutionPolicy;
+import build.buildfarm.v1test.ExecutionResourceUsage;
 import build.buildfarm.v1test.QueueEntry;
 import build.buildfarm.v1test.QueuedOperation;
 import build.buildfarm.v1test.WorkerConfig;
@@ -51,6 +53,7 @@ import build.buildfarm.worker.ExecutionPolicies;
 import build.buildfarm.worker.OutputDirectory;
 import build.buildfarm.worker.UploadManifest;
 import build.buildfarm.worker.WorkerContext;
+import build.buildfarm.worker.persistent.PersistentWorkerPool;
 import build.buildfarm.worker.resources.ResourceLimits;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
@@ -59,6 +62,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
 import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.longrunning.Operation;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Duration;
@@ -74,6 +78,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
@@ -175,6 +180,16 @@ class OperationQueueWorkerContext implements WorkerContext {
     oq.match(listener);
   }
 
+  @Override
+  public void match(MatchListener listener, int maxEntries) throws InterruptedException {
+    oq.match(listener, maxEntries);
+  }
+
+  @Override
+  public int getMatchBatchSize() {
+    return Math.max(config.getMatchBatchSize(), 1);
+  }
+
   @Override
   public CASInsertionPolicy getFileCasPolicy() {
     return config.getFileCasPolicy();
@@ -200,6 +215,11 @@ class OperationQueueWorkerContext implements WorkerContext {
     return config.getExecuteStageWidth();
   }
 
+  @Override
+  public int getReportResultStageWidth() {
+    return Math.max(config.getReportResultStageWidth(), 1);
+  }
+
   @Override
   public boolean hasDefaultActionTimeout() {
     return config.hasDefaultActionTimeout();
@@ -327,6 +347,13 @@ class OperationQueueWorkerContext implements WorkerContext {
     return execDir;
   }
 
+  @Override
+  public ListenableFuture<Long> prefetchInputs(
+      Map<Digest, Directory> directoriesIndex, Digest inputRootDigest) {
+    // inputs are fetched synchronously with the creation of the exec dir
+    return immediateFuture(0L);
+  }
+
   @Override
   public void destroyExecDir(Path execDir) throws IOException, InterruptedException {
     Iterable<String> inputFiles = rootInputFiles.remove(execDir);
@@ -386,6 +413,21 @@ class OperationQueueWorkerContext implements WorkerContext {
     return Size.mbToBytes(100);
   }
 
+  @Override
+  public ThreadFactory getThreadFactory() {
+    return Thread::new;
+  }
+
+  @Override
+  public @Nullable ExecutionResourceUsage getResourceUsage(String operationName) {
+    return null;
+  }
+
+  @Override
+  public @Nullable PersistentWorkerPool getPersistentWorkerPool() {
+    return null;
+  }
+
   @Override
   public void createExecutionLimits() {}
 
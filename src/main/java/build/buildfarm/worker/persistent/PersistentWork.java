@@ -0,0 +1,183 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.persistent;
+
+import static build.buildfarm.common.ExecutionProperties.PERSISTENT_WORKER_KEY;
+import static build.buildfarm.common.ExecutionProperties.SUPPORTS_WORKERS;
+import static build.buildfarm.common.ExecutionProperties.WORKER_PROTOCOL;
+
+import build.bazel.remote.execution.v2.Command;
+import build.bazel.remote.execution.v2.Command.EnvironmentVariable;
+import build.bazel.remote.execution.v2.Platform.Property;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * The request of an action for a persistent worker, as bazel would make it. The arguments of the
+ * action are split into the startup arguments of the worker and its flagfiles, whose contents are
+ * the arguments of the request.
+ */
+public final class PersistentWork {
+  static final String PERSISTENT_WORKER_FLAG = "--persistent_worker";
+
+  private final WorkerKey key;
+  private final ImmutableList<String> requestArguments;
+
+  PersistentWork(WorkerKey key, ImmutableList<String> requestArguments) {
+    this.key = key;
+    this.requestArguments = requestArguments;
+  }
+
+  public WorkerKey getKey() {
+    return key;
+  }
+
+  public ImmutableList<String> getRequestArguments() {
+    return requestArguments;
+  }
+
+  WorkRequest toRequest(int requestId) {
+    return WorkRequest.newBuilder()
+        .addAllArguments(requestArguments)
+        .setRequestId(requestId)
+        .build();
+  }
+
+  private static boolean isFlagfile(String argument) {
+    return argument.startsWith("@")
+        || argument.startsWith("--flagfile=")
+        || argument.startsWith("-flagfile=");
+  }
+
+  private static String flagfilePath(String argument) {
+    return argument.substring(argument.indexOf(argument.startsWith("@") ? '@' : '=') + 1);
+  }
+
+  /**
+   * Returns true if a command may be run as persistent work, without reading its flagfiles. Only
+   * such commands are parsed into persistent work.
+   */
+  public static boolean isRequested(Command command) {
+    if (!command.getWorkingDirectory().isEmpty()) {
+      return false;
+    }
+    for (Property property : command.getPlatform().getPropertiesList()) {
+      switch (property.getName()) {
+        case PERSISTENT_WORKER_KEY:
+          return true;
+        case SUPPORTS_WORKERS:
+          if (property.getValue().equals("1") || Boolean.parseBoolean(property.getValue())) {
+            return true;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the persistent work for a command which supports persistent workers and has at least
+   * one flagfile, or null if the command must be run as a process. Commands with a working
+   * directory are run as processes, since a worker's directory is fixed when it starts.
+   */
+  public static @Nullable PersistentWork parse(Command command, Path execDir) throws IOException {
+    if (!isRequested(command)) {
+      return null;
+    }
+    String persistentWorkerKey = null;
+    boolean json = false;
+    for (Property property : command.getPlatform().getPropertiesList()) {
+      switch (property.getName()) {
+        case PERSISTENT_WORKER_KEY:
+          persistentWorkerKey = property.getValue();
+          break;
+        case WORKER_PROTOCOL:
+          json = property.getValue().equals("json");
+          break;
+        default:
+          break;
+      }
+    }
+
+    ImmutableList.Builder<String> startupArguments = ImmutableList.builder();
+    ImmutableList.Builder<String> requestArguments = ImmutableList.builder();
+    boolean hasFlagfile = false;
+    for (String argument : command.getArgumentsList()) {
+      if (isFlagfile(argument)) {
+        hasFlagfile = true;
+        requestArguments.addAll(Files.readAllLines(execDir.resolve(flagfilePath(argument))));
+      } else {
+        startupArguments.add(argument);
+      }
+    }
+    if (!hasFlagfile) {
+      return null;
+    }
+    startupArguments.add(PERSISTENT_WORKER_FLAG);
+    ImmutableList<String> arguments = startupArguments.build();
+
+    ImmutableMap.Builder<String, String> environment = ImmutableMap.builder();
+    for (EnvironmentVariable variable : command.getEnvironmentVariablesList()) {
+      environment.put(variable.getName(), variable.getValue());
+    }
+
+    StringBuilder toolKey = new StringBuilder();
+    if (persistentWorkerKey != null) {
+      toolKey.append(persistentWorkerKey);
+    }
+    appendToolFiles(toolKey, arguments, execDir);
+
+    return new PersistentWork(
+        new WorkerKey(arguments, environment.build(), toolKey.toString(), json),
+        requestArguments.build());
+  }
+
+  /**
+   * Identifies the files named by the startup arguments. Inputs are linked from the cas, so the
+   * identity of a file changes along with its content, and is cheaper to read.
+   */
+  private static void appendToolFiles(StringBuilder toolKey, List<String> arguments, Path execDir) {
+    for (String argument : arguments) {
+      if (argument.isEmpty() || argument.startsWith("-")) {
+        continue;
+      }
+      BasicFileAttributes attrs;
+      try {
+        attrs = Files.readAttributes(execDir.resolve(argument), BasicFileAttributes.class);
+      } catch (InvalidPathException | IOException e) {
+        // not a file
+        continue;
+      }
+      if (attrs.isRegularFile()) {
+        Object fileKey = attrs.fileKey();
+        toolKey
+            .append(':')
+            .append(argument)
+            .append('=')
+            .append(fileKey != null ? fileKey : attrs.lastModifiedTime() + "/" + attrs.size());
+      }
+    }
+  }
+}
@@ -0,0 +1,225 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.persistent;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+import build.buildfarm.common.io.Directories;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.protobuf.util.JsonFormat;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * A long-lived worker process, which performs requests in its own exec root. The inputs of each
+ * request are linked into the exec root from the exec dir of its action, and its outputs are moved
+ * back into the exec dir once the worker has responded.
+ */
+final class PersistentWorker {
+  private final WorkerKey key;
+  private final Path root;
+  private final Path execRoot;
+  private final Process process;
+  private final OutputStream stdin;
+  private final InputStream stdout;
+  private final @Nullable JsonReader jsonReader;
+  private long lastUsedMillis;
+
+  private PersistentWorker(WorkerKey key, Path root, Path execRoot, Process process) {
+    this.key = key;
+    this.root = root;
+    this.execRoot = execRoot;
+    this.process = process;
+    stdin = new BufferedOutputStream(process.getOutputStream());
+    stdout = new BufferedInputStream(process.getInputStream());
+    if (key.isJson()) {
+      jsonReader = new JsonReader(new InputStreamReader(stdout, UTF_8));
+      jsonReader.setLenient(true);
+    } else {
+      jsonReader = null;
+    }
+    lastUsedMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * Starts a worker in a new directory, with the tools it is started with linked from the exec dir
+   * of the action which requires it.
+   */
+  static PersistentWorker start(WorkerKey key, Path root, Path execDir) throws IOException {
+    Path execRoot = root.resolve("execroot");
+    Files.createDirectories(execRoot);
+    link(execDir, execRoot);
+    ProcessBuilder processBuilder =
+        new ProcessBuilder(key.getArguments())
+            .directory(execRoot.toAbsolutePath().toFile())
+            .redirectError(root.resolve("stderr.log").toFile());
+    processBuilder.environment().clear();
+    processBuilder.environment().putAll(key.getEnvironment());
+    return new PersistentWorker(key, root, execRoot, processBuilder.start());
+  }
+
+  WorkerKey getKey() {
+    return key;
+  }
+
+  long getLastUsedMillis() {
+    return lastUsedMillis;
+  }
+
+  boolean isAlive() {
+    return process.isAlive();
+  }
+
+  /** Replaces the inputs of the previous request with those of an exec dir. */
+  void prepare(Path execDir) throws IOException {
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(execRoot)) {
+      for (Path entry : entries) {
+        if (Files.isDirectory(entry, NOFOLLOW_LINKS)) {
+          Directories.remove(entry);
+        } else {
+          Files.delete(entry);
+        }
+      }
+    }
+    link(execDir, execRoot);
+  }
+
+  WorkResponse doWork(WorkRequest request) throws IOException {
+    if (jsonReader != null) {
+      String json = JsonFormat.printer().omittingInsignificantWhitespace().print(request);
+      stdin.write(json.getBytes(UTF_8));
+      stdin.write('\n');
+    } else {
+      request.writeDelimitedTo(stdin);
+    }
+    stdin.flush();
+
+    WorkResponse response;
+    if (jsonReader != null) {
+      WorkResponse.Builder builder = WorkResponse.newBuilder();
+      try {
+        JsonElement element = JsonParser.parseReader(jsonReader);
+        JsonFormat.parser().ignoringUnknownFields().merge(element.toString(), builder);
+      } catch (JsonParseException e) {
+        throw new IOException("invalid response from worker", e);
+      }
+      response = builder.build();
+    } else {
+      response = WorkResponse.parseDelimitedFrom(stdout);
+      if (response == null) {
+        throw new IOException("worker exited before responding");
+      }
+    }
+    lastUsedMillis = System.currentTimeMillis();
+    return response;
+  }
+
+  /** Moves the outputs of the request into the exec dir, replacing anything in their place. */
+  void moveOutputs(Path execDir, Iterable<String> outputPaths) throws IOException {
+    for (String outputPath : outputPaths) {
+      Path source = execRoot.resolve(outputPath);
+      if (!Files.exists(source, NOFOLLOW_LINKS)) {
+        continue;
+      }
+      Path target = execDir.resolve(outputPath);
+      if (Files.isDirectory(target, NOFOLLOW_LINKS)) {
+        Directories.remove(target);
+      } else {
+        Files.deleteIfExists(target);
+      }
+      Files.createDirectories(target.getParent());
+      Files.move(source, target);
+    }
+  }
+
+  /** The resident memory of the worker process, or 0 if it cannot be determined. */
+  long getMemoryUsage() {
+    Path status = Paths.get("/proc", Long.toString(process.pid()), "status");
+    try {
+      List<String> lines = Files.readAllLines(status);
+      for (String line : lines) {
+        if (line.startsWith("VmRSS:")) {
+          String[] fields = line.substring("VmRSS:".length()).trim().split("\\s+");
+          return Long.parseLong(fields[0]) * 1024;
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      // no procfs, or the process has exited
+    }
+    return 0;
+  }
+
+  void destroy() {
+    process.destroyForcibly();
+  }
+
+  /** Destroys the worker and removes its directory. */
+  void close() throws IOException, InterruptedException {
+    destroy();
+    process.waitFor();
+    Directories.remove(root);
+  }
+
+  // links the inputs of an exec dir, whose files are already links into the cache
+  private static void link(Path source, Path target) throws IOException {
+    Files.walkFileTree(
+        source,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+              throws IOException {
+            Path targetDir = target.resolve(source.relativize(dir).toString());
+            if (!dir.equals(source)) {
+              Files.createDirectory(targetDir);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            Path link = target.resolve(source.relativize(file).toString());
+            if (attrs.isSymbolicLink()) {
+              Files.createSymbolicLink(link, Files.readSymbolicLink(file));
+            } else if (attrs.size() == 0) {
+              // empty files are not cache entries, and must not be shared
+              Files.createFile(link);
+            } else {
+              Files.createLink(link, file);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+}
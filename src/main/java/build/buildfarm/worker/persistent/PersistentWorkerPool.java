@@ -0,0 +1,311 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.persistent;
+
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+
+import build.buildfarm.common.io.Directories;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import com.google.protobuf.Duration;
+import com.google.protobuf.util.Durations;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A bounded pool of persistent workers, keyed by their startup arguments, environment and tools.
+ * Each worker performs one request at a time. Idle workers are reused most recently used first, and
+ * are destroyed once they have been idle for too long, or when a worker for another key is needed
+ * and the pool is full.
+ */
+public class PersistentWorkerPool {
+  private static final Logger logger = Logger.getLogger(PersistentWorkerPool.class.getName());
+
+  private static final Gauge poolSize =
+      Gauge.build()
+          .name("persistent_worker_pool_size")
+          .help("Persistent worker pool size.")
+          .register();
+  private static final Counter workersCreated =
+      Counter.build()
+          .name("persistent_workers_created")
+          .help("Number of persistent workers created.")
+          .register();
+  private static final Counter workRequests =
+      Counter.build()
+          .name("persistent_work_requests")
+          .help("Number of persistent work requests.")
+          .register();
+
+  private final Path root;
+  private final int maxWorkers;
+  private final Duration maxIdleTime;
+  private final long maxMemoryPerKey;
+  private final AtomicInteger workerIds = new AtomicInteger();
+  // fires the timeouts of requests, which must not wait behind the destruction of workers
+  private final ScheduledExecutorService scheduler = newSingleThreadScheduledExecutor();
+  private final ScheduledExecutorService evictor = newSingleThreadScheduledExecutor();
+
+  @GuardedBy("this")
+  private final Map<WorkerKey, Deque<PersistentWorker>> idleWorkers = new HashMap<>();
+
+  // idle and busy workers
+  @GuardedBy("this")
+  private int size = 0;
+
+  /**
+   * @param maxMemoryPerKey the resident memory limit of the workers for a key, beyond which
+   *     released workers are destroyed, or 0 for no limit
+   */
+  public PersistentWorkerPool(
+      Path root, int maxWorkers, Duration maxIdleTime, long maxMemoryPerKey) {
+    this.root = root;
+    this.maxWorkers = maxWorkers;
+    this.maxIdleTime = maxIdleTime;
+    this.maxMemoryPerKey = maxMemoryPerKey;
+  }
+
+  public void start() throws IOException {
+    if (Files.exists(root)) {
+      Directories.remove(root);
+    }
+    Files.createDirectories(root);
+    long maxIdleMillis = Durations.toMillis(maxIdleTime);
+    if (maxIdleMillis > 0) {
+      long periodMillis = Math.max(maxIdleMillis / 2, 1000);
+      evictor.scheduleAtFixedRate(
+          this::evictIdleWorkers, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public void stop() throws InterruptedException {
+    evictor.shutdownNow();
+    scheduler.shutdownNow();
+    List<PersistentWorker> workers = new ArrayList<>();
+    synchronized (this) {
+      for (Deque<PersistentWorker> idle : idleWorkers.values()) {
+        workers.addAll(idle);
+      }
+      idleWorkers.clear();
+      size -= workers.size();
+      poolSize.set(size);
+    }
+    destroy(workers);
+  }
+
+  /**
+   * Performs the work of an action on a worker, and moves its outputs into the exec dir. Returns
+   * null without performing the work if the pool is full of busy workers.
+   *
+   * @param timeout the limit on the response from the worker, or null for none. A worker which does
+   *     not respond in time is destroyed.
+   */
+  public @Nullable WorkResponse execute(
+      PersistentWork work, Path execDir, Iterable<String> outputPaths, @Nullable Duration timeout)
+      throws IOException, InterruptedException, TimeoutException {
+    PersistentWorker worker = acquire(work.getKey(), execDir);
+    if (worker == null) {
+      return null;
+    }
+    workRequests.inc();
+    AtomicBoolean timedOut = new AtomicBoolean(false);
+    ScheduledFuture<?> deadline = null;
+    if (timeout != null) {
+      deadline =
+          scheduler.schedule(
+              () -> {
+                timedOut.set(true);
+                worker.destroy();
+              },
+              Durations.toNanos(timeout),
+              TimeUnit.NANOSECONDS);
+    }
+    boolean healthy = false;
+    try {
+      WorkResponse response = worker.doWork(work.toRequest(0));
+      worker.moveOutputs(execDir, outputPaths);
+      healthy = true;
+      return response;
+    } catch (IOException e) {
+      if (timedOut.get()) {
+        throw new TimeoutException("worker did not respond within " + Durations.toString(timeout));
+      }
+      throw e;
+    } finally {
+      if (deadline != null) {
+        deadline.cancel(false);
+      }
+      release(worker, healthy && !timedOut.get());
+    }
+  }
+
+  // selects an idle worker for the key, or creates one if the pool has room for it, evicting the
+  // least recently used idle worker of another key if necessary
+  private @Nullable PersistentWorker acquire(WorkerKey key, Path execDir)
+      throws IOException, InterruptedException {
+    PersistentWorker worker = null;
+    PersistentWorker evicted = null;
+    synchronized (this) {
+      Deque<PersistentWorker> idle = idleWorkers.get(key);
+      if (idle != null) {
+        worker = idle.pop();
+        if (idle.isEmpty()) {
+          idleWorkers.remove(key);
+        }
+      } else if (size < maxWorkers) {
+        size++;
+      } else {
+        evicted = removeLeastRecentlyUsed();
+        if (evicted == null) {
+          return null;
+        }
+      }
+    }
+    if (evicted != null) {
+      destroy(evicted);
+    }
+    try {
+      if (worker != null) {
+        worker.prepare(execDir);
+      } else {
+        Path workerRoot = root.resolve(key.hash() + "-" + workerIds.incrementAndGet());
+        worker = PersistentWorker.start(key, workerRoot, execDir);
+        workersCreated.inc();
+      }
+    } catch (IOException e) {
+      if (worker != null) {
+        destroy(worker);
+      }
+      synchronized (this) {
+        size--;
+        poolSize.set(size);
+      }
+      throw e;
+    }
+    synchronized (this) {
+      poolSize.set(size);
+    }
+    return worker;
+  }
+
+  @GuardedBy("this")
+  private @Nullable PersistentWorker removeLeastRecentlyUsed() {
+    Deque<PersistentWorker> lruIdle = null;
+    for (Deque<PersistentWorker> idle : idleWorkers.values()) {
+      if (lruIdle == null
+          || idle.peekLast().getLastUsedMillis() < lruIdle.peekLast().getLastUsedMillis()) {
+        lruIdle = idle;
+      }
+    }
+    if (lruIdle == null) {
+      return null;
+    }
+    PersistentWorker worker = lruIdle.removeLast();
+    if (lruIdle.isEmpty()) {
+      idleWorkers.remove(worker.getKey());
+    }
+    return worker;
+  }
+
+  private void release(PersistentWorker worker, boolean healthy) throws InterruptedException {
+    if (healthy && worker.isAlive() && !scheduler.isShutdown() && !exceedsMemoryLimit(worker)) {
+      synchronized (this) {
+        idleWorkers.computeIfAbsent(worker.getKey(), key -> new ArrayDeque<>()).push(worker);
+      }
+      return;
+    }
+    synchronized (this) {
+      size--;
+      poolSize.set(size);
+    }
+    destroy(worker);
+  }
+
+  private boolean exceedsMemoryLimit(PersistentWorker worker) {
+    if (maxMemoryPerKey <= 0) {
+      return false;
+    }
+    List<PersistentWorker> workers = new ArrayList<>();
+    synchronized (this) {
+      Deque<PersistentWorker> idle = idleWorkers.get(worker.getKey());
+      if (idle != null) {
+        workers.addAll(idle);
+      }
+    }
+    long memoryUsage = worker.getMemoryUsage();
+    for (PersistentWorker idleWorker : workers) {
+      memoryUsage += idleWorker.getMemoryUsage();
+    }
+    return memoryUsage > maxMemoryPerKey;
+  }
+
+  private void evictIdleWorkers() {
+    long expiredMillis = System.currentTimeMillis() - Durations.toMillis(maxIdleTime);
+    List<PersistentWorker> evicted = new ArrayList<>();
+    synchronized (this) {
+      Iterator<Deque<PersistentWorker>> idleIterator = idleWorkers.values().iterator();
+      while (idleIterator.hasNext()) {
+        Deque<PersistentWorker> idle = idleIterator.next();
+        // the least recently used workers are last
+        while (!idle.isEmpty() && idle.peekLast().getLastUsedMillis() < expiredMillis) {
+          evicted.add(idle.removeLast());
+        }
+        if (idle.isEmpty()) {
+          idleIterator.remove();
+        }
+      }
+      size -= evicted.size();
+      poolSize.set(size);
+    }
+    try {
+      destroy(evicted);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void destroy(Iterable<PersistentWorker> workers) throws InterruptedException {
+    for (PersistentWorker worker : workers) {
+      destroy(worker);
+    }
+  }
+
+  private void destroy(PersistentWorker worker) throws InterruptedException {
+    try {
+      worker.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "error removing persistent worker for " + worker.getKey(), e);
+    }
+  }
+}
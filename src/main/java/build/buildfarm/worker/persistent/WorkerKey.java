@@ -0,0 +1,90 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.persistent;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Identifies the persistent workers which may perform a request. Workers are interchangeable if
+ * they were started with the same arguments and environment, run the same tool, and speak the same
+ * protocol.
+ */
+public final class WorkerKey {
+  private final ImmutableList<String> arguments;
+  private final ImmutableMap<String, String> environment;
+  private final String toolKey;
+  private final boolean json;
+
+  WorkerKey(
+      ImmutableList<String> arguments,
+      ImmutableMap<String, String> environment,
+      String toolKey,
+      boolean json) {
+    this.arguments = arguments;
+    this.environment = environment;
+    this.toolKey = toolKey;
+    this.json = json;
+  }
+
+  /** The startup arguments of the worker, including the persistent worker flag. */
+  public ImmutableList<String> getArguments() {
+    return arguments;
+  }
+
+  public ImmutableMap<String, String> getEnvironment() {
+    return environment;
+  }
+
+  public String getToolKey() {
+    return toolKey;
+  }
+
+  public boolean isJson() {
+    return json;
+  }
+
+  /** A digest of the key, suitable for naming the directories of its workers. */
+  public String hash() {
+    return Hashing.sha256().hashString(toString(), StandardCharsets.UTF_8).toString();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof WorkerKey)) {
+      return false;
+    }
+    WorkerKey other = (WorkerKey) o;
+    return arguments.equals(other.arguments)
+        && environment.equals(other.environment)
+        && toolKey.equals(other.toolKey)
+        && json == other.json;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(arguments, environment, toolKey, json);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "WorkerKey{arguments=%s, environment=%s, toolKey=%s, json=%s}",
+        arguments, environment, toolKey, json);
+  }
+}
@@ -24,12 +24,15 @@ import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
 import static com.google.common.util.concurrent.Futures.immediateFuture;
 import static com.google.common.util.concurrent.Futures.transform;
 import static com.google.common.util.concurrent.Futures.transformAsync;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
 import static com.google.common.util.concurrent.MoreExecutors.shutdownAndAwaitTermination;
+import static java.util.concurrent.Executors.newFixedThreadPool;
 import static java.util.concurrent.Executors.newWorkStealingPool;
 import static java.util.concurrent.TimeUnit.MINUTES;
 
 import build.bazel.remote.execution.v2.Action;
+import build.bazel.remote.execution.v2.BatchReadBlobsResponse.Response;
 import build.bazel.remote.execution.v2.Command;
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Directory;
@@ -41,20 +44,40 @@ import build.buildfarm.cas.cfc.CASFileCache;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.io.Directories;
 import build.buildfarm.common.io.Dirent;
+import build.buildfarm.common.io.NativeDirectories;
+import build.buildfarm.instance.shard.RemoteInputStreamFactory;
 import build.buildfarm.worker.OutputDirectory;
+import build.buildfarm.worker.shard.InputRootTemplateCache.Template;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.MultimapBuilder;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+import io.grpc.Status.Code;
+import io.prometheus.client.Summary;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -71,9 +94,39 @@ class CFCExecFileSystem implements ExecFileSystem {
   // in cache
   private final Map<Path, Iterable<String>> rootInputFiles = new ConcurrentHashMap<>();
   private final Map<Path, Iterable<Digest>> rootInputDirectories = new ConcurrentHashMap<>();
+  private final Map<Path, Template> rootTemplates = new ConcurrentHashMap<>();
+  private final @Nullable InputRootTemplateCache templateCache;
   private final ExecutorService fetchService = newWorkStealingPool(128);
   private final ExecutorService removeDirectoryService;
   private final ExecutorService accessRecorder;
+  private final @Nullable RemoteInputStreamFactory batchReader;
+  // inputs no larger than this are fetched with batch reads, disabled if 0
+  private final long batchReadBlobSizeLimit;
+  private final long batchReadRequestSizeLimit;
+  private final ListeningExecutorService prefetchService =
+      listeningDecorator(
+          newFixedThreadPool(
+              PREFETCH_THREADS,
+              new ThreadFactoryBuilder().setNameFormat("input-prefetch-pool-%d").build()));
+  // limits the rate of prefetched bytes, unlimited if null
+  private final @Nullable RateLimiter prefetchRateLimiter;
+
+  // removes exec dirs with native fd-relative calls, null if exec dirs use nio
+  private final @Nullable ForkJoinPool removeTreePool;
+
+  private static final int PREFETCH_THREADS = 16;
+  private static final String TEMPLATES_DIRECTORY = ".templates";
+
+  private static final Summary batchReadRequests =
+      Summary.build()
+          .name("input_fetch_batch_requests")
+          .help("Batch read requests made for the inputs of an operation.")
+          .register();
+  private static final Summary batchReadBytes =
+      Summary.build()
+          .name("input_fetch_batch_bytes")
+          .help("Bytes read in batch requests for the inputs of an operation.")
+          .register();
 
   CFCExecFileSystem(
       Path root,
@@ -82,6 +135,12 @@ class CFCExecFileSystem implements ExecFileSystem {
       boolean linkInputDirectories,
       ExecutorService removeDirectoryService,
       ExecutorService accessRecorder,
+      @Nullable RemoteInputStreamFactory batchReader,
+      long batchReadBlobSizeLimit,
+      long batchReadRequestSizeLimit,
+      long prefetchBytesPerSecond,
+      int inputRootTemplateCacheSize,
+      boolean nativeExecDirs,
       long deadlineAfter,
       TimeUnit deadlineAfterUnits) {
     this.root = root;
@@ -90,6 +149,42 @@ class CFCExecFileSystem implements ExecFileSystem {
     this.linkInputDirectories = linkInputDirectories;
     this.removeDirectoryService = removeDirectoryService;
     this.accessRecorder = accessRecorder;
+    this.batchReader = batchReader;
+    this.batchReadBlobSizeLimit = batchReader == null ? 0 : batchReadBlobSizeLimit;
+    this.batchReadRequestSizeLimit = batchReadRequestSizeLimit;
+    prefetchRateLimiter =
+        prefetchBytesPerSecond > 0 ? RateLimiter.create(prefetchBytesPerSecond) : null;
+    if (nativeExecDirs && !NativeDirectories.isSupported()) {
+      logger.log(Level.WARNING, "native exec dirs are not supported, using nio");
+      nativeExecDirs = false;
+    }
+    templateCache =
+        inputRootTemplateCacheSize > 0
+            ? new InputRootTemplateCache(
+                root.resolve(TEMPLATES_DIRECTORY),
+                fileCache,
+                inputRootTemplateCacheSize,
+                nativeExecDirs)
+            : null;
+    removeTreePool =
+        nativeExecDirs ? new ForkJoinPool(Runtime.getRuntime().availableProcessors()) : null;
+  }
+
+  /** A file input deferred to be fetched in a batch read, which retains its directory. */
+  private static final class BatchedInput {
+    final ExecDirectory directory;
+    final FileNode fileNode;
+
+    BatchedInput(ExecDirectory directory, FileNode fileNode) {
+      this.directory = directory.retain();
+      this.fileNode = fileNode;
+    }
+  }
+
+  /** The batch reads made for the inputs of an exec dir. */
+  private static final class BatchReadCounts {
+    final AtomicInteger requests = new AtomicInteger();
+    final AtomicLong bytes = new AtomicLong();
   }
 
   @Override
@@ -125,19 +220,30 @@ class CFCExecFileSystem implements ExecFileSystem {
     onDigests.accept(blobDigests.build());
 
     getInterruptiblyOrIOException(allAsList(removeDirectoryFutures.build()));
+
+    if (templateCache != null) {
+      templateCache.start();
+    }
   }
 
   @Override
   public void stop() {
+    if (!shutdownAndAwaitTermination(prefetchService, 1, MINUTES)) {
+      logger.log(Level.SEVERE, "could not terminate prefetchService");
+    }
     if (!shutdownAndAwaitTermination(fetchService, 1, MINUTES)) {
       logger.log(Level.SEVERE, "could not terminate fetchService");
     }
+    if (removeTreePool != null && !shutdownAndAwaitTermination(removeTreePool, 1, MINUTES)) {
+      logger.log(Level.SEVERE, "could not terminate removeTreePool");
+    }
     if (!shutdownAndAwaitTermination(removeDirectoryService, 1, MINUTES)) {
       logger.log(Level.SEVERE, "could not terminate removeDirectoryService");
     }
     if (!shutdownAndAwaitTermination(accessRecorder, 1, MINUTES)) {
       logger.log(Level.SEVERE, "could not terminate accessRecorder");
     }
+    fileCache.stop();
   }
 
   @Override
@@ -155,59 +261,164 @@ class CFCExecFileSystem implements ExecFileSystem {
     return fileCache.newInput(digest, offset);
   }
 
-  private ListenableFuture<Void> putSymlink(Path path, SymlinkNode symlinkNode) {
-    Path symlinkPath = path.resolve(symlinkNode.getName());
-    Path relativeTargetPath = path.getFileSystem().getPath(symlinkNode.getTarget());
+  // the directory is retained until the entry created within it is done
+  private static ListenableFuture<Void> releasing(
+      ExecDirectory directory, ListenableFuture<Void> future) {
+    future.addListener(directory::release, directExecutor());
+    return future;
+  }
+
+  private ListenableFuture<Void> putSymlink(ExecDirectory directory, SymlinkNode symlinkNode) {
+    Path relativeTargetPath = directory.getPath().getFileSystem().getPath(symlinkNode.getTarget());
     checkState(!relativeTargetPath.isAbsolute());
-    return listeningDecorator(fetchService)
-        .submit(
-            () -> {
-              Files.createSymbolicLink(symlinkPath, relativeTargetPath);
-              return null;
-            });
+    directory.retain();
+    return releasing(
+        directory,
+        listeningDecorator(fetchService)
+            .submit(
+                () -> {
+                  directory.createSymbolicLink(symlinkNode.getName(), relativeTargetPath);
+                  return null;
+                }));
   }
 
   private ListenableFuture<Void> put(
-      Path path, FileNode fileNode, ImmutableList.Builder<String> inputFiles) {
-    Path filePath = path.resolve(fileNode.getName());
+      ExecDirectory directory, FileNode fileNode, ImmutableList.Builder<String> inputFiles) {
     Digest digest = fileNode.getDigest();
+    directory.retain();
     if (digest.getSizeBytes() == 0) {
-      return listeningDecorator(fetchService)
-          .submit(
-              () -> {
-                Files.createFile(filePath);
-                // ignore executable
-                return null;
-              });
+      return releasing(
+          directory,
+          listeningDecorator(fetchService)
+              .submit(
+                  () -> {
+                    directory.createFile(fileNode.getName());
+                    // ignore executable
+                    return null;
+                  }));
     }
     String key = fileCache.getKey(digest, fileNode.getIsExecutable());
-    return transformAsync(
-        fileCache.put(digest, fileNode.getIsExecutable(), fetchService),
-        (fileCachePath) -> {
-          checkNotNull(key);
-          // we saw null entries in the built immutable list without synchronization
-          synchronized (inputFiles) {
-            inputFiles.add(key);
-          }
-          if (fileNode.getDigest().getSizeBytes() != 0) {
-            try {
-              Files.createLink(filePath, fileCachePath);
-            } catch (IOException e) {
-              return immediateFailedFuture(e);
-            }
-          }
-          return immediateFuture(null);
-        },
-        fetchService);
+    return releasing(
+        directory,
+        transformAsync(
+            fileCache.put(digest, fileNode.getIsExecutable(), fetchService),
+            (fileCachePath) -> {
+              checkNotNull(key);
+              // we saw null entries in the built immutable list without synchronization
+              synchronized (inputFiles) {
+                inputFiles.add(key);
+              }
+              if (fileNode.getDigest().getSizeBytes() != 0) {
+                try {
+                  directory.createLink(fileNode.getName(), fileCachePath);
+                } catch (IOException e) {
+                  return immediateFailedFuture(e);
+                }
+              }
+              return immediateFuture(null);
+            },
+            fetchService));
+  }
+
+  private ListenableFuture<Void> put(
+      ExecDirectory directory,
+      FileNode fileNode,
+      ByteString content,
+      ImmutableList.Builder<String> inputFiles) {
+    Digest digest = fileNode.getDigest();
+    String key = fileCache.getKey(digest, fileNode.getIsExecutable());
+    directory.retain();
+    return releasing(
+        directory,
+        listeningDecorator(fetchService)
+            .submit(
+                () -> {
+                  Path fileCachePath = fileCache.put(digest, fileNode.getIsExecutable(), content);
+                  synchronized (inputFiles) {
+                    inputFiles.add(key);
+                  }
+                  directory.createLink(fileNode.getName(), fileCachePath);
+                  return null;
+                }));
+  }
+
+  private boolean isBatched(FileNode fileNode) {
+    long size = fileNode.getDigest().getSizeBytes();
+    return size > 0 && size <= batchReadBlobSizeLimit;
+  }
+
+  // inputs which are present in the cache, or fail to be read in a batch, are put individually
+  private Iterable<ListenableFuture<Void>> fetchBatchedInputs(
+      List<BatchedInput> batchedInputs,
+      ImmutableList.Builder<String> inputFiles,
+      BatchReadCounts counts) {
+    if (batchedInputs.isEmpty()) {
+      return ImmutableList.of();
+    }
+    ListMultimap<Digest, BatchedInput> digestInputs =
+        MultimapBuilder.linkedHashKeys().arrayListValues().build();
+    for (BatchedInput input : batchedInputs) {
+      digestInputs.put(input.fileNode.getDigest(), input);
+    }
+    Set<Digest> missingDigests;
+    List<ListenableFuture<Iterable<Response>>> reads;
+    try {
+      missingDigests = ImmutableSet.copyOf(fileCache.findMissingBlobs(digestInputs.keySet()));
+      reads =
+          missingDigests.isEmpty()
+              ? ImmutableList.of()
+              : batchReader.readBlobs(missingDigests, batchReadRequestSizeLimit);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "error locating inputs for batch reads", e);
+      missingDigests = ImmutableSet.of();
+      reads = ImmutableList.of();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return ImmutableList.of(immediateFailedFuture(e));
+    }
+
+    ImmutableList.Builder<ListenableFuture<Void>> fetches = ImmutableList.builder();
+    for (BatchedInput input : digestInputs.values()) {
+      if (!missingDigests.contains(input.fileNode.getDigest())) {
+        fetches.add(put(input.directory, input.fileNode, inputFiles));
+      }
+    }
+    for (ListenableFuture<Iterable<Response>> read : reads) {
+      counts.requests.incrementAndGet();
+      fetches.add(
+          transformAsync(
+              read,
+              (responses) -> {
+                ImmutableList.Builder<ListenableFuture<Void>> puts = ImmutableList.builder();
+                for (Response response : responses) {
+                  boolean found = response.getStatus().getCode() == Code.OK.value();
+                  if (found) {
+                    counts.bytes.addAndGet(response.getData().size());
+                  }
+                  for (BatchedInput input : digestInputs.get(response.getDigest())) {
+                    if (found) {
+                      puts.add(
+                          put(input.directory, input.fileNode, response.getData(), inputFiles));
+                    } else {
+                      puts.add(put(input.directory, input.fileNode, inputFiles));
+                    }
+                  }
+                }
+                return transform(allAsList(puts.build()), (results) -> null, directExecutor());
+              },
+              fetchService));
+    }
+    return fetches.build();
   }
 
   private Iterable<ListenableFuture<Void>> fetchInputs(
-      Path path,
+      ExecDirectory execDirectory,
       Digest directoryDigest,
       Map<Digest, Directory> directoriesIndex,
       OutputDirectory outputDirectory,
       ImmutableList.Builder<String> inputFiles,
-      ImmutableList.Builder<Digest> inputDirectories)
+      ImmutableList.Builder<Digest> inputDirectories,
+      List<BatchedInput> batchedInputs)
       throws IOException {
     Directory directory = directoriesIndex.get(directoryDigest);
     if (directory == null) {
@@ -216,16 +427,21 @@ class CFCExecFileSystem implements ExecFileSystem {
           "Directory " + DigestUtil.toString(directoryDigest) + " is not in directories index");
     }
 
-    Iterable<ListenableFuture<Void>> downloads =
-        directory.getFilesList().stream()
-            .map(fileNode -> put(path, fileNode, inputFiles))
-            .collect(ImmutableList.toImmutableList());
+    ImmutableList.Builder<ListenableFuture<Void>> puts = ImmutableList.builder();
+    for (FileNode fileNode : directory.getFilesList()) {
+      if (isBatched(fileNode)) {
+        batchedInputs.add(new BatchedInput(execDirectory, fileNode));
+      } else {
+        puts.add(put(execDirectory, fileNode, inputFiles));
+      }
+    }
+    Iterable<ListenableFuture<Void>> downloads = puts.build();
 
     downloads =
         concat(
             downloads,
             directory.getSymlinksList().stream()
-                .map(symlinkNode -> putSymlink(path, symlinkNode))
+                .map(symlinkNode -> putSymlink(execDirectory, symlinkNode))
                 .collect(ImmutableList.toImmutableList()));
 
     for (DirectoryNode directoryNode : directory.getDirectoriesList()) {
@@ -233,26 +449,30 @@ class CFCExecFileSystem implements ExecFileSystem {
       String name = directoryNode.getName();
       OutputDirectory childOutputDirectory =
           outputDirectory != null ? outputDirectory.getChild(name) : null;
-      Path dirPath = path.resolve(name);
       if (childOutputDirectory != null || !linkInputDirectories || name.equals("external")) {
-        Files.createDirectories(dirPath);
-        downloads =
-            concat(
-                downloads,
-                fetchInputs(
-                    dirPath,
-                    digest,
-                    directoriesIndex,
-                    childOutputDirectory,
-                    inputFiles,
-                    inputDirectories));
+        ExecDirectory childDirectory = execDirectory.createDirectory(name);
+        try {
+          downloads =
+              concat(
+                  downloads,
+                  fetchInputs(
+                      childDirectory,
+                      digest,
+                      directoriesIndex,
+                      childOutputDirectory,
+                      inputFiles,
+                      inputDirectories,
+                      batchedInputs));
+        } finally {
+          childDirectory.release();
+        }
       } else {
         downloads =
             concat(
                 downloads,
                 ImmutableList.of(
                     transform(
-                        linkDirectory(dirPath, digest, directoriesIndex),
+                        linkDirectory(execDirectory, name, digest, directoriesIndex),
                         (result) -> {
                           // we saw null entries in the built immutable list without synchronization
                           synchronized (inputDirectories) {
@@ -270,14 +490,20 @@ class CFCExecFileSystem implements ExecFileSystem {
   }
 
   private ListenableFuture<Void> linkDirectory(
-      Path execPath, Digest digest, Map<Digest, Directory> directoriesIndex) {
-    return transformAsync(
-        fileCache.putDirectory(digest, directoriesIndex, fetchService),
-        (cachePath) -> {
-          Files.createSymbolicLink(execPath, cachePath);
-          return immediateFuture(null);
-        },
-        fetchService);
+      ExecDirectory execDirectory,
+      String name,
+      Digest digest,
+      Map<Digest, Directory> directoriesIndex) {
+    execDirectory.retain();
+    return releasing(
+        execDirectory,
+        transformAsync(
+            fileCache.putDirectory(digest, directoriesIndex, fetchService),
+            (cachePath) -> {
+              execDirectory.createSymbolicLink(name, cachePath);
+              return immediateFuture(null);
+            },
+            fetchService));
   }
 
   private static class ExecDirException extends IOException {
@@ -320,25 +546,94 @@ class CFCExecFileSystem implements ExecFileSystem {
 
     Path execDir = root.resolve(operationName);
     if (Files.exists(execDir)) {
-      Directories.remove(execDir);
+      removeDirectory(execDir);
     }
     Files.createDirectories(execDir);
 
+    String templateKey = getTemplateKey(action);
+    Template template = templateCache == null ? null : templateCache.acquire(templateKey);
+    if (template != null) {
+      logger.log(
+          Level.FINE, "ExecFileSystem::createExecDir(" + operationName + ") cloning template");
+      boolean cloned = false;
+      try {
+        templateCache.clone(template, execDir);
+        cloned = true;
+      } finally {
+        if (!cloned) {
+          templateCache.release(template);
+          removeDirectory(execDir);
+        }
+      }
+      rootTemplates.put(execDir, template);
+    } else {
+      fetchExecDir(operationName, directoriesIndex, action, outputDirectory, execDir, templateKey);
+    }
+
+    logger.log(
+        Level.FINE,
+        "ExecFileSystem::createExecDir(" + operationName + ") stamping output directories");
+    boolean stamped = false;
+    try {
+      outputDirectory.stamp(execDir);
+      stamped = true;
+    } finally {
+      if (!stamped) {
+        destroyExecDir(execDir);
+      }
+    }
+    if (owner != null) {
+      Directories.setAllOwner(execDir, owner);
+    }
+    return execDir;
+  }
+
+  // linked input directories are materialized only outside of the command's output paths
+  private String getTemplateKey(Action action) {
+    String key = DigestUtil.toString(action.getInputRootDigest());
+    if (linkInputDirectories) {
+      key += "_" + DigestUtil.toString(action.getCommandDigest());
+    }
+    return key;
+  }
+
+  private void fetchExecDir(
+      String operationName,
+      Map<Digest, Directory> directoriesIndex,
+      Action action,
+      OutputDirectory outputDirectory,
+      Path execDir,
+      String templateKey)
+      throws IOException, InterruptedException {
     ImmutableList.Builder<String> inputFiles = new ImmutableList.Builder<>();
     ImmutableList.Builder<Digest> inputDirectories = new ImmutableList.Builder<>();
+    List<BatchedInput> batchedInputs = new ArrayList<>();
+    BatchReadCounts batchReadCounts = new BatchReadCounts();
 
     logger.log(
         Level.FINE, "ExecFileSystem::createExecDir(" + operationName + ") calling fetchInputs");
-    Iterable<ListenableFuture<Void>> fetchedFutures =
-        fetchInputs(
-            execDir,
-            action.getInputRootDigest(),
-            directoriesIndex,
-            outputDirectory,
-            inputFiles,
-            inputDirectories);
+    ExecDirectory execDirectory = openExecDirectory(execDir);
+    Iterable<ListenableFuture<Void>> fetchedFutures;
+    try {
+      fetchedFutures =
+          fetchInputs(
+              execDirectory,
+              action.getInputRootDigest(),
+              directoriesIndex,
+              outputDirectory,
+              inputFiles,
+              inputDirectories,
+              batchedInputs);
+    } catch (IOException e) {
+      releaseBatchedInputs(batchedInputs);
+      throw e;
+    } finally {
+      execDirectory.release();
+    }
     boolean success = false;
     try {
+      fetchedFutures =
+          concat(fetchedFutures, fetchBatchedInputs(batchedInputs, inputFiles, batchReadCounts));
       InterruptedException exception = null;
       boolean wasInterrupted = false;
       ImmutableList.Builder<Throwable> exceptions = ImmutableList.builder();
@@ -371,31 +666,128 @@ class CFCExecFileSystem implements ExecFileSystem {
       checkExecErrors(execDir, exceptions.build());
       success = true;
     } finally {
+      releaseBatchedInputs(batchedInputs);
+      if (!batchedInputs.isEmpty()) {
+        batchReadRequests.observe(batchReadCounts.requests.get());
+        batchReadBytes.observe(batchReadCounts.bytes.get());
+        logger.log(
+            Level.FINE,
+            String.format(
+                "ExecFileSystem::createExecDir(%s) batch read %d bytes in %d requests",
+                operationName, batchReadCounts.bytes.get(), batchReadCounts.requests.get()));
+      }
       if (!success) {
         fileCache.decrementReferences(inputFiles.build(), inputDirectories.build());
-        Directories.remove(execDir);
+        removeDirectory(execDir);
       }
     }
 
-    rootInputFiles.put(execDir, inputFiles.build());
-    rootInputDirectories.put(execDir, inputDirectories.build());
+    // the template takes over the references of the inputs if it is created
+    Template template =
+        templateCache == null
+            ? null
+            : templateCache.create(
+                templateKey, execDir, inputFiles.build(), inputDirectories.build());
+    if (template != null) {
+      rootTemplates.put(execDir, template);
+    } else {
+      rootInputFiles.put(execDir, inputFiles.build());
+      rootInputDirectories.put(execDir, inputDirectories.build());
+    }
+  }
 
-    logger.log(
-        Level.FINE,
-        "ExecFileSystem::createExecDir(" + operationName + ") stamping output directories");
-    boolean stamped = false;
-    try {
-      outputDirectory.stamp(execDir);
-      stamped = true;
-    } finally {
-      if (!stamped) {
-        destroyExecDir(execDir);
+  private ExecDirectory openExecDirectory(Path execDir) throws IOException {
+    if (removeTreePool != null) {
+      return ExecDirectory.open(execDir);
+    }
+    return ExecDirectory.of(execDir);
+  }
+
+  private static void releaseBatchedInputs(List<BatchedInput> batchedInputs) {
+    for (BatchedInput input : batchedInputs) {
+      input.directory.release();
+    }
+  }
+
+  private void removeDirectory(Path directory) throws IOException {
+    if (removeTreePool != null) {
+      NativeDirectories.remove(directory, removeTreePool);
+    } else {
+      Directories.remove(directory);
+    }
+  }
+
+  private void addInputs(
+      Digest directoryDigest,
+      Map<Digest, Directory> directoriesIndex,
+      Map<String, FileNode> inputs,
+      Set<Digest> visited) {
+    Directory directory = directoriesIndex.get(directoryDigest);
+    if (directory == null || !visited.add(directoryDigest)) {
+      return;
+    }
+    for (FileNode fileNode : directory.getFilesList()) {
+      Digest digest = fileNode.getDigest();
+      if (digest.getSizeBytes() != 0) {
+        inputs.putIfAbsent(fileCache.getKey(digest, fileNode.getIsExecutable()), fileNode);
       }
     }
-    if (owner != null) {
-      Directories.setAllOwner(execDir, owner);
+    for (DirectoryNode directoryNode : directory.getDirectoriesList()) {
+      addInputs(directoryNode.getDigest(), directoriesIndex, inputs, visited);
     }
-    return execDir;
+  }
+
+  private List<FileNode> missingInputs(
+      Map<Digest, Directory> directoriesIndex, Digest inputRootDigest) throws InterruptedException {
+    Map<String, FileNode> inputs = new HashMap<>();
+    addInputs(inputRootDigest, directoriesIndex, inputs, new HashSet<>());
+    Set<Digest> missingDigests =
+        ImmutableSet.copyOf(
+            fileCache.findMissingBlobs(Iterables.transform(inputs.values(), FileNode::getDigest)));
+    List<FileNode> missingInputs = new ArrayList<>();
+    for (FileNode fileNode : inputs.values()) {
+      if (missingDigests.contains(fileNode.getDigest())) {
+        missingInputs.add(fileNode);
+      }
+    }
+    return missingInputs;
+  }
+
+  private long prefetch(FileNode fileNode) throws IOException, InterruptedException {
+    Digest digest = fileNode.getDigest();
+    if (prefetchRateLimiter != null) {
+      prefetchRateLimiter.acquire((int) Math.min(digest.getSizeBytes(), Integer.MAX_VALUE));
+    }
+    // a concurrent fetch of the same entry for an exec dir shares this download
+    fileCache.put(digest, fileNode.getIsExecutable());
+    // the entry is left unreferenced, to be referenced by the exec dir if it is not evicted first
+    fileCache.decrementReferences(
+        ImmutableList.of(fileCache.getKey(digest, fileNode.getIsExecutable())), ImmutableList.of());
+    return digest.getSizeBytes();
+  }
+
+  @Override
+  public ListenableFuture<Long> prefetchInputs(
+      Map<Digest, Directory> directoriesIndex, Digest inputRootDigest) {
+    return transformAsync(
+        prefetchService.submit(() -> missingInputs(directoriesIndex, inputRootDigest)),
+        (missingInputs) -> {
+          ImmutableList.Builder<ListenableFuture<Long>> prefetches = ImmutableList.builder();
+          for (FileNode fileNode : missingInputs) {
+            prefetches.add(prefetchService.submit(() -> prefetch(fileNode)));
+          }
+          return transform(
+              allAsList(prefetches.build()),
+              (sizes) -> {
+                long size = 0;
+                for (long prefetchedSize : sizes) {
+                  size += prefetchedSize;
+                }
+                return size;
+              },
+              directExecutor());
+        },
+        directExecutor());
   }
 
   @Override
@@ -408,7 +800,12 @@ class CFCExecFileSystem implements ExecFileSystem {
           inputDirectories == null ? ImmutableList.of() : inputDirectories);
     }
     if (Files.exists(execDir)) {
-      Directories.remove(execDir);
+      removeDirectory(execDir);
+    }
+    // the template is released after the removal of its clone, as it may then be evicted
+    Template template = rootTemplates.remove(execDir);
+    if (template != null) {
+      templateCache.release(template);
     }
   }
 }
@@ -22,5 +22,8 @@ import java.nio.file.Path;
 public interface CasWriter {
   void write(Digest digest, Path file) throws IOException, InterruptedException;
 
+  /** Writes a file whose digest is not yet known, returning its digest. */
+  Digest ingest(Path file) throws IOException, InterruptedException;
+
   void insertBlob(Digest digest, ByteString content) throws IOException, InterruptedException;
 }
@@ -0,0 +1,182 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import build.buildfarm.common.io.NativeDirectories;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A directory of an exec dir under construction, in which inputs are created by name.
+ *
+ * <p>A directory is referenced by its creator and by every entry scheduled within it, and each
+ * reference is released when it is no longer needed. The native implementation holds the directory
+ * open until its last reference is released, and creates its entries relative to the open
+ * directory.
+ */
+abstract class ExecDirectory {
+  private static final Logger logger = Logger.getLogger(ExecDirectory.class.getName());
+
+  private final Path path;
+
+  ExecDirectory(Path path) {
+    this.path = path;
+  }
+
+  Path getPath() {
+    return path;
+  }
+
+  abstract ExecDirectory createDirectory(String name) throws IOException;
+
+  abstract void createFile(String name) throws IOException;
+
+  abstract void createLink(String name, Path existing) throws IOException;
+
+  abstract void createSymbolicLink(String name, Path target) throws IOException;
+
+  /** Adds a reference to the directory, for an entry to be created later. */
+  abstract ExecDirectory retain();
+
+  abstract void release();
+
+  static ExecDirectory of(Path path) {
+    return new NioExecDirectory(path);
+  }
+
+  /** Opens an existing directory for fd-relative creation of its entries. */
+  static ExecDirectory open(Path path) throws IOException {
+    return new NativeExecDirectory(path, NativeDirectories.open(path));
+  }
+
+  private static final class NioExecDirectory extends ExecDirectory {
+    NioExecDirectory(Path path) {
+      super(path);
+    }
+
+    @Override
+    ExecDirectory createDirectory(String name) throws IOException {
+      Path dirPath = getPath().resolve(name);
+      Files.createDirectories(dirPath);
+      return new NioExecDirectory(dirPath);
+    }
+
+    @Override
+    void createFile(String name) throws IOException {
+      Files.createFile(getPath().resolve(name));
+    }
+
+    @Override
+    void createLink(String name, Path existing) throws IOException {
+      Files.createLink(getPath().resolve(name), existing);
+    }
+
+    @Override
+    void createSymbolicLink(String name, Path target) throws IOException {
+      Files.createSymbolicLink(getPath().resolve(name), target);
+    }
+
+    @Override
+    ExecDirectory retain() {
+      return this;
+    }
+
+    @Override
+    void release() {}
+  }
+
+  private static final class NativeExecDirectory extends ExecDirectory {
+    private final int fd;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    NativeExecDirectory(Path path, int fd) {
+      super(path);
+      this.fd = fd;
+    }
+
+    // guards each use of the fd, which may not be used once it has been closed
+    private void acquire() throws IOException {
+      int count;
+      do {
+        count = references.get();
+        if (count == 0) {
+          throw new IOException(getPath() + " is closed");
+        }
+      } while (!references.compareAndSet(count, count + 1));
+    }
+
+    @Override
+    ExecDirectory createDirectory(String name) throws IOException {
+      acquire();
+      try {
+        return new NativeExecDirectory(
+            getPath().resolve(name), NativeDirectories.createDirectoryAt(fd, name));
+      } finally {
+        release();
+      }
+    }
+
+    @Override
+    void createFile(String name) throws IOException {
+      acquire();
+      try {
+        NativeDirectories.createFileAt(fd, name);
+      } finally {
+        release();
+      }
+    }
+
+    @Override
+    void createLink(String name, Path existing) throws IOException {
+      acquire();
+      try {
+        NativeDirectories.createLinkAt(fd, name, existing);
+      } finally {
+        release();
+      }
+    }
+
+    @Override
+    void createSymbolicLink(String name, Path target) throws IOException {
+      acquire();
+      try {
+        NativeDirectories.createSymbolicLinkAt(fd, name, target.toString());
+      } finally {
+        release();
+      }
+    }
+
+    @Override
+    ExecDirectory retain() {
+      references.incrementAndGet();
+      return this;
+    }
+
+    @Override
+    void release() {
+      if (references.decrementAndGet() == 0) {
+        try {
+          NativeDirectories.close(fd);
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "error closing " + getPath(), e);
+        }
+      }
+    }
+  }
+}
@@ -20,6 +20,7 @@ import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Directory;
 import build.buildfarm.cas.ContentAddressableStorage;
 import build.buildfarm.common.InputStreamFactory;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.List;
@@ -41,4 +42,7 @@ interface ExecFileSystem extends InputStreamFactory {
       throws IOException, InterruptedException;
 
   void destroyExecDir(Path execDir) throws IOException, InterruptedException;
+
+  ListenableFuture<Long> prefetchInputs(
+      Map<Digest, Directory> directoriesIndex, Digest inputRootDigest);
 }
@@ -14,12 +14,15 @@
 
 package build.buildfarm.worker.shard;
 
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+
 import build.bazel.remote.execution.v2.Action;
 import build.bazel.remote.execution.v2.Command;
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Directory;
 import build.buildfarm.cas.ContentAddressableStorage;
 import build.buildfarm.worker.FuseCAS;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
@@ -71,6 +74,13 @@ class FuseExecFileSystem implements ExecFileSystem {
     return root.resolve(operationName);
   }
 
+  @Override
+  public ListenableFuture<Long> prefetchInputs(
+      Map<Digest, Directory> directoriesIndex, Digest inputRootDigest) {
+    // inputs are fetched on demand through fuse
+    return immediateFuture(0L);
+  }
+
   @Override
   public void destroyExecDir(Path actionRoot) throws IOException, InterruptedException {
     String topdir = root.relativize(actionRoot).toString();
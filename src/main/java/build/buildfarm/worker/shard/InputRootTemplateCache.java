@@ -0,0 +1,327 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.cas.cfc.CASFileCache;
+import build.buildfarm.common.io.Directories;
+import build.buildfarm.common.io.Dirent;
+import build.buildfarm.common.io.NativeDirectories;
+import com.google.common.annotations.VisibleForTesting;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An LRU of read-only materialized input roots, from which exec dirs are cloned as trees of new
+ * directories and hard links. Templates are keyed by their input root digest, qualified by anything
+ * else which affects the layout of an exec dir.
+ *
+ * <p>A template takes over the cache references of the exec dir it was created from, and retains
+ * them until it is evicted. Exec dirs lease the template they were cloned from, and a leased
+ * template is not evicted. Templates are only created for input roots which have been seen before,
+ * so that unique input roots are not materialized twice.
+ *
+ * <p>Natively, a clone is made with calls relative to open directories of the template and the exec
+ * dir, with each file linked by its name within them. A template records its empty files and
+ * symlinks when it is created, so that a clone needs no more than the type reported for each entry
+ * when its directory is read.
+ */
+class InputRootTemplateCache {
+  private static final Logger logger = Logger.getLogger(InputRootTemplateCache.class.getName());
+
+  private final Path root;
+  private final CASFileCache fileCache;
+  private final int maxTemplates;
+  private final boolean nativeClone;
+
+  @GuardedBy("this")
+  private final Map<String, Template> templates = new LinkedHashMap<>(16, 0.75f, true);
+
+  // input roots seen without a template, bounded to a multiple of the template limit
+  @GuardedBy("this")
+  private final Map<String, Boolean> seen =
+      new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > maxTemplates * 4;
+        }
+      };
+
+  static final class Template {
+    private final Path path;
+    private final Iterable<String> inputFiles;
+    private final Iterable<Digest> inputDirectories;
+    // by path relative to the template
+    private final Set<String> emptyFiles;
+    private final Map<String, String> symlinkTargets;
+
+    @GuardedBy("InputRootTemplateCache.this")
+    private int leases = 1;
+
+    Template(
+        Path path,
+        Iterable<String> inputFiles,
+        Iterable<Digest> inputDirectories,
+        Set<String> emptyFiles,
+        Map<String, String> symlinkTargets) {
+      this.path = path;
+      this.inputFiles = inputFiles;
+      this.inputDirectories = inputDirectories;
+      this.emptyFiles = emptyFiles;
+      this.symlinkTargets = symlinkTargets;
+    }
+
+    Path getPath() {
+      return path;
+    }
+  }
+
+  InputRootTemplateCache(Path root, CASFileCache fileCache, int maxTemplates, boolean nativeClone) {
+    this.root = root;
+    this.fileCache = fileCache;
+    this.maxTemplates = maxTemplates;
+    this.nativeClone = nativeClone;
+  }
+
+  void start() throws IOException {
+    Files.createDirectories(root);
+  }
+
+  /** Leases the template for an input root, or returns null if there is none. */
+  synchronized @Nullable Template acquire(String key) {
+    Template template = templates.get(key);
+    if (template != null) {
+      template.leases++;
+    }
+    return template;
+  }
+
+  /** Releases a lease on a template, which may then be evicted. */
+  void release(Template template) throws IOException, InterruptedException {
+    List<Template> destroyed;
+    synchronized (this) {
+      template.leases--;
+      destroyed = evict();
+    }
+    destroy(destroyed);
+  }
+
+  /**
+   * Creates a template for an input root from the inputs materialized in an exec dir, leased to
+   * that exec dir. The template takes over the references of the inputs if it is created, otherwise
+   * null is returned and the references remain with the caller.
+   */
+  @Nullable
+  Template create(
+      String key, Path execDir, Iterable<String> inputFiles, Iterable<Digest> inputDirectories)
+      throws IOException, InterruptedException {
+    synchronized (this) {
+      if (templates.containsKey(key) || seen.put(key, true) == null) {
+        return null;
+      }
+    }
+    Path path = root.resolve(key.replace('/', '_') + "." + UUID.randomUUID());
+    Set<String> emptyFiles = new HashSet<>();
+    Map<String, String> symlinkTargets = new HashMap<>();
+    try {
+      clone(execDir, path, emptyFiles, symlinkTargets);
+      Directories.disableAllWriteAccess(path);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "error creating template for " + key, e);
+      if (Files.exists(path)) {
+        Directories.remove(path);
+      }
+      return null;
+    }
+    Template template =
+        new Template(path, inputFiles, inputDirectories, emptyFiles, symlinkTargets);
+    List<Template> destroyed;
+    synchronized (this) {
+      if (templates.containsKey(key)) {
+        destroyed = null;
+      } else {
+        seen.remove(key);
+        templates.put(key, template);
+        destroyed = evict();
+      }
+    }
+    if (destroyed == null) {
+      // lost a race with another exec dir for the same input root
+      Directories.remove(path);
+      return null;
+    }
+    destroy(destroyed);
+    return template;
+  }
+
+  /** Clones the inputs of a template into a new exec dir, with writable directories. */
+  void clone(Template template, Path execDir) throws IOException {
+    if (!nativeClone) {
+      clone(template.getPath(), execDir, new HashSet<>(), new HashMap<>());
+      return;
+    }
+    Files.createDirectories(execDir);
+    int templateFd = NativeDirectories.open(template.getPath());
+    try {
+      int execDirFd = NativeDirectories.open(execDir);
+      try {
+        cloneAt(template, templateFd, execDirFd, /* prefix=*/ "");
+      } finally {
+        NativeDirectories.close(execDirFd);
+      }
+    } finally {
+      NativeDirectories.close(templateFd);
+    }
+  }
+
+  private static void cloneAt(Template template, int sourceFd, int targetFd, String prefix)
+      throws IOException {
+    for (Dirent entry : NativeDirectories.readdirAt(sourceFd)) {
+      String name = entry.getName();
+      String relative = prefix + name;
+      Dirent.Type type = entry.getType();
+      if (type == Dirent.Type.UNKNOWN) {
+        type = direntType(template.getPath().resolve(relative));
+      }
+      switch (type) {
+        case DIRECTORY:
+          int sourceDirFd = NativeDirectories.openAt(sourceFd, name);
+          try {
+            int targetDirFd = NativeDirectories.createDirectoryAt(targetFd, name);
+            try {
+              cloneAt(template, sourceDirFd, targetDirFd, relative + "/");
+            } finally {
+              NativeDirectories.close(targetDirFd);
+            }
+          } finally {
+            NativeDirectories.close(sourceDirFd);
+          }
+          break;
+        case SYMLINK:
+          String target = template.symlinkTargets.get(relative);
+          if (target == null) {
+            target = Files.readSymbolicLink(template.getPath().resolve(relative)).toString();
+          }
+          NativeDirectories.createSymbolicLinkAt(targetFd, name, target);
+          break;
+        default:
+          if (template.emptyFiles.contains(relative)) {
+            NativeDirectories.createFileAt(targetFd, name);
+          } else {
+            NativeDirectories.createLinkAt(targetFd, name, sourceFd, name);
+          }
+          break;
+      }
+    }
+  }
+
+  private static Dirent.Type direntType(Path path) throws IOException {
+    BasicFileAttributes attrs =
+        Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    if (attrs.isDirectory()) {
+      return Dirent.Type.DIRECTORY;
+    }
+    if (attrs.isSymbolicLink()) {
+      return Dirent.Type.SYMLINK;
+    }
+    return Dirent.Type.FILE;
+  }
+
+  @GuardedBy("this")
+  private List<Template> evict() {
+    List<Template> destroyed = new ArrayList<>();
+    Iterator<Template> iterator = templates.values().iterator();
+    int size = templates.size();
+    while (size > maxTemplates && iterator.hasNext()) {
+      Template template = iterator.next();
+      if (template.leases == 0) {
+        iterator.remove();
+        destroyed.add(template);
+        size--;
+      }
+    }
+    return destroyed;
+  }
+
+  private void destroy(List<Template> destroyed) throws IOException, InterruptedException {
+    for (Template template : destroyed) {
+      fileCache.decrementReferences(template.inputFiles, template.inputDirectories);
+      Directories.remove(template.getPath());
+    }
+  }
+
+  // records the empty files and symlink targets of the source by their relative paths
+  private static void clone(
+      Path source, Path target, Set<String> emptyFiles, Map<String, String> symlinkTargets)
+      throws IOException {
+    Files.walkFileTree(
+        source,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+              throws IOException {
+            Path targetDir = target.resolve(source.relativize(dir));
+            if (dir.equals(source)) {
+              Files.createDirectories(targetDir);
+            } else {
+              Files.createDirectory(targetDir);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            Path relative = source.relativize(file);
+            Path link = target.resolve(relative);
+            if (attrs.isSymbolicLink()) {
+              Path symlinkTarget = Files.readSymbolicLink(file);
+              symlinkTargets.put(relative.toString(), symlinkTarget.toString());
+              Files.createSymbolicLink(link, symlinkTarget);
+            } else if (attrs.size() == 0) {
+              // empty files are not cache entries, and must not be shared
+              emptyFiles.add(relative.toString());
+              Files.createFile(link);
+            } else {
+              Files.createLink(link, file);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  @VisibleForTesting
+  synchronized boolean contains(String key) {
+    return templates.containsKey(key);
+  }
+}
@@ -17,6 +17,8 @@ package build.buildfarm.worker.shard;
 import build.bazel.remote.execution.v2.Digest;
 import build.buildfarm.cas.ContentAddressableStorage;
 import build.buildfarm.cas.cfc.CASFileCache;
+import build.buildfarm.cas.cfc.CompactEntryTable;
+import build.buildfarm.cas.cfc.EvictionPolicy;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.InputStreamFactory;
 import com.google.common.collect.Maps;
@@ -37,6 +39,13 @@ class ShardCASFileCache extends CASFileCache {
       long maxEntrySizeInBytes,
       int maxBucketLevels,
       boolean storeFileDirsIndexInMemory,
+      boolean internedDirectoriesIndex,
+      int lruSegments,
+      boolean persistentIndex,
+      boolean compactEntryTable,
+      EvictionPolicy evictionPolicy,
+      int evictionHighWatermarkPercent,
+      int evictionLowWatermarkPercent,
       DigestUtil digestUtil,
       ExecutorService expireService,
       Executor accessRecorder,
@@ -49,10 +58,16 @@ class ShardCASFileCache extends CASFileCache {
         maxEntrySizeInBytes,
         maxBucketLevels,
         storeFileDirsIndexInMemory,
+        internedDirectoriesIndex,
+        lruSegments,
+        persistentIndex,
+        evictionPolicy,
+        evictionHighWatermarkPercent,
+        evictionLowWatermarkPercent,
         digestUtil,
         expireService,
         accessRecorder,
-        /* storage=*/ Maps.newConcurrentMap(),
+        /* storage=*/ compactEntryTable ? new CompactEntryTable() : Maps.newConcurrentMap(),
         DEFAULT_DIRECTORIES_INDEX_NAME,
         onPut,
         onExpire,
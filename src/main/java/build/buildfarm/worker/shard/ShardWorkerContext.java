@@ -19,6 +19,7 @@ import static build.buildfarm.common.Actions.checkPreconditionFailure;
 import static build.buildfarm.common.Errors.VIOLATION_TYPE_INVALID;
 import static build.buildfarm.common.Errors.VIOLATION_TYPE_MISSING;
 import static java.lang.String.format;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
 import static java.util.concurrent.TimeUnit.DAYS;
 
 import build.bazel.remote.execution.v2.Action;
@@ -47,6 +48,7 @@ import build.buildfarm.instance.Instance;
 import build.buildfarm.instance.MatchListener;
 import build.buildfarm.v1test.CASInsertionPolicy;
 import build.buildfarm.v1test.ExecutionPolicy;
+import build.buildfarm.v1test.ExecutionResourceUsage;
 import build.buildfarm.v1test.QueueEntry;
 import build.buildfarm.v1test.QueuedOperation;
 import build.buildfarm.worker.DequeueMatchEvaluator;
@@ -56,7 +58,11 @@ import build.buildfarm.worker.RetryingMatchListener;
 import build.buildfarm.worker.WorkerContext;
 import build.buildfarm.worker.cgroup.Cpu;
 import build.buildfarm.worker.cgroup.Group;
+import build.buildfarm.worker.cgroup.Io;
 import build.buildfarm.worker.cgroup.Mem;
+import build.buildfarm.worker.cgroup.Pressure;
+import build.buildfarm.worker.persistent.PersistentWork;
+import build.buildfarm.worker.persistent.PersistentWorkerPool;
 import build.buildfarm.worker.resources.ResourceDecider;
 import build.buildfarm.worker.resources.ResourceLimits;
 import com.google.common.annotations.VisibleForTesting;
@@ -67,32 +73,39 @@ import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.longrunning.Operation;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Duration;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.rpc.PreconditionFailure;
+import com.google.rpc.PreconditionFailure.Violation;
 import io.grpc.Deadline;
 import io.grpc.Status;
 import io.grpc.StatusException;
 import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.FileVisitResult;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 class ShardWorkerContext implements WorkerContext {
   private static final Logger logger = Logger.getLogger(ShardWorkerContext.class.getName());
@@ -103,6 +116,38 @@ class ShardWorkerContext implements WorkerContext {
       Counter.build().name("completed_operations").help("Completed operations.").register();
   private static final Counter operationPollerCounter =
       Counter.build().name("operation_poller").help("Number of operations polled.").register();
+  private static final Histogram outputUploadTime =
+      Histogram.build()
+          .name("output_upload_time_ms")
+          .help("Output upload time in ms.")
+          .exponentialBuckets(1, 4, 10)
+          .register();
+  private static final Histogram executionCpuTime =
+      Histogram.build()
+          .name("execution_cpu_time_s")
+          .help("Execution cpu time in seconds.")
+          .exponentialBuckets(0.01, 4, 10)
+          .register();
+  private static final Histogram executionMemoryPeak =
+      Histogram.build()
+          .name("execution_memory_peak_bytes")
+          .help("Execution peak memory usage in bytes.")
+          .exponentialBuckets(1 << 20, 4, 10)
+          .register();
+  private static final Histogram executionIoBytes =
+      Histogram.build()
+          .name("execution_io_bytes")
+          .labelNames("direction")
+          .help("Execution io in bytes.")
+          .exponentialBuckets(1 << 10, 4, 14)
+          .register();
+  private static final Histogram executionPressureStallTime =
+      Histogram.build()
+          .name("execution_pressure_stall_time_s")
+          .labelNames("resource")
+          .help("Execution time in seconds with some tasks stalled on a resource.")
+          .exponentialBuckets(0.001, 4, 10)
+          .register();
 
   private final String name;
   private final Platform platform;
@@ -112,6 +157,8 @@ class ShardWorkerContext implements WorkerContext {
   private final OperationPoller operationPoller;
   private final int inputFetchStageWidth;
   private final int executeStageWidth;
+  private final int reportResultStageWidth;
+  private final int matchBatchSize;
   private final Backplane backplane;
   private final ExecFileSystem execFileSystem;
   private final InputStreamFactory inputStreamFactory;
@@ -127,6 +174,9 @@ class ShardWorkerContext implements WorkerContext {
   private final Group operationsGroup = executionsGroup.getChild("operations");
   private final CasWriter writer;
   private final boolean errorOperationRemainingResources;
+  private final ForkJoinPool uploadPool;
+  private final ThreadFactory threadFactory;
+  private final @Nullable PersistentWorkerPool persistentWorkerPool;
 
   static SetMultimap<String, String> getMatchProvisions(
       Platform platform, Iterable<ExecutionPolicy> policies, int executeStageWidth) {
@@ -148,6 +198,9 @@ class ShardWorkerContext implements WorkerContext {
       int inlineContentLimit,
       int inputFetchStageWidth,
       int executeStageWidth,
+      int reportResultStageWidth,
+      int outputUploadParallelism,
+      int matchBatchSize,
       Backplane backplane,
       ExecFileSystem execFileSystem,
       InputStreamFactory inputStreamFactory,
@@ -161,7 +214,9 @@ class ShardWorkerContext implements WorkerContext {
       boolean limitGlobalExecution,
       boolean onlyMulticoreTests,
       boolean errorOperationRemainingResources,
-      CasWriter writer) {
+      CasWriter writer,
+      ThreadFactory threadFactory,
+      @Nullable PersistentWorkerPool persistentWorkerPool) {
     this.name = name;
     this.matchSettings = matchSettings;
     this.platform = platform;
@@ -170,6 +225,8 @@ class ShardWorkerContext implements WorkerContext {
     this.operationPoller = operationPoller;
     this.inputFetchStageWidth = inputFetchStageWidth;
     this.executeStageWidth = executeStageWidth;
+    this.reportResultStageWidth = Math.max(reportResultStageWidth, 1);
+    this.matchBatchSize = Math.max(matchBatchSize, 1);
     this.backplane = backplane;
     this.execFileSystem = execFileSystem;
     this.inputStreamFactory = inputStreamFactory;
@@ -182,6 +239,13 @@ class ShardWorkerContext implements WorkerContext {
     this.onlyMulticoreTests = onlyMulticoreTests;
     this.errorOperationRemainingResources = errorOperationRemainingResources;
     this.writer = writer;
+    this.threadFactory = threadFactory;
+    this.persistentWorkerPool = persistentWorkerPool;
+    this.uploadPool =
+        new ForkJoinPool(
+            outputUploadParallelism > 0
+                ? outputUploadParallelism
+                : Runtime.getRuntime().availableProcessors());
     Preconditions.checkState(
         !limitGlobalExecution || limitExecution,
         "limit_global_execution is meaningless without limit_execution");
@@ -213,7 +277,7 @@ class ShardWorkerContext implements WorkerContext {
 
   @Override
   public Poller createPoller(String name, QueueEntry queueEntry, ExecutionStage.Value stage) {
-    Poller poller = new Poller(operationPollPeriod);
+    Poller poller = new Poller(operationPollPeriod, threadFactory);
     resumePoller(poller, name, queueEntry, stage, () -> {}, Deadline.after(10, DAYS));
     return poller;
   }
@@ -291,11 +355,19 @@ class ShardWorkerContext implements WorkerContext {
     }
   }
 
-  private void matchInterruptible(MatchListener listener) throws IOException, InterruptedException {
+  private void matchInterruptible(MatchListener listener, int maxEntries)
+      throws IOException, InterruptedException {
     listener.onWaitStart();
-    QueueEntry queueEntry = null;
+    List<QueueEntry> queueEntries = ImmutableList.of();
     try {
-      queueEntry = backplane.dispatchOperation(platform.getPropertiesList());
+      if (maxEntries == 1) {
+        QueueEntry queueEntry = backplane.dispatchOperation(platform.getPropertiesList());
+        if (queueEntry != null) {
+          queueEntries = ImmutableList.of(queueEntry);
+        }
+      } else {
+        queueEntries = backplane.dispatchOperations(platform.getPropertiesList(), maxEntries);
+      }
     } catch (IOException e) {
       Status status = Status.fromThrowable(e);
       switch (status.getCode()) {
@@ -312,10 +384,24 @@ class ShardWorkerContext implements WorkerContext {
     }
     listener.onWaitEnd();
 
-    if (DequeueMatchEvaluator.shouldKeepOperation(matchSettings, matchProvisions, queueEntry)) {
-      listener.onEntry(queueEntry);
-    } else {
-      backplane.rejectOperation(queueEntry);
+    if (queueEntries.isEmpty()) {
+      listener.onEntry(null);
+    }
+    int delivered = 0;
+    try {
+      for (QueueEntry queueEntry : queueEntries) {
+        delivered++;
+        if (DequeueMatchEvaluator.shouldKeepOperation(matchSettings, matchProvisions, queueEntry)) {
+          listener.onEntry(queueEntry);
+        } else {
+          backplane.rejectOperation(queueEntry);
+        }
+      }
+    } finally {
+      // return the rest of an interrupted batch to the queue
+      for (QueueEntry queueEntry : queueEntries.subList(delivered, queueEntries.size())) {
+        backplane.rejectOperation(queueEntry);
+      }
     }
     if (Thread.interrupted()) {
       throw new InterruptedException();
@@ -324,6 +410,11 @@ class ShardWorkerContext implements WorkerContext {
 
   @Override
   public void match(MatchListener listener) throws InterruptedException {
+    match(listener, 1);
+  }
+
+  @Override
+  public void match(MatchListener listener, int maxEntries) throws InterruptedException {
     RetryingMatchListener dedupMatchListener =
         new RetryingMatchListener() {
           boolean matched = false;
@@ -375,7 +466,7 @@ class ShardWorkerContext implements WorkerContext {
         };
     while (!dedupMatchListener.getMatched()) {
       try {
-        matchInterruptible(dedupMatchListener);
+        matchInterruptible(dedupMatchListener, maxEntries);
       } catch (IOException e) {
         throw Status.fromThrowable(e).asRuntimeException();
       }
@@ -420,11 +511,21 @@ class ShardWorkerContext implements WorkerContext {
     return inputFetchStageWidth;
   }
 
+  @Override
+  public int getMatchBatchSize() {
+    return matchBatchSize;
+  }
+
   @Override
   public int getExecuteStageWidth() {
     return executeStageWidth;
   }
 
+  @Override
+  public int getReportResultStageWidth() {
+    return reportResultStageWidth;
+  }
+
   @Override
   public boolean hasDefaultActionTimeout() {
     return defaultActionTimeout.getSeconds() > 0 || defaultActionTimeout.getNanos() > 0;
@@ -462,8 +563,9 @@ class ShardWorkerContext implements WorkerContext {
     }
   }
 
-  private void insertFile(Digest digest, Path file) throws IOException, InterruptedException {
-    writer.write(digest, file);
+  // hashes and inserts the file in a single pass where the writer permits it
+  private Digest ingestFile(Path file) throws IOException, InterruptedException {
+    return writer.ingest(file);
   }
 
   private void updateActionResultStdOutputs(ActionResult.Builder resultBuilder)
@@ -525,22 +627,16 @@ class ShardWorkerContext implements WorkerContext {
     // want to decrement input references *before* this to ensure that we cannot
     // cause an internal deadlock
 
+    // ingestion may make the file read-only
+    boolean isExecutable = Files.isExecutable(outputPath);
     Digest digest;
     try {
-      digest = getDigestUtil().compute(outputPath);
+      digest = ingestFile(outputPath);
     } catch (NoSuchFileException e) {
       return;
-    }
-
-    resultBuilder
-        .addOutputFilesBuilder()
-        .setPath(outputFile)
-        .setDigest(digest)
-        .setIsExecutable(Files.isExecutable(outputPath));
-
-    try {
-      insertFile(digest, outputPath);
     } catch (EntryLimitException e) {
+      // the digest is still required for the result
+      digest = getDigestUtil().compute(outputPath);
       preconditionFailure
           .addViolationsBuilder()
           .setType(VIOLATION_TYPE_MISSING)
@@ -548,6 +644,12 @@ class ShardWorkerContext implements WorkerContext {
           .setDescription(
               "An output could not be uploaded because it exceeded the maximum size of an entry");
     }
+
+    resultBuilder
+        .addOutputFilesBuilder()
+        .setPath(outputFile)
+        .setDigest(digest)
+        .setIsExecutable(isExecutable);
   }
 
   @VisibleForTesting
@@ -570,6 +672,135 @@ class ShardWorkerContext implements WorkerContext {
     }
   }
 
+  // ingests a file of an output directory, with any violation recorded for the result
+  private class OutputFileTask extends RecursiveTask<FileNode> {
+    private final Path outputDirPath;
+    private final Path file;
+    @Nullable Violation violation = null;
+
+    OutputFileTask(Path outputDirPath, Path file) {
+      this.outputDirPath = outputDirPath;
+      this.file = file;
+    }
+
+    @Override
+    protected @Nullable FileNode compute() {
+      try {
+        return ingest();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private @Nullable FileNode ingest() throws IOException {
+      // should we cast to PosixFilePermissions and do gymnastics there for executable?
+      // ingestion may make the file read-only
+      boolean isExecutable = Files.isExecutable(file);
+      Digest digest;
+      try {
+        digest = ingestFile(file);
+      } catch (NoSuchFileException e) {
+        logger.log(
+            Level.SEVERE,
+            format(
+                "error visiting file %s under output dir %s",
+                outputDirPath.relativize(file), outputDirPath.toAbsolutePath()),
+            e);
+        return null;
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } catch (EntryLimitException e) {
+        // the digest is still required for the tree
+        digest = getDigestUtil().compute(file);
+        violation =
+            Violation.newBuilder()
+                .setType(VIOLATION_TYPE_MISSING)
+                .setSubject("blobs/" + DigestUtil.toString(digest))
+                .setDescription(
+                    "An output could not be uploaded because it exceeded the maximum size of an entry")
+                .build();
+      }
+
+      // TODO symlink per revision proposal
+      return FileNode.newBuilder()
+          .setName(file.getFileName().toString())
+          .setDigest(digest)
+          .setIsExecutable(isExecutable)
+          .build();
+    }
+  }
+
+  /**
+   * Uploads a directory of an output directory, with its files and subdirectories uploaded in
+   * parallel. The children of its tree are collected in the depth first post-order of the sorted
+   * entries of each directory, so that the tree is identical for identical outputs.
+   */
+  private class OutputDirectoryTask extends RecursiveTask<Directory> {
+    private final Path outputDirPath;
+    private final Path dir;
+    final List<Directory> children = new ArrayList<>();
+    final List<Violation> violations = new ArrayList<>();
+
+    OutputDirectoryTask(Path outputDirPath, Path dir) {
+      this.outputDirPath = outputDirPath;
+      this.dir = dir;
+    }
+
+    @Override
+    protected Directory compute() {
+      try {
+        return upload();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private Directory upload() throws IOException {
+      List<Path> entries = new ArrayList<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+        for (Path entry : stream) {
+          entries.add(entry);
+        }
+      }
+      Collections.sort(entries, Comparator.comparing(entry -> entry.getFileName().toString()));
+
+      List<OutputFileTask> fileTasks = new ArrayList<>();
+      List<OutputDirectoryTask> directoryTasks = new ArrayList<>();
+      for (Path entry : entries) {
+        if (Files.isDirectory(entry, NOFOLLOW_LINKS)) {
+          directoryTasks.add(new OutputDirectoryTask(outputDirPath, entry));
+        } else {
+          fileTasks.add(new OutputFileTask(outputDirPath, entry));
+        }
+      }
+      invokeAll(fileTasks);
+      invokeAll(directoryTasks);
+
+      OutputDirectoryContext currentDirectory = new OutputDirectoryContext();
+      for (OutputFileTask fileTask : fileTasks) {
+        FileNode fileNode = fileTask.join();
+        if (fileNode != null) {
+          currentDirectory.addFile(fileNode);
+        }
+        if (fileTask.violation != null) {
+          violations.add(fileTask.violation);
+        }
+      }
+      for (OutputDirectoryTask directoryTask : directoryTasks) {
+        Directory directory = directoryTask.join();
+        currentDirectory.addDirectory(
+            DirectoryNode.newBuilder()
+                .setName(directoryTask.dir.getFileName().toString())
+                .setDigest(getDigestUtil().compute(directory))
+                .build());
+        children.addAll(directoryTask.children);
+        children.add(directory);
+        violations.addAll(directoryTask.violations);
+      }
+      return currentDirectory.toDirectory();
+    }
+  }
+
   private void uploadOutputDirectory(
       ActionResult.Builder resultBuilder,
       String outputDir,
@@ -592,85 +823,15 @@ class ShardWorkerContext implements WorkerContext {
       return;
     }
 
-    Tree.Builder treeBuilder = Tree.newBuilder();
-    OutputDirectoryContext outputRoot = new OutputDirectoryContext();
-    Files.walkFileTree(
-        outputDirPath,
-        new SimpleFileVisitor<Path>() {
-          OutputDirectoryContext currentDirectory = null;
-          Stack<OutputDirectoryContext> path = new Stack<>();
-
-          @Override
-          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-              throws IOException {
-            Digest digest;
-            try {
-              digest = getDigestUtil().compute(file);
-            } catch (NoSuchFileException e) {
-              logger.log(
-                  Level.SEVERE,
-                  format(
-                      "error visiting file %s under output dir %s",
-                      outputDirPath.relativize(file), outputDirPath.toAbsolutePath()),
-                  e);
-              return FileVisitResult.CONTINUE;
-            }
-
-            // should we cast to PosixFilePermissions and do gymnastics there for executable?
-
-            // TODO symlink per revision proposal
-            currentDirectory.addFile(
-                FileNode.newBuilder()
-                    .setName(file.getFileName().toString())
-                    .setDigest(digest)
-                    .setIsExecutable(Files.isExecutable(file))
-                    .build());
-            try {
-              insertFile(digest, file);
-            } catch (InterruptedException e) {
-              throw new IOException(e);
-            } catch (EntryLimitException e) {
-              preconditionFailure
-                  .addViolationsBuilder()
-                  .setType(VIOLATION_TYPE_MISSING)
-                  .setSubject("blobs/" + DigestUtil.toString(digest))
-                  .setDescription(
-                      "An output could not be uploaded because it exceeded the maximum size of an entry");
-            }
-            return FileVisitResult.CONTINUE;
-          }
-
-          @Override
-          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
-              throws IOException {
-            path.push(currentDirectory);
-            if (dir.equals(outputDirPath)) {
-              currentDirectory = outputRoot;
-            } else {
-              currentDirectory = new OutputDirectoryContext();
-            }
-            return FileVisitResult.CONTINUE;
-          }
-
-          @Override
-          public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-            OutputDirectoryContext parentDirectory = path.pop();
-            Directory directory = currentDirectory.toDirectory();
-            if (parentDirectory == null) {
-              treeBuilder.setRoot(directory);
-            } else {
-              parentDirectory.addDirectory(
-                  DirectoryNode.newBuilder()
-                      .setName(dir.getFileName().toString())
-                      .setDigest(getDigestUtil().compute(directory))
-                      .build());
-              treeBuilder.addChildren(directory);
-            }
-            currentDirectory = parentDirectory;
-            return FileVisitResult.CONTINUE;
-          }
-        });
-    Tree tree = treeBuilder.build();
+    OutputDirectoryTask outputRoot = new OutputDirectoryTask(outputDirPath, outputDirPath);
+    Directory root;
+    try {
+      root = outputRoot.invoke();
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    Tree tree = Tree.newBuilder().setRoot(root).addAllChildren(outputRoot.children).build();
+    preconditionFailure.addAllViolations(outputRoot.violations);
     ByteString treeBlob = tree.toByteString();
     Digest treeDigest = getDigestUtil().compute(treeBlob);
     insertBlob(treeDigest, treeBlob);
@@ -685,12 +846,56 @@ class ShardWorkerContext implements WorkerContext {
       Iterable<String> outputFiles,
       Iterable<String> outputDirs)
       throws IOException, InterruptedException, StatusException {
-    PreconditionFailure.Builder preconditionFailure = PreconditionFailure.newBuilder();
+    long startTime = System.nanoTime();
+    try {
+      uploadOutputsInParallel(actionDigest, resultBuilder, actionRoot, outputFiles, outputDirs);
+    } finally {
+      outputUploadTime.observe((System.nanoTime() - startTime) / 1000000.0);
+    }
+  }
+
+  // the result of uploading a single output, merged in the order that outputs are requested
+  private static class OutputUpload {
+    final ActionResult.Builder result = ActionResult.newBuilder();
+    final PreconditionFailure.Builder preconditionFailure = PreconditionFailure.newBuilder();
+  }
+
+  private void uploadOutputsInParallel(
+      Digest actionDigest,
+      ActionResult.Builder resultBuilder,
+      Path actionRoot,
+      Iterable<String> outputFiles,
+      Iterable<String> outputDirs)
+      throws IOException, InterruptedException, StatusException {
+    List<ForkJoinTask<OutputUpload>> uploads = new ArrayList<>();
     for (String outputFile : outputFiles) {
-      uploadOutputFile(resultBuilder, outputFile, actionRoot, preconditionFailure);
+      uploads.add(
+          uploadPool.submit(
+              () -> {
+                OutputUpload upload = new OutputUpload();
+                uploadOutputFile(upload.result, outputFile, actionRoot, upload.preconditionFailure);
+                return upload;
+              }));
     }
     for (String outputDir : outputDirs) {
-      uploadOutputDirectory(resultBuilder, outputDir, actionRoot, preconditionFailure);
+      uploads.add(
+          uploadPool.submit(
+              () -> {
+                OutputUpload upload = new OutputUpload();
+                uploadOutputDirectory(
+                    upload.result, outputDir, actionRoot, upload.preconditionFailure);
+                return upload;
+              }));
+    }
+    // no upload may remain in flight in the action root once we return
+    for (ForkJoinTask<OutputUpload> upload : uploads) {
+      upload.quietlyJoin();
+    }
+    PreconditionFailure.Builder preconditionFailure = PreconditionFailure.newBuilder();
+    for (ForkJoinTask<OutputUpload> upload : uploads) {
+      OutputUpload output = getUpload(upload);
+      resultBuilder.mergeFrom(output.result.build());
+      preconditionFailure.mergeFrom(output.preconditionFailure.build());
     }
     checkPreconditionFailure(actionDigest, preconditionFailure.build());
 
@@ -698,6 +903,19 @@ class ShardWorkerContext implements WorkerContext {
     updateActionResultStdOutputs(resultBuilder);
   }
 
+  private static OutputUpload getUpload(ForkJoinTask<OutputUpload> upload)
+      throws IOException, InterruptedException {
+    try {
+      return upload.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.throwIfInstanceOf(cause, IOException.class);
+      Throwables.throwIfInstanceOf(cause, InterruptedException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new IOException(cause);
+    }
+  }
+
   @Override
   public Iterable<ExecutionPolicy> getExecutionPolicies(String name) {
     return policies.get(name);
@@ -721,6 +939,12 @@ class ShardWorkerContext implements WorkerContext {
     return execFileSystem.createExecDir(operationName, directoriesIndex, action, command);
   }
 
+  @Override
+  public ListenableFuture<Long> prefetchInputs(
+      Map<Digest, Directory> directoriesIndex, Digest inputRootDigest) {
+    return execFileSystem.prefetchInputs(directoriesIndex, inputRootDigest);
+  }
+
   // might want to split for removeDirectory and decrement references to avoid removing for streamed
   // output
   @Override
@@ -764,6 +988,16 @@ class ShardWorkerContext implements WorkerContext {
     return Size.mbToBytes(100);
   }
 
+  @Override
+  public ThreadFactory getThreadFactory() {
+    return threadFactory;
+  }
+
+  @Override
+  public @Nullable PersistentWorkerPool getPersistentWorkerPool() {
+    return persistentWorkerPool;
+  }
+
   @Override
   public void createExecutionLimits() {
     if (limitExecution) {
@@ -796,6 +1030,11 @@ class ShardWorkerContext implements WorkerContext {
     }
   }
 
+  /** Stops the uploads of outputs, which are no longer reported once the pipeline is closed. */
+  void stop() {
+    uploadPool.shutdownNow();
+  }
+
   @Override
   public void destroyExecutionLimits() {
     try {
@@ -834,7 +1073,10 @@ class ShardWorkerContext implements WorkerContext {
           ResourceDecider.decideResourceLimitations(
               command, onlyMulticoreTests, limitGlobalExecution, getExecuteStageWidth());
 
-      return limitSpecifiedExecution(limits, operationName, arguments, workingDirectory);
+      boolean mayRunPersistently =
+          persistentWorkerPool != null && PersistentWork.isRequested(command);
+      return limitSpecifiedExecution(
+          limits, operationName, arguments, workingDirectory, mayRunPersistently);
     }
     return new IOResource() {
       @Override
@@ -851,7 +1093,8 @@ class ShardWorkerContext implements WorkerContext {
       ResourceLimits limits,
       String operationName,
       ImmutableList.Builder<String> arguments,
-      Path workingDirectory) {
+      Path workingDirectory,
+      boolean mayRunPersistently) {
     // The decision to apply resource restrictions has already been decided within the
     // ResourceLimits object. We apply the cgroup settings to file resources
     // and collect group names to use on the CLI.
@@ -873,6 +1116,14 @@ class ShardWorkerContext implements WorkerContext {
     }
 
     // Decide the CLI for running under cgroups
+    // Account for the resources used by every execution under the unified hierarchy, where the
+    // group of an execution holds all of its controllers. A persistent worker runs outside of the
+    // groups of the actions it serves, and may only serve an action without a wrapper, which
+    // accounting alone must not add.
+    if (Group.isUnified() && (!usedGroups.isEmpty() || !mayRunPersistently)) {
+      applyAccounting(group, resources, usedGroups);
+    }
+
     if (!usedGroups.isEmpty()) {
       arguments.add(
           ExecutionWrappers.CGROUPS,
@@ -1031,6 +1282,96 @@ class ShardWorkerContext implements WorkerContext {
     }
   }
 
+  private void applyAccounting(
+      Group group, ArrayList<IOResource> resources, ArrayList<String> usedGroups) {
+    // the memory and io controllers are enabled for the peak memory and io counters of a group
+    Mem mem = group.getMem();
+    Io io = group.getIo();
+    try {
+      if (!usedGroups.contains(mem.getName())) {
+        mem.open();
+        resources.add(mem);
+        usedGroups.add(mem.getName());
+      }
+      io.open();
+      resources.add(io);
+      usedGroups.add(io.getName());
+    } catch (IOException e) {
+      // accounting is best effort, and does not prevent an execution
+      logger.log(Level.FINE, "error creating accounting for " + group.getHierarchy(), e);
+    }
+  }
+
+  @Override
+  public @Nullable ExecutionResourceUsage getResourceUsage(String operationName) {
+    if (!limitExecution || !Group.isUnified()) {
+      return null;
+    }
+    Group group = operationsGroup.getChild(getOperationId(operationName));
+    try {
+      Map<String, Long> cpuStat = group.getCpu().getStat();
+      Map<String, Long> ioStat = group.getIo().getStat();
+      ExecutionResourceUsage.Builder usage =
+          ExecutionResourceUsage.newBuilder()
+              .setCpuUsageUsec(cpuStat.getOrDefault("usage_usec", 0L))
+              .setCpuUserUsec(cpuStat.getOrDefault("user_usec", 0L))
+              .setCpuSystemUsec(cpuStat.getOrDefault("system_usec", 0L))
+              .setCpuThrottledUsec(cpuStat.getOrDefault("throttled_usec", 0L))
+              .setMemoryPeakBytes(group.getMem().getPeakUsage())
+              .setIoReadBytes(ioStat.getOrDefault("rbytes", 0L))
+              .setIoWriteBytes(ioStat.getOrDefault("wbytes", 0L))
+              .setIoReadOperations(ioStat.getOrDefault("rios", 0L))
+              .setIoWriteOperations(ioStat.getOrDefault("wios", 0L));
+      Pressure cpuPressure = group.getCpu().getPressure();
+      if (cpuPressure != null) {
+        usage.setCpuPressure(toPressure(cpuPressure));
+      }
+      Pressure memoryPressure = group.getMem().getPressure();
+      if (memoryPressure != null) {
+        usage.setMemoryPressure(toPressure(memoryPressure));
+      }
+      Pressure ioPressure = group.getIo().getPressure();
+      if (ioPressure != null) {
+        usage.setIoPressure(toPressure(ioPressure));
+      }
+      return observeResourceUsage(usage.build());
+    } catch (NoSuchFileException e) {
+      // not accounted, as a command which could have run on a persistent worker
+      return null;
+    } catch (IOException | NumberFormatException e) {
+      logger.log(Level.WARNING, "error reading resource usage of " + operationName, e);
+      return null;
+    }
+  }
+
+  private static ExecutionResourceUsage.Pressure toPressure(Pressure pressure) {
+    return ExecutionResourceUsage.Pressure.newBuilder()
+        .setSomeUsec(pressure.someMicros)
+        .setFullUsec(pressure.fullMicros)
+        .build();
+  }
+
+  private static ExecutionResourceUsage observeResourceUsage(ExecutionResourceUsage usage) {
+    executionCpuTime.observe(usage.getCpuUsageUsec() / 1e6);
+    if (usage.getMemoryPeakBytes() > 0) {
+      executionMemoryPeak.observe(usage.getMemoryPeakBytes());
+    }
+    executionIoBytes.labels("read").observe(usage.getIoReadBytes());
+    executionIoBytes.labels("write").observe(usage.getIoWriteBytes());
+    if (usage.hasCpuPressure()) {
+      executionPressureStallTime.labels("cpu").observe(usage.getCpuPressure().getSomeUsec() / 1e6);
+    }
+    if (usage.hasMemoryPressure()) {
+      executionPressureStallTime
+          .labels("memory")
+          .observe(usage.getMemoryPressure().getSomeUsec() / 1e6);
+    }
+    if (usage.hasIoPressure()) {
+      executionPressureStallTime.labels("io").observe(usage.getIoPressure().getSomeUsec() / 1e6);
+    }
+    return usage;
+  }
+
   private IOResource combineResources(ArrayList<IOResource> resources) {
     return new IOResource() {
       @Override
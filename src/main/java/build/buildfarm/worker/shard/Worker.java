@@ -34,11 +34,15 @@ import build.buildfarm.cas.ContentAddressableStorage;
 import build.buildfarm.cas.ContentAddressableStorage.Blob;
 import build.buildfarm.cas.MemoryCAS;
 import build.buildfarm.cas.cfc.CASFileCache;
+import build.buildfarm.cas.cfc.EvictionPolicy;
+import build.buildfarm.cas.cfc.LruEvictionPolicy;
+import build.buildfarm.cas.cfc.TinyLfuEvictionPolicy;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.DigestUtil.HashFunction;
 import build.buildfarm.common.InputStreamFactory;
 import build.buildfarm.common.LoggingMain;
 import build.buildfarm.common.Size;
+import build.buildfarm.common.VirtualThreads;
 import build.buildfarm.common.Write;
 import build.buildfarm.common.function.IOSupplier;
 import build.buildfarm.common.io.FeedbackOutputStream;
@@ -54,17 +58,20 @@ import build.buildfarm.v1test.AdminGrpc;
 import build.buildfarm.v1test.ContentAddressableStorageConfig;
 import build.buildfarm.v1test.DisableScaleInProtectionRequest;
 import build.buildfarm.v1test.FilesystemCASConfig;
+import build.buildfarm.v1test.PersistentWorkerConfig;
 import build.buildfarm.v1test.ShardWorker;
 import build.buildfarm.v1test.ShardWorkerConfig;
 import build.buildfarm.worker.DequeueMatchSettings;
 import build.buildfarm.worker.ExecuteActionStage;
 import build.buildfarm.worker.FuseCAS;
 import build.buildfarm.worker.InputFetchStage;
+import build.buildfarm.worker.InputPrefetchStage;
 import build.buildfarm.worker.MatchStage;
 import build.buildfarm.worker.Pipeline;
 import build.buildfarm.worker.PipelineStage;
 import build.buildfarm.worker.PutOperationStage;
 import build.buildfarm.worker.ReportResultStage;
+import build.buildfarm.worker.persistent.PersistentWorkerPool;
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
 import com.google.common.cache.LoadingCache;
@@ -109,6 +116,7 @@ import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
@@ -126,6 +134,7 @@ public class Worker extends LoggingMain {
           .register();
 
   private static final int shutdownWaitTimeInSeconds = 10;
+  private static final long DEFAULT_BATCH_READ_REQUEST_SIZE_LIMIT = 2 * 1024 * 1024;
   private final boolean isCasShard;
 
   private boolean inGracefulShutdown = false;
@@ -137,6 +146,8 @@ public class Worker extends LoggingMain {
   private final Path root;
   private final DigestUtil digestUtil;
   private final ExecFileSystem execFileSystem;
+  private final @Nullable PersistentWorkerPool persistentWorkerPool;
+  private final ShardWorkerContext workerContext;
   private final Pipeline pipeline;
   private final Backplane backplane;
   private final LoadingCache<String, Instance> workerStubs;
@@ -147,6 +158,17 @@ public class Worker extends LoggingMain {
       insertStream(digest, () -> Files.newInputStream(file));
     }
 
+    // a file cache hashes and inserts the file with a single read
+    public Digest ingest(Path file) throws IOException, InterruptedException {
+      ContentAddressableStorage storage = execFileSystem.getStorage();
+      if (storage instanceof CASFileCache) {
+        return ((CASFileCache) storage).ingest(file);
+      }
+      Digest digest = digestUtil.compute(file);
+      write(digest, file);
+      return digest;
+    }
+
     public void insertBlob(Digest digest, ByteString content)
         throws IOException, InterruptedException {
       insertStream(digest, () -> content.newInput());
@@ -180,6 +202,12 @@ public class Worker extends LoggingMain {
       insertFileToCasMember(digest, file);
     }
 
+    public Digest ingest(Path file) throws IOException, InterruptedException {
+      Digest digest = digestUtil.compute(file);
+      write(digest, file);
+      return digest;
+    }
+
     private void insertFileToCasMember(Digest digest, Path file)
         throws IOException, InterruptedException {
       try (InputStream in = Files.newInputStream(file)) {
@@ -322,6 +350,16 @@ public class Worker extends LoggingMain {
     return root.resolve(pathValue);
   }
 
+  private static EvictionPolicy createEvictionPolicy(FilesystemCASConfig config) {
+    switch (config.getEvictionPolicy()) {
+      case TINY_LFU:
+        return new TinyLfuEvictionPolicy(config.getMaxSizeBytes());
+      case LRU:
+      default:
+        return new LruEvictionPolicy();
+    }
+  }
+
   private static HashFunction getValidHashFunction(ShardWorkerConfig config)
       throws ConfigurationException {
     try {
@@ -375,7 +413,7 @@ public class Worker extends LoggingMain {
             new ThreadFactoryBuilder().setNameFormat("remove-directory-pool-%d").build());
     ExecutorService accessRecorder = newSingleThreadExecutor();
 
-    InputStreamFactory remoteInputStreamFactory =
+    RemoteInputStreamFactory remoteInputStreamFactory =
         new RemoteInputStreamFactory(
             config.getPublicName(),
             backplane,
@@ -407,6 +445,27 @@ public class Worker extends LoggingMain {
       writer = new LocalCasWriter();
     }
 
+    ThreadFactory threadFactory = Thread::new;
+    if (config.getVirtualThreads()) {
+      if (VirtualThreads.isSupported()) {
+        threadFactory = VirtualThreads.factory("operation-");
+      } else {
+        logger.log(Level.WARNING, "virtual threads are not supported, using platform threads");
+      }
+    }
+
+    PersistentWorkerConfig persistentWorkerConfig = config.getPersistentWorkers();
+    if (persistentWorkerConfig.getMaxWorkers() > 0) {
+      persistentWorkerPool =
+          new PersistentWorkerPool(
+              root.resolve("persistent-workers"),
+              persistentWorkerConfig.getMaxWorkers(),
+              persistentWorkerConfig.getMaxIdleTime(),
+              persistentWorkerConfig.getMaxMemoryPerKeyBytes());
+    } else {
+      persistentWorkerPool = null;
+    }
+
     DequeueMatchSettings matchSettings = new DequeueMatchSettings();
     matchSettings.acceptEverything = config.getDequeueMatchSettings().getAcceptEverything();
     matchSettings.allowUnmatched = config.getDequeueMatchSettings().getAllowUnmatched();
@@ -421,6 +480,9 @@ public class Worker extends LoggingMain {
             config.getInlineContentLimit(),
             config.getInputFetchStageWidth(),
             config.getExecuteStageWidth(),
+            config.getReportResultStageWidth(),
+            config.getOutputUploadParallelism(),
+            config.getMatchBatchSize(),
             backplane,
             execFileSystem,
             new EmptyInputStreamFactory(
@@ -436,7 +498,10 @@ public class Worker extends LoggingMain {
             config.getLimitGlobalExecution(),
             config.getOnlyMulticoreTests(),
             config.getErrorOperationRemainingResources(),
-            writer);
+            writer,
+            threadFactory,
+            persistentWorkerPool);
+    workerContext = context;
 
     PipelineStage completeStage =
         new PutOperationStage((operation) -> context.deactivate(operation.getName()));
@@ -446,11 +511,25 @@ public class Worker extends LoggingMain {
         new ExecuteActionStage(context, reportResultStage, errorStage);
     PipelineStage inputFetchStage =
         new InputFetchStage(context, executeActionStage, new PutOperationStage(context::requeue));
-    PipelineStage matchStage = new MatchStage(context, inputFetchStage, errorStage);
+    PipelineStage matchOutputStage = inputFetchStage;
+    PipelineStage inputPrefetchStage = null;
+    if (config.getInputPrefetchStageWidth() > 0) {
+      inputPrefetchStage =
+          new InputPrefetchStage(
+              context,
+              inputFetchStage,
+              new PutOperationStage(context::requeue),
+              config.getInputPrefetchStageWidth());
+      matchOutputStage = inputPrefetchStage;
+    }
+    PipelineStage matchStage = new MatchStage(context, matchOutputStage, errorStage);
 
     pipeline = new Pipeline();
     // pipeline.add(errorStage, 0);
-    pipeline.add(matchStage, 4);
+    pipeline.add(matchStage, 5);
+    if (inputPrefetchStage != null) {
+      pipeline.add(inputPrefetchStage, 4);
+    }
     pipeline.add(inputFetchStage, 3);
     pipeline.add(executeActionStage, 2);
     pipeline.add(reportResultStage, 1);
@@ -468,6 +547,7 @@ public class Worker extends LoggingMain {
                     storage,
                     inputFetchStage,
                     executeActionStage,
+                    reportResultStage,
                     context,
                     completeStage,
                     backplane))
@@ -638,7 +718,7 @@ public class Worker extends LoggingMain {
   }
 
   private ExecFileSystem createExecFileSystem(
-      InputStreamFactory remoteInputStreamFactory,
+      RemoteInputStreamFactory remoteInputStreamFactory,
       ExecutorService removeDirectoryService,
       ExecutorService accessRecorder,
       ContentAddressableStorage storage)
@@ -647,7 +727,8 @@ public class Worker extends LoggingMain {
     if (storage instanceof CASFileCache) {
       CASFileCache cfc = (CASFileCache) storage;
       UserPrincipal owner = getOwner(cfc.getRoot().getFileSystem());
-      return createCFCExecFileSystem(removeDirectoryService, accessRecorder, cfc, owner);
+      return createCFCExecFileSystem(
+          removeDirectoryService, accessRecorder, remoteInputStreamFactory, cfc, owner);
     } else {
       // FIXME not the only fuse backing capacity...
       return createFuseExecFileSystem(remoteInputStreamFactory, storage);
@@ -680,6 +761,13 @@ public class Worker extends LoggingMain {
             fsCASConfig.getMaxEntrySizeBytes(),
             fsCASConfig.getHexBucketLevels(),
             fsCASConfig.getFileDirectoriesIndexInMemory(),
+            fsCASConfig.getInternedDirectoriesIndex(),
+            fsCASConfig.getLruSegments(),
+            fsCASConfig.getPersistentIndex(),
+            fsCASConfig.getCompactEntryTable(),
+            createEvictionPolicy(fsCASConfig),
+            fsCASConfig.getEvictionHighWatermarkPercent(),
+            fsCASConfig.getEvictionLowWatermarkPercent(),
             digestUtil,
             removeDirectoryService,
             accessRecorder,
@@ -712,8 +800,13 @@ public class Worker extends LoggingMain {
   private ExecFileSystem createCFCExecFileSystem(
       ExecutorService removeDirectoryService,
       ExecutorService accessRecorder,
+      RemoteInputStreamFactory remoteInputStreamFactory,
       CASFileCache fileCache,
       @Nullable UserPrincipal owner) {
+    long batchReadRequestSizeLimit = config.getBatchReadRequestSizeLimit();
+    if (batchReadRequestSizeLimit <= 0) {
+      batchReadRequestSizeLimit = DEFAULT_BATCH_READ_REQUEST_SIZE_LIMIT;
+    }
     return new CFCExecFileSystem(
         root,
         fileCache,
@@ -721,6 +814,12 @@ public class Worker extends LoggingMain {
         config.getLinkInputDirectories(),
         removeDirectoryService,
         accessRecorder,
+        remoteInputStreamFactory,
+        config.getBatchReadBlobSizeLimit(),
+        batchReadRequestSizeLimit,
+        config.getInputPrefetchBytesPerSecond(),
+        config.getInputRootTemplateCacheSize(),
+        config.getNativeExecDirs(),
         /* deadlineAfter=*/ 1,
         /* deadlineAfterUnits=*/ DAYS);
   }
@@ -739,10 +838,20 @@ public class Worker extends LoggingMain {
     healthStatusManager.setStatus(
         HealthStatusManager.SERVICE_NAME_ALL_SERVICES, ServingStatus.NOT_SERVING);
     healthCheckMetric.labels("stop").inc();
+    logger.log(INFO, "Stopping output uploads");
+    workerContext.stop();
     if (execFileSystem != null) {
       logger.log(INFO, "Stopping exec filesystem");
       execFileSystem.stop();
     }
+    if (persistentWorkerPool != null) {
+      logger.log(INFO, "Stopping persistent workers");
+      try {
+        persistentWorkerPool.stop();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
     if (server != null) {
       logger.log(INFO, "Shutting down the server");
       server.shutdown();
@@ -904,6 +1013,9 @@ public class Worker extends LoggingMain {
       boolean skipLoad = config.getCasList().get(0).getSkipLoad();
       execFileSystem.start(
           (digests) -> addBlobsLocation(digests, config.getPublicName()), skipLoad);
+      if (persistentWorkerPool != null) {
+        persistentWorkerPool.start();
+      }
 
       server.start();
       healthStatusManager.setStatus(
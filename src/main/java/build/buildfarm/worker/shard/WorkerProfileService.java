@@ -29,6 +29,7 @@ import build.buildfarm.worker.InputFetchStage;
 import build.buildfarm.worker.PipelineStage;
 import build.buildfarm.worker.PutOperationStage;
 import build.buildfarm.worker.PutOperationStage.OperationStageDurations;
+import build.buildfarm.worker.ReportResultStage;
 import build.buildfarm.worker.WorkerContext;
 import io.grpc.stub.StreamObserver;
 import java.io.IOException;
@@ -37,6 +38,7 @@ public class WorkerProfileService extends WorkerProfileGrpc.WorkerProfileImplBas
   private final CASFileCache storage;
   private final InputFetchStage inputFetchStage;
   private final ExecuteActionStage executeActionStage;
+  private final ReportResultStage reportResultStage;
   private final WorkerContext context;
   private final PutOperationStage completeStage;
   private final Backplane backplane;
@@ -45,12 +47,14 @@ public class WorkerProfileService extends WorkerProfileGrpc.WorkerProfileImplBas
       ContentAddressableStorage storage,
       PipelineStage inputFetchStage,
       PipelineStage executeActionStage,
+      PipelineStage reportResultStage,
       WorkerContext context,
       PipelineStage completeStage,
       Backplane backplane) {
     this.storage = (CASFileCache) storage;
     this.inputFetchStage = (InputFetchStage) inputFetchStage;
     this.executeActionStage = (ExecuteActionStage) executeActionStage;
+    this.reportResultStage = (ReportResultStage) reportResultStage;
     this.context = context;
     this.completeStage = (PutOperationStage) completeStage;
     this.backplane = backplane;
@@ -84,6 +88,12 @@ public class WorkerProfileService extends WorkerProfileGrpc.WorkerProfileImplBas
                 .setName("ExecuteActionStage")
                 .setSlotsConfigured(context.getExecuteStageWidth())
                 .setSlotsUsed(executeActionStage.getSlotUsage())
+                .build())
+        .addStages(
+            StageInformation.newBuilder()
+                .setName("ReportResultStage")
+                .setSlotsConfigured(context.getReportResultStageWidth())
+                .setSlotsUsed(reportResultStage.getSlotUsage())
                 .build());
 
     // get average time costs on each stage
@@ -23,13 +23,16 @@ import static java.util.concurrent.TimeUnit.MICROSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+import build.bazel.remote.execution.v2.BatchReadBlobsResponse.Response;
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Directory;
 import build.bazel.remote.execution.v2.DirectoryNode;
@@ -49,10 +52,12 @@ import build.buildfarm.common.Write.NullWrite;
 import build.buildfarm.common.io.Directories;
 import build.buildfarm.common.io.EvenMoreFiles;
 import build.buildfarm.common.io.FeedbackOutputStream;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
 import com.google.common.jimfs.Configuration;
 import com.google.common.jimfs.Jimfs;
 import com.google.common.util.concurrent.Futures;
@@ -60,6 +65,8 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
 import io.grpc.Deadline;
+import io.grpc.Status.Code;
+import io.grpc.stub.ServerCallStreamObserver;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -69,11 +76,14 @@ import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -132,6 +142,12 @@ class CASFileCacheTest {
             /* maxEntrySizeInBytes=*/ 1024,
             /* hexBucketLevels=*/ 1,
             storeFileDirsIndexInMemory,
+            /* internedDirectoriesIndex=*/ false,
+            /* lruSegments=*/ 1,
+            /* persistentIndex=*/ false,
+            new LruEvictionPolicy(),
+            /* evictionHighWatermarkPercent=*/ 0,
+            /* evictionLowWatermarkPercent=*/ 0,
             DIGEST_UTIL,
             expireService,
             /* accessRecorder=*/ directExecutor(),
@@ -468,6 +484,228 @@ class CASFileCacheTest {
     assertThat(storage.get(pathThree).after).isEqualTo(storage.get(pathOne));
   }
 
+  @Test
+  public void expireSelectsEldestUnreferencedEntryAcrossSegments()
+      throws IOException, InterruptedException {
+    CASFileCache segmentedCache =
+        newCache(
+            root.resolve("segmented"),
+            /* lruSegments=*/ 8,
+            new LruEvictionPolicy(),
+            /* evictionHighWatermarkPercent=*/ 0,
+            /* evictionLowWatermarkPercent=*/ 0,
+            /* persistentIndex=*/ false,
+            onExpire);
+    segmentedCache.initializeRootDirectory();
+
+    List<Digest> digests = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      byte[] data = new byte[256];
+      Arrays.fill(data, (byte) i);
+      ByteString content = ByteString.copyFrom(data);
+      Digest digest = DIGEST_UTIL.compute(content);
+      blobs.put(digest, content);
+      Path path = segmentedCache.put(digest, /* isExecutable=*/ false);
+      segmentedCache.decrementReferences(
+          ImmutableList.of(path.getFileName().toString()), ImmutableList.of());
+      digests.add(digest);
+    }
+    // the access moves the first entry behind the others, wherever they are partitioned
+    assertThat(segmentedCache.findMissingBlobs(ImmutableList.of(digests.get(0)))).isEmpty();
+
+    ByteString content = ByteString.copyFromUtf8("CAS Would Exceed Max Size");
+    Digest digest = DIGEST_UTIL.compute(content);
+    blobs.put(digest, content);
+    segmentedCache.put(digest, /* isExecutable=*/ false);
+
+    assertThat(segmentedCache.findMissingBlobs(digests)).containsExactly(digests.get(1));
+    assertThat(segmentedCache.size()).isEqualTo(768 + content.size());
+  }
+
+  @Test
+  public void tinyLfuRetainsFrequentlyUsedEntriesThroughScan()
+      throws IOException, InterruptedException {
+    CASFileCache tinyLfuCache =
+        newCache(
+            root.resolve("tiny-lfu"),
+            /* lruSegments=*/ 4,
+            new TinyLfuEvictionPolicy(/* maxSizeInBytes=*/ 1024),
+            /* evictionHighWatermarkPercent=*/ 0,
+            /* evictionLowWatermarkPercent=*/ 0,
+            /* persistentIndex=*/ false,
+            onExpire);
+    tinyLfuCache.initializeRootDirectory();
+
+    List<Digest> frequent = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      frequent.add(putAndRelease(tinyLfuCache, Strings.repeat("frequent " + i, 16)));
+    }
+    for (int i = 0; i < 3; i++) {
+      assertThat(tinyLfuCache.findMissingBlobs(frequent)).isEmpty();
+    }
+
+    // a scan of single use entries, many times larger than the cache
+    for (int i = 0; i < 32; i++) {
+      putAndRelease(tinyLfuCache, Strings.repeat("scanned " + i + " ", 16));
+    }
+
+    assertThat(tinyLfuCache.findMissingBlobs(frequent)).isEmpty();
+    assertThat(tinyLfuCache.size()).isAtMost(1024);
+  }
+
+  @Test
+  public void backgroundEvictorExpiresToLowWatermark() throws Exception {
+    CountDownLatch expired = new CountDownLatch(3);
+    CASFileCache evictingCache =
+        newCache(
+            root.resolve("evicting"),
+            /* lruSegments=*/ 1,
+            new LruEvictionPolicy(),
+            /* evictionHighWatermarkPercent=*/ 50,
+            /* evictionLowWatermarkPercent=*/ 25,
+            /* persistentIndex=*/ false,
+            expiredDigests -> expiredDigests.forEach(digest -> expired.countDown()));
+    evictingCache.start(/* skipLoad=*/ true);
+
+    List<Digest> digests = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      digests.add(putAndRelease(evictingCache, Strings.repeat("evicted " + i + " ", 16)));
+    }
+
+    // 640 bytes exceeds the high watermark, and is expired to at most 256 bytes in the background
+    assertThat(expired.await(10, SECONDS)).isTrue();
+    evictingCache.stop();
+    assertThat(evictingCache.size()).isEqualTo(160);
+    assertThat(evictingCache.findMissingBlobs(digests))
+        .containsExactlyElementsIn(digests.subList(0, 3));
+  }
+
+  private CASFileCache newCache(
+      Path cacheRoot,
+      int lruSegments,
+      EvictionPolicy evictionPolicy,
+      int evictionHighWatermarkPercent,
+      int evictionLowWatermarkPercent,
+      boolean persistentIndex,
+      Consumer<Iterable<Digest>> onExpire) {
+    return new CASFileCache(
+        cacheRoot,
+        /* maxSizeInBytes=*/ 1024,
+        /* maxEntrySizeInBytes=*/ 1024,
+        /* hexBucketLevels=*/ 1,
+        storeFileDirsIndexInMemory,
+        /* internedDirectoriesIndex=*/ false,
+        lruSegments,
+        persistentIndex,
+        evictionPolicy,
+        evictionHighWatermarkPercent,
+        evictionLowWatermarkPercent,
+        DIGEST_UTIL,
+        expireService,
+        /* accessRecorder=*/ directExecutor(),
+        Maps.newConcurrentMap(),
+        /* directoriesIndexDbName=*/ ":memory:",
+        onPut,
+        onExpire,
+        /* delegate=*/ null) {
+      @Override
+      protected InputStream newExternalInput(Digest digest, long offset) throws IOException {
+        return blobs.get(digest).substring((int) offset).newInput();
+      }
+    };
+  }
+
+  private CASFileCache newPersistentCache(Path cacheRoot) {
+    return newCache(
+        cacheRoot,
+        /* lruSegments=*/ 1,
+        new LruEvictionPolicy(),
+        /* evictionHighWatermarkPercent=*/ 0,
+        /* evictionLowWatermarkPercent=*/ 0,
+        /* persistentIndex=*/ true,
+        onExpire);
+  }
+
+  private Digest putAndRelease(CASFileCache cache, String data)
+      throws IOException, InterruptedException {
+    ByteString content = ByteString.copyFromUtf8(data);
+    Digest digest = DIGEST_UTIL.compute(content);
+    blobs.put(digest, content);
+    Path path = cache.put(digest, /* isExecutable=*/ false);
+    cache.decrementReferences(ImmutableList.of(path.getFileName().toString()), ImmutableList.of());
+    return digest;
+  }
+
+  @Test
+  public void startRestoresEntriesFromIndexCheckpoint() throws IOException, InterruptedException {
+    Path persistentRoot = root.resolve("persistent");
+    CASFileCache persistentCache = newPersistentCache(persistentRoot);
+    assertThat(persistentCache.start(/* skipLoad=*/ false).load.indexLoaded).isFalse();
+    Digest first = putAndRelease(persistentCache, "first");
+    Digest second = putAndRelease(persistentCache, "second");
+    persistentCache.stop();
+
+    CASFileCache restoredCache = newPersistentCache(persistentRoot);
+    StartupCacheResults results = restoredCache.start(/* skipLoad=*/ false);
+
+    assertThat(results.load.indexLoaded).isTrue();
+    assertThat(results.load.scan.fileKeys).isEmpty();
+    assertThat(restoredCache.findMissingBlobs(ImmutableList.of(first, second))).isEmpty();
+    assertThat(restoredCache.size()).isEqualTo(first.getSizeBytes() + second.getSizeBytes());
+    assertThat(restoredCache.unreferencedEntryCount()).isEqualTo(2);
+    restoredCache.stop();
+  }
+
+  @Test
+  public void startReplaysIndexJournal() throws IOException, InterruptedException {
+    Path persistentRoot = root.resolve("persistent");
+    CASFileCache persistentCache = newPersistentCache(persistentRoot);
+    persistentCache.start(/* skipLoad=*/ false);
+    Digest first = putAndRelease(persistentCache, "first");
+    Digest second = putAndRelease(persistentCache, "second");
+    // not stopped, the puts are present only in the journal
+    persistentCache.syncIndex();
+    Files.delete(persistentCache.getPath(persistentCache.getKey(second, false)));
+
+    CASFileCache restoredCache = newPersistentCache(persistentRoot);
+    StartupCacheResults results = restoredCache.start(/* skipLoad=*/ false);
+
+    assertThat(results.load.indexLoaded).isTrue();
+    assertThat(restoredCache.findMissingBlobs(ImmutableList.of(first))).isEmpty();
+    // the removed file is detected by validation or on its first use
+    try (InputStream in = restoredCache.newInput(second, /* offset=*/ 0)) {
+      fail("should not get here");
+    } catch (NoSuchFileException e) {
+      // expected
+    }
+    assertThat(restoredCache.findMissingBlobs(ImmutableList.of(second))).containsExactly(second);
+    restoredCache.stop();
+  }
+
+  @Test
+  public void startRestoresFilesMissingFromIndexJournal() throws IOException, InterruptedException {
+    Path persistentRoot = root.resolve("persistent");
+    CASFileCache persistentCache = newPersistentCache(persistentRoot);
+    persistentCache.start(/* skipLoad=*/ false);
+    Digest first = putAndRelease(persistentCache, "first");
+    persistentCache.syncIndex();
+    // not stopped, and a put whose record was never written to the journal
+    ByteString content = ByteString.copyFromUtf8("unjournaled");
+    Digest unjournaled = DIGEST_UTIL.compute(content);
+    blobs.put(unjournaled, content);
+    Files.write(
+        persistentCache.getPath(persistentCache.getKey(unjournaled, false)), content.toByteArray());
+
+    CASFileCache restoredCache = newPersistentCache(persistentRoot);
+    StartupCacheResults results = restoredCache.start(/* skipLoad=*/ false);
+
+    assertThat(results.load.indexLoaded).isTrue();
+    assertThat(restoredCache.findMissingBlobs(ImmutableList.of(first, unjournaled))).isEmpty();
+    // reinsertion references the restored entry
+    restoredCache.put(unjournaled, /* isExecutable=*/ false);
+    restoredCache.stop();
+  }
+
   @Test
   public void mismatchedSizeIsNotContained() throws InterruptedException {
     ByteString content = ByteString.copyFromUtf8("mismatched");
@@ -624,7 +862,7 @@ class CASFileCacheTest {
     // putCreatesFile verifies this
     Files.delete(fileCache.getPath(key));
     // update entry with expired deadline
-    storage.get(key).existsDeadline = Deadline.after(0, SECONDS);
+    storage.get(key).setExistsDeadline(Deadline.after(0, SECONDS));
 
     try (InputStream in = fileCache.newInput(blob.getDigest(), /* offset=*/ 0)) {
       fail("should not get here");
@@ -634,6 +872,83 @@ class CASFileCacheTest {
     assertThat(storage.containsKey(key)).isFalse();
   }
 
+  @Test
+  public void getServesRangeOfLocalBlob() throws IOException, InterruptedException {
+    ByteString content = ByteString.copyFromUtf8(Strings.repeat("0123456789", 100));
+    Blob blob = new Blob(content, DIGEST_UTIL);
+    fileCache.put(blob);
+
+    @SuppressWarnings("unchecked")
+    ServerCallStreamObserver<ByteString> blobObserver = mock(ServerCallStreamObserver.class);
+    when(blobObserver.isReady()).thenReturn(true);
+    doAnswer(
+            invocation -> {
+              Runnable onReadyHandler = invocation.getArgument(0);
+              onReadyHandler.run();
+              return null;
+            })
+        .when(blobObserver)
+        .setOnReadyHandler(any(Runnable.class));
+    List<ByteString> chunks = new ArrayList<>();
+    doAnswer(
+            invocation -> {
+              chunks.add(invocation.getArgument(0));
+              return null;
+            })
+        .when(blobObserver)
+        .onNext(any(ByteString.class));
+
+    fileCache.get(
+        blob.getDigest(),
+        /* offset=*/ 10,
+        /* count=*/ 100,
+        blobObserver,
+        RequestMetadata.getDefaultInstance());
+
+    verify(blobObserver, times(1)).onCompleted();
+    verify(blobObserver, never()).onError(any(Throwable.class));
+    assertThat(ByteString.copyFrom(chunks)).isEqualTo(content.substring(10, 110));
+  }
+
+  @Test
+  public void getAllFutureReadsLocalEntries() throws Exception {
+    Blob blob = new Blob(ByteString.copyFromUtf8("local"), DIGEST_UTIL);
+    fileCache.put(blob);
+    Digest missingDigest = DIGEST_UTIL.compute(ByteString.copyFromUtf8("missing"));
+
+    List<Response> responses =
+        ImmutableList.copyOf(
+            fileCache.getAllFuture(ImmutableList.of(blob.getDigest(), missingDigest)).get());
+
+    assertThat(responses).hasSize(2);
+    assertThat(responses.get(0).getDigest()).isEqualTo(blob.getDigest());
+    assertThat(responses.get(0).getStatus().getCode()).isEqualTo(Code.OK.value());
+    assertThat(responses.get(0).getData()).isEqualTo(blob.getData());
+    assertThat(responses.get(1).getDigest()).isEqualTo(missingDigest);
+    assertThat(responses.get(1).getStatus().getCode()).isEqualTo(Code.NOT_FOUND.value());
+    verifyZeroInteractions(delegate);
+  }
+
+  @Test
+  public void putContentIsVerifiedAndReferenced() throws IOException, InterruptedException {
+    ByteString content = ByteString.copyFromUtf8("fetched");
+    Digest digest = DIGEST_UTIL.compute(content);
+
+    Path path = fileCache.put(digest, /* isExecutable=*/ false, content);
+
+    assertThat(Files.readAllBytes(path)).isEqualTo(content.toByteArray());
+    assertThat(storage.get(fileCache.getKey(digest, false)).referenceCount).isEqualTo(1);
+
+    Digest mismatchedDigest = DIGEST_UTIL.compute(ByteString.copyFromUtf8("fetches"));
+    try {
+      fileCache.put(mismatchedDigest, /* isExecutable=*/ false, content);
+      fail("should have thrown");
+    } catch (IOException e) {
+      // expected
+    }
+    assertThat(storage.containsKey(fileCache.getKey(mismatchedDigest, false))).isFalse();
+  }
+
   @Test
   public void emptyWriteIsComplete() throws IOException {
     Write write =
@@ -927,6 +1242,132 @@ class CASFileCacheTest {
     }
   }
 
+  @Test
+  public void concurrentReadsShareOneDownload() throws Exception {
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Blob blob = new Blob(content, DIGEST_UTIL);
+    SettableFuture<Void> released = SettableFuture.create();
+    // supplies the first 6 bytes, then blocks until released
+    InputStream delegateInput =
+        new InputStream() {
+          int position = 0;
+
+          @Override
+          public int read() {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public int read(byte[] b, int off, int len) throws IOException {
+            if (position == content.size()) {
+              return -1;
+            }
+            if (position == 6) {
+              try {
+                released.get();
+              } catch (ExecutionException | InterruptedException e) {
+                throw new IOException(e);
+              }
+            }
+            int n = Math.min(len, (position < 6 ? 6 : content.size()) - position);
+            content.copyTo(b, position, off, n);
+            position += n;
+            return n;
+          }
+        };
+    when(delegate.newInput(eq(blob.getDigest()), eq(0l))).thenReturn(delegateInput);
+
+    byte[] buf = new byte[content.size()];
+    try (InputStream in = fileCache.newInput(blob.getDigest(), /* offset=*/ 0);
+        InputStream offsetIn = fileCache.newInput(blob.getDigest(), /* offset=*/ 3)) {
+      assertThat(in.read(buf, 0, 6)).isEqualTo(6);
+      byte[] offsetBuf = new byte[content.size() - 3];
+      assertThat(offsetIn.read(offsetBuf, 0, 3)).isEqualTo(3);
+      released.set(null);
+      ByteStreams.readFully(in, buf, 6, content.size() - 6);
+      ByteStreams.readFully(offsetIn, offsetBuf, 3, offsetBuf.length - 3);
+      assertThat(offsetIn.read()).isEqualTo(-1);
+      assertThat(ByteString.copyFrom(offsetBuf)).isEqualTo(content.substring(3));
+    }
+    assertThat(ByteString.copyFrom(buf)).isEqualTo(content);
+    verify(delegate, times(1)).newInput(blob.getDigest(), 0l);
+  }
+
+  @Test
+  public void readOfMismatchedDownloadFailsAtEnd() throws Exception {
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    ByteString mismatched = ByteString.copyFromUtf8("Hello, Earth");
+    Digest digest = DIGEST_UTIL.compute(content);
+    SettableFuture<Void> released = SettableFuture.create();
+    // supplies every byte, then blocks at its end until released
+    InputStream delegateInput =
+        new InputStream() {
+          int position = 0;
+
+          @Override
+          public int read() {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public int read(byte[] b, int off, int len) throws IOException {
+            if (position == mismatched.size()) {
+              try {
+                released.get();
+              } catch (ExecutionException | InterruptedException e) {
+                throw new IOException(e);
+              }
+              return -1;
+            }
+            int n = Math.min(len, mismatched.size() - position);
+            mismatched.copyTo(b, position, off, n);
+            position += n;
+            return n;
+          }
+        };
+    when(delegate.newInput(eq(digest), eq(0l))).thenReturn(delegateInput);
+
+    byte[] buf = new byte[content.size()];
+    try (InputStream in = fileCache.newInput(digest, /* offset=*/ 0)) {
+      ByteStreams.readFully(in, buf);
+      released.set(null);
+      // the content fails verification when the download completes
+      try {
+        in.read();
+        fail("should not get here");
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void ingestAddsUnreferencedEntry() throws IOException, InterruptedException {
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Path output = root.resolveSibling("output");
+    Files.write(output, content.toByteArray());
+    // a file with other links is copied rather than linked
+    Path sharedOutput = root.resolveSibling("shared-output");
+    Files.write(sharedOutput, ByteString.copyFromUtf8("Shared").toByteArray());
+    Files.createLink(root.resolveSibling("shared-link"), sharedOutput);
+
+    Digest digest = fileCache.ingest(output);
+    Digest sharedDigest = fileCache.ingest(sharedOutput);
+
+    assertThat(digest).isEqualTo(DIGEST_UTIL.compute(content));
+    String key = fileCache.getKey(digest, false);
+    assertThat(storage.get(key).referenceCount).isEqualTo(0);
+    assertThat(Files.readAllBytes(fileCache.getPath(key))).isEqualTo(content.toByteArray());
+    verify(onPut, times(1)).accept(digest);
+    String sharedKey = fileCache.getKey(sharedDigest, false);
+    assertThat(storage.get(sharedKey).referenceCount).isEqualTo(0);
+    assertThat(Files.isSameFile(fileCache.getPath(sharedKey), sharedOutput)).isFalse();
+    assertThat(fileCache.ingest(root.resolveSibling("shared-link"))).isEqualTo(sharedDigest);
+    // a writable file is copied, and remains writable
+    assertThat(Files.isSameFile(fileCache.getPath(key), output)).isFalse();
+    assertThat(Files.isWritable(output)).isTrue();
+  }
+
   @Test
   public void findMissingBlobsFiltersEmptyBlobs() throws Exception {
     Digest emptyDigest = Digest.getDefaultInstance();
@@ -0,0 +1,108 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas.cfc;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import build.buildfarm.cas.cfc.CASFileCache.Entry;
+import com.google.common.hash.Hashing;
+import io.grpc.Deadline;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CompactEntryTableTest {
+  private static Entry newEntry(String key) {
+    return new Entry(key, /* size=*/ 1, Deadline.after(10, SECONDS));
+  }
+
+  private static String hashKey(int i) {
+    return Hashing.sha256().hashInt(i).toString();
+  }
+
+  @Test
+  public void entryKeysRoundTrip() {
+    String key = hashKey(0);
+    assertThat(newEntry(key).getKey()).isEqualTo(key);
+    assertThat(newEntry(key + "_exec").getKey()).isEqualTo(key + "_exec");
+    // keys which are not lowercase hex are retained as they are
+    assertThat(newEntry(key.toUpperCase()).getKey()).isEqualTo(key.toUpperCase());
+    assertThat(newEntry("abc").getKey()).isEqualTo("abc");
+
+    assertThat(newEntry(key).keyEquals(key + "_exec")).isFalse();
+    assertThat(newEntry(key + "_exec").keyEquals(key)).isFalse();
+    assertThat(Entry.keyHash(key)).isEqualTo(newEntry(key).keyHash());
+    assertThat(Entry.keyHash(key + "_exec")).isEqualTo(newEntry(key + "_exec").keyHash());
+  }
+
+  @Test
+  public void executableAndRegularKeysAreDistinct() {
+    CompactEntryTable table = new CompactEntryTable(2);
+    String key = hashKey(0);
+    Entry entry = newEntry(key);
+    Entry execEntry = newEntry(key + "_exec");
+
+    assertThat(table.putIfAbsent(key, entry)).isNull();
+    assertThat(table.putIfAbsent(key + "_exec", execEntry)).isNull();
+    assertThat(table.putIfAbsent(key, newEntry(key))).isSameInstanceAs(entry);
+
+    assertThat(table.get(key)).isSameInstanceAs(entry);
+    assertThat(table.get(key + "_exec")).isSameInstanceAs(execEntry);
+    assertThat(table.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void removalRetainsRemainingEntries() {
+    // a single small stripe forces collisions and resizing
+    CompactEntryTable table = new CompactEntryTable(1);
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      String key = i % 3 == 0 ? hashKey(i) + "_exec" : hashKey(i);
+      keys.add(key);
+      table.put(key, newEntry(key));
+    }
+    assertThat(table.size()).isEqualTo(1000);
+
+    for (int i = 0; i < keys.size(); i += 2) {
+      assertThat(table.remove(keys.get(i))).isNotNull();
+    }
+    assertThat(table.size()).isEqualTo(500);
+    for (int i = 0; i < keys.size(); i++) {
+      String key = keys.get(i);
+      if (i % 2 == 0) {
+        assertThat(table.containsKey(key)).isFalse();
+      } else {
+        assertThat(table.get(key).getKey()).isEqualTo(key);
+      }
+    }
+    assertThat(table.keySet()).hasSize(500);
+  }
+
+  @Test
+  public void conditionalRemoveRequiresIdentity() {
+    CompactEntryTable table = new CompactEntryTable();
+    String key = hashKey(0);
+    Entry entry = newEntry(key);
+    table.put(key, entry);
+
+    assertThat(table.remove(key, newEntry(key))).isFalse();
+    assertThat(table.remove(key, entry)).isTrue();
+    assertThat(table.isEmpty()).isTrue();
+  }
+}
@@ -48,6 +48,8 @@ public class DirectoriesIndexTest {
       directoriesIndex = new MemoryFileDirectoriesIndex(entryPathStrategy);
     } else if (type == DirectoriesIndexType.SetMultimap) {
       directoriesIndex = new MemoryDirectoriesIndex();
+    } else if (type == DirectoriesIndexType.Interned) {
+      directoriesIndex = new InternedFileDirectoriesIndex(entryPathStrategy);
     } else {
       throw new IllegalArgumentException("DirectoriesIndex type is not supported.");
     }
@@ -99,10 +101,24 @@ public class DirectoriesIndexTest {
     }
   }
 
+  @Test
+  public void removeEntryReflectsLatestDirectoryWrites() throws IOException {
+    Digest directory = DIGEST_UTIL.compute(ByteString.copyFromUtf8("directory"));
+    String entry = DIGEST_UTIL.compute(ByteString.copyFromUtf8("entry")).getHash();
+
+    directoriesIndex.put(directory, ImmutableList.of(entry));
+    directoriesIndex.remove(directory);
+    directoriesIndex.put(directory, ImmutableList.of(entry));
+
+    assertThat(directoriesIndex.removeEntry(entry)).containsExactly(directory);
+    assertThat(directoriesIndex.removeEntry(entry)).isEmpty();
+  }
+
   protected enum DirectoriesIndexType {
     Sqlite,
     HashMap,
-    SetMultimap
+    SetMultimap,
+    Interned
   }
 
   // Testing SqliteFileDirectoriesIndex implementation
@@ -202,4 +218,21 @@ public class DirectoriesIndexTest {
           DirectoriesIndexType.HashMap);
     }
   }
+
+  // Testing InternedFileDirectoriesIndex (using interned int ids) implementation
+  @RunWith(JUnit4.class)
+  public static class UnixInternedFileDirectoriesIndexTest extends DirectoriesIndexTest {
+    public UnixInternedFileDirectoriesIndexTest() {
+      super(
+          Iterables.getFirst(
+              Jimfs.newFileSystem(
+                      Configuration.unix()
+                          .toBuilder()
+                          .setAttributeViews("basic", "owner", "posix", "unix")
+                          .build())
+                  .getRootDirectories(),
+              null),
+          DirectoriesIndexType.Interned);
+    }
+  }
 }
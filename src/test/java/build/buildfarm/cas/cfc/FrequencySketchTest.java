@@ -0,0 +1,55 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas.cfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class FrequencySketchTest {
+  @Test
+  public void frequencyCountsIncrements() {
+    FrequencySketch sketch = new FrequencySketch(64);
+    assertThat(sketch.frequency(1)).isEqualTo(0);
+    sketch.increment(1);
+    sketch.increment(1);
+    assertThat(sketch.frequency(1)).isEqualTo(2);
+  }
+
+  @Test
+  public void frequencySaturates() {
+    FrequencySketch sketch = new FrequencySketch(64);
+    for (int i = 0; i < 20; i++) {
+      sketch.increment(1);
+    }
+    assertThat(sketch.frequency(1)).isEqualTo(15);
+  }
+
+  @Test
+  public void sampleHalvesFrequencies() {
+    FrequencySketch sketch = new FrequencySketch(16);
+    for (int i = 0; i < 8; i++) {
+      sketch.increment(1);
+    }
+    // distinct keys fill the remainder of the sample, 10 increments per long of the table
+    for (int i = 2; sketch.frequency(1) == 8; i++) {
+      sketch.increment(i);
+    }
+    assertThat(sketch.frequency(1)).isEqualTo(4);
+  }
+}
@@ -0,0 +1,60 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.cas.cfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class StripedReadBufferTest {
+  @Test
+  public void drainReturnsOfferedElementsInOrder() {
+    StripedReadBuffer<String> buffer = new StripedReadBuffer<>(1, 4);
+    assertThat(buffer.isEmpty()).isTrue();
+    assertThat(buffer.offer("a")).isTrue();
+    assertThat(buffer.offer("b")).isTrue();
+    assertThat(buffer.isEmpty()).isFalse();
+
+    List<String> drained = new ArrayList<>();
+    assertThat(buffer.drainTo(drained::add)).isEqualTo(2);
+    assertThat(drained).containsExactly("a", "b").inOrder();
+    assertThat(buffer.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void offerDropsWhenStripeIsFull() {
+    StripedReadBuffer<String> buffer = new StripedReadBuffer<>(1, 3);
+    // capacity is rounded up to 4
+    for (int i = 0; i < 4; i++) {
+      assertThat(buffer.offer("key" + i)).isTrue();
+    }
+    assertThat(buffer.offer("dropped")).isFalse();
+
+    List<String> drained = new ArrayList<>();
+    buffer.drainTo(drained::add);
+    assertThat(drained).containsExactly("key0", "key1", "key2", "key3").inOrder();
+
+    // space is reclaimed after a drain
+    assertThat(buffer.offer("key4")).isTrue();
+    drained.clear();
+    buffer.drainTo(drained::add);
+    assertThat(drained).containsExactly("key4");
+  }
+}
@@ -15,6 +15,7 @@
 package build.buildfarm.common.io;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assume.assumeTrue;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -24,6 +25,7 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
 import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -125,6 +127,45 @@ class DirectoriesTest {
         assertThat(Files.isWritable(subdir)).isFalse();
       }
     }
+
+    @Test
+    public void nativeCreateAndRemoveTree() throws IOException {
+      assumeTrue(NativeDirectories.isSupported());
+      Path input = root.resolve("input");
+      Files.write(input, ImmutableList.of("An input file"), StandardCharsets.UTF_8);
+      Path tree = root.resolve("tree4");
+      Files.createDirectory(tree);
+
+      int treeFd = NativeDirectories.open(tree);
+      try {
+        int subdirFd = NativeDirectories.createDirectoryAt(treeFd, "subdir");
+        try {
+          NativeDirectories.createLinkAt(subdirFd, "link", input);
+          NativeDirectories.createFileAt(subdirFd, "empty");
+          NativeDirectories.createSymbolicLinkAt(subdirFd, "symlink", "../../input");
+        } finally {
+          NativeDirectories.close(subdirFd);
+        }
+      } finally {
+        NativeDirectories.close(treeFd);
+      }
+      Path subdir = tree.resolve("subdir");
+      assertThat(Files.isSameFile(subdir.resolve("link"), input)).isTrue();
+      assertThat(Files.size(subdir.resolve("empty"))).isEqualTo(0);
+      assertThat(Files.readSymbolicLink(subdir.resolve("symlink")).toString())
+          .isEqualTo("../../input");
+
+      Directories.disableAllWriteAccess(tree);
+      ForkJoinPool pool = new ForkJoinPool(2);
+      try {
+        NativeDirectories.remove(tree, pool);
+      } finally {
+        pool.shutdown();
+      }
+      assertThat(Files.exists(tree)).isFalse();
+      // the symlink is not followed
+      assertThat(Files.exists(input)).isTrue();
+    }
   }
 
   @RunWith(JUnit4.class)
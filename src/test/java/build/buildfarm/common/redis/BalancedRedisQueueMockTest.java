@@ -17,6 +17,7 @@ package build.buildfarm.common.redis;
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.when;
+import static redis.clients.jedis.util.SafeEncoder.encode;
 
 import build.buildfarm.common.StringVisitor;
 import com.google.common.collect.ImmutableList;
@@ -57,7 +58,7 @@ public class BalancedRedisQueueMockTest {
   @Test
   public void removeFromDequeueFalseOnEmpty() throws Exception {
     // ARRANGE
-    when(redis.lrem(any(String.class), any(Long.class), any(String.class))).thenReturn(0L);
+    when(redis.lrem(any(byte[].class), any(Long.class), any(byte[].class))).thenReturn(0L);
     BalancedRedisQueue queue = new BalancedRedisQueue("test", ImmutableList.of());
 
     // ACT
@@ -75,7 +76,7 @@ public class BalancedRedisQueueMockTest {
   @Test
   public void removeFromDequeueFalseWhenValueIsMissing() throws Exception {
     // ARRANGE
-    when(redis.lrem(any(String.class), any(Long.class), any(String.class))).thenReturn(0L);
+    when(redis.lrem(any(byte[].class), any(Long.class), any(byte[].class))).thenReturn(0L);
     BalancedRedisQueue queue = new BalancedRedisQueue("test", ImmutableList.of());
 
     // ACT
@@ -92,7 +93,7 @@ public class BalancedRedisQueueMockTest {
   @Test
   public void removeFromDequeueTrueWhenValueExists() throws Exception {
     // ARRANGE
-    when(redis.lrem(any(String.class), any(Long.class), any(String.class))).thenReturn(1L);
+    when(redis.lrem(any(byte[].class), any(Long.class), any(byte[].class))).thenReturn(1L);
     BalancedRedisQueue queue = new BalancedRedisQueue("test", ImmutableList.of());
 
     // ACT
@@ -108,7 +109,7 @@ public class BalancedRedisQueueMockTest {
   @Test
   public void dequeueExponentialBackoffElementDequeuedOnNonBlock() throws Exception {
     // MOCK
-    when(redis.rpoplpush(any(String.class), any(String.class))).thenReturn("foo");
+    when(redis.rpoplpush(any(byte[].class), any(byte[].class))).thenReturn(encode("foo"));
 
     // ARRANGE
     BalancedRedisQueue queue = new BalancedRedisQueue("test", ImmutableList.of());
@@ -126,8 +127,9 @@ public class BalancedRedisQueueMockTest {
   @Test
   public void dequeueExponentialBackoffElementDequeuedOnBlock() throws Exception {
     // MOCK
-    when(redis.rpoplpush(any(String.class), any(String.class))).thenReturn(null);
-    when(redis.brpoplpush(any(String.class), any(String.class), any(int.class))).thenReturn("foo");
+    when(redis.rpoplpush(any(byte[].class), any(byte[].class))).thenReturn(null);
+    when(redis.brpoplpush(any(byte[].class), any(byte[].class), any(int.class)))
+        .thenReturn(encode("foo"));
 
     // ARRANGE
     BalancedRedisQueue queue = new BalancedRedisQueue("test", ImmutableList.of());
@@ -229,17 +231,17 @@ public class BalancedRedisQueueMockTest {
   @Test
   public void visitCheckVisitOfEachElement() throws Exception {
     // MOCK
-    when(redis.lrange(any(String.class), any(Long.class), any(Long.class)))
+    when(redis.lrange(any(byte[].class), any(Long.class), any(Long.class)))
         .thenReturn(
             Arrays.asList(
-                "element 1",
-                "element 2",
-                "element 3",
-                "element 4",
-                "element 5",
-                "element 6",
-                "element 7",
-                "element 8"));
+                encode("element 1"),
+                encode("element 2"),
+                encode("element 3"),
+                encode("element 4"),
+                encode("element 5"),
+                encode("element 6"),
+                encode("element 7"),
+                encode("element 8")));
 
     // ARRANGE
     BalancedRedisQueue queue = new BalancedRedisQueue("test", ImmutableList.of());
@@ -280,17 +282,17 @@ public class BalancedRedisQueueMockTest {
   @Test
   public void visitDequeueCheckVisitOfEachElement() throws Exception {
     // MOCK
-    when(redis.lrange(any(String.class), any(Long.class), any(Long.class)))
+    when(redis.lrange(any(byte[].class), any(Long.class), any(Long.class)))
         .thenReturn(
             Arrays.asList(
-                "element 1",
-                "element 2",
-                "element 3",
-                "element 4",
-                "element 5",
-                "element 6",
-                "element 7",
-                "element 8"));
+                encode("element 1"),
+                encode("element 2"),
+                encode("element 3"),
+                encode("element 4"),
+                encode("element 5"),
+                encode("element 6"),
+                encode("element 7"),
+                encode("element 8")));
 
     // ARRANGE
     BalancedRedisQueue queue = new BalancedRedisQueue("test", ImmutableList.of());
@@ -0,0 +1,71 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common.redis;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * @class PriorityBandsTest
+ * @brief tests A partition of execution priorities into bands.
+ * @details Each band is a separate list of a queue, and the lists are popped in band order.
+ */
+@RunWith(JUnit4.class)
+public class PriorityBandsTest {
+  // Function under test: band
+  // Reason for testing: priorities are placed in the first band whose limit is not exceeded
+  // Failure explanation: a priority is placed in the wrong band
+  @Test
+  public void bandPlacesPrioritiesByLimit() throws Exception {
+    // ARRANGE
+    PriorityBands bands = new PriorityBands(ImmutableList.of(-1, 0));
+
+    // ASSERT
+    assertThat(bands.size()).isEqualTo(3);
+    assertThat(bands.band(-5)).isEqualTo(0);
+    assertThat(bands.band(-1)).isEqualTo(0);
+    assertThat(bands.band(0)).isEqualTo(1);
+    assertThat(bands.band(1)).isEqualTo(2);
+    assertThat(bands.band(Integer.MAX_VALUE)).isEqualTo(2);
+  }
+
+  // Function under test: bandNames
+  // Reason for testing: the band of the default priority keeps the name of the queue
+  // Failure explanation: existing queue contents would not be dequeued with bands
+  @Test
+  public void bandNamesKeepNameForDefaultPriority() throws Exception {
+    // ARRANGE
+    PriorityBands bands = new PriorityBands(ImmutableList.of(-1, 0));
+
+    // ASSERT
+    assertThat(bands.bandNames("{06S}queue"))
+        .containsExactly("{06S}queue_band0", "{06S}queue", "{06S}queue_band2")
+        .inOrder();
+    assertThat(PriorityBands.SINGLE.bandNames("{06S}queue")).containsExactly("{06S}queue");
+  }
+
+  // Function under test: PriorityBands
+  // Reason for testing: limits out of order cannot describe bands
+  // Failure explanation: unordered limits were accepted
+  @Test(expected = IllegalArgumentException.class)
+  public void priorityBandsRejectsUnorderedLimits() throws Exception {
+    // ACT
+    new PriorityBands(ImmutableList.of(0, -1));
+  }
+}
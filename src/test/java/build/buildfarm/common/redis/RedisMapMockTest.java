@@ -15,10 +15,13 @@
 package build.buildfarm.common.redis;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static redis.clients.jedis.util.SafeEncoder.encode;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -57,7 +60,7 @@ public class RedisMapMockTest {
     map.insert(redis, "key", "value", 60);
 
     // ASSERT
-    verify(redis, times(1)).setex("test:key", 60, "value");
+    verify(redis, times(1)).setex(aryEq(encode("test:key")), eq(60), aryEq(encode("value")));
   }
 
   // Function under test: remove
@@ -84,7 +87,7 @@ public class RedisMapMockTest {
   public void getGet() throws Exception {
     // ARRANGE
     JedisCluster redis = mock(JedisCluster.class);
-    when(redis.get("test:key")).thenReturn("value");
+    when(redis.get(aryEq(encode("test:key")))).thenReturn(encode("value"));
     RedisMap map = new RedisMap("test");
 
     // ACT
@@ -92,7 +95,7 @@ public class RedisMapMockTest {
     String value = map.get(redis, "key");
 
     // ASSERT
-    verify(redis, times(1)).get("test:key");
+    verify(redis, times(1)).get(aryEq(encode("test:key")));
     assertThat(value).isEqualTo("value");
   }
 }
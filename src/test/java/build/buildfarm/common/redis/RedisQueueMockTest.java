@@ -15,12 +15,18 @@
 package build.buildfarm.common.redis;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.argThat;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static redis.clients.jedis.util.SafeEncoder.encode;
 
 import build.buildfarm.common.StringVisitor;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -28,9 +34,11 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.util.SafeEncoder;
 
 /**
  * @class RedisQueueMockTest
@@ -50,6 +58,10 @@ public class RedisQueueMockTest {
     MockitoAnnotations.initMocks(this);
   }
 
+  private static ArgumentMatcher<List<byte[]>> encodes(List<String> values) {
+    return list -> list != null && Lists.transform(list, SafeEncoder::encode).equals(values);
+  }
+
   // Function under test: redisQueue
   // Reason for testing: the queue can be constructed with a valid cluster instance and name
   // Failure explanation: the queue is throwing an exception upon construction
@@ -71,7 +83,7 @@ public class RedisQueueMockTest {
     queue.push(redis, "foo");
 
     // ASSERT
-    verify(redis, times(1)).lpush("test", "foo");
+    verify(redis, times(1)).lpush(aryEq(encode("test")), aryEq(encode("foo")));
   }
 
   // Function under test: push
@@ -87,8 +99,8 @@ public class RedisQueueMockTest {
     queue.push(redis, "bar");
 
     // ASSERT
-    verify(redis, times(1)).lpush("test", "foo");
-    verify(redis, times(1)).lpush("test", "bar");
+    verify(redis, times(1)).lpush(aryEq(encode("test")), aryEq(encode("foo")));
+    verify(redis, times(1)).lpush(aryEq(encode("test")), aryEq(encode("bar")));
   }
 
   // Function under test: push
@@ -104,7 +116,7 @@ public class RedisQueueMockTest {
     queue.push(redis, "foo");
 
     // ASSERT
-    verify(redis, times(2)).lpush("test", "foo");
+    verify(redis, times(2)).lpush(aryEq(encode("test")), aryEq(encode("foo")));
   }
 
   // Function under test: push
@@ -122,7 +134,7 @@ public class RedisQueueMockTest {
 
     // ASSERT
     for (int i = 0; i < 1000; ++i) {
-      verify(redis, times(1)).lpush("test", "foo" + i);
+      verify(redis, times(1)).lpush(aryEq(encode("test")), aryEq(encode("foo" + i)));
     }
   }
 
@@ -147,7 +159,7 @@ public class RedisQueueMockTest {
     queue.push(redis, "foo");
 
     // ASSERT
-    verify(redis, times(10)).lpush("test", "foo");
+    verify(redis, times(10)).lpush(aryEq(encode("test")), aryEq(encode("foo")));
   }
 
   // Function under test: removeFromDequeue
@@ -157,7 +169,7 @@ public class RedisQueueMockTest {
   @Test
   public void removeFromDequeueRemoveADequeueValue() throws Exception {
     // ARRANGE
-    when(redis.lrem("test_dequeue", -1, "foo")).thenReturn(1L);
+    when(redis.lrem(aryEq(encode("test_dequeue")), eq(-1L), aryEq(encode("foo")))).thenReturn(1L);
     RedisQueue queue = new RedisQueue("test");
 
     // ACT
@@ -165,7 +177,7 @@ public class RedisQueueMockTest {
 
     // ASSERT
     assertThat(wasRemoved).isTrue();
-    verify(redis, times(1)).lrem("test_dequeue", -1, "foo");
+    verify(redis, times(1)).lrem(aryEq(encode("test_dequeue")), eq(-1L), aryEq(encode("foo")));
   }
 
   // Function under test: dequeue
@@ -174,7 +186,8 @@ public class RedisQueueMockTest {
   @Test
   public void dequeueElementCanBeDequeuedWithTimeout() throws Exception {
     // ARRANGE
-    when(redis.brpoplpush("test", "test_dequeue", 1)).thenReturn("foo");
+    when(redis.brpoplpush(aryEq(encode("test")), aryEq(encode("test_dequeue")), eq(1)))
+        .thenReturn(encode("foo"));
     RedisQueue queue = new RedisQueue("test");
 
     // ACT
@@ -191,7 +204,8 @@ public class RedisQueueMockTest {
   @Test
   public void dequeueElementIsNotDequeuedIfTimeRunsOut() throws Exception {
     // ARRANGE
-    when(redis.brpoplpush("test", "test_dequeue", 1)).thenReturn(null);
+    when(redis.brpoplpush(aryEq(encode("test")), aryEq(encode("test_dequeue")), eq(1)))
+        .thenReturn(null);
     RedisQueue queue = new RedisQueue("test");
 
     // ACT
@@ -208,7 +222,8 @@ public class RedisQueueMockTest {
   @Test
   public void dequeueInterrupt() throws Exception {
     // ARRANGE
-    when(redis.brpoplpush("test", "test_dequeue", 1)).thenReturn(null);
+    when(redis.brpoplpush(aryEq(encode("test")), aryEq(encode("test_dequeue")), eq(1)))
+        .thenReturn(null);
     RedisQueue queue = new RedisQueue("test");
 
     // ACT
@@ -231,7 +246,8 @@ public class RedisQueueMockTest {
   @Test
   public void nonBlockingDequeueElementCanBeDequeued() throws Exception {
     // ARRANGE
-    when(redis.rpoplpush("test", "test_dequeue")).thenReturn("foo");
+    when(redis.rpoplpush(aryEq(encode("test")), aryEq(encode("test_dequeue"))))
+        .thenReturn(encode("foo"));
     RedisQueue queue = new RedisQueue("test");
 
     // ACT
@@ -242,6 +258,80 @@ public class RedisQueueMockTest {
     assertThat(val).isEqualTo("foo");
   }
 
+  // Function under test: push
+  // Reason for testing: values are pushed onto the list of the band of their priority
+  // Failure explanation: a value is pushed onto the wrong band
+  @Test
+  public void pushPushesOntoPriorityBand() throws Exception {
+    // ARRANGE
+    RedisQueue queue = new RedisQueue("test", new PriorityBands(ImmutableList.of(-1, 0)));
+
+    // ACT
+    queue.push(redis, "urgent", -1);
+    queue.push(redis, "default", 0);
+    queue.push(redis, "batch", 1);
+
+    // ASSERT
+    verify(redis, times(1)).lpush(aryEq(encode("test_band0")), aryEq(encode("urgent")));
+    verify(redis, times(1)).lpush(aryEq(encode("test")), aryEq(encode("default")));
+    verify(redis, times(1)).lpush(aryEq(encode("test_band2")), aryEq(encode("batch")));
+  }
+
+  // Function under test: nonBlockingDequeue
+  // Reason for testing: the most urgent band is dequeued first
+  // Failure explanation: a less urgent element was dequeued before a more urgent one
+  @Test
+  public void nonBlockingDequeuePopsBandsInOrder() throws Exception {
+    // ARRANGE
+    when(redis.rpoplpush(aryEq(encode("test")), aryEq(encode("test_dequeue"))))
+        .thenReturn(encode("default"));
+    when(redis.rpoplpush(aryEq(encode("test_band0")), aryEq(encode("test_dequeue"))))
+        .thenReturn(encode("urgent"));
+    RedisQueue queue = new RedisQueue("test", new PriorityBands(ImmutableList.of(-1, 0)));
+
+    // ACT
+    String val = queue.nonBlockingDequeue(redis);
+
+    // ASSERT
+    assertThat(val).isEqualTo("urgent");
+  }
+
+  // Function under test: nonBlockingDequeue
+  // Reason for testing: the tenants of a fair share queue are popped in turn
+  // Failure explanation: an ineligible tenant was popped, or an eligible tenant was skipped
+  @Test
+  public void nonBlockingDequeuePopsEligibleTenant() throws Exception {
+    // ARRANGE
+    when(redis.llen("test_tenants")).thenReturn(2L);
+    when(redis.rpoplpush("test_tenants", "test_tenants")).thenReturn("a", "b");
+    List<String> keys =
+        ImmutableList.of("test_tenant_b", "test_tenants", "test_tenant_count", "test_dequeue");
+    when(redis.evalsha(
+            any(byte[].class), argThat(encodes(keys)), argThat(encodes(ImmutableList.of("b")))))
+        .thenReturn(encode("foo"));
+    RedisQueue queue = new RedisQueue("test", PriorityBands.SINGLE, /* fairShare=*/ true);
+
+    // ACT
+    String val = queue.nonBlockingDequeue(redis, tenant -> !tenant.equals("a"));
+
+    // ASSERT
+    assertThat(val).isEqualTo("foo");
+    verify(redis, times(1)).rpoplpush(aryEq(encode("test")), aryEq(encode("test_dequeue")));
+    verify(redis, times(1)).evalsha(any(byte[].class), any(List.class), any(List.class));
+  }
+
+  // Function under test: nonBlockingDequeue
+  // Reason for testing: the eligibility of tenants changes with each element popped
+  // Failure explanation: a fair share queue was popped in a batch, ignoring tenant eligibility
+  @Test(expected = IllegalStateException.class)
+  public void nonBlockingDequeueBatchRejectsFairShare() throws Exception {
+    // ARRANGE
+    RedisQueue queue = new RedisQueue("test", PriorityBands.SINGLE, /* fairShare=*/ true);
+
+    // ACT
+    queue.nonBlockingDequeue(redis, /* count=*/ 2);
+  }
+
   // Function under test: getName
   // Reason for testing: the name can be received
   // Failure explanation: name does not match what it should
@@ -278,17 +368,17 @@ public class RedisQueueMockTest {
   @Test
   public void visitCheckVisitOfEachElement() throws Exception {
     // MOCK
-    when(redis.lrange(any(String.class), any(Long.class), any(Long.class)))
+    when(redis.lrange(any(byte[].class), any(Long.class), any(Long.class)))
         .thenReturn(
             Arrays.asList(
-                "element 1",
-                "element 2",
-                "element 3",
-                "element 4",
-                "element 5",
-                "element 6",
-                "element 7",
-                "element 8"));
+                encode("element 1"),
+                encode("element 2"),
+                encode("element 3"),
+                encode("element 4"),
+                encode("element 5"),
+                encode("element 6"),
+                encode("element 7"),
+                encode("element 8")));
 
     // ARRANGE
     RedisQueue queue = new RedisQueue("test");
@@ -329,17 +419,17 @@ public class RedisQueueMockTest {
   @Test
   public void visitDequeueCheckVisitOfEachElement() throws Exception {
     // MOCK
-    when(redis.lrange(any(String.class), any(Long.class), any(Long.class)))
+    when(redis.lrange(any(byte[].class), any(Long.class), any(Long.class)))
         .thenReturn(
             Arrays.asList(
-                "element 1",
-                "element 2",
-                "element 3",
-                "element 4",
-                "element 5",
-                "element 6",
-                "element 7",
-                "element 8"));
+                encode("element 1"),
+                encode("element 2"),
+                encode("element 3"),
+                encode("element 4"),
+                encode("element 5"),
+                encode("element 6"),
+                encode("element 7"),
+                encode("element 8")));
 
     // ARRANGE
     RedisQueue queue = new RedisQueue("test");
@@ -0,0 +1,130 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common.redis;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import build.buildfarm.v1test.ShardWorker;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+import java.util.Base64;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * @class RedisRecordsTest
+ * @brief tests the encoding of protobuf records stored in redis.
+ * @details Records written in either encoding are read in either.
+ */
+@RunWith(JUnit4.class)
+public class RedisRecordsTest {
+  private static final ShardWorker WORKER =
+      ShardWorker.newBuilder().setEndpoint("worker:8981").setExpireAt(1234).build();
+
+  // Function under test: print
+  // Reason for testing: binary records are distinguished from json by their prefix
+  // Failure explanation: a binary record is not prefixed with its version
+  @Test
+  public void binaryRecordsArePrefixed() throws Exception {
+    // ARRANGE
+    RedisRecords records = new RedisRecords(/* binary=*/ true, JsonFormat.printer());
+
+    // ACT
+    String record = records.print(WORKER);
+
+    // ASSERT
+    assertThat(record.charAt(0)).isEqualTo(RedisRecords.PROTOBUF_V2);
+  }
+
+  // Function under test: merge
+  // Reason for testing: records written in either encoding can be read
+  // Failure explanation: a record does not round trip through its encoding
+  @Test
+  public void recordsOfEitherEncodingAreMerged() throws Exception {
+    for (boolean binary : new boolean[] {false, true}) {
+      // ARRANGE
+      RedisRecords records = new RedisRecords(binary, JsonFormat.printer());
+      String record = records.print(WORKER);
+
+      // ACT
+      ShardWorker.Builder builder = ShardWorker.newBuilder();
+      RedisRecords.merge(record, builder);
+
+      // ASSERT
+      assertThat(builder.build()).isEqualTo(WORKER);
+    }
+  }
+
+  // Function under test: encode
+  // Reason for testing: binary records are stored as their bytes, without expansion
+  // Failure explanation: a binary record is expanded, or does not decode to itself
+  @Test
+  public void binaryRecordsAreEncodedAsTheirBytes() throws Exception {
+    // ARRANGE
+    RedisRecords records = new RedisRecords(/* binary=*/ true, JsonFormat.printer());
+    String record = records.print(WORKER);
+
+    // ACT
+    byte[] value = RedisRecords.encode(record);
+
+    // ASSERT
+    assertThat(value.length).isEqualTo(WORKER.toByteArray().length + 1);
+    assertThat(RedisRecords.decode(value)).isEqualTo(record);
+  }
+
+  // Function under test: encode
+  // Reason for testing: values other than binary records are stored as utf-8, as strings are
+  // Failure explanation: a json record is not stored as it was by the string commands
+  @Test
+  public void jsonRecordsAreEncodedAsUtf8() throws Exception {
+    // ARRANGE
+    String record = "{\"endpoint\": \"w\u00f6rker:8981\"}";
+
+    // ACT
+    byte[] value = RedisRecords.encode(record);
+
+    // ASSERT
+    assertThat(value).isEqualTo(record.getBytes(UTF_8));
+    assertThat(RedisRecords.decode(value)).isEqualTo(record);
+  }
+
+  // Function under test: merge
+  // Reason for testing: records written with the base64 binary encoding are still read
+  // Failure explanation: a base64 binary record is not read
+  @Test
+  public void base64RecordsAreMerged() throws Exception {
+    // ARRANGE
+    String record =
+        RedisRecords.PROTOBUF_V1 + Base64.getEncoder().encodeToString(WORKER.toByteArray());
+
+    // ACT
+    ShardWorker.Builder builder = ShardWorker.newBuilder();
+    RedisRecords.merge(record, builder);
+
+    // ASSERT
+    assertThat(builder.build()).isEqualTo(WORKER);
+  }
+
+  // Function under test: merge
+  // Reason for testing: a corrupt binary record is reported as an invalid protobuf
+  // Failure explanation: a corrupt record is not rejected as invalid
+  @Test(expected = InvalidProtocolBufferException.class)
+  public void invalidBinaryRecordIsRejected() throws Exception {
+    // ACT
+    RedisRecords.merge(RedisRecords.PROTOBUF_V1 + "not base64!", ShardWorker.newBuilder());
+  }
+}
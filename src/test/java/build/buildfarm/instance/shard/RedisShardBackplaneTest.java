@@ -16,11 +16,17 @@ package build.buildfarm.instance.shard;
 
 import static build.buildfarm.instance.shard.RedisShardBackplane.parseOperationChange;
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static redis.clients.jedis.util.SafeEncoder.encode;
 
 import build.bazel.remote.execution.v2.RequestMetadata;
 import build.buildfarm.v1test.ExecuteEntry;
@@ -28,10 +34,13 @@ import build.buildfarm.v1test.OperationChange;
 import build.buildfarm.v1test.QueueEntry;
 import build.buildfarm.v1test.RedisShardBackplaneConfig;
 import build.buildfarm.v1test.WorkerChange;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.longrunning.Operation;
 import com.google.protobuf.util.JsonFormat;
 import java.io.IOException;
+import java.util.List;
 import java.util.UUID;
 import java.util.function.Supplier;
 import org.junit.Before;
@@ -42,6 +51,7 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.util.SafeEncoder;
 
 @RunWith(JUnit4.class)
 public class RedisShardBackplaneTest {
@@ -63,8 +73,8 @@ public class RedisShardBackplaneTest {
             .build();
     JedisCluster jedisCluster = mock(JedisCluster.class);
     when(mockJedisClusterFactory.get()).thenReturn(jedisCluster);
-    when(jedisCluster.hgetAll(config.getWorkersHashName()))
-        .thenReturn(ImmutableMap.of("foo", "foo"));
+    when(jedisCluster.hgetAll(aryEq(encode(config.getWorkersHashName()))))
+        .thenReturn(ImmutableMap.of(encode("foo"), encode("foo")));
     when(jedisCluster.hdel(config.getWorkersHashName(), "foo")).thenReturn(1l);
     backplane =
         new RedisShardBackplane(
@@ -119,11 +129,13 @@ public class RedisShardBackplaneTest {
     verify(mockJedisClusterFactory, times(1)).get();
     verify(jedisCluster, times(1))
         .setex(
-            backplane.operationKey(opName),
-            config.getOperationExpire(),
-            RedisShardBackplane.operationPrinter.print(op));
+            aryEq(encode(backplane.operationKey(opName))),
+            eq(config.getOperationExpire()),
+            aryEq(encode(RedisShardBackplane.operationPrinter.print(op))));
     verify(jedisCluster, times(1))
-        .lpush(config.getPreQueuedOperationsListName(), JsonFormat.printer().print(executeEntry));
+        .lpush(
+            aryEq(encode(config.getPreQueuedOperationsListName())),
+            aryEq(encode(JsonFormat.printer().print(executeEntry))));
     verifyChangePublished(jedisCluster, opName);
   }
 
@@ -174,10 +186,91 @@ public class RedisShardBackplaneTest {
     verify(mockJedisClusterFactory, times(1)).get();
     verify(jedisCluster, times(1)).hdel(config.getDispatchedOperationsHashName(), opName);
     verify(jedisCluster, times(1))
-        .lpush(config.getQueuedOperationsListName(), JsonFormat.printer().print(queueEntry));
+        .lpush(
+            aryEq(encode(config.getQueuedOperationsListName())),
+            aryEq(encode(JsonFormat.printer().print(queueEntry))));
     verifyChangePublished(jedisCluster, opName);
   }
 
+  @Test
+  public void requeueDispatchedOperationWithScriptsMovesInOneRequest() throws IOException {
+    RedisShardBackplaneConfig config =
+        RedisShardBackplaneConfig.newBuilder()
+            .setDispatchedOperationsHashName("DispatchedOperations")
+            .setOperationChannelPrefix("OperationChannel")
+            .setQueuedOperationsListName("{hash}QueuedOperations")
+            .setDispatchScripts(true)
+            .build();
+    JedisCluster jedisCluster = mock(JedisCluster.class);
+    when(mockJedisClusterFactory.get()).thenReturn(jedisCluster);
+    when(jedisCluster.evalsha(any(byte[].class), anyList(), anyList())).thenReturn(1l);
+    backplane =
+        new RedisShardBackplane(
+            config, "requeue-operation-script-test", (o) -> o, (o) -> o, mockJedisClusterFactory);
+    backplane.start("startTime/test:0000");
+
+    final String opName = "op";
+    QueueEntry queueEntry =
+        QueueEntry.newBuilder()
+            .setExecuteEntry(ExecuteEntry.newBuilder().setOperationName(opName).build())
+            .build();
+    backplane.requeueDispatchedOperation(queueEntry);
+
+    // the queue is colocated with the dispatched operations
+    ArgumentCaptor<List<byte[]>> argsCaptor = ArgumentCaptor.forClass(List.class);
+    List<String> keys =
+        ImmutableList.of("DispatchedOperations", "{DispatchedOperations}QueuedOperations");
+    verify(jedisCluster, times(1))
+        .evalsha(
+            any(byte[].class),
+            argThat(list -> Lists.transform(list, SafeEncoder::encode).equals(keys)),
+            argsCaptor.capture());
+    List<String> args = Lists.transform(argsCaptor.getValue(), SafeEncoder::encode);
+    assertThat(args.get(0)).isEqualTo(opName);
+    assertThat(args.get(1)).isEqualTo(JsonFormat.printer().print(queueEntry));
+    assertThat(args.get(2)).isEqualTo(backplane.operationChannel(opName));
+    OperationChange opChange = parseOperationChange(args.get(3));
+    assertThat(opChange.getReset().getOperation().getName()).isEqualTo(opName);
+    verify(jedisCluster, never()).hdel(any(String.class), any(String.class));
+    verify(jedisCluster, never()).lpush(any(byte[].class), any(byte[].class));
+    verify(jedisCluster, never()).publish(any(String.class), any(String.class));
+  }
+
+  @Test
+  public void operationsQueuedWithoutScriptsAreMovedOnStart() throws IOException {
+    RedisShardBackplaneConfig config =
+        RedisShardBackplaneConfig.newBuilder()
+            .setDispatchedOperationsHashName("DispatchedOperations")
+            .setQueuedOperationsListName("{hash}QueuedOperations")
+            .setDispatchScripts(true)
+            .build();
+    QueueEntry queueEntry =
+        QueueEntry.newBuilder()
+            .setExecuteEntry(ExecuteEntry.newBuilder().setOperationName("op").build())
+            .build();
+    String queueEntryJson = JsonFormat.printer().print(queueEntry);
+    JedisCluster jedisCluster = mock(JedisCluster.class);
+    when(mockJedisClusterFactory.get()).thenReturn(jedisCluster);
+    when(jedisCluster.rpoplpush(
+            aryEq(encode("{hash}QueuedOperations")),
+            aryEq(encode("{hash}QueuedOperations_dequeue"))))
+        .thenReturn(encode(queueEntryJson), (byte[]) null);
+    backplane =
+        new RedisShardBackplane(
+            config, "drain-operation-queue-test", (o) -> o, (o) -> o, mockJedisClusterFactory);
+    backplane.start("startTime/test:0000");
+
+    // the entry is moved from the queue without scripts to the queue in the dispatched slot
+    verify(jedisCluster, times(1))
+        .lpush(
+            aryEq(encode("{DispatchedOperations}QueuedOperations")), aryEq(encode(queueEntryJson)));
+    verify(jedisCluster, times(1))
+        .lrem(
+            aryEq(encode("{hash}QueuedOperations_dequeue")),
+            eq(-1L),
+            aryEq(encode(queueEntryJson)));
+  }
+
   @Test
   public void completeOperationUndispatches() throws IOException {
     RedisShardBackplaneConfig config =
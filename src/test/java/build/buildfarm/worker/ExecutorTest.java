@@ -0,0 +1,57 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import build.buildfarm.v1test.ExecutionPolicy;
+import build.buildfarm.v1test.ExecutionWrapper;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ExecutorTest {
+  @Test
+  public void persistentWorkIsAllowedWithoutWrappers() {
+    ExecutionPolicy unwrapped = ExecutionPolicy.newBuilder().setName("unwrapped").build();
+    assertThat(
+            Executor.isPersistentWorkAllowed(
+                ImmutableList.of(unwrapped), /* limitArguments=*/ ImmutableList.of()))
+        .isTrue();
+  }
+
+  @Test
+  public void persistentWorkIsNotAllowedWithPolicyWrapper() {
+    ExecutionPolicy sandbox =
+        ExecutionPolicy.newBuilder()
+            .setName("sandbox")
+            .setWrapper(ExecutionWrapper.newBuilder().setPath("/usr/bin/sandbox"))
+            .build();
+    assertThat(
+            Executor.isPersistentWorkAllowed(
+                ImmutableList.of(sandbox), /* limitArguments=*/ ImmutableList.of()))
+        .isFalse();
+  }
+
+  @Test
+  public void persistentWorkIsNotAllowedWithLimitedExecution() {
+    assertThat(
+            Executor.isPersistentWorkAllowed(
+                ImmutableList.of(), ImmutableList.of("/app/build_buildfarm/as-nobody")))
+        .isFalse();
+  }
+}
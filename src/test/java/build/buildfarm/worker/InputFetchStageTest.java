@@ -28,6 +28,7 @@ import build.buildfarm.v1test.QueuedOperation;
 import com.google.common.collect.Lists;
 import io.grpc.Deadline;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
 import java.util.function.Predicate;
 import java.util.logging.Logger;
 import org.junit.Test;
@@ -100,6 +101,11 @@ public class InputFetchStageTest {
             return 1;
           }
 
+          @Override
+          public ThreadFactory getThreadFactory() {
+            return Thread::new;
+          }
+
           @Override
           public QueuedOperation getQueuedOperation(QueueEntry queueEntry) {
             assertThat(queueEntry).isEqualTo(badEntry);
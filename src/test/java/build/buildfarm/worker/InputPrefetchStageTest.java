@@ -0,0 +1,112 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import build.bazel.remote.execution.v2.Action;
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import build.bazel.remote.execution.v2.ExecutionStage;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.DigestUtil.HashFunction;
+import build.buildfarm.common.Poller;
+import build.buildfarm.v1test.ExecuteEntry;
+import build.buildfarm.v1test.QueueEntry;
+import build.buildfarm.v1test.QueuedOperation;
+import build.buildfarm.worker.InputFetchStageTest.PipelineSink;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import io.grpc.Deadline;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class InputPrefetchStageTest {
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(HashFunction.SHA256);
+
+  @Test
+  public void operationProceedsWhilePrefetching() throws Exception {
+    Poller poller = mock(Poller.class);
+    Digest inputRootDigest = DIGEST_UTIL.compute(Directory.getDefaultInstance());
+    QueueEntry queueEntry =
+        QueueEntry.newBuilder()
+            .setExecuteEntry(ExecuteEntry.newBuilder().setOperationName("prefetched"))
+            .build();
+    SettableFuture<Digest> prefetchedRootDigest = SettableFuture.create();
+    SettableFuture<Long> prefetch = SettableFuture.create();
+    QueuedOperation queuedOperation =
+        QueuedOperation.newBuilder()
+            .setAction(Action.newBuilder().setInputRootDigest(inputRootDigest))
+            .build();
+
+    WorkerContext workerContext =
+        new StubWorkerContext() {
+          @Override
+          public DigestUtil getDigestUtil() {
+            return DIGEST_UTIL;
+          }
+
+          @Override
+          public void resumePoller(
+              Poller poller,
+              String name,
+              QueueEntry queueEntry,
+              ExecutionStage.Value stage,
+              Runnable onFailure,
+              Deadline deadline) {}
+
+          @Override
+          public QueuedOperation getQueuedOperation(QueueEntry entry) {
+            assertThat(entry).isEqualTo(queueEntry);
+            return queuedOperation;
+          }
+
+          @Override
+          public ListenableFuture<Long> prefetchInputs(
+              Map<Digest, Directory> directoriesIndex, Digest inputRootDigest) {
+            prefetchedRootDigest.set(inputRootDigest);
+            return prefetch;
+          }
+        };
+
+    PipelineSink output = new PipelineSink((operationContext) -> true);
+    PipelineSink error = new PipelineSink((operationContext) -> true);
+    PipelineStage inputPrefetchStage =
+        new InputPrefetchStage(workerContext, output, error, /* width=*/ 2);
+    OperationContext operationContext =
+        OperationContext.newBuilder().setPoller(poller).setQueueEntry(queueEntry).build();
+    assertThat(inputPrefetchStage.claim(operationContext)).isTrue();
+    inputPrefetchStage.put(operationContext);
+    assertThat(prefetchedRootDigest.get(10, SECONDS)).isEqualTo(inputRootDigest);
+
+    // the prefetch remains incomplete as the operation is handed to the input fetch stage
+    inputPrefetchStage.run();
+    assertThat(prefetch.isDone()).isFalse();
+    verify(poller, times(1)).pause();
+    // the loaded queued operation is handed over with the operation
+    OperationContext fetchContext = Iterables.getOnlyElement(output.getOperationContexts());
+    assertThat(fetchContext.queueEntry).isEqualTo(queueEntry);
+    assertThat(fetchContext.queuedOperation).isEqualTo(queuedOperation);
+    assertThat(error.getOperationContexts()).isEmpty();
+  }
+}
@@ -110,8 +110,11 @@ public class ReportResultStageTest {
             .setPoller(mock(Poller.class))
             .build();
     when(context.putOperation(any(Operation.class), eq(reportedContext.action))).thenReturn(true);
+    when(context.getReportResultStageWidth()).thenReturn(1);
+    when(context.getThreadFactory()).thenReturn(Thread::new);
 
     PipelineStage reportResultStage = new ReportResultStage(context, output, /* error=*/ null);
+    assertThat(reportResultStage.claim(reportedContext)).isTrue();
     reportResultStage.put(reportedContext);
     reportResultStage.run();
     verify(context, times(1)).destroyExecDir(reportedContext.execDir);
@@ -161,7 +164,11 @@ public class ReportResultStageTest {
             eq(ImmutableList.of()),
             eq(ImmutableList.of()));
 
+    when(context.getReportResultStageWidth()).thenReturn(1);
+    when(context.getThreadFactory()).thenReturn(Thread::new);
+
     PipelineStage reportResultStage = new ReportResultStage(context, output, /* error=*/ null);
+    assertThat(reportResultStage.claim(erroringContext)).isTrue();
     reportResultStage.put(erroringContext);
     reportResultStage.run();
     verify(context, times(1)).destroyExecDir(erroringContext.execDir);
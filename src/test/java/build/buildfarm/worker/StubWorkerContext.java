@@ -27,15 +27,19 @@ import build.buildfarm.common.Write;
 import build.buildfarm.instance.MatchListener;
 import build.buildfarm.v1test.CASInsertionPolicy;
 import build.buildfarm.v1test.ExecutionPolicy;
+import build.buildfarm.v1test.ExecutionResourceUsage;
 import build.buildfarm.v1test.QueueEntry;
 import build.buildfarm.v1test.QueuedOperation;
+import build.buildfarm.worker.persistent.PersistentWorkerPool;
 import build.buildfarm.worker.resources.ResourceLimits;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.longrunning.Operation;
 import com.google.protobuf.Duration;
 import io.grpc.Deadline;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 
 class StubWorkerContext implements WorkerContext {
   @Override
@@ -64,6 +68,16 @@ class StubWorkerContext implements WorkerContext {
     throw new UnsupportedOperationException();
   }
 
+  @Override
+  public void match(MatchListener listener, int maxEntries) throws InterruptedException {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public int getMatchBatchSize() {
+    throw new UnsupportedOperationException();
+  }
+
   @Override
   public CASInsertionPolicy getFileCasPolicy() {
     throw new UnsupportedOperationException();
@@ -99,6 +113,26 @@ class StubWorkerContext implements WorkerContext {
     throw new UnsupportedOperationException();
   }
 
+  @Override
+  public int getReportResultStageWidth() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public ThreadFactory getThreadFactory() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public ExecutionResourceUsage getResourceUsage(String operationName) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public PersistentWorkerPool getPersistentWorkerPool() {
+    throw new UnsupportedOperationException();
+  }
+
   @Override
   public boolean hasDefaultActionTimeout() {
     throw new UnsupportedOperationException();
@@ -143,6 +177,12 @@ class StubWorkerContext implements WorkerContext {
     throw new UnsupportedOperationException();
   }
 
+  @Override
+  public ListenableFuture<Long> prefetchInputs(
+      Map<Digest, Directory> directoriesIndex, Digest inputRootDigest) {
+    throw new UnsupportedOperationException();
+  }
+
   @Override
   public void destroyExecDir(Path execDir) {
     throw new UnsupportedOperationException();
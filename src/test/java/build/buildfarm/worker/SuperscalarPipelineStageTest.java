@@ -112,6 +112,24 @@ public class SuperscalarPipelineStageTest {
     }
   }
 
+  @Test
+  public void tryClaimFailsWithoutCapacity() throws InterruptedException {
+    AbstractSuperscalarPipelineStage stage =
+        new AbstractSuperscalarPipelineStage("try-claimed", /* output=*/ null, /* width=*/ 3) {
+          @Override
+          protected int claimsRequired(OperationContext operationContext) {
+            return 2;
+          }
+        };
+
+    assertThat(stage.tryClaim(/* operationContext=*/ null)).isTrue();
+    assertThat(stage.tryClaim(/* operationContext=*/ null)).isFalse();
+    stage.release();
+    stage.release();
+    assertThat(stage.isClaimed()).isFalse();
+    assertThat(stage.tryClaim(/* operationContext=*/ null)).isTrue();
+  }
+
   @Test
   public void takeReleasesQueueClaims() throws InterruptedException {
     OperationContext context =
@@ -0,0 +1,97 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.cgroup;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.Iterables;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ControllerTest {
+  private Path root;
+  private Path executions;
+  private Controller controller;
+
+  @Before
+  public void setUp() throws Exception {
+    root = Iterables.getFirst(Jimfs.newFileSystem(Configuration.unix()).getRootDirectories(), null);
+    Files.write(root.resolve("cgroup.controllers"), "cpu io memory\n".getBytes(UTF_8));
+    executions = Files.createDirectory(root.resolve("executions"));
+    controller = Group.newRoot(root).getChild("executions").getCpu();
+  }
+
+  @Test
+  public void pressureTotalsAreRead() throws Exception {
+    Files.write(
+        executions.resolve("cpu.pressure"),
+        ("some avg10=1.50 avg60=0.75 avg300=0.20 total=123456\n"
+                + "full avg10=0.00 avg60=0.00 avg300=0.00 total=7890\n")
+            .getBytes(UTF_8));
+
+    Pressure pressure = controller.getPressure();
+
+    assertThat(pressure.someMicros).isEqualTo(123456);
+    assertThat(pressure.fullMicros).isEqualTo(7890);
+  }
+
+  @Test
+  public void pressureWithoutFullIsZero() throws Exception {
+    Files.write(
+        executions.resolve("cpu.pressure"),
+        "some avg10=0.00 avg60=0.00 avg300=0.00 total=42\n".getBytes(UTF_8));
+
+    Pressure pressure = controller.getPressure();
+
+    assertThat(pressure.someMicros).isEqualTo(42);
+    assertThat(pressure.fullMicros).isEqualTo(0);
+  }
+
+  @Test
+  public void pressureIsNullWhenUnavailable() throws Exception {
+    assertThat(controller.getPressure()).isNull();
+  }
+
+  @Test
+  public void maxIsReadAsUnlimited() throws Exception {
+    Files.write(executions.resolve("pids.max"), "max\n".getBytes(UTF_8));
+
+    assertThat(controller.readLong("pids.max")).isEqualTo(Long.MAX_VALUE);
+  }
+
+  @Test(expected = NumberFormatException.class)
+  public void integersMustEndWithNewline() throws Exception {
+    Files.write(executions.resolve("cpu.weight"), "100".getBytes(UTF_8));
+
+    controller.readInt("cpu.weight");
+  }
+
+  @Test
+  public void keyedLongsSkipMalformedLines() throws Exception {
+    Files.write(
+        executions.resolve("memory.events"), "low 0\nhigh 3\n\noom_kill 1\n".getBytes(UTF_8));
+
+    assertThat(controller.readKeyedLongs("memory.events"))
+        .containsExactly("low", 0L, "high", 3L, "oom_kill", 1L);
+  }
+}
@@ -0,0 +1,164 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.cgroup;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CpuTest {
+  private Path root;
+
+  @Before
+  public void setUp() throws Exception {
+    root = Iterables.getFirst(Jimfs.newFileSystem(Configuration.unix()).getRootDirectories(), null);
+  }
+
+  private Group unifiedGroup() throws Exception {
+    Files.write(root.resolve("cgroup.controllers"), "cpu io memory\n".getBytes(UTF_8));
+    Files.write(root.resolve("cgroup.subtree_control"), new byte[0]);
+    Files.createDirectory(root.resolve("executions"));
+    return Group.newRoot(root).getChild("executions");
+  }
+
+  private String read(Path path) throws Exception {
+    return new String(Files.readAllBytes(path), UTF_8);
+  }
+
+  @Test
+  public void sharesMapOntoWeightRange() {
+    assertThat(Cpu.sharesToWeight(2)).isEqualTo(1);
+    assertThat(Cpu.sharesToWeight(1024)).isEqualTo(39);
+    assertThat(Cpu.sharesToWeight(262144)).isEqualTo(10000);
+    // shares below the minimum are clamped
+    assertThat(Cpu.sharesToWeight(0)).isEqualTo(1);
+  }
+
+  @Test
+  public void weightMapsOntoSharesRange() {
+    assertThat(Cpu.weightToShares(1)).isEqualTo(2);
+    assertThat(Cpu.weightToShares(100)).isEqualTo(2597);
+    assertThat(Cpu.weightToShares(10000)).isEqualTo(262144);
+  }
+
+  @Test
+  public void sharesRoundTripWithinWeightGranularity() {
+    for (int shares = 2; shares <= 262144; shares += 997) {
+      int roundTripped = Cpu.weightToShares(Cpu.sharesToWeight(shares));
+      assertThat(roundTripped).isAtMost(shares);
+      assertThat(shares - roundTripped).isAtMost(262142 / 9999 + 1);
+    }
+  }
+
+  @Test
+  public void unifiedSharesAreWrittenAsWeight() throws Exception {
+    Cpu cpu = unifiedGroup().getCpu();
+
+    cpu.setShares(1024);
+
+    assertThat(read(root.resolve("cgroup.subtree_control"))).isEqualTo("+cpu");
+    assertThat(read(root.resolve("executions/cpu.weight"))).isEqualTo("39\n");
+    assertThat(cpu.getShares()).isEqualTo(Cpu.weightToShares(39));
+  }
+
+  @Test
+  public void unifiedRootHasDefaults() throws Exception {
+    unifiedGroup();
+    Cpu cpu = Group.newRoot(root).getCpu();
+
+    assertThat(cpu.getShares()).isEqualTo(1024);
+    assertThat(cpu.getCFSPeriod()).isEqualTo(100000);
+  }
+
+  @Test
+  public void unifiedQuotaRetainsPeriod() throws Exception {
+    Cpu cpu = unifiedGroup().getCpu();
+    Path cpuMax = root.resolve("executions/cpu.max");
+    Files.write(cpuMax, "max 100000\n".getBytes(UTF_8));
+
+    assertThat(cpu.getCFSPeriod()).isEqualTo(100000);
+
+    cpu.setCFSQuota(50000);
+    assertThat(read(cpuMax)).isEqualTo("50000\n");
+
+    Files.write(cpuMax, "50000 100000\n".getBytes(UTF_8));
+    cpu.setCFSPeriod(200000);
+    assertThat(read(cpuMax)).isEqualTo("50000 200000\n");
+    assertThat(cpu.getCFSPeriod()).isEqualTo(200000);
+  }
+
+  @Test
+  public void unifiedUnlimitedQuotaRetainsMax() throws Exception {
+    Cpu cpu = unifiedGroup().getCpu();
+    Path cpuMax = root.resolve("executions/cpu.max");
+    Files.write(cpuMax, "max 100000\n".getBytes(UTF_8));
+
+    cpu.setCFSPeriod(50000);
+
+    assertThat(read(cpuMax)).isEqualTo("max 50000\n");
+  }
+
+  @Test
+  public void legacySharesAndPeriodUseCfsFiles() throws Exception {
+    Files.createDirectories(root.resolve("cpu/executions"));
+    Cpu cpu = Group.newRoot(root).getChild("executions").getCpu();
+
+    cpu.setShares(512);
+    cpu.setCFSPeriod(100000);
+    cpu.setCFSQuota(200000);
+
+    assertThat(read(root.resolve("cpu/executions/cpu.shares"))).isEqualTo("512\n");
+    assertThat(read(root.resolve("cpu/executions/cpu.cfs_period_us"))).isEqualTo("100000\n");
+    assertThat(read(root.resolve("cpu/executions/cpu.cfs_quota_us"))).isEqualTo("200000\n");
+    assertThat(cpu.getShares()).isEqualTo(512);
+    assertThat(cpu.getCFSPeriod()).isEqualTo(100000);
+  }
+
+  @Test
+  public void statIsReadByKey() throws Exception {
+    Cpu cpu = unifiedGroup().getCpu();
+    Files.write(
+        root.resolve("executions/cpu.stat"),
+        ("usage_usec 3000\n"
+                + "user_usec 2000\n"
+                + "system_usec 1000\n"
+                + "nr_periods 4\n"
+                + "nr_throttled 1\n"
+                + "throttled_usec 500\n")
+            .getBytes(UTF_8));
+
+    assertThat(cpu.getStat())
+        .isEqualTo(
+            ImmutableMap.builder()
+                .put("usage_usec", 3000L)
+                .put("user_usec", 2000L)
+                .put("system_usec", 1000L)
+                .put("nr_periods", 4L)
+                .put("nr_throttled", 1L)
+                .put("throttled_usec", 500L)
+                .build());
+  }
+}
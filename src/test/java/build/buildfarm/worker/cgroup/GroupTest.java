@@ -0,0 +1,105 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.cgroup;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.Iterables;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class GroupTest {
+  private Path root;
+
+  @Before
+  public void setUp() throws Exception {
+    root = Iterables.getFirst(Jimfs.newFileSystem(Configuration.unix()).getRootDirectories(), null);
+  }
+
+  @Test
+  public void unifiedGroupsShareOnePathForAllControllers() throws Exception {
+    Files.write(root.resolve("cgroup.controllers"), "cpu io memory\n".getBytes(UTF_8));
+    Group group = Group.newRoot(root).getChild("executions").getChild("operation");
+
+    assertThat(group.hasUnifiedHierarchy()).isTrue();
+    assertThat(group.getHierarchy()).isEqualTo("executions/operation");
+    assertThat(group.getPath("cpu").equals(root.resolve("executions/operation"))).isTrue();
+    assertThat(group.getPath("memory").equals(root.resolve("executions/operation"))).isTrue();
+  }
+
+  @Test
+  public void legacyGroupsHaveAPathPerController() throws Exception {
+    Group group = Group.newRoot(root).getChild("executions").getChild("operation");
+
+    assertThat(group.hasUnifiedHierarchy()).isFalse();
+    assertThat(group.getPath("cpu").equals(root.resolve("cpu/executions/operation"))).isTrue();
+    assertThat(group.getPath("memory").equals(root.resolve("memory/executions/operation")))
+        .isTrue();
+  }
+
+  @Test
+  public void unifiedCreateEnablesControllerForEachParent() throws Exception {
+    Files.write(root.resolve("cgroup.controllers"), "cpu io memory\n".getBytes(UTF_8));
+    Files.write(root.resolve("cgroup.subtree_control"), "memory\n".getBytes(UTF_8));
+    Files.createDirectory(root.resolve("executions"));
+    Files.write(root.resolve("executions/cgroup.subtree_control"), new byte[0]);
+    Group executions = Group.newRoot(root).getChild("executions");
+
+    executions.getChild("operation").create("cpu");
+
+    assertThat(new String(Files.readAllBytes(root.resolve("cgroup.subtree_control")), UTF_8))
+        .isEqualTo("+cpu");
+    assertThat(
+            new String(
+                Files.readAllBytes(root.resolve("executions/cgroup.subtree_control")), UTF_8))
+        .isEqualTo("+cpu");
+    assertThat(Files.isDirectory(root.resolve("executions/operation"))).isTrue();
+  }
+
+  @Test
+  public void unifiedCreateLeavesEnabledControllers() throws Exception {
+    Files.write(root.resolve("cgroup.controllers"), "cpu io memory\n".getBytes(UTF_8));
+    Files.write(root.resolve("cgroup.subtree_control"), "cpu memory\n".getBytes(UTF_8));
+    Group executions = Group.newRoot(root).getChild("executions");
+
+    executions.create("memory");
+
+    assertThat(new String(Files.readAllBytes(root.resolve("cgroup.subtree_control")), UTF_8))
+        .isEqualTo("cpu memory\n");
+    assertThat(Files.isDirectory(root.resolve("executions"))).isTrue();
+  }
+
+  @Test
+  public void procsAreCountedFromCgroupProcs() throws Exception {
+    Files.write(root.resolve("cgroup.controllers"), "cpu io memory\n".getBytes(UTF_8));
+    Group executions = Group.newRoot(root).getChild("executions");
+
+    // a nonexistent group has no processes
+    assertThat(executions.isEmpty("cpu")).isTrue();
+
+    Files.createDirectory(root.resolve("executions"));
+    Files.write(root.resolve("executions/cgroup.procs"), "12\n34\n".getBytes(UTF_8));
+    assertThat(executions.getProcCount("cpu")).isEqualTo(2);
+    assertThat(executions.isEmpty("cpu")).isFalse();
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.cgroup;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class IoTest {
+  private Path root;
+
+  @Before
+  public void setUp() throws Exception {
+    root = Iterables.getFirst(Jimfs.newFileSystem(Configuration.unix()).getRootDirectories(), null);
+  }
+
+  @Test
+  public void unifiedStatIsSummedOverDevices() throws Exception {
+    Files.write(root.resolve("cgroup.controllers"), "cpu io memory\n".getBytes(UTF_8));
+    Files.createDirectory(root.resolve("executions"));
+    Files.write(
+        root.resolve("executions/io.stat"),
+        ("8:16 rbytes=1459200 wbytes=314773504 rios=192 wios=353 dbytes=0 dios=0\n"
+                + "8:0 rbytes=800 wbytes=496 rios=8 wios=7 dbytes=0 dios=0\n")
+            .getBytes(UTF_8));
+    Io io = Group.newRoot(root).getChild("executions").getIo();
+
+    assertThat(io.getName()).isEqualTo("io");
+    assertThat(io.getStat())
+        .isEqualTo(
+            ImmutableMap.builder()
+                .put("rbytes", 1460000L)
+                .put("wbytes", 314774000L)
+                .put("rios", 200L)
+                .put("wios", 360L)
+                .put("dbytes", 0L)
+                .put("dios", 0L)
+                .build());
+  }
+
+  @Test
+  public void unifiedStatIsEmptyWhenUnavailable() throws Exception {
+    Files.write(root.resolve("cgroup.controllers"), "cpu io memory\n".getBytes(UTF_8));
+    Files.createDirectory(root.resolve("executions"));
+    Io io = Group.newRoot(root).getChild("executions").getIo();
+
+    assertThat(io.getStat()).isEmpty();
+  }
+
+  @Test
+  public void legacyStatIsEmpty() throws Exception {
+    Files.createDirectories(root.resolve("blkio/executions"));
+    Io io = Group.newRoot(root).getChild("executions").getIo();
+
+    assertThat(io.getName()).isEqualTo("blkio");
+    assertThat(io.getStat()).isEmpty();
+  }
+}
@@ -0,0 +1,116 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.cgroup;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.Iterables;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MemTest {
+  private static final long GIB = 1L << 30;
+
+  private Path root;
+
+  @Before
+  public void setUp() throws Exception {
+    root = Iterables.getFirst(Jimfs.newFileSystem(Configuration.unix()).getRootDirectories(), null);
+  }
+
+  private Mem unifiedMem() throws Exception {
+    Files.write(root.resolve("cgroup.controllers"), "cpu io memory\n".getBytes(UTF_8));
+    Files.write(root.resolve("cgroup.subtree_control"), new byte[0]);
+    Files.createDirectory(root.resolve("executions"));
+    return Group.newRoot(root).getChild("executions").getMem();
+  }
+
+  private String read(Path path) throws Exception {
+    return new String(Files.readAllBytes(path), UTF_8);
+  }
+
+  @Test
+  public void unifiedMemorySwapLimitIsWrittenAsSwapMax() throws Exception {
+    Mem mem = unifiedMem();
+
+    mem.setMemoryLimit(GIB);
+    mem.setMemorySwapLimit(3 * GIB);
+
+    assertThat(read(root.resolve("cgroup.subtree_control"))).isEqualTo("+memory");
+    assertThat(read(root.resolve("executions/memory.max"))).isEqualTo(GIB + "\n");
+    assertThat(read(root.resolve("executions/memory.swap.max"))).isEqualTo(2 * GIB + "\n");
+    assertThat(mem.getMemoryLimit()).isEqualTo(GIB);
+    assertThat(mem.getMemorySwapLimit()).isEqualTo(3 * GIB);
+  }
+
+  @Test
+  public void unifiedMemorySwapLimitBelowMemoryLimitDisablesSwap() throws Exception {
+    Mem mem = unifiedMem();
+
+    mem.setMemoryLimit(2 * GIB);
+    mem.setMemorySwapLimit(GIB);
+
+    assertThat(read(root.resolve("executions/memory.swap.max"))).isEqualTo("0\n");
+    assertThat(mem.getMemorySwapLimit()).isEqualTo(2 * GIB);
+  }
+
+  @Test
+  public void unifiedUnlimitedMemoryOrSwapIsUnlimited() throws Exception {
+    Mem mem = unifiedMem();
+    Path memoryMax = root.resolve("executions/memory.max");
+    Path swapMax = root.resolve("executions/memory.swap.max");
+
+    Files.write(memoryMax, "max\n".getBytes(UTF_8));
+    Files.write(swapMax, "0\n".getBytes(UTF_8));
+    assertThat(mem.getMemoryLimit()).isEqualTo(Long.MAX_VALUE);
+    assertThat(mem.getMemorySwapLimit()).isEqualTo(Long.MAX_VALUE);
+
+    Files.write(memoryMax, (GIB + "\n").getBytes(UTF_8));
+    Files.write(swapMax, "max\n".getBytes(UTF_8));
+    assertThat(mem.getMemorySwapLimit()).isEqualTo(Long.MAX_VALUE);
+  }
+
+  @Test
+  public void legacyMemorySwapLimitIsWrittenAsMemsw() throws Exception {
+    Files.createDirectories(root.resolve("memory/executions"));
+    Mem mem = Group.newRoot(root).getChild("executions").getMem();
+
+    mem.setMemoryLimit(GIB);
+    mem.setMemorySwapLimit(3 * GIB);
+
+    assertThat(read(root.resolve("memory/executions/memory.limit_in_bytes"))).isEqualTo(GIB + "\n");
+    assertThat(read(root.resolve("memory/executions/memory.memsw.limit_in_bytes")))
+        .isEqualTo(3 * GIB + "\n");
+    assertThat(mem.getMemorySwapLimit()).isEqualTo(3 * GIB);
+  }
+
+  @Test
+  public void peakUsageIsZeroWhenUnavailable() throws Exception {
+    Mem mem = unifiedMem();
+
+    assertThat(mem.getPeakUsage()).isEqualTo(0);
+
+    Files.write(root.resolve("executions/memory.peak"), "4096\n".getBytes(UTF_8));
+    assertThat(mem.getPeakUsage()).isEqualTo(4096);
+  }
+}
@@ -0,0 +1,122 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.persistent;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import build.bazel.remote.execution.v2.Command;
+import build.bazel.remote.execution.v2.Platform;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PersistentWorkTest {
+  private Path execDir;
+
+  @Before
+  public void setUp() throws Exception {
+    Path root =
+        Iterables.getFirst(Jimfs.newFileSystem(Configuration.unix()).getRootDirectories(), null);
+    execDir = Files.createDirectories(root.resolve("exec"));
+    Files.write(execDir.resolve("tool"), new byte[] {1, 2, 3});
+    Files.write(execDir.resolve("args.params"), ImmutableList.of("--output", "out.jar", "in.java"));
+  }
+
+  private static Command.Builder workerCommand(String... arguments) {
+    return Command.newBuilder()
+        .addAllArguments(ImmutableList.copyOf(arguments))
+        .setPlatform(
+            Platform.newBuilder()
+                .addProperties(
+                    Platform.Property.newBuilder().setName("supports-workers").setValue("1")));
+  }
+
+  @Test
+  public void flagfileContentsAreRequestArguments() throws Exception {
+    PersistentWork work =
+        PersistentWork.parse(workerCommand("tool", "--startup", "@args.params").build(), execDir);
+
+    assertThat(work).isNotNull();
+    assertThat(work.getKey().getArguments())
+        .containsExactly("tool", "--startup", PersistentWork.PERSISTENT_WORKER_FLAG)
+        .inOrder();
+    assertThat(work.getRequestArguments())
+        .containsExactly("--output", "out.jar", "in.java")
+        .inOrder();
+    assertThat(work.getKey().isJson()).isFalse();
+  }
+
+  @Test
+  public void commandsWithoutWorkerSupportAreProcesses() throws Exception {
+    Command command =
+        Command.newBuilder().addArguments("tool").addArguments("@args.params").build();
+
+    assertThat(PersistentWork.parse(command, execDir)).isNull();
+    assertThat(PersistentWork.isRequested(command)).isFalse();
+  }
+
+  @Test
+  public void commandsWithWorkerSupportAreRequested() {
+    assertThat(PersistentWork.isRequested(workerCommand("tool", "in.java").build())).isTrue();
+    assertThat(
+            PersistentWork.isRequested(
+                workerCommand("tool", "@args.params").setWorkingDirectory("subdir").build()))
+        .isFalse();
+  }
+
+  @Test
+  public void commandsWithoutFlagfilesAreProcesses() throws Exception {
+    assertThat(PersistentWork.parse(workerCommand("tool", "in.java").build(), execDir)).isNull();
+  }
+
+  @Test
+  public void commandsWithWorkingDirectoriesAreProcesses() throws Exception {
+    Command command = workerCommand("tool", "@args.params").setWorkingDirectory("subdir").build();
+
+    assertThat(PersistentWork.parse(command, execDir)).isNull();
+  }
+
+  @Test
+  public void keyIdentifiesToolFiles() throws Exception {
+    Command command = workerCommand("tool", "@args.params").build();
+    WorkerKey key = PersistentWork.parse(command, execDir).getKey();
+
+    assertThat(PersistentWork.parse(command, execDir).getKey()).isEqualTo(key);
+
+    // a changed tool is a new file in a new exec dir
+    Files.delete(execDir.resolve("tool"));
+    Files.write(execDir.resolve("tool"), new byte[] {4, 5, 6});
+    assertThat(PersistentWork.parse(command, execDir).getKey()).isNotEqualTo(key);
+  }
+
+  @Test
+  public void jsonProtocolIsSelectedByProperty() throws Exception {
+    Command.Builder command = workerCommand("tool", "--flagfile=args.params");
+    command
+        .getPlatformBuilder()
+        .addProperties(
+            Platform.Property.newBuilder().setName("requires-worker-protocol").setValue("json"));
+
+    assertThat(PersistentWork.parse(command.build(), execDir).getKey().isJson()).isTrue();
+  }
+}
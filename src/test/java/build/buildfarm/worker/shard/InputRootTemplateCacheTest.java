@@ -0,0 +1,158 @@
+// Copyright 2021 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.cas.cfc.CASFileCache;
+import build.buildfarm.common.io.Directories;
+import build.buildfarm.common.io.NativeDirectories;
+import build.buildfarm.worker.shard.InputRootTemplateCache.Template;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class InputRootTemplateCacheTest {
+  private Path root;
+  private CASFileCache fileCache;
+
+  @Before
+  public void setUp() throws Exception {
+    root =
+        Iterables.getFirst(
+            Jimfs.newFileSystem(
+                    Configuration.unix()
+                        .toBuilder()
+                        .setAttributeViews("basic", "owner", "posix", "unix")
+                        .build())
+                .getRootDirectories(),
+            null);
+    fileCache = mock(CASFileCache.class);
+  }
+
+  private Path createExecDir(String name) throws Exception {
+    Path execDir = root.resolve(name);
+    Files.createDirectories(execDir.resolve("subdir"));
+    Files.write(execDir.resolve("subdir").resolve("input"), new byte[] {1, 2, 3});
+    Files.createFile(execDir.resolve("empty"));
+    return execDir;
+  }
+
+  @Test
+  public void templateIsCreatedForRepeatedInputRoot() throws Exception {
+    InputRootTemplateCache templateCache =
+        new InputRootTemplateCache(
+            root.resolve("templates"), fileCache, /* maxTemplates=*/ 1, /* nativeClone=*/ false);
+    templateCache.start();
+
+    Iterable<String> inputFiles = ImmutableList.of("input-key");
+    Iterable<Digest> inputDirectories = ImmutableList.of();
+    assertThat(templateCache.create("root", createExecDir("first"), inputFiles, inputDirectories))
+        .isNull();
+    assertThat(templateCache.contains("root")).isFalse();
+
+    Template template =
+        templateCache.create("root", createExecDir("second"), inputFiles, inputDirectories);
+    assertThat(template).isNotNull();
+    assertThat(templateCache.contains("root")).isTrue();
+    assertThat(templateCache.acquire("root")).isSameInstanceAs(template);
+
+    Path clone = root.resolve("clone");
+    templateCache.clone(template, clone);
+    Path input = clone.resolve("subdir").resolve("input");
+    assertThat(Files.isSameFile(input, template.getPath().resolve("subdir").resolve("input")))
+        .isTrue();
+    assertThat(Files.size(clone.resolve("empty"))).isEqualTo(0);
+    // the clone is writable, unlike its template
+    Files.createFile(clone.resolve("subdir").resolve("output"));
+  }
+
+  @Test
+  public void nativeCloneLinksTemplateFiles() throws Exception {
+    assumeTrue(NativeDirectories.isSupported());
+    root = Files.createTempDirectory("input-root-template-cache-test");
+    try {
+      InputRootTemplateCache templateCache =
+          new InputRootTemplateCache(
+              root.resolve("templates"), fileCache, /* maxTemplates=*/ 1, /* nativeClone=*/ true);
+      templateCache.start();
+
+      Iterable<String> inputFiles = ImmutableList.of("input-key");
+      Iterable<Digest> inputDirectories = ImmutableList.of();
+      templateCache.create("root", createExecDir("first"), inputFiles, inputDirectories);
+      Path execDir = createExecDir("second");
+      Files.createSymbolicLink(execDir.resolve("subdir").resolve("symlink"), Paths.get("input"));
+      Template template = templateCache.create("root", execDir, inputFiles, inputDirectories);
+      assertThat(template).isNotNull();
+
+      Path clone = root.resolve("clone");
+      templateCache.clone(template, clone);
+      Path subdir = clone.resolve("subdir");
+      Path templateInput = template.getPath().resolve("subdir").resolve("input");
+      assertThat(Files.isSameFile(subdir.resolve("input"), templateInput)).isTrue();
+      assertThat(Files.size(clone.resolve("empty"))).isEqualTo(0);
+      assertThat(Files.isSameFile(clone.resolve("empty"), template.getPath().resolve("empty")))
+          .isFalse();
+      assertThat(Files.readSymbolicLink(subdir.resolve("symlink")).toString()).isEqualTo("input");
+      // the clone is writable, unlike its template
+      Files.createFile(subdir.resolve("output"));
+    } finally {
+      Directories.remove(root);
+    }
+  }
+
+  @Test
+  public void leasedTemplatesAreNotEvicted() throws Exception {
+    InputRootTemplateCache templateCache =
+        new InputRootTemplateCache(
+            root.resolve("templates"), fileCache, /* maxTemplates=*/ 1, /* nativeClone=*/ false);
+    templateCache.start();
+
+    Iterable<String> inputFiles = ImmutableList.of("input-key");
+    Iterable<Digest> inputDirectories = ImmutableList.of();
+    templateCache.create("a", createExecDir("a0"), inputFiles, inputDirectories);
+    Template a = templateCache.create("a", createExecDir("a1"), inputFiles, inputDirectories);
+    templateCache.create("b", createExecDir("b0"), inputFiles, inputDirectories);
+    Template b = templateCache.create("b", createExecDir("b1"), inputFiles, inputDirectories);
+
+    // both templates remain leased to the exec dirs they were created from
+    assertThat(templateCache.contains("a")).isTrue();
+    assertThat(templateCache.contains("b")).isTrue();
+    verify(fileCache, never()).decrementReferences(any(Iterable.class), any(Iterable.class));
+
+    templateCache.release(a);
+    assertThat(templateCache.contains("a")).isFalse();
+    assertThat(Files.exists(a.getPath())).isFalse();
+    verify(fileCache).decrementReferences(inputFiles, inputDirectories);
+
+    templateCache.release(b);
+    assertThat(templateCache.contains("b")).isTrue();
+  }
+}
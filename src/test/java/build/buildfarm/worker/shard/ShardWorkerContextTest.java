@@ -14,8 +14,10 @@
 
 package build.buildfarm.worker.shard;
 
+import static com.google.common.truth.Truth.assertThat;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -23,8 +25,10 @@ import static org.mockito.Mockito.when;
 
 import build.bazel.remote.execution.v2.ActionResult;
 import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
 import build.bazel.remote.execution.v2.Platform;
 import build.bazel.remote.execution.v2.Platform.Property;
+import build.bazel.remote.execution.v2.Tree;
 import build.buildfarm.backplane.Backplane;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.DigestUtil.HashFunction;
@@ -39,6 +43,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.jimfs.Configuration;
 import com.google.common.jimfs.Jimfs;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Duration;
 import io.grpc.StatusException;
 import java.nio.file.Files;
@@ -48,6 +53,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -91,6 +97,9 @@ public class ShardWorkerContextTest {
         /* inlineContentLimit=*/ 0,
         /* inputFetchStageWidth=*/ 0,
         /* executeStageWidth=*/ 0,
+        /* reportResultStageWidth=*/ 1,
+        /* outputUploadParallelism=*/ 2,
+        /* matchBatchSize=*/ 1,
         backplane,
         execFileSystem,
         inputStreamFactory,
@@ -104,7 +113,9 @@ public class ShardWorkerContextTest {
         /* limitGlobalExecution=*/ false,
         /* onlyMulticoreTests=*/ false,
         /* errorOperationRemainingResources=*/ false,
-        writer);
+        writer,
+        /* threadFactory=*/ Thread::new,
+        /* persistentWorkerPool=*/ null);
   }
 
   @Test(expected = StatusException.class)
@@ -119,6 +130,45 @@ public class ShardWorkerContextTest {
         ImmutableList.of());
   }
 
+  @Test
+  public void outputDirectoryTreeIsSortedDepthFirst() throws Exception {
+    Path outputDir = root.resolve("output");
+    Files.createDirectories(outputDir.resolve("b").resolve("d"));
+    Files.createDirectories(outputDir.resolve("a"));
+    Files.write(outputDir.resolve("z"), ByteString.copyFromUtf8("z").toByteArray());
+    Files.write(outputDir.resolve("y"), ByteString.copyFromUtf8("y").toByteArray());
+    Files.write(outputDir.resolve("b").resolve("c"), ByteString.copyFromUtf8("c").toByteArray());
+    when(writer.ingest(any(Path.class)))
+        .thenAnswer(invocation -> DIGEST_UTIL.compute((Path) invocation.getArgument(0)));
+    WorkerContext context = createTestContext();
+    ActionResult.Builder resultBuilder = ActionResult.newBuilder();
+    context.uploadOutputs(
+        Digest.getDefaultInstance(),
+        resultBuilder,
+        root,
+        ImmutableList.of(),
+        ImmutableList.of("output"));
+
+    Digest treeDigest = resultBuilder.getOutputDirectories(0).getTreeDigest();
+    ArgumentCaptor<ByteString> treeBlob = ArgumentCaptor.forClass(ByteString.class);
+    verify(writer, times(1)).insertBlob(eq(treeDigest), treeBlob.capture());
+    Tree tree = Tree.parseFrom(treeBlob.getValue());
+    Directory outputRoot = tree.getRoot();
+    assertThat(outputRoot.getFilesCount()).isEqualTo(2);
+    assertThat(outputRoot.getFiles(0).getName()).isEqualTo("y");
+    assertThat(outputRoot.getFiles(1).getName()).isEqualTo("z");
+    assertThat(outputRoot.getDirectoriesCount()).isEqualTo(2);
+    assertThat(outputRoot.getDirectories(0).getName()).isEqualTo("a");
+    assertThat(outputRoot.getDirectories(1).getName()).isEqualTo("b");
+    // children are in the post-order of the sorted directories: a, b/d, b
+    assertThat(tree.getChildrenCount()).isEqualTo(3);
+    assertThat(tree.getChildren(0)).isEqualTo(Directory.getDefaultInstance());
+    assertThat(tree.getChildren(1)).isEqualTo(Directory.getDefaultInstance());
+    assertThat(tree.getChildren(2).getFiles(0).getName()).isEqualTo("c");
+    assertThat(DIGEST_UTIL.compute(tree.getChildren(2)))
+        .isEqualTo(outputRoot.getDirectories(1).getDigest());
+  }
+
   @Test
   public void queueEntryWithExecutionPolicyPlatformMatches() throws Exception {
     WorkerContext context =